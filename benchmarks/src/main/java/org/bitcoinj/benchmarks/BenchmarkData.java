@@ -0,0 +1,91 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+
+import java.util.Random;
+
+/**
+ * Generates the regtest data the benchmarks run on. Everything is derived from a seeded {@link Random}, so runs are
+ * repeatable and need no network or chain files.
+ */
+class BenchmarkData {
+    static final NetworkParameters PARAMS = RegTestParams.get();
+
+    private final Random random;
+
+    BenchmarkData(long seed) {
+        this.random = new Random(seed);
+        Context.propagate(new Context(PARAMS));
+    }
+
+    ECKey newKey() {
+        byte[] privKeyBytes = new byte[32];
+        random.nextBytes(privKeyBytes);
+        // Random 32 byte values are below the curve order with overwhelming probability.
+        return ECKey.fromPrivate(privKeyBytes);
+    }
+
+    Sha256Hash newHash() {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return Sha256Hash.wrap(bytes);
+    }
+
+    /**
+     * Returns a transaction whose inputs are signed by the given key, spending pay to pubkey hash outputs of made up
+     * previous transactions. The connected output script of every input is {@link #scriptPubKey(ECKey)}.
+     */
+    Transaction newSignedTransaction(ECKey from, int numInputs, int numOutputs) {
+        Transaction tx = new Transaction(PARAMS);
+        for (int i = 0; i < numOutputs; i++)
+            tx.addOutput(Coin.CENT, newKey().toAddress(PARAMS));
+        Script scriptPubKey = scriptPubKey(from);
+        for (int i = 0; i < numInputs; i++)
+            tx.addSignedInput(new TransactionOutPoint(PARAMS, i, newHash()), scriptPubKey, from);
+        return tx;
+    }
+
+    /** Returns a block on top of the regtest genesis block with a coinbase and the given number of transactions. */
+    Block newBlock(int numTransactions) {
+        ECKey key = newKey();
+        Block block = PARAMS.getGenesisBlock().createNextBlock(key.toAddress(PARAMS));
+        for (int i = 0; i < numTransactions; i++)
+            block.addTransaction(newSignedTransaction(key, 1 + random.nextInt(3), 1 + random.nextInt(3)));
+        return block;
+    }
+
+    static Script scriptPubKey(ECKey key) {
+        return ScriptBuilder.createOutputScript(new Address(PARAMS, key.getPubKeyHash()));
+    }
+
+    int nextInt(int bound) {
+        return random.nextInt(bound);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.FilteredBlock;
+import org.bitcoinj.core.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matching transactions and blocks against a filter of wallet keys, as a full node does for its SPV peers. The
+ * transactions don't match, which is the common case, so the filter stays the same across invocations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BloomFilterBenchmark {
+    @Param({"100", "10000"})
+    public int filterKeys;
+
+    private BloomFilter filter;
+    private Transaction tx;
+    private Block block;
+
+    @Setup
+    public void setUp() {
+        BenchmarkData data = new BenchmarkData(5);
+        filter = new BloomFilter(filterKeys * 2, 0.0001, 0, BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY);
+        for (int i = 0; i < filterKeys; i++) {
+            ECKey key = data.newKey();
+            filter.insert(key.getPubKey());
+            filter.insert(key.getPubKeyHash());
+        }
+        tx = data.newSignedTransaction(data.newKey(), 2, 2);
+        block = data.newBlock(1000);
+    }
+
+    @Benchmark
+    public boolean applyAndUpdateTransaction() {
+        return filter.applyAndUpdate(tx);
+    }
+
+    @Benchmark
+    public FilteredBlock applyAndUpdateBlock() {
+        return filter.applyAndUpdate(block);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.H2FullPrunedBlockStore;
+import org.bitcoinj.store.LevelDBFullPrunedBlockStore;
+import org.bitcoinj.store.MemoryFullPrunedBlockStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The unspent output workload of connecting a block, against each {@link FullPrunedBlockStore} backend: within one
+ * batch write, look up and spend the outputs created by the previous block and create as many new ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FullPrunedBlockStoreBenchmark {
+    @Param({"memory", "h2", "leveldb", "leveldb-writebehind"})
+    public String backend;
+
+    @Param({"1000"})
+    public int outputsPerBlock;
+
+    private BenchmarkData data;
+    private File directory;
+    private FullPrunedBlockStore store;
+    private Script script;
+    private String address;
+    private List<UTXO> previousOutputs = new ArrayList<>();
+    private int height;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        data = new BenchmarkData(8);
+        ECKey key = data.newKey();
+        script = BenchmarkData.scriptPubKey(key);
+        address = key.toAddress(BenchmarkData.PARAMS).toString();
+        directory = Files.createTempDirectory("bitcoinj-benchmark").toFile();
+        String path = new File(directory, "store").getAbsolutePath();
+        switch (backend) {
+            case "memory":
+                store = new MemoryFullPrunedBlockStore(BenchmarkData.PARAMS, 10);
+                break;
+            case "h2":
+                store = new H2FullPrunedBlockStore(BenchmarkData.PARAMS, path, 10);
+                break;
+            case "leveldb":
+                store = new LevelDBFullPrunedBlockStore(BenchmarkData.PARAMS, path, 10);
+                break;
+            case "leveldb-writebehind":
+                LevelDBFullPrunedBlockStore levelDBStore = new LevelDBFullPrunedBlockStore(BenchmarkData.PARAMS, path, 10);
+                levelDBStore.setWriteBehind(100 * outputsPerBlock, TimeUnit.MINUTES.toMillis(1));
+                store = levelDBStore;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown backend: " + backend);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws BlockStoreException, IOException {
+        store.close();
+        delete(directory);
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Benchmark
+    public void connectBlock() throws BlockStoreException {
+        height++;
+        List<UTXO> created = new ArrayList<>(outputsPerBlock);
+        store.beginDatabaseBatchWrite();
+        try {
+            for (UTXO spent : previousOutputs) {
+                UTXO output = store.getTransactionOutput(spent.getHash(), spent.getIndex());
+                if (output == null)
+                    throw new IllegalStateException("Missing output " + spent);
+                store.removeUnspentTransactionOutput(output);
+            }
+            for (int i = 0; i < outputsPerBlock; i++) {
+                UTXO output = new UTXO(data.newHash(), i % 2, Coin.CENT, height, false, script, address);
+                store.addUnspentTransactionOutput(output);
+                created.add(output);
+            }
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        previousOutputs = created;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** BIP 32 child key derivation, from a private parent and from a watching (public only) parent. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HDKeyDerivationBenchmark {
+    private DeterministicKey parent;
+    private DeterministicKey watchingParent;
+    private int childNumber;
+
+    @Setup
+    public void setUp() {
+        byte[] seed = new byte[32];
+        new java.util.Random(7).nextBytes(seed);
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey(seed);
+        parent = HDKeyDerivation.deriveChildKey(master, ChildNumber.ZERO_HARDENED);
+        watchingParent = parent.dropPrivateBytes().dropParent();
+    }
+
+    private int nextChild() {
+        // Stay in the non-hardened range.
+        childNumber = (childNumber + 1) & ~ChildNumber.HARDENED_BIT;
+        return childNumber;
+    }
+
+    @Benchmark
+    public DeterministicKey derivePrivate() {
+        return HDKeyDerivation.deriveChildKey(parent, nextChild());
+    }
+
+    @Benchmark
+    public DeterministicKey derivePrivateHardened() {
+        return HDKeyDerivation.deriveChildKey(parent, new ChildNumber(nextChild(), true));
+    }
+
+    @Benchmark
+    public DeterministicKey derivePublic() {
+        return HDKeyDerivation.deriveChildKey(watchingParent, nextChild());
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.script.Script;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Verifying a pay to pubkey hash input, which is dominated by the signature hash and the ECDSA verification. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScriptBenchmark {
+    private Transaction tx;
+    private Script scriptPubKey;
+
+    @Setup
+    public void setUp() {
+        BenchmarkData data = new BenchmarkData(3);
+        ECKey key = data.newKey();
+        tx = data.newSignedTransaction(key, 1, 2);
+        scriptPubKey = BenchmarkData.scriptPubKey(key);
+    }
+
+    @Benchmark
+    public void correctlySpends() {
+        tx.getInput(0).getScriptSig().correctlySpends(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Message;
+import org.bitcoinj.core.MessageSerializer;
+import org.bitcoinj.core.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/** Parsing and serializing full messages, including the header and checksum, with the network serializer. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SerializerBenchmark {
+    @Param({"1", "1000"})
+    public int blockTransactions;
+
+    private MessageSerializer serializer;
+    private Block block;
+    private byte[] blockMessage;
+    private Transaction tx;
+    private byte[] txMessage;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkData data = new BenchmarkData(1);
+        serializer = BenchmarkData.PARAMS.getDefaultSerializer();
+        block = data.newBlock(blockTransactions);
+        blockMessage = serialize(block);
+        tx = data.newSignedTransaction(data.newKey(), 2, 2);
+        txMessage = serialize(tx);
+    }
+
+    private byte[] serialize(Message message) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(message, out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public Object parseBlock() throws Exception {
+        return serializer.deserialize(ByteBuffer.wrap(blockMessage));
+    }
+
+    @Benchmark
+    public byte[] serializeBlock() throws Exception {
+        // The block was built rather than parsed, so there are no cached bytes to copy.
+        return serialize(block);
+    }
+
+    @Benchmark
+    public Object parseTransaction() throws Exception {
+        return serializer.deserialize(ByteBuffer.wrap(txMessage));
+    }
+
+    @Benchmark
+    public byte[] serializeTransaction() throws Exception {
+        return serialize(tx);
+    }
+}
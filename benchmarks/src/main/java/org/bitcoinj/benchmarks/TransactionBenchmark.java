@@ -0,0 +1,65 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.script.Script;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Transaction ids and signature hashes, for small and large transactions. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransactionBenchmark {
+    @Param({"1", "100"})
+    public int inputs;
+
+    private byte[] txBytes;
+    private Transaction tx;
+    private Script scriptPubKey;
+
+    @Setup
+    public void setUp() {
+        BenchmarkData data = new BenchmarkData(2);
+        ECKey key = data.newKey();
+        tx = data.newSignedTransaction(key, inputs, 2);
+        txBytes = tx.bitcoinSerialize();
+        scriptPubKey = BenchmarkData.scriptPubKey(key);
+    }
+
+    /** Baseline for {@link #parseAndGetHash()}, as the hash is cached once computed. */
+    @Benchmark
+    public Transaction parse() {
+        return new Transaction(BenchmarkData.PARAMS, txBytes);
+    }
+
+    @Benchmark
+    public Sha256Hash parseAndGetHash() {
+        return new Transaction(BenchmarkData.PARAMS, txBytes).getHash();
+    }
+
+    @Benchmark
+    public Sha256Hash hashForSignature() {
+        return tx.hashForSignature(inputs - 1, scriptPubKey, Transaction.SigHash.ALL, false);
+    }
+}
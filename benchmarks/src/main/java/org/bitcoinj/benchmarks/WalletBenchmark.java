@@ -0,0 +1,90 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Balance calculation and coin selection on a synthetic wallet with many confirmed unspent outputs, spread over a
+ * number of receive addresses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WalletBenchmark {
+    private static final int RECEIVE_ADDRESSES = 100;
+
+    @Param({"1000", "10000"})
+    public int walletTransactions;
+
+    private Wallet wallet;
+    private Address destination;
+
+    @Setup
+    public void setUp() {
+        BenchmarkData data = new BenchmarkData(6);
+        wallet = new Wallet(BenchmarkData.PARAMS);
+        List<Address> addresses = new ArrayList<>(RECEIVE_ADDRESSES);
+        for (int i = 0; i < RECEIVE_ADDRESSES; i++)
+            addresses.add(wallet.freshReceiveAddress());
+        for (int i = 0; i < walletTransactions; i++) {
+            Transaction tx = new Transaction(BenchmarkData.PARAMS);
+            tx.addInput(new TransactionInput(BenchmarkData.PARAMS, tx, new byte[0],
+                    new TransactionOutPoint(BenchmarkData.PARAMS, 0, data.newHash())));
+            Coin value = Coin.CENT.multiply(1 + data.nextInt(100));
+            tx.addOutput(value, addresses.get(data.nextInt(RECEIVE_ADDRESSES)));
+            tx.getConfidence().setAppearedAtChainHeight(1 + i / 1000);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+        }
+        destination = data.newKey().toAddress(BenchmarkData.PARAMS);
+    }
+
+    @Benchmark
+    public Coin getBalance() {
+        return wallet.getBalance();
+    }
+
+    @Benchmark
+    public Coin getEstimatedBalance() {
+        return wallet.getBalance(Wallet.BalanceType.ESTIMATED);
+    }
+
+    /** Selects and signs enough inputs for a payment of a few times the average output, without committing it. */
+    @Benchmark
+    public Transaction completeTx() throws InsufficientMoneyException {
+        Context.propagate(wallet.getContext());
+        SendRequest request = SendRequest.to(destination, Coin.COIN);
+        wallet.completeTx(request);
+        return request.tx;
+    }
+}
@@ -79,6 +79,7 @@ import static com.google.common.base.Preconditions.*;
  */
 public abstract class AbstractBlockChain {
     private static final Logger log = LoggerFactory.getLogger(AbstractBlockChain.class);
+    private static final Metrics.Histogram CONNECT_TIME = Metrics.histogram("blockchain.connect.time");
     protected final ReentrantLock lock = Threading.lock("blockchain");
 
     /** Keeps a map of block hashes to StoredBlocks. */
@@ -135,6 +136,14 @@ public abstract class AbstractBlockChain {
 
     private final VersionTally versionTally;
 
+    /** Number of blocks the median time past is taken over. */
+    private static final int MEDIAN_TIME_SPAN = 11;
+    // Recent blocks of the best chain, for the checks that look back in the chain.
+    private final ChainContext chainContext;
+
+    private final Context context;
+    @Nullable private volatile Executor parallelListenerExecutor;
+
     /** See {@link #AbstractBlockChain(Context, List, BlockStore)} */
     public AbstractBlockChain(NetworkParameters params, List<? extends Wallet> transactionReceivedListeners,
                               BlockStore blockStore) throws BlockStoreException {
@@ -150,6 +159,7 @@ public abstract class AbstractBlockChain {
         chainHead = blockStore.getChainHead();
         log.info("chain head is at height {}:\n{}", chainHead.getHeight(), chainHead.getHeader());
         this.params = context.getParams();
+        this.context = context;
 
         this.newBestBlockListeners = new CopyOnWriteArrayList<>();
         this.reorganizeListeners = new CopyOnWriteArrayList<>();
@@ -160,6 +170,7 @@ public abstract class AbstractBlockChain {
 
         this.versionTally = new VersionTally(context.getParams());
         this.versionTally.initialize(blockStore, chainHead);
+        this.chainContext = new ChainContext(Math.max(params.getInterval(), MEDIAN_TIME_SPAN));
     }
 
     /**
@@ -199,6 +210,22 @@ public abstract class AbstractBlockChain {
         removeTransactionReceivedListener(wallet);
     }
 
+    /**
+     * <p>Lets the chain hand each block to its listeners in parallel on the given executor, which is worthwhile when
+     * many wallets are attached to the same chain. Only listeners registered with {@link Threading#SAME_THREAD}, such
+     * as wallets added with {@link #addWallet(Wallet)}, are affected. Each of them is still given the transactions of
+     * a block in order, followed by the new best block, on one thread at a time; different listeners just no longer
+     * wait for each other. The chain waits for all of them to finish before it moves on to the next block, so
+     * reorganizations and exceptions thrown by a listener are handled as before.</p>
+     *
+     * <p>Listeners must therefore not depend on each other being notified first, and must not try to use the chain
+     * from the notifying thread as the chain lock is held by a different thread. Pass null to go back to notifying
+     * listeners one after another, which is the default.</p>
+     */
+    public void setParallelListenerExecutor(@Nullable Executor executor) {
+        this.parallelListenerExecutor = executor;
+    }
+
     /** Replaced with more specific listener methods: use them instead. */
     @Deprecated @SuppressWarnings("deprecation")
     public void addListener(BlockChainListener listener) {
@@ -486,8 +513,10 @@ public abstract class AbstractBlockChain {
             } else {
                 checkState(lock.isHeldByCurrentThread());
                 // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
-                params.checkDifficultyTransitions(storedPrev, block, blockStore);
+                params.checkDifficultyTransitions(storedPrev, block, blockStore, chainContext);
+                long start = Metrics.startTimer();
                 connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
+                CONNECT_TIME.stopTimer(start);
             }
 
             if (tryConnecting)
@@ -619,6 +648,12 @@ public abstract class AbstractBlockChain {
         // Notify the listeners of the new block, so the depth and workDone of stored transactions can be updated
         // (in the case of the listener being a wallet). Wallets need to know how deep each transaction is so
         // coinbases aren't used before maturity.
+        Executor parallelExecutor = parallelListenerExecutor;
+        if (parallelExecutor != null) {
+            informListenersInParallel(parallelExecutor, block, newBlockType, filteredTxHashList, filteredTxn,
+                    newStoredBlock);
+            return;
+        }
         boolean first = true;
         Set<Sha256Hash> falsePositives = Sets.newHashSet();
         if (filteredTxHashList != null) falsePositives.addAll(filteredTxHashList);
@@ -626,7 +661,7 @@ public abstract class AbstractBlockChain {
         for (final ListenerRegistration<TransactionReceivedInBlockListener> registration : transactionReceivedListeners) {
             if (registration.executor == Threading.SAME_THREAD) {
                 informListenerForNewTransactions(block, newBlockType, filteredTxHashList, filteredTxn,
-                        newStoredBlock, first, registration.listener, falsePositives);
+                        newStoredBlock, first, registration.listener, falsePositives, null);
             } else {
                 // Listener wants to be run on some other thread, so marshal it across here.
                 final boolean notFirst = !first;
@@ -637,7 +672,7 @@ public abstract class AbstractBlockChain {
                             // We can't do false-positive handling when executing on another thread
                             Set<Sha256Hash> ignoredFalsePositives = Sets.newHashSet();
                             informListenerForNewTransactions(block, newBlockType, filteredTxHashList, filteredTxn,
-                                    newStoredBlock, notFirst, registration.listener, ignoredFalsePositives);
+                                    newStoredBlock, notFirst, registration.listener, ignoredFalsePositives, null);
                         } catch (VerificationException e) {
                             log.error("Block chain listener threw exception: ", e);
                             // Don't attempt to relay this back to the original peer thread if this was an async
@@ -677,12 +712,161 @@ public abstract class AbstractBlockChain {
         trackFalsePositives(falsePositives.size());
     }
 
+    /**
+     * Does the same as the sequential part of {@link #informListenersForNewBlock}, but runs the work for each
+     * same-thread listener as one task on the given executor. A listener that is registered for both transactions and
+     * new best blocks (like a wallet) gets both in a single task, in the same order as when run sequentially.
+     */
+    private void informListenersInParallel(Executor executor, final Block block, final NewBlockType newBlockType,
+                                           @Nullable final List<Sha256Hash> filteredTxHashList,
+                                           @Nullable final Map<Sha256Hash, Transaction> filteredTxn,
+                                           final StoredBlock newStoredBlock) throws VerificationException {
+        final Set<Sha256Hash> initialFalsePositives = Sets.newHashSet();
+        if (filteredTxHashList != null) initialFalsePositives.addAll(filteredTxHashList);
+
+        // All but the first listener receive copies of the transactions. Serialize them up front, so that the copies
+        // aren't made from a transaction the first listener is modifying at the same time.
+        Map<Sha256Hash, byte[]> serializedTxns = null;
+        if (transactionReceivedListeners.size() > 1) {
+            Collection<Transaction> txns = block.transactions != null ? block.transactions
+                    : filteredTxn != null ? filteredTxn.values() : Collections.<Transaction>emptyList();
+            serializedTxns = Maps.newHashMapWithExpectedSize(txns.size());
+            for (Transaction tx : txns)
+                serializedTxns.put(tx.getHash(), tx.bitcoinSerialize());
+        }
+        final Map<Sha256Hash, byte[]> serialized = serializedTxns;
+
+        List<ListenerTask> tasks = new ArrayList<>();
+        boolean first = true;
+        for (final ListenerRegistration<TransactionReceivedInBlockListener> registration : transactionReceivedListeners) {
+            if (registration.executor == Threading.SAME_THREAD) {
+                findOrAddTask(tasks, registration.listener).transactions(registration.listener, first);
+            } else {
+                final boolean notFirst = !first;
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            informListenerForNewTransactions(block, newBlockType, filteredTxHashList, filteredTxn,
+                                    newStoredBlock, notFirst, registration.listener, Sets.<Sha256Hash>newHashSet(),
+                                    serialized);
+                        } catch (VerificationException e) {
+                            log.error("Block chain listener threw exception: ", e);
+                        }
+                    }
+                });
+            }
+            first = false;
+        }
+        for (final ListenerRegistration<NewBestBlockListener> registration : newBestBlockListeners) {
+            if (newBlockType != NewBlockType.BEST_CHAIN)
+                break;
+            if (registration.executor == Threading.SAME_THREAD) {
+                findOrAddTask(tasks, registration.listener).newBestBlock(registration.listener);
+            } else {
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            registration.listener.notifyNewBestBlock(newStoredBlock);
+                        } catch (VerificationException e) {
+                            log.error("Block chain listener threw exception: ", e);
+                        }
+                    }
+                });
+            }
+        }
+
+        final Context context = this.context;
+        List<ListenableFutureTask<Set<Sha256Hash>>> futures = new ArrayList<>(tasks.size());
+        for (final ListenerTask task : tasks) {
+            futures.add(ListenableFutureTask.create(new Callable<Set<Sha256Hash>>() {
+                @Override
+                public Set<Sha256Hash> call() throws VerificationException {
+                    Context.propagate(context);
+                    Set<Sha256Hash> falsePositives = Sets.newHashSet(initialFalsePositives);
+                    task.run(block, newBlockType, filteredTxHashList, filteredTxn, newStoredBlock, falsePositives,
+                            serialized);
+                    return task.transactionListener != null ? falsePositives : null;
+                }
+            }));
+        }
+        // The chain thread does the first task itself rather than sitting idle.
+        for (int i = 1; i < futures.size(); i++)
+            executor.execute(futures.get(i));
+        if (!futures.isEmpty())
+            futures.get(0).run();
+
+        // Wait for every listener before reporting a failure, so none of them is still busy with this block when the
+        // next one arrives.
+        Set<Sha256Hash> falsePositives = initialFalsePositives;
+        Throwable failure = null;
+        for (ListenableFutureTask<Set<Sha256Hash>> future : futures) {
+            try {
+                Set<Sha256Hash> remaining = Uninterruptibles.getUninterruptibly(future);
+                if (remaining != null)
+                    falsePositives.retainAll(remaining);
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause();
+            }
+        }
+        if (failure != null) {
+            Throwables.propagateIfPossible(failure, VerificationException.class);
+            throw new RuntimeException(failure);
+        }
+        trackFalsePositives(falsePositives.size());
+    }
+
+    private static ListenerTask findOrAddTask(List<ListenerTask> tasks, Object listener) {
+        for (ListenerTask task : tasks)
+            if (task.listener == listener)
+                return task;
+        ListenerTask task = new ListenerTask(listener);
+        tasks.add(task);
+        return task;
+    }
+
+    /** The work one listener has to do for a block when listeners are notified in parallel. */
+    private static class ListenerTask {
+        final Object listener;
+        @Nullable TransactionReceivedInBlockListener transactionListener;
+        boolean first;
+        @Nullable NewBestBlockListener newBestBlockListener;
+
+        ListenerTask(Object listener) {
+            this.listener = listener;
+        }
+
+        void transactions(TransactionReceivedInBlockListener listener, boolean first) {
+            this.transactionListener = listener;
+            this.first = first;
+        }
+
+        void newBestBlock(NewBestBlockListener listener) {
+            this.newBestBlockListener = listener;
+        }
+
+        void run(Block block, NewBlockType newBlockType, @Nullable List<Sha256Hash> filteredTxHashList,
+                 @Nullable Map<Sha256Hash, Transaction> filteredTxn, StoredBlock newStoredBlock,
+                 Set<Sha256Hash> falsePositives, @Nullable Map<Sha256Hash, byte[]> serialized)
+                throws VerificationException {
+            if (transactionListener != null)
+                informListenerForNewTransactions(block, newBlockType, filteredTxHashList, filteredTxn, newStoredBlock,
+                        first, transactionListener, falsePositives, serialized);
+            if (newBestBlockListener != null)
+                newBestBlockListener.notifyNewBestBlock(newStoredBlock);
+        }
+    }
+
     private static void informListenerForNewTransactions(Block block, NewBlockType newBlockType,
                                                          @Nullable List<Sha256Hash> filteredTxHashList,
                                                          @Nullable Map<Sha256Hash, Transaction> filteredTxn,
                                                          StoredBlock newStoredBlock, boolean first,
                                                          TransactionReceivedInBlockListener listener,
-                                                         Set<Sha256Hash> falsePositives) throws VerificationException {
+                                                         Set<Sha256Hash> falsePositives,
+                                                         @Nullable Map<Sha256Hash, byte[]> serialized)
+            throws VerificationException {
         if (block.transactions != null) {
             // If this is not the first wallet, ask for the transactions to be duplicated before being given
             // to the wallet when relevant. This ensures that if we have two connected wallets and a tx that
@@ -690,7 +874,7 @@ public abstract class AbstractBlockChain {
             // result in temporary in-memory corruption during re-orgs). See bug 257. We only duplicate in
             // the case of multiple wallets to avoid an unnecessary efficiency hit in the common case.
             sendTransactionsToListener(newStoredBlock, newBlockType, listener, 0, block.transactions,
-                    !first, falsePositives);
+                    !first, falsePositives, serialized);
         } else if (filteredTxHashList != null) {
             checkNotNull(filteredTxn);
             // We must send transactions to listeners in the order they appeared in the block - thus we iterate over the
@@ -701,7 +885,7 @@ public abstract class AbstractBlockChain {
                 Transaction tx = filteredTxn.get(hash);
                 if (tx != null) {
                     sendTransactionsToListener(newStoredBlock, newBlockType, listener, relativityOffset,
-                            Collections.singletonList(tx), !first, falsePositives);
+                            Collections.singletonList(tx), !first, falsePositives, serialized);
                 } else {
                     if (listener.notifyTransactionIsInBlock(hash, newStoredBlock, newBlockType, relativityOffset)) {
                         falsePositives.remove(hash);
@@ -713,18 +897,25 @@ public abstract class AbstractBlockChain {
     }
 
     /**
-     * Gets the median timestamp of the last 11 blocks
+     * Gets the median timestamp of the last 11 blocks, taken from the chain context if it has them.
      */
-    private static long getMedianTimestampOfRecentBlocks(StoredBlock storedBlock,
-                                                         BlockStore store) throws BlockStoreException {
-        long[] timestamps = new long[11];
-        int unused = 9;
-        timestamps[10] = storedBlock.getHeader().getTimeSeconds();
-        while (unused >= 0 && (storedBlock = storedBlock.getPrev(store)) != null)
-            timestamps[unused--] = storedBlock.getHeader().getTimeSeconds();
-        
-        Arrays.sort(timestamps, unused+1, 11);
-        return timestamps[unused + (11-unused)/2];
+    private long getMedianTimestampOfRecentBlocks(StoredBlock storedBlock,
+                                                  BlockStore store) throws BlockStoreException {
+        long[] timestamps = new long[MEDIAN_TIME_SPAN];
+        int unused = MEDIAN_TIME_SPAN - 2;
+        timestamps[MEDIAN_TIME_SPAN - 1] = storedBlock.getHeader().getTimeSeconds();
+        int height = storedBlock.getHeight();
+        int depth = chainContext.getDepth(storedBlock);
+        if (depth >= MEDIAN_TIME_SPAN || depth == height + 1) {
+            while (unused >= 0 && --height >= 0)
+                timestamps[unused--] = chainContext.getTimeSeconds(height);
+        } else {
+            while (unused >= 0 && (storedBlock = storedBlock.getPrev(store)) != null)
+                timestamps[unused--] = storedBlock.getHeader().getTimeSeconds();
+        }
+
+        Arrays.sort(timestamps, unused+1, MEDIAN_TIME_SPAN);
+        return timestamps[unused + (MEDIAN_TIME_SPAN-unused)/2];
     }
     
     /**
@@ -873,12 +1064,16 @@ public abstract class AbstractBlockChain {
                                                    int relativityOffset,
                                                    List<Transaction> transactions,
                                                    boolean clone,
-                                                   Set<Sha256Hash> falsePositives) throws VerificationException {
+                                                   Set<Sha256Hash> falsePositives,
+                                                   @Nullable Map<Sha256Hash, byte[]> serialized)
+            throws VerificationException {
         for (Transaction tx : transactions) {
             try {
                 falsePositives.remove(tx.getHash());
-                if (clone)
-                    tx = tx.params.getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+                if (clone) {
+                    byte[] bytes = serialized != null ? serialized.get(tx.getHash()) : null;
+                    tx = tx.params.getDefaultSerializer().makeTransaction(bytes != null ? bytes : tx.bitcoinSerialize());
+                }
                 listener.receiveFromBlock(tx, block, blockType, relativityOffset++);
             } catch (ScriptException e) {
                 // We don't want scripts we don't understand to break the block chain so just note that this tx was
@@ -893,6 +1088,7 @@ public abstract class AbstractBlockChain {
 
     protected void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         doSetChainHead(chainHead);
+        chainContext.setChainHead(chainHead, blockStore);
         synchronized (chainHeadLock) {
             this.chainHead = chainHead;
         }
@@ -984,9 +1180,19 @@ public abstract class AbstractBlockChain {
      * Returns an estimate of when the given block will be reached, assuming a perfect 10 minute average for each
      * block. This is useful for turning transaction lock times into human readable times. Note that a height in
      * the past will still be estimated, even though the time of solving is actually known (we won't scan backwards
-     * through the chain to obtain the right answer).
+     * through the chain to obtain the right answer), unless the block store is a {@link HeaderChainStore}, which can
+     * look up past blocks by height directly.
      */
     public Date estimateBlockTime(int height) {
+        if (blockStore instanceof HeaderChainStore) {
+            try {
+                StoredBlock block = ((HeaderChainStore) blockStore).get(height);
+                if (block != null)
+                    return block.getHeader().getTime();
+            } catch (BlockStoreException e) {
+                log.warn("Could not look up block at height {}, estimating its time instead", height, e);
+            }
+        }
         synchronized (chainHeadLock) {
             long offset = height - chainHead.getHeight();
             long headTime = chainHead.getHeader().getTimeSeconds();
@@ -27,6 +27,7 @@ import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static org.bitcoinj.core.Utils.*;
 
 /**
@@ -47,6 +48,7 @@ public class BitcoinSerializer extends MessageSerializer {
 
     private final NetworkParameters params;
     private final boolean parseRetain;
+    private final int parallelHashingThreshold;
 
     private static final Map<Class<? extends Message>, String> names = new HashMap<>();
 
@@ -81,8 +83,22 @@ public class BitcoinSerializer extends MessageSerializer {
      * @param parseRetain      retain the backing byte array of a message for fast reserialization.
      */
     public BitcoinSerializer(NetworkParameters params, boolean parseRetain) {
+        this(params, parseRetain, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Constructs a BitcoinSerializer with the given behavior.
+     *
+     * @param params           networkParams used to create Messages instances and termining packetMagic
+     * @param parseRetain      retain the backing byte array of a message for fast reserialization.
+     * @param parallelHashingThreshold blocks with at least this many transactions have their transaction ids
+     *                         calculated in parallel, see {@link #getParallelHashingThreshold()}.
+     */
+    public BitcoinSerializer(NetworkParameters params, boolean parseRetain, int parallelHashingThreshold) {
+        checkArgument(parallelHashingThreshold > 0, "parallelHashingThreshold must be positive");
         this.params = params;
         this.parseRetain = parseRetain;
+        this.parallelHashingThreshold = parallelHashingThreshold;
     }
 
     /**
@@ -343,6 +359,11 @@ public class BitcoinSerializer extends MessageSerializer {
         return parseRetain;
     }
 
+    @Override
+    public int getParallelHashingThreshold() {
+        return parallelHashingThreshold;
+    }
+
 
     public static class BitcoinPacketHeader {
         /** The largest number of bytes that a header can represent */
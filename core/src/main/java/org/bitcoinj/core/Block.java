@@ -20,7 +20,9 @@ package org.bitcoinj.core;
 import com.google.common.annotations.*;
 import com.google.common.base.*;
 import com.google.common.collect.*;
+import com.google.common.util.concurrent.*;
 import org.bitcoinj.script.*;
+import org.bitcoinj.utils.*;
 import org.slf4j.*;
 
 import javax.annotation.*;
@@ -238,17 +240,69 @@ public class Block extends Message {
         int numTransactions = (int) readVarInt();
         optimalEncodingMessageSize += VarInt.sizeOf(numTransactions);
         transactions = new ArrayList<>(numTransactions);
+        // The id of each transaction is the hash of its bytes in the payload, which saves serializing it again later.
+        boolean parallel = numTransactions > 1 && numTransactions >= serializer.getParallelHashingThreshold();
+        int[] offsets = parallel ? new int[numTransactions + 1] : null;
         for (int i = 0; i < numTransactions; i++) {
             Transaction tx = new Transaction(params, payload, cursor, this, serializer, UNKNOWN_LENGTH);
-            // Label the transaction as coming from the P2P network, so code that cares where we first saw it knows.
-            tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+            if (parallel)
+                offsets[i] = cursor;
+            else
+                tx.setHash(hashRange(payload, cursor, tx.getMessageSize()));
             transactions.add(tx);
             cursor += tx.getMessageSize();
             optimalEncodingMessageSize += tx.getOptimalEncodingMessageSize();
         }
+        if (parallel) {
+            offsets[numTransactions] = cursor;
+            hashTransactionsInParallel(offsets);
+        }
+        for (Transaction tx : transactions) {
+            // Label the transaction as coming from the P2P network, so code that cares where we first saw it knows.
+            tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+        }
         transactionBytesValid = serializer.isParseRetainMode();
     }
 
+    // Sets the ids of the transactions, which are found between the given offsets in the payload, using the worker pool
+    // as well as the calling thread.
+    private void hashTransactionsInParallel(final int[] offsets) {
+        final byte[] bytes = payload;
+        int numTransactions = transactions.size();
+        int chunks = Math.min(Runtime.getRuntime().availableProcessors(), numTransactions);
+        final int chunkSize = (numTransactions + chunks - 1) / chunks;
+        List<ListenableFuture<?>> futures = new ArrayList<>(chunks);
+        for (int start = chunkSize; start < numTransactions; start += chunkSize) {
+            final int from = start;
+            final int to = Math.min(start + chunkSize, numTransactions);
+            futures.add(Threading.THREAD_POOL.submit(new Runnable() {
+                @Override
+                public void run() {
+                    hashTransactions(bytes, offsets, from, to);
+                }
+            }));
+        }
+        hashTransactions(bytes, offsets, 0, Math.min(chunkSize, numTransactions));
+        Futures.getUnchecked(Futures.allAsList(futures));
+    }
+
+    private void hashTransactions(byte[] bytes, int[] offsets, int from, int to) {
+        for (int i = from; i < to; i++)
+            transactions.get(i).setHash(hashRange(bytes, offsets[i], offsets[i + 1] - offsets[i]));
+    }
+
+    // Returns the double hash of the given range, in the byte order used for ids.
+    private static Sha256Hash hashRange(byte[] bytes, int offset, int length) {
+        byte[] hash = new byte[32];
+        Sha256Hash.hashTwice(bytes, offset, length, hash, 0);
+        for (int i = 0; i < 16; i++) {
+            byte b = hash[i];
+            hash[i] = hash[31 - i];
+            hash[31 - i] = b;
+        }
+        return Sha256Hash.wrap(hash);
+    }
+
     @Override
     protected void parse() throws ProtocolException {
         // header
@@ -259,7 +313,7 @@ public class Block extends Message {
         time = readUint32();
         difficultyTarget = readUint32();
         nonce = readUint32();
-        hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(payload, offset, cursor - offset));
+        hash = hashRange(payload, offset, cursor - offset);
         headerBytesValid = serializer.isParseRetainMode();
 
         // transactions
@@ -625,6 +679,8 @@ public class Block extends Message {
             tree.add(t.getHash().getBytes());
         }
         int levelOffset = 0; // Offset in the list where the currently processed level starts.
+        // The pair of nodes being hashed, reversed into wire order, is assembled here.
+        byte[] pair = new byte[64];
         // Step through each level, stopping when we reach the root (levelSize == 1).
         for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
             // For each pair of nodes on that level:
@@ -632,9 +688,12 @@ public class Block extends Message {
                 // The right hand node can be the same as the left hand, in the case where we don't have enough
                 // transactions.
                 int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(hashTwice(leftBytes, 0, 32, rightBytes, 0, 32)));
+                reverseInto(tree.get(levelOffset + left), pair, 0);
+                reverseInto(tree.get(levelOffset + right), pair, 32);
+                Sha256Hash.hashTwice(pair, 0, 64, pair, 0);
+                byte[] node = new byte[32];
+                reverseInto(pair, node, 0);
+                tree.add(node);
             }
             // Move to the next level.
             levelOffset += levelSize;
@@ -642,6 +701,12 @@ public class Block extends Message {
         return tree;
     }
 
+    // Copies the first 32 bytes of hash into out at the given offset, in reverse order.
+    private static void reverseInto(byte[] hash, byte[] out, int offset) {
+        for (int i = 0; i < 32; i++)
+            out[offset + i] = hash[31 - i];
+    }
+
     /**
      * Verify the transactions on a block.
      *
@@ -166,6 +166,11 @@ public class BloomFilter extends Message {
      * See this <a href="https://github.com/aappleby/smhasher/blob/master/src/MurmurHash3.cpp">C++ code for the original.</a>
      */
     public static int murmurHash3(byte[] data, long nTweak, int hashNum, byte[] object) {
+        return (int)((murmurHash3(nTweak, hashNum, object) & 0xFFFFFFFFL) % (data.length * 8));
+    }
+
+    // The full 32 bit MurmurHash3 of the object, before it is reduced to a bit index of a filter.
+    static int murmurHash3(long nTweak, int hashNum, byte[] object) {
         int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
         final int c1 = 0xcc9e2d51;
         final int c2 = 0x1b873593;
@@ -212,8 +217,8 @@ public class BloomFilter extends Message {
         h1 ^= h1 >>> 13;
         h1 *= 0xc2b2ae35;
         h1 ^= h1 >>> 16;
-        
-        return (int)((h1&0xFFFFFFFFL) % (data.length * 8));
+
+        return h1;
     }
     
     /**
@@ -46,6 +46,7 @@ import static com.google.common.base.Preconditions.checkState;
  */
 public class FullPrunedBlockChain extends AbstractBlockChain {
     private static final Logger log = LoggerFactory.getLogger(FullPrunedBlockChain.class);
+    private static final Metrics.Histogram SCRIPT_VERIFY_TIME = Metrics.histogram("blockchain.script_verify.time");
 
     /**
      * Keeps a map of block hashes to StoredBlocks.
@@ -166,6 +167,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         @Nullable
         @Override
         public VerificationException call() throws Exception {
+            long start = Metrics.startTimer();
             try {
                 ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
                 for (int index = 0; index < tx.getInputs().size(); index++) {
@@ -173,6 +175,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 }
             } catch (VerificationException e) {
                 return e;
+            } finally {
+                SCRIPT_VERIFY_TIME.stopTimer(start);
             }
             return null;
         }
@@ -17,22 +17,31 @@
 
 package org.bitcoinj.core;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import static com.google.common.base.Preconditions.checkElementIndex;
+
 /**
  * <p>Abstract superclass of classes with list based payload, ie InventoryMessage and GetDataMessage.</p>
  * 
- * <p>Instances of this class are not safe for use by multiple threads.</p>
+ * <p>Instances of this class are not safe for use by multiple threads, except that a parsed message may be read
+ * concurrently while it isn't modified.</p>
  */
 public abstract class ListMessage extends Message {
 
     private long arrayLen;
     // For some reason the compiler complains if this is inside InventoryItem
     protected List<InventoryItem> items;
+    // A parsed message keeps its items in wire format, starting at rawItemsOffset, until the item objects are needed.
+    // This lets the items be read one by one without creating an object for each. Once the item objects exist, items
+    // is set before this is cleared, so readers that find this null always see the complete list.
+    @Nullable private volatile byte[] rawItems;
+    private int rawItemsOffset;
 
     public static final long MAX_INVENTORY_ITEMS = 50000;
 
@@ -52,10 +61,51 @@ public abstract class ListMessage extends Message {
     }
 
     public List<InventoryItem> getItems() {
+        maybeCreateItems();
         return Collections.unmodifiableList(items);
     }
 
+    /** Returns the number of items, like getItems().size() but without creating the item objects. */
+    public int getItemCount() {
+        return rawItems != null ? (int) arrayLen : items.size();
+    }
+
+    /** Returns the type of the item at the given index, without creating the item objects. */
+    public InventoryItem.Type getItemType(int index) {
+        checkElementIndex(index, getItemCount());
+        byte[] raw = rawItems;
+        if (raw == null)
+            return items.get(index).type;
+        return rawItemType(raw, index);
+    }
+
+    /**
+     * Copies the hash of the item at the given index into the start of the given array, in the byte order of
+     * {@link Sha256Hash#getBytes()}. Unless the item objects were already created this doesn't allocate memory.
+     */
+    public void copyItemHash(int index, byte[] dest) {
+        checkElementIndex(index, getItemCount());
+        byte[] raw = rawItems;
+        if (raw == null) {
+            System.arraycopy(items.get(index).hash.getBytes(), 0, dest, 0, 32);
+            return;
+        }
+        copyRawItemHash(raw, index, dest);
+    }
+
+    private InventoryItem.Type rawItemType(byte[] raw, int index) {
+        return typeOf(Utils.readUint32(raw, rawItemsOffset + index * InventoryItem.MESSAGE_LENGTH));
+    }
+
+    private void copyRawItemHash(byte[] raw, int index, byte[] dest) {
+        // Hashes are little endian on the wire.
+        int start = rawItemsOffset + index * InventoryItem.MESSAGE_LENGTH + 4;
+        for (int i = 0; i < 32; i++)
+            dest[i] = raw[start + 31 - i];
+    }
+
     public void addItem(InventoryItem item) {
+        maybeCreateItems();
         unCache();
         length -= VarInt.sizeOf(items.size());
         items.add(item);
@@ -63,6 +113,7 @@ public abstract class ListMessage extends Message {
     }
 
     public void removeItem(int index) {
+        maybeCreateItems();
         unCache();
         length -= VarInt.sizeOf(items.size());
         items.remove(index);
@@ -76,39 +127,56 @@ public abstract class ListMessage extends Message {
             throw new ProtocolException("Too many items in INV message: " + arrayLen);
         length = (int) (cursor - offset + (arrayLen * InventoryItem.MESSAGE_LENGTH));
 
-        // An inv is vector<CInv> where CInv is int+hash. The int is either 1 or 2 for tx or block.
-        items = new ArrayList<>((int) arrayLen);
+        // An inv is vector<CInv> where CInv is int+hash. The int is either 1 or 2 for tx or block. The items are only
+        // checked here, the objects for them are created when they are asked for.
+        if (cursor + arrayLen * InventoryItem.MESSAGE_LENGTH > payload.length)
+            throw new ProtocolException("Ran off the end of the INV");
+        rawItems = payload;
+        rawItemsOffset = cursor;
         for (int i = 0; i < arrayLen; i++) {
-            if (cursor + InventoryItem.MESSAGE_LENGTH > payload.length) {
-                throw new ProtocolException("Ran off the end of the INV");
-            }
-            int typeCode = (int) readUint32();
-            InventoryItem.Type type;
-            // See ppszTypeName in net.h
-            switch (typeCode) {
-                case 0:
-                    type = InventoryItem.Type.Error;
-                    break;
-                case 1:
-                    type = InventoryItem.Type.Transaction;
-                    break;
-                case 2:
-                    type = InventoryItem.Type.Block;
-                    break;
-                case 3:
-                    type = InventoryItem.Type.FilteredBlock;
-                    break;
-                default:
-                    throw new ProtocolException("Unknown CInv type: " + typeCode);
-            }
-            InventoryItem item = new InventoryItem(type, readHash());
-            items.add(item);
+            long typeCode = readUint32();
+            if (typeOf(typeCode) == null)
+                throw new ProtocolException("Unknown CInv type: " + typeCode);
+            cursor += 32;
         }
         payload = null;
     }
 
+    // See ppszTypeName in net.h
+    @Nullable
+    private static InventoryItem.Type typeOf(long typeCode) {
+        switch ((int) typeCode) {
+            case 0:
+                return InventoryItem.Type.Error;
+            case 1:
+                return InventoryItem.Type.Transaction;
+            case 2:
+                return InventoryItem.Type.Block;
+            case 3:
+                return InventoryItem.Type.FilteredBlock;
+            default:
+                return null;
+        }
+    }
+
+    private void maybeCreateItems() {
+        byte[] raw = rawItems;
+        if (raw == null)
+            return;
+        // Concurrent readers may both get here; each builds an equal list and the last one wins.
+        List<InventoryItem> created = new ArrayList<>((int) arrayLen);
+        byte[] hash = new byte[32];
+        for (int i = 0; i < arrayLen; i++) {
+            copyRawItemHash(raw, i, hash);
+            created.add(new InventoryItem(rawItemType(raw, i), Sha256Hash.wrap(hash.clone())));
+        }
+        items = created;
+        rawItems = null;
+    }
+
     @Override
     public void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        maybeCreateItems();
         stream.write(new VarInt(items.size()).encode());
         for (InventoryItem i : items) {
             // Write out the type code.
@@ -122,11 +190,11 @@ public abstract class ListMessage extends Message {
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
-        return items.equals(((ListMessage)o).items);
+        return getItems().equals(((ListMessage)o).getItems());
     }
 
     @Override
     public int hashCode() {
-        return items.hashCode();
+        return getItems().hashCode();
     }
 }
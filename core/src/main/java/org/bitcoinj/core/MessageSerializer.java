@@ -51,6 +51,15 @@ public abstract class MessageSerializer {
      */
     public abstract boolean isParseRetainMode();
 
+    /**
+     * Blocks with at least this many transactions have their transaction ids calculated in parallel on
+     * {@link org.bitcoinj.utils.Threading#THREAD_POOL} while they are parsed. By default the ids are always
+     * calculated on the parsing thread.
+     */
+    public int getParallelHashingThreshold() {
+        return Integer.MAX_VALUE;
+    }
+
     /**
      * Make an address message from the payload. Extension point for alternative
      * serialization format support.
@@ -27,6 +27,7 @@ import org.bitcoinj.script.*;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
 
+import org.bitcoinj.utils.ChainContext;
 import org.bitcoinj.utils.MonetaryFormat;
 
 import javax.annotation.*;
@@ -256,6 +257,18 @@ public abstract class NetworkParameters {
      */
     public abstract void checkDifficultyTransitions(StoredBlock storedPrev, Block next, final BlockStore blockStore) throws VerificationException, BlockStoreException;
 
+    /**
+     * Throws an exception if the block's difficulty is not correct. Blocks the check has to look back at are taken
+     * from the given chain context where possible, instead of reading them from the block store. The default
+     * implementation ignores the context.
+     *
+     * @throws VerificationException if the block's difficulty is not correct.
+     */
+    public void checkDifficultyTransitions(StoredBlock storedPrev, Block next, final BlockStore blockStore,
+            @Nullable ChainContext chainContext) throws VerificationException, BlockStoreException {
+        checkDifficultyTransitions(storedPrev, next, blockStore);
+    }
+
     /**
      * Returns true if the block height is either not a checkpoint, or is a checkpoint and the hash matches.
      */
@@ -213,9 +213,16 @@ public class PartialMerkleTree extends Message {
     }
 
     private static Sha256Hash combineLeftRight(byte[] left, byte[] right) {
-        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(
-            reverseBytes(left), 0, 32,
-            reverseBytes(right), 0, 32));
+        byte[] pair = new byte[64];
+        for (int i = 0; i < 32; i++) {
+            pair[i] = left[31 - i];
+            pair[32 + i] = right[31 - i];
+        }
+        Sha256Hash.hashTwice(pair, 0, 64, pair, 0);
+        byte[] hash = new byte[32];
+        for (int i = 0; i < 32; i++)
+            hash[i] = pair[31 - i];
+        return Sha256Hash.wrap(hash);
     }
 
     /**
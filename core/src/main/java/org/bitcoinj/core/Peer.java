@@ -23,22 +23,26 @@ import org.bitcoinj.net.StreamConnection;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.utils.ListenerRegistration;
+import org.bitcoinj.utils.Metrics;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
 
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import net.jcip.annotations.GuardedBy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.nio.channels.NotYetConnectedException;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
@@ -58,6 +62,18 @@ import static com.google.common.base.Preconditions.checkState;
 public class Peer extends PeerSocketHandler {
     private static final Logger log = LoggerFactory.getLogger(Peer.class);
 
+    /**
+     * The default number of filtered blocks that are requested ahead during chain download, see
+     * {@link #setMaxFilteredBlocksInFlight(int)}.
+     */
+    public static final int DEFAULT_MAX_FILTERED_BLOCKS_IN_FLIGHT = 2000;
+    /**
+     * The default number of bytes of transactions a dependency download fetches at most, see
+     * {@link #setMaxTxDependencyBytes(long)}.
+     */
+    public static final long DEFAULT_MAX_TX_DEPENDENCY_BYTES = 1000000;
+    private static final Metrics.Counter MESSAGES_RECEIVED = Metrics.counter("peer.received");
+
     protected final ReentrantLock lock = Threading.lock("peer");
 
     private final NetworkParameters params;
@@ -87,6 +103,8 @@ public class Peer extends PeerSocketHandler {
     private final VersionMessage versionMessage;
     // Maximum depth up to which pending transaction dependencies are downloaded, or 0 for disabled.
     private volatile int vDownloadTxDependencyDepth;
+    // How many bytes of transactions a dependency download fetches before it stops going deeper.
+    private volatile long vMaxTxDependencyBytes = DEFAULT_MAX_TX_DEPENDENCY_BYTES;
     // How many block messages the peer has announced to us. Peers only announce blocks that attach to their best chain
     // so we can use this to calculate the height of the peers chain, by adding it to the initial height in the version
     // message. This method can go wrong if the peer re-orgs onto a shorter (but harder) chain, however, this is rare.
@@ -103,6 +121,9 @@ public class Peer extends PeerSocketHandler {
     @GuardedBy("lock") private boolean useFilteredBlocks = false;
     // The current Bloom filter set on the connection, used to tell the remote peer what transactions to send us.
     private volatile BloomFilter vBloomFilter;
+    // The Bloom filter the remote peer applies to the filtered blocks we receive now. After a new filter was sent, this
+    // is still the previous one until a ping sent after it comes back.
+    @Nullable private volatile BloomFilter vBloomFilterInUse;
     // The last filtered block we received, we're waiting to fill it out with transactions.
     private FilteredBlock currentFilteredBlock = null;
     // How many filtered blocks have been received during the lifetime of this connection. Used to decide when to
@@ -124,6 +145,18 @@ public class Peer extends PeerSocketHandler {
     // It is important to avoid a nasty edge case where we can end up with parallel chain downloads proceeding
     // simultaneously if we were to receive a newly solved block whilst parts of the chain are streaming to us.
     private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<>();
+    // Filtered chain download is pipelined: when an inv with a full batch of blocks arrives, the next getblocks is sent
+    // right away from the last block of that batch, instead of waiting for the peer to announce its head block and
+    // finding it to be an orphan once the batch has been processed. pipelineFrontier is the block the next getblocks
+    // continues from, or null if the pipeline isn't running. pipelineGetBlocks counts the getblocks sent, and
+    // pipelineGetBlocksPending is set until the answer to the last one arrived.
+    @GuardedBy("lock") @Nullable private Sha256Hash pipelineFrontier;
+    @GuardedBy("lock") private boolean pipelineGetBlocksPending;
+    @GuardedBy("lock") private int pipelineGetBlocks;
+    // The most filtered blocks to have requested but not received yet before the pipeline waits.
+    private volatile int vMaxFilteredBlocksInFlight = DEFAULT_MAX_FILTERED_BLOCKS_IN_FLIGHT;
+    // Bitcoin Core answers getblocks with at most this many blocks.
+    private static final int MAX_BLOCKS_PER_GETBLOCKS = 500;
     // Keep references to TransactionConfidence objects for transactions that were announced by a remote peer, but
     // which we haven't downloaded yet. These objects are de-duplicated by the TxConfidenceTable class.
     // Once the tx is downloaded (by some peer), the Transaction object that is created will have a reference to
@@ -131,6 +164,13 @@ public class Peer extends PeerSocketHandler {
     // to keep it pinned to the root set if they care about this data.
     @SuppressWarnings("MismatchedQueryAndUpdateOfCollection")
     private final HashSet<TransactionConfidence> pendingTxDownloads = new HashSet<>();
+    // Holds the hash of the inv item being looked at, so that processInv() doesn't allocate an array for every item.
+    // Only used by the network thread.
+    private final byte[] invHashBuffer = new byte[32];
+    // Transactions and blocks the remote peer is known to have, because it announced or sent them to us or we announced
+    // them to it. Consulted before relaying transactions so that a peer isn't sent what it already has.
+    private final RollingBloomFilter knownInventory = new RollingBloomFilter(KNOWN_INVENTORY_SIZE, 0.000001);
+    private static final int KNOWN_INVENTORY_SIZE = 10000;
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion;
     // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
@@ -452,6 +492,10 @@ public class Peer extends PeerSocketHandler {
 
     @Override
     protected void processMessage(Message m) throws Exception {
+        if (Metrics.isEnabled()) {
+            MESSAGES_RECEIVED.inc();
+            Metrics.counter("peer.received." + m.getClass().getSimpleName()).inc();
+        }
         // Allow event listeners to filter the message stream. Listeners are allowed to drop messages by
         // returning null.
         for (ListenerRegistration<PreMessageReceivedEventListener> registration : preMessageReceivedEventListeners) {
@@ -619,6 +663,18 @@ public class Peer extends PeerSocketHandler {
         // FilteredBlock) or when a tx that isn't needed by that block is found. A ping message is sent after
         // a getblocks, to force the non-tx message path.
         currentFilteredBlock = m;
+        // A block without matching transactions, the usual case during chain download, is complete right away and
+        // doesn't have to wait for the next message.
+        boolean complete;
+        try {
+            complete = m.getTransactionHashes().isEmpty();
+        } catch (VerificationException e) {
+            complete = true;  // Rejected by the block chain.
+        }
+        if (complete) {
+            endFilteredBlock(m);
+            currentFilteredBlock = null;
+        }
         // Potentially refresh the server side filter. Because the remote node adds hits back into the filter
         // to save round-tripping back through us, the filter degrades over time as false positives get added,
         // triggering yet more false positives. We refresh it every so often to get the FP rate back down.
@@ -765,6 +821,7 @@ public class Peer extends PeerSocketHandler {
     protected void processTransaction(final Transaction tx) throws VerificationException {
         // Check a few basic syntax issues to ensure the received TX isn't nonsense.
         tx.verify();
+        markInventoryKnown(tx.getHash());
         lock.lock();
         try {
             log.debug("{}: Received tx {}", getAddress(), tx.getHashAsString());
@@ -782,14 +839,21 @@ public class Peer extends PeerSocketHandler {
                 return;
             }
             if (currentFilteredBlock != null) {
-                if (!currentFilteredBlock.provideTransaction(tx)) {
-                    // Got a tx that didn't fit into the filtered block, so we must have received everything.
-                    endFilteredBlock(currentFilteredBlock);
-                    currentFilteredBlock = null;
+                if (currentFilteredBlock.provideTransaction(tx)) {
+                    // Once every matching transaction has arrived there's nothing left to wait for.
+                    FilteredBlock m = currentFilteredBlock;
+                    if (m.getAssociatedTransactions().size() == m.getTransactionHashes().size()) {
+                        currentFilteredBlock = null;
+                        endFilteredBlock(m);
+                    }
+                    // Don't tell wallets or listeners about this tx as they'll learn about it when the filtered block
+                    // is fully downloaded instead.
+                    return;
                 }
-                // Don't tell wallets or listeners about this tx as they'll learn about it when the filtered block is
-                // fully downloaded instead.
-                return;
+                // Got a tx that didn't fit into the filtered block, so we must have received everything. The tx itself
+                // is an ordinary broadcast.
+                endFilteredBlock(currentFilteredBlock);
+                currentFilteredBlock = null;
             }
             // It's a broadcast transaction. Tell all wallets about this tx so they can check if it's relevant or not.
             for (final Wallet wallet : wallets) {
@@ -869,6 +933,11 @@ public class Peer extends PeerSocketHandler {
      * to confirm, by checking for unexpectedly time locked transactions, unusually deep dependency trees or fee-paying
      * transactions that depend on unconfirmed free transactions.</p>
      *
+     * <p>Each level of the dependency tree is requested in one go, and transactions the wallets already know about
+     * are taken from there instead of being downloaded. The walk also ends once the downloaded transactions reach
+     * {@link #getMaxTxDependencyBytes()}, in which case the dependencies found so far are returned. The direct
+     * dependencies of tx are always looked up, even if the download depth is set to zero.</p>
+     *
      * <p>Note that dependencies downloaded this way will not trigger the onTransaction method of event listeners.</p>
      */
     public ListenableFuture<List<Transaction>> downloadDependencies(Transaction tx) {
@@ -890,89 +959,178 @@ public class Peer extends PeerSocketHandler {
             public void onFailure(Throwable throwable) {
                 resultFuture.setException(throwable);
             }
-        });
+        }, MoreExecutors.directExecutor());
         return resultFuture;
     }
 
     // The marker object in the future returned is the same as the parameter. It is arbitrary and can be anything.
-    protected ListenableFuture<Object> downloadDependenciesInternal(final int maxDepth, final int depth,
-            final Transaction tx, final Object marker, final List<Transaction> results) {
-
-        final SettableFuture<Object> resultFuture = SettableFuture.create();
-        final Sha256Hash rootTxHash = tx.getHash();
-        // We want to recursively grab its dependencies. This is so listeners can learn important information like
-        // whether a transaction is dependent on a timelocked transaction or has an unexpectedly deep dependency tree
-        // or depends on a no-fee transaction.
+    // The dependencies of tx, which is at the given depth of the tree, are added to results. Its direct dependencies
+    // are always looked up, deeper levels only while they are less than maxDepth.
+    protected ListenableFuture<Object> downloadDependenciesInternal(int maxDepth, int depth, Transaction tx,
+            final Object marker, List<Transaction> results) {
+        DependencyDownload download = new DependencyDownload(tx.getHash(), Math.max(maxDepth, depth + 1),
+                vMaxTxDependencyBytes, results);
+        download.expand(Collections.singletonList(tx), depth);
+        return Futures.transform(download.resultFuture, new Function<List<Transaction>, Object>() {
+            @Override
+            public Object apply(List<Transaction> ignored) {
+                return marker;
+            }
+        }, MoreExecutors.directExecutor());
+    }
 
-        // We may end up requesting transactions that we've already downloaded and thrown away here.
-        Set<Sha256Hash> needToRequest = new CopyOnWriteArraySet<>();
-        for (TransactionInput input : tx.getInputs()) {
-            // There may be multiple inputs that connect to the same transaction.
-            needToRequest.add(input.getOutpoint().getHash());
+    // Walks the dependency tree of a transaction breadth first. All missing transactions of one level of the tree are
+    // asked for in a single getdata, and the next level is only expanded once all of them arrived or were not found.
+    // Transactions the wallets already have are used instead of downloading them again, transactions known to be in
+    // the chain end the walk, and a transaction that is already being requested, for example by the dependency
+    // download of another transaction, is waited for rather than requested twice. The callbacks of one download run
+    // one after the other, so its state needs no locking.
+    //
+    // The byte budget is enforced per transaction: once it is used up, further transactions of the level are dropped
+    // and the walk ends. No more transactions are requested in one level than could fit in the remaining budget.
+    private class DependencyDownload {
+        // The smallest possible serialized transaction, with one input with an empty script and one output.
+        private static final int MIN_TRANSACTION_SIZE = 60;
+
+        private final Sha256Hash rootTxHash;
+        private final int maxDepth;
+        private final long maxBytes;
+        private final Set<Sha256Hash> seen = new HashSet<>();
+        private final List<Transaction> results;
+        private final SettableFuture<List<Transaction>> resultFuture = SettableFuture.create();
+        private long bytesDownloaded;
+
+        DependencyDownload(Sha256Hash rootTxHash, int maxDepth, long maxBytes, List<Transaction> results) {
+            this.rootTxHash = rootTxHash;
+            this.maxDepth = maxDepth;
+            this.maxBytes = maxBytes;
+            this.results = results;
+            seen.add(rootTxHash);
         }
-        lock.lock();
-        try {
-            // Build the request for the missing dependencies.
-            List<ListenableFuture<Transaction>> futures = Lists.newArrayList();
-            GetDataMessage getdata = new GetDataMessage(params);
-            if (needToRequest.size() > 1)
-                log.info("{}: Requesting {} transactions for depth {} dep resolution", getAddress(), needToRequest.size(), depth + 1);
-            for (Sha256Hash hash : needToRequest) {
-                getdata.addTransaction(hash);
-                GetDataRequest req = new GetDataRequest(hash, SettableFuture.create());
-                futures.add(req.future);
-                getDataFutures.add(req);
+
+        // Looks up the dependencies of the given transactions, which are at the given depth of the tree.
+        void expand(List<Transaction> txns, int depth) {
+            while (!txns.isEmpty() && depth < maxDepth) {
+                if (bytesDownloaded >= maxBytes) {
+                    log.info("{}: Stopping dependency download of {} after {} bytes", getAddress(), rootTxHash,
+                            bytesDownloaded);
+                    break;
+                }
+                depth++;
+                // There may be multiple inputs that connect to the same transaction, and transactions may share parents.
+                Set<Sha256Hash> needToRequest = new LinkedHashSet<>();
+                List<Transaction> found = new ArrayList<>();
+                for (Transaction tx : txns) {
+                    for (TransactionInput input : tx.getInputs()) {
+                        Sha256Hash hash = input.getOutpoint().getHash();
+                        if (!seen.add(hash))
+                            continue;
+                        TransactionConfidence confidence = context.getConfidenceTable().get(hash);
+                        if (confidence != null
+                                && confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+                            continue;
+                        Transaction walletTx = findWalletTransaction(hash);
+                        if (walletTx == null) {
+                            needToRequest.add(hash);
+                        } else if (walletTx.getConfidence().getConfidenceType()
+                                != TransactionConfidence.ConfidenceType.BUILDING) {
+                            results.add(walletTx);
+                            found.add(walletTx);
+                        }
+                    }
+                }
+                if (!needToRequest.isEmpty()) {
+                    long maxRequests = (maxBytes - bytesDownloaded + MIN_TRANSACTION_SIZE - 1) / MIN_TRANSACTION_SIZE;
+                    if (needToRequest.size() > maxRequests) {
+                        log.info("{}: Requesting only {} of {} dependencies at depth {} of {}", getAddress(),
+                                maxRequests, needToRequest.size(), depth, rootTxHash);
+                        needToRequest = Sets.newLinkedHashSet(Iterables.limit(needToRequest, (int) maxRequests));
+                    }
+                    request(needToRequest, found, depth);
+                    return;
+                }
+                txns = found;
             }
-            ListenableFuture<List<Transaction>> successful = Futures.successfulAsList(futures);
-            Futures.addCallback(successful, new FutureCallback<List<Transaction>>() {
-                @Override
-                public void onSuccess(List<Transaction> transactions) {
-                    // Once all transactions either were received, or we know there are no more to come ...
-                    // Note that transactions will contain "null" for any positions that weren't successful.
-                    List<ListenableFuture<Object>> childFutures = Lists.newLinkedList();
-                    for (Transaction tx : transactions) {
-                        if (tx == null) continue;
-                        log.info("{}: Downloaded dependency of {}: {}", getAddress(), rootTxHash, tx.getHashAsString());
-                        results.add(tx);
-                        // Now recurse into the dependencies of this transaction too.
-                        if (depth + 1 < maxDepth)
-                            childFutures.add(downloadDependenciesInternal(maxDepth, depth + 1, tx, marker, results));
+            resultFuture.set(results);
+        }
+
+        private void request(Set<Sha256Hash> needToRequest, final List<Transaction> found, final int depth) {
+            lock.lock();
+            try {
+                // Build the request for the missing dependencies.
+                List<ListenableFuture<Transaction>> futures = Lists.newArrayList();
+                GetDataMessage getdata = new GetDataMessage(params);
+                for (Sha256Hash hash : needToRequest) {
+                    SettableFuture<Transaction> inFlight = findGetDataFuture(hash);
+                    if (inFlight != null) {
+                        futures.add(inFlight);
+                        continue;
                     }
-                    if (childFutures.size() == 0) {
-                        // Short-circuit: we're at the bottom of this part of the tree.
-                        resultFuture.set(marker);
-                    } else {
-                        // There are some children to download. Wait until it's done (and their children and their
-                        // children...) to inform the caller that we're finished.
-                        Futures.addCallback(Futures.successfulAsList(childFutures), new FutureCallback<List<Object>>() {
-                            @Override
-                            public void onSuccess(List<Object> objects) {
-                                resultFuture.set(marker);
+                    getdata.addTransaction(hash);
+                    GetDataRequest req = new GetDataRequest(hash, SettableFuture.create());
+                    futures.add(req.future);
+                    getDataFutures.add(req);
+                }
+                if (getdata.getItems().size() > 1)
+                    log.info("{}: Requesting {} transactions for depth {} dep resolution", getAddress(),
+                            getdata.getItems().size(), depth);
+                Futures.addCallback(Futures.successfulAsList(futures), new FutureCallback<List<Transaction>>() {
+                    @Override
+                    public void onSuccess(List<Transaction> transactions) {
+                        // Once all transactions either were received, or we know there are no more to come ...
+                        // Note that transactions will contain "null" for any positions that weren't successful.
+                        List<Transaction> next = new ArrayList<>(found);
+                        for (Transaction tx : transactions) {
+                            if (tx == null) continue;
+                            if (bytesDownloaded >= maxBytes) {
+                                log.info("{}: Dropping dependency {} of {}, already downloaded {} bytes",
+                                        getAddress(), tx.getHashAsString(), rootTxHash, bytesDownloaded);
+                                continue;
                             }
+                            log.info("{}: Downloaded dependency of {}: {}", getAddress(), rootTxHash,
+                                    tx.getHashAsString());
+                            results.add(tx);
+                            next.add(tx);
+                            bytesDownloaded += tx.getMessageSize();
+                        }
+                        expand(next, depth);
+                    }
 
-                            @Override
-                            public void onFailure(Throwable throwable) {
-                                resultFuture.setException(throwable);
-                            }
-                        });
+                    @Override
+                    public void onFailure(Throwable throwable) {
+                        resultFuture.setException(throwable);
                     }
-                }
+                }, MoreExecutors.directExecutor());
+                // Start the operation.
+                if (!getdata.getItems().isEmpty())
+                    sendMessage(getdata);
+            } catch (Exception e) {
+                log.error("{}: Couldn't send getdata in downloadDependencies({})", this, rootTxHash, e);
+                resultFuture.setException(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
 
-                @Override
-                public void onFailure(Throwable throwable) {
-                    resultFuture.setException(throwable);
-                }
-            });
-            // Start the operation.
-            sendMessage(getdata);
-        } catch (Exception e) {
-            log.error("{}: Couldn't send getdata in downloadDependencies({})", this, tx.getHash(), e);
-            resultFuture.setException(e);
-            return resultFuture;
-        } finally {
-            lock.unlock();
+    @Nullable
+    private Transaction findWalletTransaction(Sha256Hash hash) {
+        for (Wallet wallet : wallets) {
+            Transaction tx = wallet.getTransaction(hash);
+            if (tx != null)
+                return tx;
         }
-        return resultFuture;
+        return null;
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private SettableFuture<Transaction> findGetDataFuture(Sha256Hash hash) {
+        for (GetDataRequest req : getDataFutures) {
+            if (req.hash.equals(hash))
+                return req.future;
+        }
+        return null;
     }
 
     protected void processBlock(Block m) {
@@ -1051,7 +1209,13 @@ public class Peer extends PeerSocketHandler {
         // Note that we currently do nothing about peers which maliciously do not include transactions which
         // actually match our filter or which simply do not send us all the transactions we need: it can be fixed
         // by cross-checking peers against each other.
-        pendingBlockDownloads.remove(m.getBlockHeader().getHash());
+        lock.lock();
+        try {
+            pendingBlockDownloads.remove(m.getHash());
+            maybeExtendPipelineLocked();
+        } finally {
+            lock.unlock();
+        }
         try {
             // It's a block sent to us because the peer thought we needed it, so maybe add it to the block chain.
             // The FilteredBlock m here contains a list of hashes, and may contain Transaction objects for a subset
@@ -1116,10 +1280,14 @@ public class Peer extends PeerSocketHandler {
                 // chain twice (or more!) on the same connection! The block chain would filter out the duplicates but
                 // only at a huge speed penalty. By finding the orphan root we ensure every getblocks looks the same
                 // no matter how many blocks are solved, and therefore that the (2) duplicate filtering can work.
+                //
+                // While the pipeline is running the blocks in between are already on their way.
                 lock.lock();
                 try {
-                    final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(m.getHash()));
-                    blockChainDownloadLocked(orphanRoot.getHash());
+                    if (pipelineFrontier == null) {
+                        final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(m.getHash()));
+                        blockChainDownloadLocked(orphanRoot.getHash());
+                    }
                 } finally {
                     lock.unlock();
                 }
@@ -1136,9 +1304,10 @@ public class Peer extends PeerSocketHandler {
     }
 
     private boolean checkForFilterExhaustion(FilteredBlock m) {
+        final BloomFilter filter = vBloomFilterInUse;
         boolean exhausted = false;
         for (Wallet wallet : wallets) {
-            exhausted |= wallet.checkForFilterExhaustion(m);
+            exhausted |= filter != null ? wallet.checkForFilterExhaustion(m, filter) : wallet.checkForFilterExhaustion(m);
         }
         return exhausted;
     }
@@ -1173,28 +1342,31 @@ public class Peer extends PeerSocketHandler {
     }
 
     protected void processInv(InventoryMessage inv) {
-        List<InventoryItem> items = inv.getItems();
-
-        // Separate out the blocks and transactions, we'll handle them differently
-        List<InventoryItem> transactions = new LinkedList<>();
+        // Separate out the blocks and transactions, we'll handle them differently. Transactions are by far the most
+        // common items, so they are read one by one from the message instead of creating objects for all of them.
+        int numItems = inv.getItemCount();
+        int numTransactions = 0;
         List<InventoryItem> blocks = new LinkedList<>();
 
-        for (InventoryItem item : items) {
-            switch (item.type) {
+        for (int i = 0; i < numItems; i++) {
+            InventoryItem.Type type = inv.getItemType(i);
+            switch (type) {
                 case Transaction:
-                    transactions.add(item);
+                    numTransactions++;
                     break;
                 case Block:
-                    blocks.add(item);
+                    inv.copyItemHash(i, invHashBuffer);
+                    knownInventory.insert(invHashBuffer);
+                    blocks.add(new InventoryItem(type, Sha256Hash.wrap(invHashBuffer.clone())));
                     break;
                 default:
-                    throw new IllegalStateException("Not implemented: " + item.type);
+                    throw new IllegalStateException("Not implemented: " + type);
             }
         }
 
         final boolean downloadData = this.vDownloadData;
 
-        if (transactions.size() == 0 && blocks.size() == 1) {
+        if (numTransactions == 0 && blocks.size() == 1) {
             // Single block announcement. If we're downloading the chain this is just a tickle to make us continue
             // (the block chain download protocol is very implicit and not well thought out). If we're not downloading
             // the chain then this probably means a new block was solved and the peer believes it connects to the best
@@ -1210,9 +1382,12 @@ public class Peer extends PeerSocketHandler {
 
         GetDataMessage getdata = new GetDataMessage(params);
 
-        Iterator<InventoryItem> it = transactions.iterator();
-        while (it.hasNext()) {
-            InventoryItem item = it.next();
+        TxConfidenceTable confidenceTable = context.getConfidenceTable();
+        for (int i = 0; numTransactions > 0 && i < numItems; i++) {
+            if (inv.getItemType(i) != InventoryItem.Type.Transaction)
+                continue;
+            inv.copyItemHash(i, invHashBuffer);
+            knownInventory.insert(invHashBuffer);
             // Only download the transaction if we are the first peer that saw it be advertised. Other peers will also
             // see it be advertised in inv packets asynchronously, they co-ordinate via the memory pool. We could
             // potentially download transactions faster by always asking every peer for a tx when advertised, as remote
@@ -1220,20 +1395,25 @@ public class Peer extends PeerSocketHandler {
             // transaction once. This means we can miss broadcasts if the peer disconnects between sending us an inv and
             // sending us the transaction: currently we'll never try to re-fetch after a timeout.
             //
-            // The line below can trigger confidence listeners.
-            TransactionConfidence conf = context.getConfidenceTable().seen(item.hash, this.getAddress());
-            if (conf.numBroadcastPeers() > 1) {
-                // Some other peer already announced this so don't download.
-                it.remove();
-            } else if (conf.getSource().equals(TransactionConfidence.Source.SELF)) {
-                // We created this transaction ourselves, so don't download.
-                it.remove();
+            // The lines below can trigger confidence listeners.
+            TransactionConfidence conf;
+            if (confidenceTable.wasRecentlySeen(invHashBuffer)) {
+                // Some peer announced it before. If nobody tracks its confidence anymore it was downloaded and found
+                // irrelevant, so don't create a new confidence for it and download it again.
+                conf = confidenceTable.seenIfTracked(Sha256Hash.wrap(invHashBuffer.clone()), this.getAddress());
+                if (conf == null)
+                    continue;
             } else {
-                log.debug("{}: getdata on tx {}", getAddress(), item.hash);
-                getdata.addItem(item);
-                // Register with the garbage collector that we care about the confidence data for a while.
-                pendingTxDownloads.add(conf);
+                conf = confidenceTable.seen(Sha256Hash.wrap(invHashBuffer.clone()), this.getAddress());
+            }
+            if (conf.numBroadcastPeers() > 1 || conf.getSource().equals(TransactionConfidence.Source.SELF)) {
+                // Some other peer already announced this or we created it ourselves, so don't download.
+                continue;
             }
+            log.debug("{}: getdata on tx {}", getAddress(), conf.getTransactionHash());
+            getdata.addTransaction(conf.getTransactionHash());
+            // Register with the garbage collector that we care about the confidence data for a while.
+            pendingTxDownloads.add(conf);
         }
 
         // If we are requesting filteredblocks we have to send a ping after the getdata so that we have a clear
@@ -1246,12 +1426,17 @@ public class Peer extends PeerSocketHandler {
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
                 // so we just re-request it here, and if we get duplicates the block chain / wallet will filter them out.
+                boolean filtered = vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks;
+                Sha256Hash lastRequested = null;
                 for (InventoryItem item : blocks) {
                     if (blockChain.isOrphan(item.hash) && downloadBlockBodies) {
                         // If an orphan was re-advertised, ask for more blocks unless we are not currently downloading
-                        // full block data because we have a getheaders outstanding.
-                        final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(item.hash));
-                        blockChainDownloadLocked(orphanRoot.getHash());
+                        // full block data because we have a getheaders outstanding, or the pipeline is already
+                        // fetching the blocks in between.
+                        if (pipelineFrontier == null) {
+                            final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(item.hash));
+                            blockChainDownloadLocked(orphanRoot.getHash());
+                        }
                     } else {
                         // Don't re-request blocks we already requested. Normally this should not happen. However there is
                         // an edge case: if a block is solved and we complete the inv<->getdata<->block<->getblocks cycle
@@ -1266,16 +1451,26 @@ public class Peer extends PeerSocketHandler {
                         // the duplicate check in blockChainDownloadLocked(). But Bitcoin Core may change in future so
                         // it's better to be safe here.
                         if (!pendingBlockDownloads.contains(item.hash)) {
-                            if (vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks) {
+                            if (filtered) {
                                 getdata.addFilteredBlock(item.hash);
                                 pingAfterGetData = true;
                             } else {
                                 getdata.addItem(item);
                             }
                             pendingBlockDownloads.add(item.hash);
+                            lastRequested = item.hash;
                         }
                     }
                 }
+                // A full batch answers a getblocks and more blocks are likely to follow it, so the pipeline continues
+                // from its last block. A smaller batch means the peer has no more.
+                if (filtered && downloadBlockBodies && blocks.size() > 1) {
+                    pipelineGetBlocksPending = false;
+                    if (blocks.size() < MAX_BLOCKS_PER_GETBLOCKS)
+                        pipelineFrontier = null;
+                    else if (lastRequested != null && lastRequested.equals(blocks.get(blocks.size() - 1).hash))
+                        pipelineFrontier = lastRequested;
+                }
                 // If we're downloading the chain, doing a getdata on the last block we were told about will cause the
                 // peer to advertize the head block to us in a single-item inv. When we download THAT, it will be an
                 // orphan block, meaning we'll re-enter blockChainDownloadLocked() to trigger another getblocks between the
@@ -1291,8 +1486,15 @@ public class Peer extends PeerSocketHandler {
             sendMessage(getdata);
         }
 
-        if (pingAfterGetData)
+        if (pingAfterGetData) {
             sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+            lock.lock();
+            try {
+                maybeExtendPipelineLocked();
+            } finally {
+                lock.unlock();
+            }
+        }
     }
 
     /**
@@ -1485,6 +1687,39 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    // Asks for the next batch of blocks after the pipeline frontier, if there's room for it in the window.
+    @GuardedBy("lock")
+    private void maybeExtendPipelineLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        if (pipelineFrontier == null || pipelineGetBlocksPending || awaitingFreshFilter != null || !vDownloadData)
+            return;
+        if (pendingBlockDownloads.size() + MAX_BLOCKS_PER_GETBLOCKS > vMaxFilteredBlocksInFlight)
+            return;
+        // The chain head is a fallback in case the peer forgot about the frontier in a re-org.
+        List<Sha256Hash> blockLocator = Lists.newArrayList(pipelineFrontier,
+                checkNotNull(blockChain).getChainHead().getHeader().getHash());
+        log.debug("{}: Pipelining getblocks from {}", this, pipelineFrontier);
+        pipelineGetBlocksPending = true;
+        final int request = ++pipelineGetBlocks;
+        sendMessage(new GetBlocksMessage(params, blockLocator, Sha256Hash.ZERO_HASH));
+        // The peer doesn't answer at all if it has no blocks after the frontier. The pong arrives after the answer if
+        // there is one, so if the request is still pending then, the pipeline has reached the end.
+        ping().addListener(new Runnable() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    if (pipelineGetBlocksPending && pipelineGetBlocks == request) {
+                        pipelineGetBlocksPending = false;
+                        pipelineFrontier = null;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }, Threading.SAME_THREAD);
+    }
+
     /**
      * Starts an asynchronous download of the block chain. The chain download is deemed to be complete once we've
      * downloaded the same number of blocks that the peer advertised having in its version handshake message.
@@ -1506,6 +1741,8 @@ public class Peer extends PeerSocketHandler {
             // When we just want as many blocks as possible, we can set the target hash to zero.
             lock.lock();
             try {
+                pipelineFrontier = null;
+                pipelineGetBlocksPending = false;
                 blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
             } finally {
                 lock.unlock();
@@ -1663,6 +1900,35 @@ public class Peer extends PeerSocketHandler {
         this.vDownloadData = downloadData;
     }
 
+    /**
+     * Returns true if the remote peer is known to have the transaction or block with the given hash, because it
+     * announced or sent it to us, or we announced it to the peer. Transactions sent to the peer without an
+     * announcement don't count, as the peer may have dropped them and sending them again is how broadcasts are
+     * retried. Only recent inventory is remembered, and about one in a million other hashes is reported as known
+     * too.
+     */
+    public boolean isInventoryKnown(Sha256Hash hash) {
+        return knownInventory.contains(hash.getBytes());
+    }
+
+    /** Records that the remote peer has the transaction or block with the given hash. */
+    public void markInventoryKnown(Sha256Hash hash) {
+        knownInventory.insert(hash.getBytes());
+    }
+
+    /**
+     * Sends the given message to the remote peer. Inventory announced to the peer is remembered, see
+     * {@link #isInventoryKnown(Sha256Hash)}.
+     */
+    @Override
+    public void sendMessage(Message message) throws NotYetConnectedException {
+        super.sendMessage(message);
+        if (message instanceof InventoryMessage && !(message instanceof NotFoundMessage)) {
+            for (InventoryItem item : ((InventoryMessage) message).getItems())
+                markInventoryKnown(item.hash);
+        }
+    }
+
     /** Returns version data announced by the remote peer. */
     public VersionMessage getPeerVersionMessage() {
         return vPeerVersionMessage;
@@ -1729,20 +1995,36 @@ public class Peer extends PeerSocketHandler {
      * <p>If the remote peer doesn't support Bloom filtering, then this call is ignored. Once set you presently cannot
      * unset a filter, though the underlying p2p protocol does support it.</p>
      */
-    public void setBloomFilter(BloomFilter filter, boolean andQueryMemPool) {
+    public void setBloomFilter(final BloomFilter filter, boolean andQueryMemPool) {
         checkNotNull(filter, "Clearing filters is not currently supported");
         final VersionMessage ver = vPeerVersionMessage;
         if (ver == null || !ver.isBloomFilteringSupported())
             return;
+        final BloomFilter previous = vBloomFilter;
         vBloomFilter = filter;
         log.debug("{}: Sending Bloom filter{}", this, andQueryMemPool ? " and querying mempool" : "");
         sendMessage(filter);
         if (andQueryMemPool)
             sendMessage(new MemoryPoolMessage());
-        maybeRestartChainDownload();
+        if (previous == null) {
+            vBloomFilterInUse = filter;
+            maybeRestartChainDownload();
+            return;
+        }
+        // Ping/pong to wait for blocks that were filtered with the previous filter to finish being downloaded, and
+        // if we ran out of keys, discarded.
+        ping().addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (vBloomFilter == filter)
+                    vBloomFilterInUse = filter;
+                maybeRestartChainDownload();
+            }
+        }, Threading.SAME_THREAD);
     }
 
     private void maybeRestartChainDownload() {
+        GetDataMessage getdata = new GetDataMessage(params);
         lock.lock();
         try {
             if (awaitingFreshFilter == null)
@@ -1752,30 +2034,18 @@ public class Peer extends PeerSocketHandler {
                 log.warn("Lost download peer status whilst awaiting fresh filter.");
                 return;
             }
-            // Ping/pong to wait for blocks that are still being streamed to us to finish being downloaded and
-            // discarded.
-            ping().addListener(new Runnable() {
-                @Override
-                public void run() {
-                    lock.lock();
-                    checkNotNull(awaitingFreshFilter);
-                    GetDataMessage getdata = new GetDataMessage(params);
-                    for (Sha256Hash hash : awaitingFreshFilter)
-                        getdata.addFilteredBlock(hash);
-                    awaitingFreshFilter = null;
-                    lock.unlock();
-
-                    log.info("Restarting chain download");
-                    sendMessage(getdata);
-                    // TODO: This bizarre ping-after-getdata hack probably isn't necessary.
-                    // It's to ensure we know when the end of a filtered block stream of txns is, but we should just be
-                    // able to match txns with the merkleblock. Ask Matt why it's written this way.
-                    sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
-                }
-            }, Threading.SAME_THREAD);
+            for (Sha256Hash hash : awaitingFreshFilter)
+                getdata.addFilteredBlock(hash);
+            awaitingFreshFilter = null;
         } finally {
             lock.unlock();
         }
+        log.info("Restarting chain download");
+        sendMessage(getdata);
+        // TODO: This bizarre ping-after-getdata hack probably isn't necessary.
+        // It's to ensure we know when the end of a filtered block stream of txns is, but we should just be
+        // able to match txns with the merkleblock. Ask Matt why it's written this way.
+        sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
     }
 
     /**
@@ -1855,4 +2125,36 @@ public class Peer extends PeerSocketHandler {
     public void setDownloadTxDependencies(int depth) {
         vDownloadTxDependencyDepth = depth;
     }
+
+    /** Returns the number of bytes of transactions a dependency download fetches at most. */
+    public long getMaxTxDependencyBytes() {
+        return vMaxTxDependencyBytes;
+    }
+
+    /**
+     * Sets how many bytes of transactions a dependency download fetches at most. Once the transactions downloaded
+     * for one transaction add up to this many bytes, no deeper level of its dependency tree is requested and the
+     * dependencies found so far are returned. The default is {@link #DEFAULT_MAX_TX_DEPENDENCY_BYTES}.
+     */
+    public void setMaxTxDependencyBytes(long maxBytes) {
+        Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive");
+        vMaxTxDependencyBytes = maxBytes;
+    }
+
+    /** Returns the number of filtered blocks that are requested ahead during chain download. */
+    public int getMaxFilteredBlocksInFlight() {
+        return vMaxFilteredBlocksInFlight;
+    }
+
+    /**
+     * Sets how many filtered blocks may be requested but not received yet during chain download. The peer announces
+     * blocks in batches of 500, and as long as there is room for another batch, it is asked for before the previous
+     * ones have arrived. This saves a round trip per batch, which dominates the download time over slow links.
+     * Values below 1000 leave room for one batch only, which turns the pipelining off. The default is
+     * {@link #DEFAULT_MAX_FILTERED_BLOCKS_IN_FLIGHT}.
+     */
+    public void setMaxFilteredBlocksInFlight(int maxBlocks) {
+        Preconditions.checkArgument(maxBlocks > 0, "maxBlocks must be positive");
+        vMaxFilteredBlocksInFlight = maxBlocks;
+    }
 }
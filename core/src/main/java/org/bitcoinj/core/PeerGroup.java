@@ -151,6 +151,10 @@ public class PeerGroup implements TransactionBroadcaster {
     /** How many milliseconds to wait after receiving a pong before sending another ping. */
     public static final long DEFAULT_PING_INTERVAL_MSEC = 2000;
     @GuardedBy("lock") private long pingIntervalMsec = DEFAULT_PING_INTERVAL_MSEC;
+    // How often broadcast transactions are announced to peers, or 0 to send them to peers right away.
+    @GuardedBy("lock") private long broadcastTrickleIntervalMsec = 0;
+    // Holds and announces broadcast transactions when they are trickled.
+    private final TransactionRelay transactionRelay = new TransactionRelay();
 
     @GuardedBy("lock") private boolean useLocalhostPeerWhenPossible = true;
     @GuardedBy("lock") private boolean ipv6Unreachable = false;
@@ -555,6 +559,12 @@ public class PeerGroup implements TransactionBroadcaster {
                     break;
                 }
             }
+            // And the transactions we announced ourselves.
+            for (InventoryItem item : items) {
+                Transaction tx = transactionRelay.getTransaction(item.hash);
+                if (tx != null)
+                    transactions.add(tx);
+            }
             return transactions;
         } finally {
             lock.unlock();
@@ -1065,6 +1075,7 @@ public class PeerGroup implements TransactionBroadcaster {
                     channels.awaitRunning();
                     triggerConnections();
                     setupPinging();
+                    setupTrickling();
                 } catch (Throwable e) {
                     log.error("Exception when starting up", e);  // The executor swallows exceptions :(
                 }
@@ -1599,6 +1610,25 @@ public class PeerGroup implements TransactionBroadcaster {
         }, getPingIntervalMsec(), getPingIntervalMsec(), TimeUnit.MILLISECONDS);
     }
 
+    @Nullable private volatile ListenableScheduledFuture<?> vTrickleTask;
+
+    private void setupTrickling() {
+        final long interval = getBroadcastTrickleIntervalMsec();
+        if (interval <= 0)
+            return;  // Disabled.
+
+        vTrickleTask = executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    transactionRelay.trickle(interval);
+                } catch (Throwable e) {
+                    log.error("Exception in trickle loop", e);  // The executor swallows exceptions :(
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
     private void setDownloadPeer(@Nullable Peer peer) {
         lock.lock();
         try {
@@ -1719,6 +1749,7 @@ public class PeerGroup implements TransactionBroadcaster {
         for (Wallet wallet : wallets) {
             peer.removeWallet(wallet);
         }
+        transactionRelay.removePeer(peer);
 
         final int fNumConnectedPeers = numConnectedPeers;
 
@@ -2061,6 +2092,9 @@ public class PeerGroup implements TransactionBroadcaster {
      * <p>Note that if the PeerGroup is limited to only one connection (discovery is not activated) then the future
      * will complete as soon as the transaction was successfully written to that peer.</p>
      *
+     * <p>If a trickle interval is set with {@link #setBroadcastTrickleIntervalMsec(long)}, the transaction is
+     * announced to the peers on the next trickle instead, and they download it from us.</p>
+     *
      * <p>The transaction won't be sent until there are at least minConnections active connections available.
      * A good choice for proportion would be between 0.5 and 0.8 but if you want faster transmission during initial
      * bringup of the peer group you can lower it.</p>
@@ -2148,6 +2182,47 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /**
+     * Returns how often broadcast transactions are announced to peers, or 0 if they are sent to peers right away,
+     * which is the default.
+     */
+    public long getBroadcastTrickleIntervalMsec() {
+        lock.lock();
+        try {
+            return broadcastTrickleIntervalMsec;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets how often broadcast transactions are announced to peers. If set, broadcasts don't send the transaction to
+     * peers right away but queue it with the {@link TransactionRelay} returned by {@link #getTransactionRelay()}, which
+     * announces all transactions queued for a peer in one inv message per interval, and lets peers download them from
+     * there. This saves a lot of messages when many transactions are broadcast at once. Setting the value to be
+     * <= 0 sends transactions right away again.
+     */
+    public void setBroadcastTrickleIntervalMsec(long broadcastTrickleIntervalMsec) {
+        lock.lock();
+        try {
+            this.broadcastTrickleIntervalMsec = broadcastTrickleIntervalMsec;
+            ListenableScheduledFuture<?> task = vTrickleTask;
+            if (task != null) {
+                task.cancel(false);
+                vTrickleTask = null;
+            }
+            if (isRunning())
+                setupTrickling();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the relay that announces broadcast transactions when they are trickled. */
+    public TransactionRelay getTransactionRelay() {
+        return transactionRelay;
+    }
+
     /**
      * If a peer is connected to that claims to speak a protocol version lower than the given version, it will
      * be disconnected and another one will be tried instead.
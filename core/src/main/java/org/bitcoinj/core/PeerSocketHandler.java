@@ -19,6 +19,7 @@ package org.bitcoinj.core;
 import org.bitcoinj.net.AbstractTimeoutHandler;
 import org.bitcoinj.net.MessageWriteTarget;
 import org.bitcoinj.net.StreamConnection;
+import org.bitcoinj.utils.Metrics;
 import org.bitcoinj.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
@@ -41,6 +42,7 @@ import static com.google.common.base.Preconditions.*;
  */
 public abstract class PeerSocketHandler extends AbstractTimeoutHandler implements StreamConnection {
     private static final Logger log = LoggerFactory.getLogger(PeerSocketHandler.class);
+    private static final Metrics.Counter MESSAGES_SENT = Metrics.counter("peer.sent");
 
     private final MessageSerializer serializer;
     protected PeerAddress peerAddress;
@@ -83,6 +85,10 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
+        if (Metrics.isEnabled()) {
+            MESSAGES_SENT.inc();
+            Metrics.counter("peer.sent." + message.getClass().getSimpleName()).inc();
+        }
         // TODO: Some round-tripping could be avoided here
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
@@ -0,0 +1,122 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A Bloom filter that remembers the most recently inserted elements, for example the hashes of transactions that
+ * were announced to us. Unlike a {@link BloomFilter} it never fills up: it consists of two generations, and once the
+ * current generation holds half of the capacity the older one is cleared and takes its place. So the last
+ * capacity / 2 elements are always remembered, and at most the last capacity elements are.</p>
+ *
+ * <p>Like any Bloom filter it can answer that an element is contained although it was never inserted, with about
+ * the false positive rate given at construction. The filter is local and never sent over the network, and its hash
+ * functions are seeded randomly, so which elements collide can't be predicted by others. Inserting and testing
+ * elements doesn't allocate memory. Instances are safe for use by multiple threads.</p>
+ */
+public class RollingBloomFilter {
+    private final int generationSize;
+    private final int numBits;
+    private final int numHashFuncs;
+    private final long nTweak;
+    private long[] current;
+    private long[] previous;
+    private int currentCount;
+
+    /**
+     * Creates a filter that remembers at least the last capacity / 2 and at most the last capacity elements, and
+     * has about the given false positive rate when full.
+     */
+    public RollingBloomFilter(int capacity, double falsePositiveRate) {
+        checkArgument(capacity > 1, "capacity must be greater than one");
+        checkArgument(falsePositiveRate > 0 && falsePositiveRate < 1, "falsePositiveRate must be between 0 and 1");
+        generationSize = capacity / 2;
+        // Both generations are tested, so each gets half of the false positive rate.
+        double bits = -generationSize * Math.log(falsePositiveRate / 2) / (Math.log(2) * Math.log(2));
+        int numWords = (int) Math.min(Math.ceil(bits / 64), Integer.MAX_VALUE / 64);
+        // Double hashing only yields different bits for each hash function if the number of bits used is prime.
+        numBits = largestPrimeAtMost(numWords * 64);
+        numHashFuncs = (int) Math.max(1, Math.min(Math.round(numBits / (double) generationSize * Math.log(2)), 50));
+        nTweak = (long) (Math.random() * Long.MAX_VALUE);
+        current = new long[numWords];
+        previous = new long[numWords];
+    }
+
+    /** Inserts the given element, which should be hash-like, into the current generation. */
+    public synchronized void insert(byte[] element) {
+        if (currentCount == generationSize) {
+            long[] oldest = previous;
+            previous = current;
+            Arrays.fill(oldest, 0);
+            current = oldest;
+            currentCount = 0;
+        }
+        long h1 = BloomFilter.murmurHash3(nTweak, 0, element) & 0xFFFFFFFFL;
+        long step = step(BloomFilter.murmurHash3(nTweak, 1, element));
+        for (int i = 0; i < numHashFuncs; i++) {
+            int bit = (int) ((h1 + i * step) % numBits);
+            current[bit >>> 6] |= 1L << bit;
+        }
+        currentCount++;
+    }
+
+    /**
+     * Returns true if the given element was inserted recently enough to still be remembered, or if it is a false
+     * positive.
+     */
+    public synchronized boolean contains(byte[] element) {
+        long h1 = BloomFilter.murmurHash3(nTweak, 0, element) & 0xFFFFFFFFL;
+        long step = step(BloomFilter.murmurHash3(nTweak, 1, element));
+        return contains(current, h1, step) || contains(previous, h1, step);
+    }
+
+    /** Forgets all elements. */
+    public synchronized void clear() {
+        Arrays.fill(current, 0);
+        Arrays.fill(previous, 0);
+        currentCount = 0;
+    }
+
+    // The hash functions are derived from two MurmurHash3 values by double hashing: the first picks the first bit, the
+    // second the distance to the next ones.
+    private boolean contains(long[] generation, long h1, long step) {
+        for (int i = 0; i < numHashFuncs; i++) {
+            int bit = (int) ((h1 + i * step) % numBits);
+            if ((generation[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private long step(int h2) {
+        long step = (h2 & 0xFFFFFFFFL) % numBits;
+        return step == 0 ? 1 : step;
+    }
+
+    private static int largestPrimeAtMost(int n) {
+        for (int candidate = n; ; candidate--) {
+            boolean prime = candidate > 1;
+            for (int divisor = 2; prime && (long) divisor * divisor <= candidate; divisor++)
+                prime = candidate % divisor != 0;
+            if (prime)
+                return candidate;
+        }
+    }
+}
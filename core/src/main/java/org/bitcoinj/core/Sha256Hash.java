@@ -25,6 +25,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -39,6 +41,14 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
     public static final int LENGTH = 32; // bytes
     public static final Sha256Hash ZERO_HASH = wrap(new byte[LENGTH]);
 
+    // Looking up a digest is comparatively expensive and hashing is done all over the place, so each thread keeps one.
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newDigest();
+        }
+    };
+
     private final byte[] bytes;
 
     /**
@@ -180,7 +190,7 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the hash (in big-endian order)
      */
     public static byte[] hash(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = threadDigest();
         digest.update(input, offset, length);
         return digest.digest();
     }
@@ -206,7 +216,7 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the double-hash (in big-endian order)
      */
     public static byte[] hashTwice(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = threadDigest();
         digest.update(input, offset, length);
         return digest.digest(digest.digest());
     }
@@ -217,12 +227,73 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      */
     public static byte[] hashTwice(byte[] input1, int offset1, int length1,
                                    byte[] input2, int offset2, int length2) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = threadDigest();
         digest.update(input1, offset1, length1);
         digest.update(input2, offset2, length2);
         return digest.digest(digest.digest());
     }
 
+    /**
+     * Calculates the hash of hash on the given byte range and writes it to the given position of the output array,
+     * without allocating. The output may overlap the input.
+     *
+     * @param input the array containing the bytes to hash
+     * @param offset the offset within the array of the bytes to hash
+     * @param length the number of bytes to hash
+     * @param output the array to write the double-hash to (in big-endian order)
+     * @param outputOffset where in the output array the 32 bytes of the double-hash start
+     */
+    public static void hashTwice(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        MessageDigest digest = threadDigest();
+        digest.update(input, offset, length);
+        finishTwice(digest, output, outputOffset);
+    }
+
+    /**
+     * Calculates the hash of hash on the remaining bytes of the given buffer, which is left at its limit. This allows
+     * hashing directly from network buffers, including direct ones, without copying the bytes into an array first.
+     *
+     * @param input the buffer containing the bytes to hash
+     * @return the double-hash (in big-endian order)
+     */
+    public static byte[] hashTwice(ByteBuffer input) {
+        MessageDigest digest = threadDigest();
+        digest.update(input);
+        return digest.digest(digest.digest());
+    }
+
+    /**
+     * Calculates the hash of hash on the remaining bytes of the given buffer, which is left at its limit, and writes it
+     * to the given position of the output array.
+     *
+     * @param input the buffer containing the bytes to hash
+     * @param output the array to write the double-hash to (in big-endian order)
+     * @param outputOffset where in the output array the 32 bytes of the double-hash start
+     */
+    public static void hashTwice(ByteBuffer input, byte[] output, int outputOffset) {
+        MessageDigest digest = threadDigest();
+        digest.update(input);
+        finishTwice(digest, output, outputOffset);
+    }
+
+    // Returns this thread's digest, ready for use. Only valid until the next call on the same thread.
+    private static MessageDigest threadDigest() {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        return digest;
+    }
+
+    // Completes the first hash in the digest and hashes it again, into output.
+    private static void finishTwice(MessageDigest digest, byte[] output, int outputOffset) {
+        try {
+            digest.digest(output, outputOffset, LENGTH);
+            digest.update(output, outputOffset, LENGTH);
+            digest.digest(output, outputOffset, LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalArgumentException(e);  // Output too short.
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,136 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptOpCodes;
+
+import java.io.IOException;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static org.bitcoinj.core.Utils.uint32ToByteArrayLE;
+
+/**
+ * <p>Calculates the signature hashes of many inputs of the same transaction. The parts of the transaction that are
+ * the same for every input, which is everything but the script of the input being signed, are serialized once when
+ * the context is created. Each hash is then a few array copies and a double SHA-256 away, where
+ * {@link Transaction#hashForSignature(int, byte[], byte)} has to serialize and parse a copy of the whole transaction
+ * every time.</p>
+ *
+ * <p>The context is a snapshot: input scripts don't take part in signature hashes, so signatures can be inserted into
+ * the transaction while the context is in use, but any other change to it requires a new context. Once created it is
+ * immutable and can be used from several threads at once. Only {@link Transaction.SigHash#ALL} is handled here,
+ * with or without ANYONECANPAY; other types are passed on to the transaction.</p>
+ */
+public class SigHashContext {
+    // Size of an input with an empty script: outpoint, script length and sequence number.
+    private static final int EMPTY_INPUT_LENGTH = 36 + 1 + 4;
+
+    private final Transaction tx;
+    private final byte[] version;
+    // All inputs with empty scripts, one after the other, without the count.
+    private final byte[] emptyInputs;
+    // The output count, the outputs and the lock time.
+    private final byte[] tail;
+
+    public SigHashContext(Transaction tx) {
+        this.tx = tx;
+        this.version = new byte[4];
+        uint32ToByteArrayLE(tx.getVersion(), version, 0);
+
+        int numInputs = tx.getInputs().size();
+        emptyInputs = new byte[numInputs * EMPTY_INPUT_LENGTH];
+        for (int i = 0; i < numInputs; i++) {
+            TransactionInput input = tx.getInput(i);
+            int offset = i * EMPTY_INPUT_LENGTH;
+            byte[] outpoint = input.getOutpoint().bitcoinSerialize();
+            System.arraycopy(outpoint, 0, emptyInputs, offset, 36);
+            emptyInputs[offset + 36] = 0;
+            uint32ToByteArrayLE(input.getSequenceNumber(), emptyInputs, offset + 37);
+        }
+
+        UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(tx.getOutputs().size() * 34 + 16);
+        try {
+            bos.write(new VarInt(tx.getOutputs().size()).encode());
+            for (TransactionOutput output : tx.getOutputs())
+                output.bitcoinSerialize(bos);
+            Utils.uint32ToByteStreamLE(tx.getLockTime(), bos);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        tail = bos.toByteArray();
+    }
+
+    /** Returns the transaction this context was created for. */
+    public Transaction getTransaction() {
+        return tx;
+    }
+
+    /**
+     * Calculates the same hash as {@link Transaction#hashForSignature(int, byte[], Transaction.SigHash, boolean)}.
+     */
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, Transaction.SigHash type,
+                                       boolean anyoneCanPay) {
+        return hashForSignature(inputIndex, connectedScript,
+                (byte) TransactionSignature.calcSigHashValue(type, anyoneCanPay));
+    }
+
+    /** Calculates the same hash as {@link Transaction#hashForSignature(int, byte[], byte)}. */
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        if ((sigHashType & 0x1f) != Transaction.SigHash.ALL.value)
+            return tx.hashForSignature(inputIndex, connectedScript, sigHashType);
+        int numInputs = emptyInputs.length / EMPTY_INPUT_LENGTH;
+        checkElementIndex(inputIndex, numInputs);
+        boolean anyoneCanPay = (sigHashType & Transaction.SigHash.ANYONECANPAY.value) != 0;
+        byte[] script = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+
+        int signedInputs = anyoneCanPay ? 1 : numInputs;
+        int length = 4 + VarInt.sizeOf(signedInputs) + signedInputs * EMPTY_INPUT_LENGTH - 1
+                + VarInt.sizeOf(script.length) + script.length + tail.length + 4;
+        byte[] buf = new byte[length];
+        System.arraycopy(version, 0, buf, 0, 4);
+        byte[] count = new VarInt(signedInputs).encode();
+        System.arraycopy(count, 0, buf, 4, count.length);
+        int cursor = 4 + count.length;
+        int inputOffset = inputIndex * EMPTY_INPUT_LENGTH;
+        if (!anyoneCanPay) {
+            System.arraycopy(emptyInputs, 0, buf, cursor, inputOffset);
+            cursor += inputOffset;
+        }
+        // The input being signed carries the connected script.
+        System.arraycopy(emptyInputs, inputOffset, buf, cursor, 36);
+        cursor += 36;
+        byte[] scriptLength = new VarInt(script.length).encode();
+        System.arraycopy(scriptLength, 0, buf, cursor, scriptLength.length);
+        cursor += scriptLength.length;
+        System.arraycopy(script, 0, buf, cursor, script.length);
+        cursor += script.length;
+        System.arraycopy(emptyInputs, inputOffset + 37, buf, cursor, 4);
+        cursor += 4;
+        if (!anyoneCanPay) {
+            int rest = emptyInputs.length - inputOffset - EMPTY_INPUT_LENGTH;
+            System.arraycopy(emptyInputs, inputOffset + EMPTY_INPUT_LENGTH, buf, cursor, rest);
+            cursor += rest;
+        }
+        System.arraycopy(tail, 0, buf, cursor, tail.length);
+        cursor += tail.length;
+        // The hash type is written as four bytes, although sigHashType is actually an unsigned char.
+        uint32ToByteArrayLE(0x000000ff & sigHashType, buf, cursor);
+        return Sha256Hash.twiceOf(buf);
+    }
+}
@@ -144,10 +144,41 @@ public class TransactionBroadcast {
             int numToBroadcastTo = (int) Math.max(1, Math.round(Math.ceil(peers.size() / 2.0)));
             numWaitingFor = (int) Math.ceil((peers.size() - numToBroadcastTo) / 2.0);
             Collections.shuffle(peers, random);
-            peers = peers.subList(0, numToBroadcastTo);
+            // Peers that already have the transaction, for example because they announced it to us, don't need it
+            // again, so the others are picked first.
+            List<Peer> unaware = new ArrayList<>(numConnected);
+            List<Peer> aware = new ArrayList<>();
+            for (Peer peer : peers) {
+                if (peer.isInventoryKnown(tx.getHash()))
+                    aware.add(peer);
+                else
+                    unaware.add(peer);
+            }
+            unaware.addAll(aware);
+            peers = unaware.subList(0, numToBroadcastTo);
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool", numConnected, tx.getHashAsString());
+            if (peerGroup.getBroadcastTrickleIntervalMsec() > 0) {
+                // Announce the transaction with the next trickle and let the peers download it.
+                log.info("Announcing to {} peers, will wait for {}, announcing to: {}", numToBroadcastTo, numWaitingFor,
+                        Joiner.on(",").join(peers));
+                ListenableFuture<Transaction> announced = peerGroup.getTransactionRelay().announce(tx, peers);
+                if (minConnections == 1) {
+                    announced.addListener(new Runnable() {
+                        @Override
+                        public void run() {
+                            peerGroup.removePreMessageReceivedEventListener(rejectionListener);
+                            future.set(tx);
+                        }
+                    }, Threading.SAME_THREAD);
+                }
+                return;
+            }
             log.info("Sending to {} peers, will wait for {}, sending to: {}", numToBroadcastTo, numWaitingFor, Joiner.on(",").join(peers));
             for (Peer peer : peers) {
+                if (peer.isInventoryKnown(tx.getHash())) {
+                    log.info("{} already has {}, not sending it again", peer, tx.getHashAsString());
+                    continue;
+                }
                 try {
                     peer.sendMessage(tx);
                     // We don't record the peer as having seen the tx in the memory pool because we want to track only
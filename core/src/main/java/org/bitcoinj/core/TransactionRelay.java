@@ -0,0 +1,231 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import net.jcip.annotations.GuardedBy;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Announces transactions to peers in batches, instead of sending every transaction to its peers the moment it is
+ * broadcast. Transactions passed to {@link #announce(Transaction, List)} are queued per peer, and on every trickle
+ * each peer gets one inv message listing what was queued for it since. Peers ask for the transactions they don't have
+ * yet with getdata, which is answered from the relay map the transactions are kept in for
+ * {@link #RELAY_EXPIRY_MSEC}. Transactions a peer is already known to have aren't announced to it.</p>
+ *
+ * <p>So that bursts of broadcasts don't flood slow connections, the transactions announced to a peer on one trickle
+ * add up to at most the bytes per second set with {@link #setMaxBytesPerSecond(long)}, times the trickle interval.
+ * What doesn't fit waits for the next trickle. The limit only applies to the inv announcements and the sizes of the
+ * transactions they list: the getdata requests that follow are answered in full, as the peer only asks for what was
+ * announced to it. A {@link PeerGroup} relays its broadcasts this way once a trickle interval is set with
+ * {@link PeerGroup#setBroadcastTrickleIntervalMsec(long)}.</p>
+ */
+public class TransactionRelay {
+    private static final Logger log = LoggerFactory.getLogger(TransactionRelay.class);
+
+    /** How long transactions stay in the relay map after they were queued. */
+    public static final long RELAY_EXPIRY_MSEC = 15 * 60 * 1000;
+    /** The default for {@link #setMaxBytesPerSecond(long)}. */
+    public static final long DEFAULT_MAX_BYTES_PER_SECOND = 50000;
+
+    protected final ReentrantLock lock = Threading.lock("transactionrelay");
+
+    private static class RelayEntry {
+        final Transaction tx;
+        final long expiryTimeMillis;
+        final SettableFuture<Transaction> future = SettableFuture.create();
+        // The number of peers the transaction still has to be announced to, or dropped for.
+        int numPeersLeft;
+
+        RelayEntry(Transaction tx, long expiryTimeMillis, int numPeers) {
+            this.tx = tx;
+            this.expiryTimeMillis = expiryTimeMillis;
+            this.numPeersLeft = numPeers;
+        }
+    }
+
+    // In the order the transactions were queued, which is also the order they expire in.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, RelayEntry> relayMap = new LinkedHashMap<>();
+    // The transactions waiting to be announced to each peer, in the order they were queued.
+    @GuardedBy("lock") private final Map<Peer, LinkedHashMap<Sha256Hash, RelayEntry>> queues = new HashMap<>();
+    private volatile long vMaxBytesPerSecond = DEFAULT_MAX_BYTES_PER_SECOND;
+
+    /**
+     * Queues the transaction to be announced to the given peers on the next trickle. The returned future completes
+     * once the transaction was announced to all of them, or they disconnected before.
+     */
+    public ListenableFuture<Transaction> announce(Transaction tx, List<Peer> peers) {
+        Sha256Hash hash = tx.getHash();
+        RelayEntry entry = new RelayEntry(tx, Utils.currentTimeMillis() + RELAY_EXPIRY_MSEC, peers.size());
+        List<RelayEntry> completed = new ArrayList<>();
+        lock.lock();
+        try {
+            removeExpired();
+            relayMap.remove(hash);
+            relayMap.put(hash, entry);
+            for (Peer peer : peers) {
+                LinkedHashMap<Sha256Hash, RelayEntry> queue = queues.get(peer);
+                if (queue == null) {
+                    queue = new LinkedHashMap<>();
+                    queues.put(peer, queue);
+                }
+                RelayEntry previous = queue.put(hash, entry);
+                if (previous != null)
+                    settle(previous, completed);
+            }
+            if (peers.isEmpty())
+                completed.add(entry);
+        } finally {
+            lock.unlock();
+        }
+        log.info("Queued {} for announcement to {} peers", tx.getHashAsString(), peers.size());
+        complete(completed);
+        return entry.future;
+    }
+
+    /**
+     * Sends every peer an inv message with the transactions queued for it, as far as its share of bandwidth allows.
+     * Called by the {@link PeerGroup} on every trickle interval, which also determines how much that share is.
+     */
+    public void trickle(long intervalMsec) {
+        long maxBytes = vMaxBytesPerSecond * intervalMsec / 1000;
+        Map<Peer, InventoryMessage> invs = new HashMap<>();
+        List<RelayEntry> completed = new ArrayList<>();
+        lock.lock();
+        try {
+            removeExpired();
+            Iterator<Map.Entry<Peer, LinkedHashMap<Sha256Hash, RelayEntry>>> queueIt = queues.entrySet().iterator();
+            while (queueIt.hasNext()) {
+                Map.Entry<Peer, LinkedHashMap<Sha256Hash, RelayEntry>> queue = queueIt.next();
+                Peer peer = queue.getKey();
+                InventoryMessage inv = null;
+                long bytes = 0;
+                Iterator<RelayEntry> it = queue.getValue().values().iterator();
+                while (it.hasNext()) {
+                    RelayEntry entry = it.next();
+                    Sha256Hash hash = entry.tx.getHash();
+                    if (relayMap.containsKey(hash) && !peer.isInventoryKnown(hash)) {
+                        // At least one transaction per trickle, so that large ones don't get stuck.
+                        int size = entry.tx.getMessageSize();
+                        if (inv != null && (bytes + size > maxBytes
+                                || inv.getItemCount() >= InventoryMessage.MAX_INV_SIZE))
+                            break;
+                        if (inv == null)
+                            inv = new InventoryMessage(entry.tx.getParams());
+                        inv.addTransaction(entry.tx);
+                        bytes += size;
+                    }
+                    it.remove();
+                    settle(entry, completed);
+                }
+                if (inv != null)
+                    invs.put(peer, inv);
+                if (queue.getValue().isEmpty())
+                    queueIt.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<Peer, InventoryMessage> inv : invs.entrySet()) {
+            try {
+                inv.getKey().sendMessage(inv.getValue());
+            } catch (Exception e) {
+                log.error("Caught exception announcing transactions to {}", inv.getKey(), e);
+            }
+        }
+        complete(completed);
+    }
+
+    /** Returns the transaction with the given hash if it is in the relay map, to answer a getdata. */
+    @Nullable
+    public Transaction getTransaction(Sha256Hash hash) {
+        lock.lock();
+        try {
+            removeExpired();
+            RelayEntry entry = relayMap.get(hash);
+            return entry != null ? entry.tx : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Drops everything queued for the given peer, which is called when it disconnects. */
+    public void removePeer(Peer peer) {
+        List<RelayEntry> completed = new ArrayList<>();
+        lock.lock();
+        try {
+            LinkedHashMap<Sha256Hash, RelayEntry> queue = queues.remove(peer);
+            if (queue != null) {
+                for (RelayEntry entry : queue.values())
+                    settle(entry, completed);
+            }
+        } finally {
+            lock.unlock();
+        }
+        complete(completed);
+    }
+
+    /** Returns how many bytes of transactions are announced to each peer per second at most. */
+    public long getMaxBytesPerSecond() {
+        return vMaxBytesPerSecond;
+    }
+
+    /**
+     * Sets how many bytes of transactions are announced to each peer per second at most. At least one transaction is
+     * announced per peer and trickle though. The default is {@link #DEFAULT_MAX_BYTES_PER_SECOND}.
+     */
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        checkArgument(maxBytesPerSecond > 0, "maxBytesPerSecond must be positive");
+        vMaxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    // Entries are removed whenever the map is touched, so it doesn't hold on to transactions between trickles, nor
+    // when no trickle runs at all.
+    @GuardedBy("lock")
+    private void removeExpired() {
+        long now = Utils.currentTimeMillis();
+        Iterator<RelayEntry> expiring = relayMap.values().iterator();
+        while (expiring.hasNext() && expiring.next().expiryTimeMillis <= now)
+            expiring.remove();
+    }
+
+    @GuardedBy("lock")
+    private void settle(RelayEntry entry, List<RelayEntry> completed) {
+        if (--entry.numPeersLeft == 0)
+            completed.add(entry);
+    }
+
+    // Futures are completed without holding the lock, as their listeners may run on this thread.
+    private void complete(List<RelayEntry> completed) {
+        for (RelayEntry entry : completed)
+            entry.future.set(entry.tx);
+    }
+}
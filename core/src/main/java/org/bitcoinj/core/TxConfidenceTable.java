@@ -58,6 +58,12 @@ public class TxConfidenceTable {
     /** The max size of a table created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
 
+    // Hashes recently passed to seen(). Unlike the table it remembers transactions nobody cares about anymore, so
+    // that peers can tell a transaction announced again from a new one without creating a confidence object for it.
+    private final RollingBloomFilter seenFilter = new RollingBloomFilter(SEEN_FILTER_SIZE, SEEN_FILTER_FP_RATE);
+    private static final int SEEN_FILTER_SIZE = InventoryMessage.MAX_INV_SIZE;
+    private static final double SEEN_FILTER_FP_RATE = 0.000001;
+
     /**
      * Creates a table that will track at most the given number of transactions (allowing you to bound memory
      * usage).
@@ -138,6 +144,7 @@ public class TxConfidenceTable {
     public TransactionConfidence seen(Sha256Hash hash, PeerAddress byPeer) {
         TransactionConfidence confidence;
         boolean fresh = false;
+        seenFilter.insert(hash.getBytes());
         lock.lock();
         {
             cleanTable();
@@ -150,6 +157,39 @@ public class TxConfidenceTable {
         return confidence;
     }
 
+    /**
+     * Like {@link #seen(Sha256Hash, PeerAddress)}, but only for transactions whose confidence is still tracked: for
+     * others no confidence object is created and null is returned.
+     */
+    @Nullable
+    public TransactionConfidence seenIfTracked(Sha256Hash hash, PeerAddress byPeer) {
+        TransactionConfidence confidence;
+        boolean fresh;
+        lock.lock();
+        try {
+            cleanTable();
+            confidence = get(hash);
+            if (confidence == null)
+                return null;
+            fresh = confidence.markBroadcastBy(byPeer);
+        } finally {
+            lock.unlock();
+        }
+        if (fresh)
+            confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
+        return confidence;
+    }
+
+    /**
+     * Returns true if the given hash, in the byte order of {@link Sha256Hash#getBytes()}, was recently passed to
+     * {@link #seen(Sha256Hash, PeerAddress)}, even if its confidence isn't tracked anymore. This neither takes the
+     * lock of the table nor allocates memory, but can return true for about one in a million hashes that weren't
+     * seen.
+     */
+    public boolean wasRecentlySeen(byte[] hash) {
+        return seenFilter.contains(hash);
+    }
+
     /**
      * Returns the {@link TransactionConfidence} for the given hash if we have downloaded it, or null if that tx hash
      * is unknown to the system at this time.
@@ -17,12 +17,16 @@
 package org.bitcoinj.core;
 
 import org.bitcoinj.script.*;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
 
 import java.io.*;
 import java.math.*;
+import java.util.Arrays;
 import java.util.Locale;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 // TODO: Fix this class: should not talk about addresses, height should be optional/support mempool height etc
 
 /**
@@ -34,7 +38,12 @@ public class UTXO implements Serializable {
 
     private static final long serialVersionUID = 4736241649298988166L;
 
+    // Number of script encodings in the compact record that are templates rather than a length.
+    private static final int SPECIAL_SCRIPTS = 6;
+
     private Coin value;
+    private byte[] scriptBytes;
+    // Parsed from scriptBytes when first needed, outputs read from a store are often only checked for existence.
     private Script script;
     private Sha256Hash hash;
     private long index;
@@ -62,6 +71,7 @@ public class UTXO implements Serializable {
         this.value = value;
         this.height = height;
         this.script = script;
+        this.scriptBytes = script.getProgram();
         this.coinbase = coinbase;
         this.address = "";
     }
@@ -91,6 +101,16 @@ public class UTXO implements Serializable {
         deserializeFromStream(in);
     }
 
+    private UTXO(Sha256Hash hash, long index, Coin value, int height, boolean coinbase, byte[] scriptBytes) {
+        this.hash = hash;
+        this.index = index;
+        this.value = value;
+        this.height = height;
+        this.coinbase = coinbase;
+        this.scriptBytes = scriptBytes;
+        this.address = "";
+    }
+
     /** The value which this Transaction output holds. */
     public Coin getValue() {
         return value;
@@ -98,9 +118,16 @@ public class UTXO implements Serializable {
 
     /** The Script object which you can use to get address, script bytes or script type. */
     public Script getScript() {
+        if (script == null)
+            script = new Script(scriptBytes);
         return script;
     }
 
+    /** The program of the output script, without parsing it. Do NOT modify the returned array. */
+    public byte[] getScriptBytes() {
+        return scriptBytes;
+    }
+
     /** The hash of the transaction which holds this output. */
     public Sha256Hash getHash() {
         return hash;
@@ -147,7 +174,6 @@ public class UTXO implements Serializable {
     public void serializeToStream(OutputStream bos) throws IOException {
         Utils.uint64ToByteStreamLE(BigInteger.valueOf(value.value), bos);
 
-        byte[] scriptBytes = script.getProgram();
         bos.write(0xFF & scriptBytes.length);
         bos.write(0xFF & scriptBytes.length >> 8);
         bos.write(0xFF & (scriptBytes.length >> 16));
@@ -175,10 +201,10 @@ public class UTXO implements Serializable {
                 ((in.read() & 0xFF) << 8) |
                 ((in.read() & 0xFF) << 16) |
                 ((in.read() & 0xFF) << 24);
-        byte[] scriptBytes = new byte[scriptBytesLength];
+        scriptBytes = new byte[scriptBytesLength];
         if (in.read(scriptBytes) != scriptBytesLength)
             throw new EOFException();
-        script = new Script(scriptBytes);
+        script = null;
 
         byte[] hashBytes = new byte[32];
         if (in.read(hashBytes) != 32)
@@ -201,6 +227,189 @@ public class UTXO implements Serializable {
     }
     
     
+    /**
+     * <p>Returns the compact record of this output, which is what the full pruned block stores keep for every unspent
+     * output. It doesn't include the hash and index, which the stores use as the key, or the address.</p>
+     *
+     * <p>The layout follows the coins database of Bitcoin Core: the height and coinbase flag packed into one varint,
+     * then the value as a varint of its decimal compression, then the script. Scripts of the standard pay to address,
+     * pay to script hash and pay to public key forms are reduced to a type byte and the hash or the x coordinate of
+     * the key, others are stored as their length and bytes. A typical output takes about 25 bytes instead of 70.</p>
+     */
+    public byte[] toCompactBytes() {
+        checkArgument(value.signum() >= 0, "Negative value");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(40);
+        writeVarInt(bos, ((height & 0xFFFFFFFFL) << 1) | (coinbase ? 1 : 0));
+        writeVarInt(bos, compressAmount(value.value));
+        writeCompressedScript(bos, scriptBytes);
+        return bos.toByteArray();
+    }
+
+    /**
+     * Reads an output from its compact record, see {@link #toCompactBytes()}. The script is parsed on first use.
+     *
+     * @throws ProtocolException if the record is truncated or malformed
+     */
+    public static UTXO fromCompactBytes(Sha256Hash hash, long index, byte[] record) throws ProtocolException {
+        int[] cursor = new int[1];
+        long code = readVarInt(record, cursor);
+        long value = decompressAmount(readVarInt(record, cursor));
+        byte[] scriptBytes = readCompressedScript(record, cursor);
+        if (cursor[0] != record.length)
+            throw new ProtocolException("Trailing bytes in UTXO record");
+        return new UTXO(hash, index, Coin.valueOf(value), (int) (code >>> 1), (code & 1) == 1, scriptBytes);
+    }
+
+    // Amounts are mostly round numbers, so trailing decimal zeros are moved into an exponent.
+    @VisibleForTesting
+    static long compressAmount(long n) {
+        if (n == 0)
+            return 0;
+        int e = 0;
+        while ((n % 10) == 0 && e < 9) {
+            n /= 10;
+            e++;
+        }
+        if (e < 9) {
+            int d = (int) (n % 10);
+            n /= 10;
+            return 1 + (n * 9 + d - 1) * 10 + e;
+        } else {
+            return 1 + (n - 1) * 10 + 9;
+        }
+    }
+
+    @VisibleForTesting
+    static long decompressAmount(long x) {
+        if (x == 0)
+            return 0;
+        x--;
+        int e = (int) (x % 10);
+        x /= 10;
+        long n;
+        if (e < 9) {
+            int d = (int) (x % 9) + 1;
+            x /= 9;
+            n = x * 10 + d;
+        } else {
+            n = x + 1;
+        }
+        while (e > 0) {
+            n *= 10;
+            e--;
+        }
+        return n;
+    }
+
+    private static void writeCompressedScript(ByteArrayOutputStream bos, byte[] script) {
+        int length = script.length;
+        if (length == 25 && script[0] == (byte) ScriptOpCodes.OP_DUP && script[1] == (byte) ScriptOpCodes.OP_HASH160
+                && script[2] == 20 && script[23] == (byte) ScriptOpCodes.OP_EQUALVERIFY
+                && script[24] == (byte) ScriptOpCodes.OP_CHECKSIG) {
+            bos.write(0);
+            bos.write(script, 3, 20);
+        } else if (length == 23 && script[0] == (byte) ScriptOpCodes.OP_HASH160 && script[1] == 20
+                && script[22] == (byte) ScriptOpCodes.OP_EQUAL) {
+            bos.write(1);
+            bos.write(script, 2, 20);
+        } else if (length == 35 && script[0] == 33 && script[34] == (byte) ScriptOpCodes.OP_CHECKSIG
+                && (script[1] == 2 || script[1] == 3)) {
+            bos.write(script[1]);
+            bos.write(script, 2, 32);
+        } else if (length == 67 && script[0] == 65 && script[66] == (byte) ScriptOpCodes.OP_CHECKSIG
+                && script[1] == 4 && isValidPubKey(Arrays.copyOfRange(script, 1, 66))) {
+            // Only the parity of y is kept, it is recovered from x when reading.
+            bos.write(4 | (script[65] & 1));
+            bos.write(script, 2, 32);
+        } else {
+            writeVarInt(bos, length + SPECIAL_SCRIPTS);
+            bos.write(script, 0, length);
+        }
+    }
+
+    private static byte[] readCompressedScript(byte[] record, int[] cursor) throws ProtocolException {
+        long type = readVarInt(record, cursor);
+        if (type < SPECIAL_SCRIPTS) {
+            int size = type < 2 ? 20 : 32;
+            byte[] data = readBytes(record, cursor, size);
+            if (type == 0)
+                return concat(new byte[] { (byte) ScriptOpCodes.OP_DUP, (byte) ScriptOpCodes.OP_HASH160, 20 }, data,
+                        new byte[] { (byte) ScriptOpCodes.OP_EQUALVERIFY, (byte) ScriptOpCodes.OP_CHECKSIG });
+            if (type == 1)
+                return concat(new byte[] { (byte) ScriptOpCodes.OP_HASH160, 20 }, data,
+                        new byte[] { (byte) ScriptOpCodes.OP_EQUAL });
+            byte[] compressed = concat(new byte[] { (byte) (type < 4 ? type : type - 2) }, data, new byte[0]);
+            if (type < 4)
+                return concat(new byte[] { 33 }, compressed, new byte[] { (byte) ScriptOpCodes.OP_CHECKSIG });
+            byte[] pubKey;
+            try {
+                pubKey = ECKey.CURVE.getCurve().decodePoint(compressed).getEncoded(false);
+            } catch (IllegalArgumentException e) {
+                throw new ProtocolException("Invalid public key in UTXO record", e);
+            }
+            return concat(new byte[] { 65 }, pubKey, new byte[] { (byte) ScriptOpCodes.OP_CHECKSIG });
+        }
+        long length = type - SPECIAL_SCRIPTS;
+        if (length > record.length - cursor[0])
+            throw new ProtocolException("Truncated UTXO record");
+        return readBytes(record, cursor, (int) length);
+    }
+
+    private static boolean isValidPubKey(byte[] pubKey) {
+        try {
+            return ECKey.CURVE.getCurve().decodePoint(pubKey).isValid();
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static byte[] concat(byte[] prefix, byte[] data, byte[] suffix) {
+        byte[] result = new byte[prefix.length + data.length + suffix.length];
+        System.arraycopy(prefix, 0, result, 0, prefix.length);
+        System.arraycopy(data, 0, result, prefix.length, data.length);
+        System.arraycopy(suffix, 0, result, prefix.length + data.length, suffix.length);
+        return result;
+    }
+
+    private static byte[] readBytes(byte[] record, int[] cursor, int length) throws ProtocolException {
+        if (length > record.length - cursor[0])
+            throw new ProtocolException("Truncated UTXO record");
+        byte[] result = Arrays.copyOfRange(record, cursor[0], cursor[0] + length);
+        cursor[0] += length;
+        return result;
+    }
+
+    // The variable length integer of Bitcoin Core's coins database: base 128, most significant group first, with each
+    // continuation offset by one so every number has exactly one encoding. Unlike VarInt, small numbers take one byte.
+    private static void writeVarInt(ByteArrayOutputStream bos, long n) {
+        byte[] tmp = new byte[10];
+        int len = 0;
+        while (true) {
+            tmp[len] = (byte) ((n & 0x7F) | (len != 0 ? 0x80 : 0x00));
+            if (n <= 0x7F)
+                break;
+            n = (n >>> 7) - 1;
+            len++;
+        }
+        do {
+            bos.write(tmp[len]);
+        } while (len-- > 0);
+    }
+
+    private static long readVarInt(byte[] record, int[] cursor) throws ProtocolException {
+        long n = 0;
+        for (int i = 0; i < 10; i++) {
+            if (cursor[0] >= record.length)
+                throw new ProtocolException("Truncated UTXO record");
+            int b = record[cursor[0]++] & 0xFF;
+            n = (n << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0)
+                return n;
+            n++;
+        }
+        throw new ProtocolException("Varint too long in UTXO record");
+    }
+
     private void writeObject(ObjectOutputStream o) throws IOException {
         serializeToStream(o);
     }
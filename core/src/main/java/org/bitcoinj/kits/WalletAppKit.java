@@ -76,6 +76,8 @@ public class WalletAppKit extends AbstractIdleService {
     protected DownloadProgressTracker downloadListener;
     protected boolean autoStop = true;
     protected InputStream checkpoints;
+    @Nullable protected InputStream headerSnapshot;
+    @Nullable protected Sha256Hash headerSnapshotHash;
     protected boolean blockingStartup = true;
     protected String userAgent, version;
     protected WalletProtobufSerializer.WalletFactory walletFactory;
@@ -154,6 +156,26 @@ public class WalletAppKit extends AbstractIdleService {
         return this;
     }
 
+    /**
+     * If set, the stream is expected to contain a {@link HeaderSnapshot}. When a new chain file is created for a wallet
+     * whose keys are all younger than the snapshot's last header, the chain file is pre-filled with the snapshot's
+     * headers instead of being seeded from a checkpoint, so only headers newer than the snapshot have to be
+     * downloaded. Otherwise the kit falls back to checkpoints as usual. The stream is closed during startup, whether
+     * it was used or not.
+     *
+     * @param headerSnapshot the snapshot data
+     * @param expectedHash if not null, the snapshot is rejected unless its {@link HeaderSnapshot#getDataHash()}
+     *                     equals this
+     */
+    public WalletAppKit setHeaderSnapshot(InputStream headerSnapshot, @Nullable Sha256Hash expectedHash) {
+        checkState(state() == State.NEW, "Cannot call after startup");
+        if (this.headerSnapshot != null)
+            Utils.closeUnchecked(this.headerSnapshot);
+        this.headerSnapshot = checkNotNull(headerSnapshot);
+        this.headerSnapshotHash = expectedHash;
+        return this;
+    }
+
     /**
      * If true (the default) then the startup of this service won't be considered complete until the network has been
      * brought up, peer connections established and the block chain synchronised. Therefore {@link #awaitRunning()} can
@@ -272,7 +294,9 @@ public class WalletAppKit extends AbstractIdleService {
 
             // Initiate Bitcoin network objects (block store, blockchain and peer group)
             vStore = provideBlockStore(chainFile);
-            if (!chainFileExists || restoreFromSeed != null) {
+            if (!chainFileExists && restoreFromSeed == null && headerSnapshot != null && maybeLoadHeaderSnapshot()) {
+                log.info("Initialized chain file from header snapshot");
+            } else if (!chainFileExists || restoreFromSeed != null) {
                 if (checkpoints == null && !Utils.isAndroidRuntime()) {
                     checkpoints = CheckpointManager.openStream(params);
                 }
@@ -350,7 +374,34 @@ public class WalletAppKit extends AbstractIdleService {
             }
         } catch (BlockStoreException e) {
             throw new IOException(e);
+        } finally {
+            // The snapshot is only ever used for a new chain file, so close it whether it was used or not.
+            if (headerSnapshot != null) {
+                Utils.closeUnchecked(headerSnapshot);
+                headerSnapshot = null;
+            }
+        }
+    }
+
+    /**
+     * Loads {@link #headerSnapshot} into the new block store, unless the wallet may have transactions in blocks
+     * covered by the snapshot: those blocks would never be downloaded, so the wallet would miss them.
+     */
+    private boolean maybeLoadHeaderSnapshot() throws IOException, BlockStoreException {
+        if (!(vStore instanceof SPVBlockStore)) {
+            log.warn("Ignoring header snapshot, block store is not an SPVBlockStore");
+            return false;
+        }
+        HeaderSnapshot snapshot = HeaderSnapshot.read(params, headerSnapshot, headerSnapshotHash);
+        // Allow for the same clock drift in block headers that CheckpointManager.checkpoint() does.
+        long snapshotTime = snapshot.getChainHead().getHeader().getTimeSeconds() + 86400 * 7;
+        long walletTime = vWallet.getEarliestKeyCreationTime();
+        if (walletTime <= 0 || walletTime < snapshotTime) {
+            log.info("Wallet is older than the header snapshot, not using it");
+            return false;
         }
+        ((SPVBlockStore) vStore).loadHeaderSnapshot(snapshot);
+        return true;
     }
 
     private Wallet createOrLoadWallet(boolean shouldReplayWallet) throws Exception {
@@ -29,6 +29,7 @@ import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.Utils;
+import org.bitcoinj.utils.ChainContext;
 import org.bitcoinj.utils.MonetaryFormat;
 import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.store.BlockStore;
@@ -38,6 +39,8 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Stopwatch;
 
+import javax.annotation.Nullable;
+
 import org.bitcoinj.core.BitcoinSerializer;
 
 /**
@@ -53,6 +56,9 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
 
     private static final Logger log = LoggerFactory.getLogger(AbstractBitcoinNetParams.class);
 
+    // True if a subclass overrides the difficulty check without a chain context, but not the one with it.
+    private final boolean overridesLegacyDifficultyCheck = overridesLegacyDifficultyCheck(getClass());
+
     public AbstractBitcoinNetParams() {
         super();
     }
@@ -75,9 +81,51 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
         return ((height + 1) % this.getInterval()) == 0;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * @deprecated Override {@link #checkDifficultyTransitions(StoredBlock, Block, BlockStore, ChainContext)} instead.
+     * Subclasses that only override this overload are still called, by the overload with the chain context, but they
+     * don't get the chain context.
+     */
     @Override
+    @Deprecated
     public void checkDifficultyTransitions(final StoredBlock storedPrev, final Block nextBlock,
     	final BlockStore blockStore) throws VerificationException, BlockStoreException {
+        checkBitcoinDifficultyTransitions(storedPrev, nextBlock, blockStore, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>If a subclass overrides {@link #checkDifficultyTransitions(StoredBlock, Block, BlockStore)} but not this
+     * method, its override is called instead and the chain context is ignored.</p>
+     */
+    @Override
+    public void checkDifficultyTransitions(final StoredBlock storedPrev, final Block nextBlock,
+    	final BlockStore blockStore, @Nullable final ChainContext chainContext)
+            throws VerificationException, BlockStoreException {
+        if (overridesLegacyDifficultyCheck)
+            checkDifficultyTransitions(storedPrev, nextBlock, blockStore);
+        else
+            checkBitcoinDifficultyTransitions(storedPrev, nextBlock, blockStore, chainContext);
+    }
+
+    private static boolean overridesLegacyDifficultyCheck(Class<?> clazz) {
+        try {
+            Class<?> legacy = clazz.getMethod("checkDifficultyTransitions", StoredBlock.class, Block.class,
+                    BlockStore.class).getDeclaringClass();
+            Class<?> withContext = clazz.getMethod("checkDifficultyTransitions", StoredBlock.class, Block.class,
+                    BlockStore.class, ChainContext.class).getDeclaringClass();
+            return legacy != withContext && withContext.isAssignableFrom(legacy);
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private void checkBitcoinDifficultyTransitions(final StoredBlock storedPrev, final Block nextBlock,
+            final BlockStore blockStore, @Nullable final ChainContext chainContext)
+            throws VerificationException, BlockStoreException {
         final Block prev = storedPrev.getHeader();
 
         // Is this supposed to be a difficulty transition point?
@@ -91,29 +139,34 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
             return;
         }
 
-        // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
-        final Stopwatch watch = Stopwatch.createStarted();
-        Sha256Hash hash = prev.getHash();
-        StoredBlock cursor = null;
+        // We need to find a block far back in the chain. The chain context usually has it, otherwise it is OK that
+        // this is expensive because it only occurs every two weeks after the initial block chain download.
         final int interval = this.getInterval();
-        for (int i = 0; i < interval; i++) {
-            cursor = blockStore.get(hash);
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the last transition point. Not found: " + hash);
+        final long timeIntervalAgo;
+        if (chainContext != null && chainContext.getDepth(storedPrev) >= interval) {
+            timeIntervalAgo = chainContext.getTimeSeconds(storedPrev.getHeight() - interval + 1);
+        } else {
+            final Stopwatch watch = Stopwatch.createStarted();
+            Sha256Hash hash = prev.getHash();
+            StoredBlock cursor = null;
+            for (int i = 0; i < interval; i++) {
+                cursor = blockStore.get(hash);
+                if (cursor == null) {
+                    // This should never happen. If it does, it means we are following an incorrect or busted chain.
+                    throw new VerificationException(
+                            "Difficulty transition point but we did not find a way back to the last transition point. Not found: " + hash);
+                }
+                hash = cursor.getHeader().getPrevBlockHash();
             }
-            hash = cursor.getHeader().getPrevBlockHash();
+            checkState(cursor != null && isDifficultyTransitionPoint(cursor.getHeight() - 1),
+                    "Didn't arrive at a transition point.");
+            watch.stop();
+            if (watch.elapsed(TimeUnit.MILLISECONDS) > 50)
+                log.info("Difficulty transition traversal took {}", watch);
+            timeIntervalAgo = cursor.getHeader().getTimeSeconds();
         }
-        checkState(cursor != null && isDifficultyTransitionPoint(cursor.getHeight() - 1),
-                "Didn't arrive at a transition point.");
-        watch.stop();
-        if (watch.elapsed(TimeUnit.MILLISECONDS) > 50)
-            log.info("Difficulty transition traversal took {}", watch);
-
-        Block blockIntervalAgo = cursor.getHeader();
-        int timespan = (int) (prev.getTimeSeconds() - blockIntervalAgo.getTimeSeconds());
+
+        int timespan = (int) (prev.getTimeSeconds() - timeIntervalAgo);
         // Limit the adjustment step.
         final int targetTimespan = this.getTargetTimespan();
         if (timespan < targetTimespan / 4)
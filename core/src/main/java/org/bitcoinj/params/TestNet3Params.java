@@ -27,6 +27,9 @@ import org.bitcoinj.core.Utils;
 import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.ChainContext;
+
+import javax.annotation.Nullable;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -91,7 +94,8 @@ public class TestNet3Params extends AbstractBitcoinNetParams {
 
     @Override
     public void checkDifficultyTransitions(final StoredBlock storedPrev, final Block nextBlock,
-        final BlockStore blockStore) throws VerificationException, BlockStoreException {
+        final BlockStore blockStore, @Nullable final ChainContext chainContext)
+            throws VerificationException, BlockStoreException {
         if (!isDifficultyTransitionPoint(storedPrev.getHeight()) && nextBlock.getTime().after(testnetDiffDate)) {
             Block prev = storedPrev.getHeader();
 
@@ -103,21 +107,35 @@ public class TestNet3Params extends AbstractBitcoinNetParams {
             // goes backwards.
             if (timeDelta >= 0 && timeDelta <= NetworkParameters.TARGET_SPACING * 2) {
         	// Walk backwards until we find a block that doesn't have the easiest proof of work, then check
-        	// that difficulty is equal to that one.
-        	StoredBlock cursor = storedPrev;
-        	while (!cursor.getHeader().equals(getGenesisBlock()) &&
-                       cursor.getHeight() % getInterval() != 0 &&
-                       cursor.getHeader().getDifficultyTargetAsInteger().equals(getMaxTarget()))
-                    cursor = cursor.getPrev(blockStore);
-        	BigInteger cursorTarget = cursor.getHeader().getDifficultyTargetAsInteger();
+        	// that difficulty is equal to that one. The chain context is searched first, the store only if the
+        	// walk goes further back than that.
+        	long cursorTarget = -1;
+        	if (chainContext != null && chainContext.getDepth(storedPrev) > 0) {
+        	    for (int height = storedPrev.getHeight(); height >= chainContext.getLowestHeight(); height--) {
+        	        long target = chainContext.getDifficultyTarget(height);
+        	        if (height == 0 || height % getInterval() == 0 ||
+        	                !Utils.decodeCompactBits(target).equals(getMaxTarget())) {
+        	            cursorTarget = target;
+        	            break;
+        	        }
+        	    }
+        	}
+        	if (cursorTarget == -1) {
+        	    StoredBlock cursor = storedPrev;
+        	    while (!cursor.getHeader().equals(getGenesisBlock()) &&
+                           cursor.getHeight() % getInterval() != 0 &&
+                           cursor.getHeader().getDifficultyTargetAsInteger().equals(getMaxTarget()))
+                        cursor = cursor.getPrev(blockStore);
+        	    cursorTarget = cursor.getHeader().getDifficultyTarget();
+        	}
         	BigInteger newTarget = nextBlock.getDifficultyTargetAsInteger();
-        	if (!cursorTarget.equals(newTarget))
+        	if (!Utils.decodeCompactBits(cursorTarget).equals(newTarget))
                     throw new VerificationException("Testnet block transition that is not allowed: " +
-                	Long.toHexString(cursor.getHeader().getDifficultyTarget()) + " vs " +
+                	Long.toHexString(cursorTarget) + " vs " +
                 	Long.toHexString(nextBlock.getDifficultyTarget()));
             }
         } else {
-            super.checkDifficultyTransitions(storedPrev, nextBlock, blockStore);
+            super.checkDifficultyTransitions(storedPrev, nextBlock, blockStore, chainContext);
         }
     }
 }
@@ -18,6 +18,7 @@ package org.bitcoinj.protocols.channels;
 
 import com.google.common.collect.ImmutableMap;
 import org.bitcoinj.core.*;
+import org.bitcoinj.utils.ExpiryWheel;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.WalletExtension;
@@ -25,11 +26,11 @@ import org.bitcoinj.wallet.WalletExtension;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.ByteString;
-import net.jcip.annotations.GuardedBy;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -38,8 +39,12 @@ import java.util.concurrent.locks.ReentrantLock;
 import static com.google.common.base.Preconditions.*;
 
 /**
- * Keeps track of a set of {@link StoredServerChannel}s and expires them 2 hours before their refund transactions
- * unlock.
+ * <p>Keeps track of a set of {@link StoredServerChannel}s and expires them 2 hours before their refund transactions
+ * unlock.</p>
+ *
+ * <p>Channels are kept in a concurrent map, so looking up a channel doesn't contend with other channel operations.
+ * Expiry is driven by a single {@link ExpiryWheel}; channels that expire during the same tick are closed together
+ * and the wallet is notified of the change only once for the whole batch.</p>
  */
 public class StoredPaymentChannelServerStates implements WalletExtension {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(StoredPaymentChannelServerStates.class);
@@ -47,12 +52,25 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
     static final String EXTENSION_ID = StoredPaymentChannelServerStates.class.getName();
     static final int MAX_SECONDS_TO_WAIT_FOR_BROADCASTER_TO_BE_SET = 10;
 
-    @GuardedBy("lock") @VisibleForTesting final Map<Sha256Hash, StoredServerChannel> mapChannels = new HashMap<>();
+    /** The resolution of channel expiry, in milliseconds. */
+    static final long EXPIRY_TICK_MILLIS = 1000;
+    private static final int EXPIRY_TICKS_PER_WHEEL = 4096;
+
+    @VisibleForTesting final Map<Sha256Hash, StoredServerChannel> mapChannels = new ConcurrentHashMap<>();
     private Wallet wallet;
     private final SettableFuture<TransactionBroadcaster> broadcasterFuture = SettableFuture.create();
 
-    private final Timer channelTimeoutHandler = new Timer(true);
+    private final ExpiryWheel<StoredServerChannel> channelTimeoutHandler = new ExpiryWheel<>(
+            "StoredPaymentChannelServerStates expiry", EXPIRY_TICK_MILLIS, EXPIRY_TICKS_PER_WHEEL,
+            new ExpiryWheel.Listener<StoredServerChannel>() {
+                @Override
+                public void onExpired(List<StoredServerChannel> channels) {
+                    log.info("Auto-closing {} channel(s)", channels.size());
+                    closeChannels(channels);
+                }
+            });
 
+    // Serializes (de)serialization of the extension against itself; channel lookups don't take it.
     private final ReentrantLock lock = Threading.lock("StoredPaymentChannelServerStates");
 
     /**
@@ -107,13 +125,38 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
      * this wallet extension.</p>
      */
     public void closeChannel(StoredServerChannel channel) {
-        lock.lock();
-        try {
+        if (mapChannels.remove(channel.contract.getHash()) == null)
+            return;
+        channelTimeoutHandler.cancel(channel);
+        doCloseChannel(channel);
+        updatedChannel(channel);
+    }
+
+    /**
+     * Closes all given channels as {@link #closeChannel(StoredServerChannel)} does, but notifies the wallet of a
+     * change to this wallet extension only once.
+     */
+    public void closeChannels(Collection<StoredServerChannel> channels) {
+        int closed = 0;
+        for (StoredServerChannel channel : channels) {
             if (mapChannels.remove(channel.contract.getHash()) == null)
-                return;
-        } finally {
-            lock.unlock();
+                continue;
+            channelTimeoutHandler.cancel(channel);
+            try {
+                doCloseChannel(channel);
+            } catch (Exception e) {
+                // Something went wrong closing the channel - carry on with the rest of the batch.
+                log.error("Closing channel failed: " + channel, e);
+            }
+            closed++;
         }
+        if (closed > 0) {
+            log.info("Closed {} stored server channel(s)", closed);
+            wallet.addOrUpdateExtension(this);
+        }
+    }
+
+    private void doCloseChannel(StoredServerChannel channel) {
         synchronized (channel) {
             channel.closeConnectedHandler();
             try {
@@ -126,7 +169,11 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
             }
             channel.state = null;
         }
-        updatedChannel(channel);
+    }
+
+    /** Returns the number of channels waiting to be closed automatically. */
+    public int getPendingExpiryCount() {
+        return channelTimeoutHandler.getPendingCount();
     }
 
     /**
@@ -151,24 +198,14 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
      * Gets the {@link StoredServerChannel} with the given channel id (ie contract transaction hash).
      */
     public StoredServerChannel getChannel(Sha256Hash id) {
-        lock.lock();
-        try {
-            return mapChannels.get(id);
-        } finally {
-            lock.unlock();
-        }
+        return mapChannels.get(id);
     }
 
     /**
      * Get a copy of all {@link StoredServerChannel}s
      */
     public Map<Sha256Hash, StoredServerChannel> getChannelMap() {
-        lock.lock();
-        try {
-            return ImmutableMap.copyOf(mapChannels);
-        } finally {
-            lock.unlock();
-        }
+        return ImmutableMap.copyOf(mapChannels);
     }
 
     /**
@@ -188,32 +225,19 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
      * channel is already present in the set of channels.</p>
      */
     public void putChannel(final StoredServerChannel channel) {
-        lock.lock();
-        try {
-            checkArgument(mapChannels.put(channel.contract.getHash(), checkNotNull(channel)) == null);
-            // Add the difference between real time and Utils.now() so that test-cases can use a mock clock.
-            Date autocloseTime = new Date((channel.refundTransactionUnlockTimeSecs + CHANNEL_EXPIRE_OFFSET) * 1000L
-                    + (System.currentTimeMillis() - Utils.currentTimeMillis()));
-            log.info("Scheduling channel for automatic closure at {}: {}", autocloseTime, channel);
-            channelTimeoutHandler.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    log.info("Auto-closing channel: {}", channel);
-                    try {
-                        closeChannel(channel);
-                    } catch (Exception e) {
-                        // Something went wrong closing the channel - we catch
-                        // here or else we take down the whole Timer.
-                        log.error("Auto-closing channel failed", e);
-                    }
-                }
-            }, autocloseTime);
-        } finally {
-            lock.unlock();
-        }
+        checkArgument(mapChannels.putIfAbsent(channel.contract.getHash(), checkNotNull(channel)) == null);
+        scheduleExpiry(channel);
         updatedChannel(channel);
     }
 
+    private void scheduleExpiry(StoredServerChannel channel) {
+        // The wheel runs on Utils.currentTimeMillis(), so test-cases can use a mock clock.
+        long autocloseTime = (channel.refundTransactionUnlockTimeSecs + CHANNEL_EXPIRE_OFFSET) * 1000L;
+        if (log.isDebugEnabled())
+            log.debug("Scheduling channel for automatic closure at {}: {}", new Date(autocloseTime), channel);
+        channelTimeoutHandler.schedule(channel, autocloseTime);
+    }
+
     @Override
     public String getWalletExtensionID() {
         return EXTENSION_ID;
@@ -286,8 +310,11 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
                         clientKey,
                         Coin.valueOf(storedState.getBestValueToMe()),
                         storedState.hasBestValueSignature() ? storedState.getBestValueSignature().toByteArray() : null);
-                putChannel(channel);
+                checkArgument(mapChannels.putIfAbsent(channel.contract.getHash(), channel) == null);
+                scheduleExpiry(channel);
             }
+            if (states.getChannelsCount() > 0)
+                containingWallet.addOrUpdateExtension(this);
         } finally {
             lock.unlock();
         }
@@ -295,16 +322,11 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
 
     @Override
     public String toString() {
-        lock.lock();
-        try {
-            StringBuilder buf = new StringBuilder();
-            for (StoredServerChannel stored : mapChannels.values()) {
-                buf.append(stored);
-            }
-            return buf.toString();
-        } finally {
-            lock.unlock();
+        StringBuilder buf = new StringBuilder();
+        for (StoredServerChannel stored : mapChannels.values()) {
+            buf.append(stored);
         }
+        return buf.toString();
     }
 
     private @Nullable NetworkParameters getNetworkParameters() {
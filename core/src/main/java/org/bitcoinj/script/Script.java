@@ -91,8 +91,10 @@ public class Script {
     /** Max number of sigops allowed in a standard p2sh redeem script */
     public static final int MAX_P2SH_SIGOPS = 15;
 
-    // The program is a set of chunks where each element is either [opcode] or [data, data, data ...]
-    protected List<ScriptChunk> chunks;
+    // The program is a set of chunks where each element is either [opcode] or [data, data, data ...]. Scripts read from
+    // bytes are only parsed into chunks when something needs them, so this is null until then. It is private so that
+    // nothing can see it unparsed: always read it through parsedChunks() or getChunks().
+    private volatile List<ScriptChunk> chunks;
     // Unfortunately, scripts are not ever re-serialized or canonicalized when used in signature hashing. Thus we
     // must preserve the exact bytes that we read off the wire, along with the parsed form.
     protected byte[] program;
@@ -100,10 +102,15 @@ public class Script {
     // Creation time of the associated keys in seconds since the epoch.
     private long creationTimeSeconds;
 
-    /** Creates an empty script that serializes to nothing. */
-    private Script() {
-        chunks = Lists.newArrayList();
-    }
+    // The standard forms this script matches, worked out from the program on first use and then cached. Scripts never
+    // change after construction, so a race just means the work is done twice.
+    private int forms;
+    private static final int FORM_CLASSIFIED = 1;
+    private static final int FORM_P2PKH = 1 << 1;
+    private static final int FORM_P2SH = 1 << 2;
+    private static final int FORM_RAW_PUBKEY = 1 << 3;
+    private static final int FORM_MULTISIG = 1 << 4;
+    private static final int FORM_OP_RETURN = 1 << 5;
 
     // Used from ScriptBuilder.
     Script(List<ScriptChunk> chunks) {
@@ -112,19 +119,19 @@ public class Script {
     }
 
     /**
-     * Construct a Script that copies and wraps the programBytes array. The array is parsed and checked for syntactic
-     * validity.
+     * Construct a Script that copies and wraps the programBytes array. The array is checked for syntactic validity,
+     * but only parsed into chunks when they are needed.
      * @param programBytes Array of program bytes from a transaction.
      */
     public Script(byte[] programBytes) throws ScriptException {
         program = programBytes;
-        parse(programBytes);
+        parse(programBytes, null);
         creationTimeSeconds = 0;
     }
 
     public Script(byte[] programBytes, long creationTimeSeconds) throws ScriptException {
         program = programBytes;
-        parse(programBytes);
+        parse(programBytes, null);
         this.creationTimeSeconds = creationTimeSeconds;
     }
 
@@ -141,7 +148,7 @@ public class Script {
      */
     @Override
     public String toString() {
-        return Utils.SPACE_JOINER.join(chunks);
+        return Utils.SPACE_JOINER.join(parsedChunks());
     }
 
     /** Returns the serialized program as a newly created byte array. */
@@ -151,7 +158,7 @@ public class Script {
             if (program != null)
                 return Arrays.copyOf(program, program.length);
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            for (ScriptChunk chunk : chunks) {
+            for (ScriptChunk chunk : parsedChunks()) {
                 chunk.write(bos);
             }
             program = bos.toByteArray();
@@ -163,7 +170,18 @@ public class Script {
 
     /** Returns an immutable list of the scripts parsed form. Each chunk is either an opcode or data element. */
     public List<ScriptChunk> getChunks() {
-        return Collections.unmodifiableList(chunks);
+        return Collections.unmodifiableList(parsedChunks());
+    }
+
+    // Returns the chunks, parsing the program the first time. The constructor already checked that it parses.
+    private List<ScriptChunk> parsedChunks() {
+        List<ScriptChunk> result = chunks;
+        if (result == null) {
+            result = new ArrayList<>(5);   // Common size.
+            parse(program, result);
+            chunks = result;
+        }
+        return result;
     }
 
     private static final ScriptChunk[] STANDARD_TRANSACTION_SCRIPT_CHUNKS = {
@@ -181,51 +199,101 @@ public class Script {
      * to reach into a programs structure and pull out bits of data without having to run it.
      * This is necessary to render the to/from addresses of transactions in a user interface.
      * Bitcoin Core does something similar.</p>
+     *
+     * <p>Chunks are added to the given list as they are read, so on failure it holds the parse-able prefix. If the
+     * list is null only the syntax is checked.</p>
      */
-    private void parse(byte[] program) throws ScriptException {
-        chunks = new ArrayList<>(5);   // Common size.
-        ByteArrayInputStream bis = new ByteArrayInputStream(program);
-        int initialSize = bis.available();
-        while (bis.available() > 0) {
-            int startLocationInProgram = initialSize - bis.available();
-            int opcode = bis.read();
+    private static void parse(byte[] program, @Nullable List<ScriptChunk> chunks) throws ScriptException {
+        int cursor = 0;
+        while (cursor < program.length) {
+            int startLocationInProgram = cursor;
+            int opcode = program[cursor++] & 0xFF;
+            int available = program.length - cursor;
 
             long dataToRead = -1;
-            if (opcode >= 0 && opcode < OP_PUSHDATA1) {
+            if (opcode < OP_PUSHDATA1) {
                 // Read some bytes of data, where how many is the opcode value itself.
                 dataToRead = opcode;
             } else if (opcode == OP_PUSHDATA1) {
-                if (bis.available() < 1) throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Unexpected end of script");
-                dataToRead = bis.read();
+                if (available < 1) throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Unexpected end of script");
+                dataToRead = program[cursor] & 0xFF;
+                cursor += 1;
             } else if (opcode == OP_PUSHDATA2) {
                 // Read a short, then read that many bytes of data.
-                if (bis.available() < 2) throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Unexpected end of script");
-                dataToRead = bis.read() | (bis.read() << 8);
+                if (available < 2) throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Unexpected end of script");
+                dataToRead = (program[cursor] & 0xFF) | ((program[cursor + 1] & 0xFF) << 8);
+                cursor += 2;
             } else if (opcode == OP_PUSHDATA4) {
                 // Read a uint32, then read that many bytes of data.
                 // Though this is allowed, because its value cannot be > 520, it should never actually be used
-                if (bis.available() < 4) throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Unexpected end of script");
-                dataToRead = ((long)bis.read()) | (((long)bis.read()) << 8) | (((long)bis.read()) << 16) | (((long)bis.read()) << 24);
+                if (available < 4) throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Unexpected end of script");
+                dataToRead = Utils.readUint32(program, cursor);
+                cursor += 4;
             }
 
-            ScriptChunk chunk;
+            ScriptChunk chunk = null;
             if (dataToRead == -1) {
-                chunk = new ScriptChunk(opcode, null, startLocationInProgram);
+                if (chunks != null)
+                    chunk = new ScriptChunk(opcode, null, startLocationInProgram);
             } else {
-                if (dataToRead > bis.available())
+                if (dataToRead > program.length - cursor)
                     throw new ScriptException(ScriptError.SCRIPT_ERR_BAD_OPCODE, "Push of data element that is larger than remaining data");
-                byte[] data = new byte[(int)dataToRead];
-                checkState(dataToRead == 0 || bis.read(data, 0, (int)dataToRead) == dataToRead);
-                chunk = new ScriptChunk(opcode, data, startLocationInProgram);
+                if (chunks != null)
+                    chunk = new ScriptChunk(opcode, Arrays.copyOfRange(program, cursor, cursor + (int) dataToRead),
+                            startLocationInProgram);
+                cursor += (int) dataToRead;
             }
-            // Save some memory by eliminating redundant copies of the same chunk objects.
-            for (ScriptChunk c : STANDARD_TRANSACTION_SCRIPT_CHUNKS) {
-                if (c.equals(chunk)) chunk = c;
+            if (chunks != null) {
+                // Save some memory by eliminating redundant copies of the same chunk objects.
+                for (ScriptChunk c : STANDARD_TRANSACTION_SCRIPT_CHUNKS) {
+                    if (c.equals(chunk)) chunk = c;
+                }
+                chunks.add(chunk);
             }
-            chunks.add(chunk);
         }
     }
 
+    // Returns the standard forms of this script, see the FORM_ constants.
+    private int forms() {
+        int result = forms;
+        if (result == 0) {
+            result = classify();
+            forms = result;
+        }
+        return result;
+    }
+
+    private int classify() {
+        byte[] program = getQuickProgram();
+        int length = program.length;
+        // The usual encodings of the templates are recognized from the bytes alone.
+        if (length == 25 && (program[0] & 0xff) == OP_DUP && (program[1] & 0xff) == OP_HASH160 && program[2] == 20
+                && (program[23] & 0xff) == OP_EQUALVERIFY && (program[24] & 0xff) == OP_CHECKSIG)
+            return FORM_CLASSIFIED | FORM_P2PKH;
+        if (length == 23 && (program[0] & 0xff) == OP_HASH160 && program[1] == 20 && (program[22] & 0xff) == OP_EQUAL)
+            return FORM_CLASSIFIED | FORM_P2SH;
+        if ((length == 35 || length == 67) && program[0] == length - 2 && (program[length - 1] & 0xff) == OP_CHECKSIG)
+            return FORM_CLASSIFIED | FORM_RAW_PUBKEY;
+        if (length > 0 && (program[0] & 0xff) == OP_RETURN)
+            return FORM_CLASSIFIED | FORM_OP_RETURN;
+        // Anything else could still match with unusual push encodings, so look at the chunks.
+        List<ScriptChunk> chunks = parsedChunks();
+        int result = FORM_CLASSIFIED;
+        if (chunks.size() == 5 &&
+                chunks.get(0).equalsOpCode(OP_DUP) &&
+                chunks.get(1).equalsOpCode(OP_HASH160) &&
+                chunks.get(2).data.length == Address.LENGTH &&
+                chunks.get(3).equalsOpCode(OP_EQUALVERIFY) &&
+                chunks.get(4).equalsOpCode(OP_CHECKSIG))
+            result |= FORM_P2PKH;
+        if (chunks.size() == 2 && chunks.get(1).equalsOpCode(OP_CHECKSIG) &&
+                !chunks.get(0).isOpCode() && chunks.get(0).data.length > 1)
+            result |= FORM_RAW_PUBKEY;
+        if (isMultiSig(chunks))
+            result |= FORM_MULTISIG;
+        return result;
+    }
+
     /**
      * Returns true if this script is of the form <pubkey> OP_CHECKSIG. This form was originally intended for transactions
      * where the peers talked to each other directly via TCP/IP, but has fallen out of favor with time due to that mode
@@ -233,8 +301,7 @@ public class Script {
      * useful more exotic types of transaction, but today most payments are to addresses.
      */
     public boolean isSentToRawPubKey() {
-        return chunks.size() == 2 && chunks.get(1).equalsOpCode(OP_CHECKSIG) &&
-               !chunks.get(0).isOpCode() && chunks.get(0).data.length > 1;
+        return (forms() & FORM_RAW_PUBKEY) != 0;
     }
 
     /**
@@ -244,12 +311,7 @@ public class Script {
      * way to make payments due to the short and recognizable base58 form addresses come in.
      */
     public boolean isSentToAddress() {
-        return chunks.size() == 5 &&
-               chunks.get(0).equalsOpCode(OP_DUP) &&
-               chunks.get(1).equalsOpCode(OP_HASH160) &&
-               chunks.get(2).data.length == Address.LENGTH &&
-               chunks.get(3).equalsOpCode(OP_EQUALVERIFY) &&
-               chunks.get(4).equalsOpCode(OP_CHECKSIG);
+        return (forms() & FORM_P2PKH) != 0;
     }
 
     /**
@@ -274,9 +336,9 @@ public class Script {
      */
     public byte[] getPubKeyHash() throws ScriptException {
         if (isSentToAddress())
-            return chunks.get(2).data;
+            return getQuickProgram().length == 25 ? Arrays.copyOfRange(program, 3, 23) : parsedChunks().get(2).data;
         else if (isPayToScriptHash())
-            return chunks.get(1).data;
+            return Arrays.copyOfRange(getQuickProgram(), 2, 22);
         else
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Script not in the standard scriptPubKey form");
     }
@@ -290,6 +352,7 @@ public class Script {
      * @throws ScriptException if the script is none of the named forms.
      */
     public byte[] getPubKey() throws ScriptException {
+        List<ScriptChunk> chunks = parsedChunks();
         if (chunks.size() != 2) {
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Script not of right size, expecting 2 but got " + chunks.size());
         }
@@ -317,7 +380,7 @@ public class Script {
         if (!isSentToCLTVPaymentChannel()) {
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Script not a standard CHECKLOCKTIMVERIFY transaction: " + this);
         }
-        return chunks.get(8).data;
+        return parsedChunks().get(8).data;
     }
 
     /**
@@ -329,14 +392,14 @@ public class Script {
         if (!isSentToCLTVPaymentChannel()) {
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Script not a standard CHECKLOCKTIMVERIFY transaction: " + this);
         }
-        return chunks.get(1).data;
+        return parsedChunks().get(1).data;
     }
 
     public BigInteger getCLTVPaymentChannelExpiry() {
         if (!isSentToCLTVPaymentChannel()) {
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Script not a standard CHECKLOCKTIMEVERIFY transaction: " + this);
         }
-        return castToBigInteger(chunks.get(4).data, 5, false);
+        return castToBigInteger(parsedChunks().get(4).data, 5, false);
     }
 
     /**
@@ -488,6 +551,7 @@ public class Script {
     public int getSigInsertionIndex(Sha256Hash hash, ECKey signingKey) {
         // Iterate over existing signatures, skipping the initial OP_0, the final redeem script
         // and any placeholder OP_0 sigs.
+        List<ScriptChunk> chunks = parsedChunks();
         List<ScriptChunk> existingChunks = chunks.subList(1, chunks.size() - 1);
         ScriptChunk redeemScriptChunk = chunks.get(chunks.size() - 1);
         checkNotNull(redeemScriptChunk.data);
@@ -509,6 +573,7 @@ public class Script {
     }
 
     private int findKeyInRedeem(ECKey key) {
+        List<ScriptChunk> chunks = parsedChunks();
         checkArgument(chunks.get(0).isOpCode()); // P2SH scriptSig
         int numKeys = Script.decodeFromOpN(chunks.get(chunks.size() - 2).opcode);
         for (int i = 0 ; i < numKeys ; i++) {
@@ -529,6 +594,7 @@ public class Script {
         if (!isSentToMultiSig())
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Only usable for multisig scripts.");
 
+        List<ScriptChunk> chunks = parsedChunks();
         ArrayList<ECKey> result = Lists.newArrayList();
         int numKeys = Script.decodeFromOpN(chunks.get(chunks.size() - 2).opcode);
         for (int i = 0 ; i < numKeys ; i++)
@@ -537,6 +603,7 @@ public class Script {
     }
 
     private int findSigInRedeem(byte[] signatureBytes, Sha256Hash hash) {
+        List<ScriptChunk> chunks = parsedChunks();
         checkArgument(chunks.get(0).isOpCode()); // P2SH scriptSig
         int numKeys = Script.decodeFromOpN(chunks.get(chunks.size() - 2).opcode);
         TransactionSignature signature = TransactionSignature.decodeFromBitcoin(signatureBytes, true);
@@ -603,30 +670,30 @@ public class Script {
      * Gets the count of regular SigOps in the script program (counting multisig ops as 20)
      */
     public static int getSigOpCount(byte[] program) throws ScriptException {
-        Script script = new Script();
+        List<ScriptChunk> chunks = new ArrayList<>(5);
         try {
-            script.parse(program);
+            parse(program, chunks);
         } catch (ScriptException e) {
             // Ignore errors and count up to the parse-able length
         }
-        return getSigOpCount(script.chunks, false);
+        return getSigOpCount(chunks, false);
     }
     
     /**
      * Gets the count of P2SH Sig Ops in the Script scriptSig
      */
     public static long getP2SHSigOpCount(byte[] scriptSig) throws ScriptException {
-        Script script = new Script();
+        List<ScriptChunk> chunks = new ArrayList<>(5);
         try {
-            script.parse(scriptSig);
+            parse(scriptSig, chunks);
         } catch (ScriptException e) {
             // Ignore errors and count up to the parse-able length
         }
-        for (int i = script.chunks.size() - 1; i >= 0; i--)
-            if (!script.chunks.get(i).isOpCode()) {
-                Script subScript =  new Script();
-                subScript.parse(script.chunks.get(i).data);
-                return getSigOpCount(subScript.chunks, true);
+        for (int i = chunks.size() - 1; i >= 0; i--)
+            if (!chunks.get(i).isOpCode()) {
+                List<ScriptChunk> subChunks = new ArrayList<>(5);
+                parse(chunks.get(i).data, subChunks);
+                return getSigOpCount(subChunks, true);
             }
         return 0;
     }
@@ -637,7 +704,7 @@ public class Script {
     public int getNumberOfSignaturesRequiredToSpend() {
         if (isSentToMultiSig()) {
             // for N of M CHECKMULTISIG script we will need N signatures to spend
-            ScriptChunk nChunk = chunks.get(0);
+            ScriptChunk nChunk = parsedChunks().get(0);
             return Script.decodeFromOpN(nChunk.opcode);
         } else if (isSentToAddress() || isSentToRawPubKey()) {
             // pay-to-address and pay-to-pubkey require single sig
@@ -690,17 +757,17 @@ public class Script {
         // We have to check against the serialized form because BIP16 defines a P2SH output using an exact byte
         // template, not the logical program structure. Thus you can have two programs that look identical when
         // printed out but one is a P2SH script and the other isn't! :(
-        byte[] program = getProgram();
-        return program.length == 23 &&
-               (program[0] & 0xff) == OP_HASH160 &&
-               (program[1] & 0xff) == 0x14 &&
-               (program[22] & 0xff) == OP_EQUAL;
+        return (forms() & FORM_P2SH) != 0;
     }
 
     /**
      * Returns whether this script matches the format used for multisig outputs: [n] [keys...] [m] CHECKMULTISIG
      */
     public boolean isSentToMultiSig() {
+        return (forms() & FORM_MULTISIG) != 0;
+    }
+
+    private static boolean isMultiSig(List<ScriptChunk> chunks) {
         if (chunks.size() < 4) return false;
         ScriptChunk chunk = chunks.get(chunks.size() - 1);
         // Must end in OP_CHECKMULTISIG[VERIFY].
@@ -724,6 +791,7 @@ public class Script {
     }
 
     public boolean isSentToCLTVPaymentChannel() {
+        List<ScriptChunk> chunks = parsedChunks();
         if (chunks.size() != 10) return false;
         // Check that opcodes match the pre-determined format.
         if (!chunks.get(0).equalsOpCode(OP_IF)) return false;
@@ -853,7 +921,7 @@ public class Script {
     }
 
     public boolean isOpReturn() {
-        return chunks.size() > 0 && chunks.get(0).equalsOpCode(OP_RETURN);
+        return (forms() & FORM_OP_RETURN) != 0;
     }
 
     /**
@@ -891,7 +959,7 @@ public class Script {
         LinkedList<byte[]> altstack = new LinkedList<>();
         LinkedList<Boolean> ifStack = new LinkedList<>();
         
-        for (ScriptChunk chunk : script.chunks) {
+        for (ScriptChunk chunk : script.parsedChunks()) {
             boolean shouldExecute = !ifStack.contains(false);
             int opcode = chunk.opcode;
 
@@ -1704,7 +1772,7 @@ public class Script {
 
         // TODO: Check if we can take out enforceP2SH if there's a checkpoint at the enforcement block.
         if (verifyFlags.contains(VerifyFlag.P2SH) && scriptPubKey.isPayToScriptHash()) {
-            for (ScriptChunk chunk : chunks)
+            for (ScriptChunk chunk : parsedChunks())
                 if (chunk.isOpCode() && chunk.opcode > OP_16)
                     throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_PUSHONLY, "Attempted to spend a P2SH scriptPubKey with a script that contained script ops");
             
@@ -16,20 +16,39 @@
 
 package org.bitcoinj.signers;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
 import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.SigHashContext;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.crypto.DeterministicKey;
 import org.bitcoinj.crypto.TransactionSignature;
 import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptChunk;
 import org.bitcoinj.script.ScriptException;
 import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.KeyBag;
 import org.bitcoinj.wallet.RedeemData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * <p>{@link TransactionSigner} implementation for signing inputs using keys from provided {@link org.bitcoinj.wallet.KeyBag}.</p>
  * <p>This signer doesn't create input scripts for tx inputs. Instead it expects inputs to contain scripts with
@@ -57,10 +76,35 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
         return true;
     }
 
+    /** The default for {@link #setParallelSigningThreshold(int)}. */
+    public static final int DEFAULT_PARALLEL_SIGNING_THRESHOLD = 32;
+
+    private volatile int parallelSigningThreshold = DEFAULT_PARALLEL_SIGNING_THRESHOLD;
+
+    /** Returns how many inputs a transaction needs to have to sign for them to be signed in parallel. */
+    public int getParallelSigningThreshold() {
+        return parallelSigningThreshold;
+    }
+
+    /**
+     * Transactions with at least this many inputs to sign have their signatures calculated in parallel on
+     * {@link Threading#THREAD_POOL}. The default is {@link #DEFAULT_PARALLEL_SIGNING_THRESHOLD}. The setting is not
+     * saved with the wallet.
+     */
+    public void setParallelSigningThreshold(int parallelSigningThreshold) {
+        checkArgument(parallelSigningThreshold > 0, "parallelSigningThreshold must be positive");
+        this.parallelSigningThreshold = parallelSigningThreshold;
+    }
+
     @Override
     public boolean signInputs(ProposedTransaction propTx, KeyBag keyBag) {
         Transaction tx = propTx.partialTx;
         int numInputs = tx.getInputs().size();
+        List<InputToSign> toSign = new ArrayList<>();
+        // The signature hashes are all calculated from one serialization of the transaction, both to check existing
+        // signatures and to create new ones. Input scripts don't take part in them, so the context stays valid while
+        // signatures are inserted.
+        final SigHashContext context = new SigHashContext(tx);
         for (int i = 0; i < numInputs; i++) {
             TransactionInput txIn = tx.getInput(i);
             if (txIn.getConnectedOutput() == null) {
@@ -68,21 +112,17 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
                 continue;
             }
 
-            try {
+            Script scriptPubKey = txIn.getConnectedOutput().getScriptPubKey();
+            if (isSigned(context, i, txIn.getScriptSig(), scriptPubKey)) {
                 // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
                 // we sign missing pieces (to check this would require either assuming any signatures are signing
                 // standard output types or a way to get processed signatures out of script execution)
-                txIn.getScriptSig().correctlySpends(tx, i, txIn.getConnectedOutput().getScriptPubKey(), MINIMUM_VERIFY_FLAGS);
                 log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
                 continue;
-            } catch (ScriptException e) {
-                // Expected.
             }
 
             RedeemData redeemData = txIn.getConnectedRedeemData(keyBag);
 
-            Script scriptPubKey = txIn.getConnectedOutput().getScriptPubKey();
-
             // For P2SH inputs we need to share derivation path of the signing key with other signers, so that they
             // use correct key to calculate their signatures.
             // Married keys all have the same derivation path, so we can safely just take first one here.
@@ -99,31 +139,159 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
                 continue;
             }
 
-            Script inputScript = txIn.getScriptSig();
             // script here would be either a standard CHECKSIG program for pay-to-address or pay-to-pubkey inputs or
             // a CHECKMULTISIG program for P2SH inputs
-            byte[] script = redeemData.redeemScript.getProgram();
+            toSign.add(new InputToSign(i, key, redeemData.redeemScript.getProgram()));
+        }
+
+        // The signing itself is spread over several threads for large transactions. Nothing in the transaction changes
+        // until all signatures are known.
+        if (toSign.size() >= parallelSigningThreshold && toSign.size() > 1)
+            signInParallel(context, toSign);
+        else
+            sign(context, toSign, 0, toSign.size());
+
+        for (InputToSign input : toSign) {
+            if (input.signature == null)
+                continue;
+            TransactionInput txIn = tx.getInput(input.index);
+            Script scriptPubKey = txIn.getConnectedOutput().getScriptPubKey();
+            // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We already
+            // have calculated the signature using the local key and now need to insert it in the correct place
+            // within inputScript. For pay-to-address and pay-to-key script there is only one signature and it always
+            // goes first in an inputScript (sigIndex = 0). In P2SH input scripts we need to figure out our relative
+            // position relative to other signers.  Since we don't have that information at this point, and since
+            // we always run first, we have to depend on the other signers rearranging the signatures as needed.
+            // Therefore, always place as first signature.
+            int sigIndex = 0;
+            Script inputScript = scriptPubKey.getScriptSigWithSignature(txIn.getScriptSig(),
+                    input.signature.encodeToBitcoin(), sigIndex);
+            txIn.setScriptSig(inputScript);
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether the given input already has all its signatures, and they are valid for the transaction as it is
+     * now. For the standard forms the signatures are taken from the input script and verified against the keys
+     * directly, without running the scripts. A signature that is still missing is an OP_0 placeholder, as created by
+     * {@link Script#createEmptyInputScript(ECKey, Script)}. Other scripts are executed to find out.
+     */
+    private static boolean isSigned(SigHashContext context, int index, Script scriptSig, Script scriptPubKey) {
+        List<ScriptChunk> chunks;
+        try {
+            chunks = scriptSig.getChunks();
+        } catch (ScriptException e) {
+            return false;
+        }
+        if (chunks.isEmpty())
+            return false;
+        try {
+            if (scriptPubKey.isSentToAddress()) {
+                if (chunks.size() != 2 || chunks.get(1).data == null
+                        || !Arrays.equals(Utils.sha256hash160(chunks.get(1).data), scriptPubKey.getPubKeyHash()))
+                    return false;
+                return verifies(context, index, scriptPubKey.getProgram(), chunks.get(0), chunks.get(1).data);
+            }
+            if (scriptPubKey.isSentToRawPubKey()) {
+                return chunks.size() == 1
+                        && verifies(context, index, scriptPubKey.getProgram(), chunks.get(0), scriptPubKey.getPubKey());
+            }
+            if (scriptPubKey.isPayToScriptHash() && chunks.size() > 2) {
+                ScriptChunk redeem = chunks.get(chunks.size() - 1);
+                Script redeemScript = redeem.data != null ? new Script(redeem.data) : null;
+                if (redeemScript != null && redeemScript.isSentToMultiSig()) {
+                    // All chunks except the first one (OP_0) and the last (redeem script) are signatures, which have
+                    // to match the keys in the order they appear in the redeem script, like OP_CHECKMULTISIG does.
+                    List<ECKey> pubKeys = redeemScript.getPubKeys();
+                    int key = 0;
+                    for (int j = 1; j < chunks.size() - 1; j++) {
+                        while (key < pubKeys.size()
+                                && !verifies(context, index, redeem.data, chunks.get(j), pubKeys.get(key).getPubKey()))
+                            key++;
+                        if (key++ >= pubKeys.size())
+                            return false;
+                    }
+                    return true;
+                }
+            }
+        } catch (ScriptException e) {
+            return false;
+        }
+        try {
+            scriptSig.correctlySpends(context.getTransaction(), index, scriptPubKey, MINIMUM_VERIFY_FLAGS);
+            return true;
+        } catch (ScriptException e) {
+            return false;
+        }
+    }
+
+    // Whether the chunk is a signature of the input that verifies with the given key.
+    private static boolean verifies(SigHashContext context, int index, byte[] scriptCode, ScriptChunk chunk,
+                                    byte[] pubKey) {
+        if (chunk.data == null || !TransactionSignature.isEncodingCanonical(chunk.data))
+            return false;
+        try {
+            TransactionSignature signature = TransactionSignature.decodeFromBitcoin(chunk.data, true, false);
+            Sha256Hash hash = context.hashForSignature(index, scriptCode, (byte) signature.sighashFlags);
+            return ECKey.verify(hash.getBytes(), signature, pubKey);
+        } catch (VerificationException e) {
+            return false;
+        }
+    }
+
+    private static void signInParallel(final SigHashContext context, final List<InputToSign> toSign) {
+        int count = toSign.size();
+        int chunks = Math.min(Runtime.getRuntime().availableProcessors(), count);
+        int chunkSize = (count + chunks - 1) / chunks;
+        List<ListenableFuture<?>> futures = new ArrayList<>(chunks);
+        for (int start = chunkSize; start < count; start += chunkSize) {
+            final int from = start;
+            final int to = Math.min(start + chunkSize, count);
+            futures.add(Threading.THREAD_POOL.submit(new Runnable() {
+                @Override
+                public void run() {
+                    sign(context, toSign, from, to);
+                }
+            }));
+        }
+        try {
+            sign(context, toSign, 0, Math.min(chunkSize, count));
+        } finally {
+            try {
+                Futures.getUnchecked(Futures.allAsList(futures));
+            } catch (UncheckedExecutionException e) {
+                // Keep KeyIsEncryptedException and friends as they are.
+                Throwables.throwIfUnchecked(e.getCause());
+                throw e;
+            }
+        }
+    }
+
+    private static void sign(SigHashContext context, List<InputToSign> toSign, int from, int to) {
+        for (int i = from; i < to; i++) {
+            InputToSign input = toSign.get(i);
             try {
-                TransactionSignature signature = tx.calculateSignature(i, key, script, Transaction.SigHash.ALL, false);
-
-                // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We already
-                // have calculated the signature using the local key and now need to insert it in the correct place
-                // within inputScript. For pay-to-address and pay-to-key script there is only one signature and it always
-                // goes first in an inputScript (sigIndex = 0). In P2SH input scripts we need to figure out our relative
-                // position relative to other signers.  Since we don't have that information at this point, and since
-                // we always run first, we have to depend on the other signers rearranging the signatures as needed.
-                // Therefore, always place as first signature.
-                int sigIndex = 0;
-                inputScript = scriptPubKey.getScriptSigWithSignature(inputScript, signature.encodeToBitcoin(), sigIndex);
-                txIn.setScriptSig(inputScript);
+                Sha256Hash hash = context.hashForSignature(input.index, input.script, Transaction.SigHash.ALL, false);
+                input.signature = new TransactionSignature(input.key.sign(hash), Transaction.SigHash.ALL, false);
             } catch (ECKey.KeyIsEncryptedException e) {
                 throw e;
             } catch (ECKey.MissingPrivateKeyException e) {
-                log.warn("No private key in keypair for input {}", i);
+                log.warn("No private key in keypair for input {}", input.index);
             }
-
         }
-        return true;
     }
 
+    private static class InputToSign {
+        final int index;
+        final ECKey key;
+        final byte[] script;
+        @Nullable volatile TransactionSignature signature;
+
+        InputToSign(int index, ECKey key, byte[] script) {
+            this.index = index;
+            this.key = key;
+            this.script = script;
+        }
+    }
 }
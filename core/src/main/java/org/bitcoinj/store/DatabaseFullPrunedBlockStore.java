@@ -25,6 +25,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import javax.sql.DataSource;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -85,6 +86,12 @@ import java.util.*;
  * </table>
  * </p>
  *
+ * <p>Connections are either opened per thread through {@link DriverManager} from a JDBC url, or borrowed from a
+ * {@link DataSource} (typically a connection pool) supplied by the caller. Prepared statements for the frequently
+ * used queries are cached per connection, and UTXO inserts and deletes made between
+ * {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} are queued and sent to the database as
+ * JDBC batches, rather than one round-trip per row.</p>
+ *
  */
 public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(DatabaseFullPrunedBlockStore.class);
@@ -147,6 +154,13 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     protected String username;
     protected String password;
     protected String schemaName;
+    @Nullable protected DataSource dataSource;
+
+    // Prepared statements of the thread's current connection, keyed by their SQL.
+    private final ThreadLocal<Map<String, PreparedStatement>> statementCache;
+    // UTXO writes of the thread's current batch write, flushed with executeBatch(). Null outside of a batch write.
+    private final ThreadLocal<Map<StoredTransactionOutPoint, UTXO>> pendingInserts;
+    private final ThreadLocal<Set<StoredTransactionOutPoint>> pendingDeletes;
 
     /**
      * <p>Create a new DatabaseFullPrunedBlockStore, using the full connection URL instead of a hostname and password,
@@ -162,20 +176,48 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public DatabaseFullPrunedBlockStore(NetworkParameters params, String connectionURL, int fullStoreDepth,
                                         @Nullable String username, @Nullable String password, @Nullable String schemaName) throws BlockStoreException {
+        this(params, connectionURL, null, fullStoreDepth, username, password, schemaName);
+    }
+
+    /**
+     * <p>Create a new DatabaseFullPrunedBlockStore that borrows its connections from the given {@link DataSource},
+     * usually a connection pool. Connections are held per thread as with the url based constructor and handed back
+     * to the data source on {@link #close()}.</p>
+     *
+     * @param params A copy of the NetworkParameters used.
+     * @param dataSource The data source to take connections from. It is not closed by this store.
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe).
+     * @param schemaName The name of the schema to put the tables in.  May be null if no schema is being used.
+     * @throws BlockStoreException If there is a failure to connect and/or initialise the database.
+     */
+    public DatabaseFullPrunedBlockStore(NetworkParameters params, DataSource dataSource, int fullStoreDepth,
+                                        @Nullable String schemaName) throws BlockStoreException {
+        this(params, null, dataSource, fullStoreDepth, null, null, schemaName);
+    }
+
+    private DatabaseFullPrunedBlockStore(NetworkParameters params, @Nullable String connectionURL,
+                                         @Nullable DataSource dataSource, int fullStoreDepth, @Nullable String username,
+                                         @Nullable String password, @Nullable String schemaName) throws BlockStoreException {
         this.params = params;
         this.fullStoreDepth = fullStoreDepth;
         this.connectionURL = connectionURL;
+        this.dataSource = dataSource;
         this.schemaName = schemaName;
         this.username = username;
         this.password = password;
         this.conn = new ThreadLocal<>();
         this.allConnections = new LinkedList<>();
+        this.statementCache = new ThreadLocal<>();
+        this.pendingInserts = new ThreadLocal<>();
+        this.pendingDeletes = new ThreadLocal<>();
 
-        try {
-            Class.forName(getDatabaseDriverClass());
-            log.info(getDatabaseDriverClass() + " loaded. ");
-        } catch (ClassNotFoundException e) {
-            log.error("check CLASSPATH for database driver jar ", e);
+        if (dataSource == null) {
+            try {
+                Class.forName(getDatabaseDriverClass());
+                log.info(getDatabaseDriverClass() + " loaded. ");
+            } catch (ClassNotFoundException e) {
+                log.error("check CLASSPATH for database driver jar ", e);
+            }
         }
 
         maybeConnect();
@@ -426,7 +468,9 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             if (conn.get() != null && !conn.get().isClosed())
                 return;
 
-            if (username == null || password == null) {
+            if (dataSource != null) {
+                conn.set(dataSource.getConnection());
+            } else if (username == null || password == null) {
                 conn.set(DriverManager.getConnection(connectionURL));
             } else {
                 Properties props = new Properties();
@@ -435,6 +479,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                 conn.set(DriverManager.getConnection(connectionURL, props));
             }
             allConnections.add(conn.get());
+            // Statements of a previous connection of this thread are unusable now.
+            statementCache.set(new HashMap<String, PreparedStatement>());
             Connection connection = conn.get();
             // set the schema if one is needed
             if (schemaName != null) {
@@ -443,7 +489,10 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                     s.execute(sql);
                 }
             }
-            log.info("Made a new connection to database " + connectionURL);
+            if (dataSource != null)
+                log.info("Obtained a new connection from data source " + dataSource);
+            else
+                log.info("Made a new connection to database " + connectionURL);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -459,6 +508,9 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                 conn.close();
                 if (conn == this.conn.get()) {
                     this.conn.set(null);
+                    statementCache.set(null);
+                    pendingInserts.set(null);
+                    pendingDeletes.set(null);
                 }
             } catch (SQLException ex) {
                 throw new RuntimeException(ex);
@@ -467,6 +519,23 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         allConnections.clear();
     }
 
+    /**
+     * Returns a prepared statement for the given SQL on the current thread's connection, creating and caching it on
+     * first use. Cached statements must not be closed by the caller; they are released together with their connection.
+     * @param sql The SQL of the statement.
+     * @return The prepared statement, with its parameters possibly still set from a previous use.
+     * @throws SQLException If the statement could not be prepared.
+     */
+    protected PreparedStatement getPreparedStatement(String sql) throws SQLException {
+        Map<String, PreparedStatement> cache = statementCache.get();
+        PreparedStatement s = cache.get(sql);
+        if (s == null || s.isClosed()) {
+            s = conn.get().prepareStatement(sql);
+            cache.put(sql, s);
+        }
+        return s;
+    }
+
     /**
      * <p>Check if a tables exists within the database.</p>
      *
@@ -612,8 +681,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     protected void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
-            PreparedStatement s =
-                    conn.get().prepareStatement(getInsertHeadersSQL());
+            PreparedStatement s = getPreparedStatement(getInsertHeadersSQL());
             // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
@@ -623,7 +691,6 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             s.setBytes(4, storedBlock.getHeader().cloneAsHeader().unsafeBitcoinSerialize());
             s.setBoolean(5, wasUndoable);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             // It is possible we try to add a duplicate StoredBlock if we upgraded
             // In that case, we just update the entry to mark it wasUndoable
@@ -731,15 +798,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectHeadersSQL());
+            PreparedStatement s = getPreparedStatement(getSelectHeadersSQL());
             // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 4, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -764,13 +830,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             // blocks.
             throw new BlockStoreException(e);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResultSet(results);
         }
     }
 
@@ -860,12 +920,10 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         this.chainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getUpdateSettingsSLQ());
+            PreparedStatement s = getPreparedStatement(getUpdateSettingsSLQ());
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -883,12 +941,10 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getUpdateSettingsSLQ());
+            PreparedStatement s = getPreparedStatement(getUpdateSettingsSLQ());
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -899,13 +955,11 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getDeleteUndoableBlocksSQL());
+            PreparedStatement s = getPreparedStatement(getDeleteUndoableBlocksSQL());
             s.setInt(1, height);
             if (log.isDebugEnabled())
                 log.debug("Deleting undoable undoable block with height <= " + height);
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -914,14 +968,22 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     @Override
     public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        Map<StoredTransactionOutPoint, UTXO> inserts = pendingInserts.get();
+        if (inserts != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+            UTXO pending = inserts.get(outPoint);
+            if (pending != null)
+                return pending;
+            if (pendingDeletes.get().contains(outPoint))
+                return null;
+        }
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectOpenoutputsSQL());
+            PreparedStatement s = getPreparedStatement(getSelectOpenoutputsSQL());
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int) index);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -942,44 +1004,26 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResultSet(results);
         }
     }
 
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        Map<StoredTransactionOutPoint, UTXO> inserts = pendingInserts.get();
+        if (inserts != null) {
+            // Queued until the batch is flushed, see flushPendingWrites().
+            inserts.put(new StoredTransactionOutPoint(out), out);
+            return;
+        }
         try {
-            s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int) out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setLong(4, out.getValue().value);
-            s.setBytes(5, out.getScript().getProgram());
-            s.setString(6, out.getAddress());
-            s.setInt(7, out.getScript().getScriptType().ordinal());
-            s.setBoolean(8, out.isCoinbase());
+            PreparedStatement s = getPreparedStatement(getInsertOpenoutputsSQL());
+            setInsertOpenoutputsParameters(s, out);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             if (!(e.getSQLState().equals(getDuplicateKeyErrorCode())))
                 throw new BlockStoreException(e);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException(e);
-                }
-            }
         }
     }
 
@@ -989,19 +1033,99 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         // TODO: This should only need one query (maybe a stored procedure)
         if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
             throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+        Map<StoredTransactionOutPoint, UTXO> inserts = pendingInserts.get();
+        if (inserts != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            // An output created and spent within the same batch never needs to reach the database.
+            if (inserts.remove(outPoint) == null)
+                pendingDeletes.get().add(outPoint);
+            return;
+        }
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getDeleteOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
+            PreparedStatement s = getPreparedStatement(getDeleteOpenoutputsSQL());
+            setDeleteOpenoutputsParameters(s, out.getHash(), out.getIndex());
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
     }
 
+    private void setInsertOpenoutputsParameters(PreparedStatement s, UTXO out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setLong(4, out.getValue().value);
+        s.setBytes(5, out.getScript().getProgram());
+        s.setString(6, out.getAddress());
+        s.setInt(7, out.getScript().getScriptType().ordinal());
+        s.setBoolean(8, out.isCoinbase());
+    }
+
+    private void setDeleteOpenoutputsParameters(PreparedStatement s, Sha256Hash hash, long index) throws SQLException {
+        s.setBytes(1, hash.getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) index);
+    }
+
+    /**
+     * Sends the UTXO deletes and inserts queued by the current batch write to the database as two JDBC batches. The
+     * changes stay part of the open database transaction, so they are visible to later queries on this connection
+     * but are only made durable by {@link #commitDatabaseBatchWrite()}.
+     * @throws BlockStoreException If the batches could not be executed.
+     */
+    protected void flushPendingWrites() throws BlockStoreException {
+        Map<StoredTransactionOutPoint, UTXO> inserts = pendingInserts.get();
+        Set<StoredTransactionOutPoint> deletes = pendingDeletes.get();
+        if (inserts == null || (inserts.isEmpty() && deletes.isEmpty()))
+            return;
+        try {
+            // Deletes go first: an output can only be re-created after the old one with the same outpoint is gone.
+            if (!deletes.isEmpty()) {
+                PreparedStatement s = getPreparedStatement(getDeleteOpenoutputsSQL());
+                for (StoredTransactionOutPoint outPoint : deletes) {
+                    setDeleteOpenoutputsParameters(s, outPoint.getHash(), outPoint.getIndex());
+                    s.addBatch();
+                }
+                s.executeBatch();
+            }
+            if (!inserts.isEmpty()) {
+                PreparedStatement s = getPreparedStatement(getInsertOpenoutputsSQL());
+                for (UTXO out : inserts.values()) {
+                    setInsertOpenoutputsParameters(s, out);
+                    s.addBatch();
+                }
+                try {
+                    s.executeBatch();
+                } catch (BatchUpdateException e) {
+                    if (!getDuplicateKeyErrorCode().equals(e.getSQLState()))
+                        throw e;
+                    // Duplicates are ignored as in addUnspentTransactionOutput, so retry row by row.
+                    s.clearBatch();
+                    for (UTXO out : inserts.values()) {
+                        try {
+                            setInsertOpenoutputsParameters(s, out);
+                            s.executeUpdate();
+                        } catch (SQLException e2) {
+                            if (!getDuplicateKeyErrorCode().equals(e2.getSQLState()))
+                                throw e2;
+                        }
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            inserts.clear();
+            deletes.clear();
+        }
+    }
+
+    private void clearPendingWrites() {
+        pendingInserts.set(null);
+        pendingDeletes.set(null);
+    }
+
     @Override
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
@@ -1012,6 +1136,11 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        // Reorgs begin a batch per disconnected and connected block but commit only once, keep what is queued.
+        if (pendingInserts.get() == null) {
+            pendingInserts.set(new HashMap<StoredTransactionOutPoint, UTXO>());
+            pendingDeletes.set(new HashSet<StoredTransactionOutPoint>());
+        }
     }
 
     @Override
@@ -1020,10 +1149,13 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         if (log.isDebugEnabled())
             log.debug("Committing database batch write with connection: " + conn.get().toString());
         try {
+            flushPendingWrites();
             conn.get().commit();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            clearPendingWrites();
         }
     }
 
@@ -1032,6 +1164,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
+        clearPendingWrites();
         try {
             if (!conn.get().getAutoCommit()) {
                 conn.get().rollback();
@@ -1047,11 +1180,12 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        flushPendingWrites();
+        ResultSet results = null;
         try {
-            s = conn.get().prepareStatement(getSelectOpenoutputsCountSQL());
+            PreparedStatement s = getPreparedStatement(getSelectOpenoutputsCountSQL());
             s.setBytes(1, hash.getBytes());
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 throw new BlockStoreException("Got no results from a COUNT(*) query");
             }
@@ -1060,12 +1194,16 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
+            closeResultSet(results);
+        }
+    }
+
+    private static void closeResultSet(@Nullable ResultSet results) throws BlockStoreException {
+        if (results != null) {
+            try {
+                results.close();
+            } catch (SQLException e) {
+                throw new BlockStoreException("Failed to close ResultSet");
             }
         }
     }
@@ -1132,6 +1270,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public BigInteger calculateBalanceForAddress(Address address) throws BlockStoreException {
         maybeConnect();
+        flushPendingWrites();
         PreparedStatement s = null;
         try {
             s = conn.get().prepareStatement(getBalanceSelectSQL());
@@ -1161,6 +1300,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         List<UTXO> outputs = new ArrayList<>();
         try {
             maybeConnect();
+            flushPendingWrites();
             s = conn.get().prepareStatement(getTransactionOutputSelectSQL());
             for (Address address : addresses) {
                 s.setString(1, address.toString());
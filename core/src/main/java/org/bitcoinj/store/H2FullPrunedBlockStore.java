@@ -19,6 +19,7 @@ package org.bitcoinj.store;
 
 import org.bitcoinj.core.*;
 
+import javax.sql.DataSource;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -104,6 +105,19 @@ public class H2FullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         this(params, dbName, null, null, fullStoreDepth);
     }
 
+    /**
+     * Creates a new H2FullPrunedBlockStore that takes its connections from the given data source, for example an
+     * {@code org.h2.jdbcx.JdbcConnectionPool}
+     * @param params A copy of the NetworkParameters used
+     * @param dataSource The data source to take connections from
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @throws BlockStoreException if the database fails to open for any reason
+     */
+    public H2FullPrunedBlockStore(NetworkParameters params, DataSource dataSource, int fullStoreDepth)
+            throws BlockStoreException {
+        super(params, dataSource, fullStoreDepth, null);
+    }
+
     /**
      * Creates a new H2FullPrunedBlockStore with the given cache size
      * @param params A copy of the NetworkParameters used
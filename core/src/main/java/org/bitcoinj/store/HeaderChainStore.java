@@ -0,0 +1,537 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.utils.*;
+import org.slf4j.*;
+
+import com.google.common.base.Charsets;
+import net.jcip.annotations.GuardedBy;
+
+import javax.annotation.*;
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>A block store that keeps every header of the best chain, from the genesis block or the checkpoint it was started
+ * from, in two memory mapped files that only ever grow at the end. The headers file holds the 80 byte headers one
+ * after the other, so that a run of headers can be handed out without copying, see
+ * {@link #getHeaders(int, int)}. The side file holds the hash, chain work and height of every header. Blocks of the
+ * best chain can be looked up by height in constant time, and by hash through an index that is kept in memory and
+ * rebuilt from the side file when the store is opened. A full main net header chain takes roughly 50 MB on disk.</p>
+ *
+ * <p>Blocks that are not on the best chain are kept in memory only, up to {@link #MAX_SIDE_BLOCKS} of them. When a
+ * re-org makes one of them the chain head, the files are truncated back to the fork point, which is cheap, and the
+ * new best chain is appended. The headers that were cut off become side blocks themselves.</p>
+ */
+public class HeaderChainStore implements BlockStore {
+    private static final Logger log = LoggerFactory.getLogger(HeaderChainStore.class);
+
+    public static final String HEADERS_FILE_NAME = "headers";
+    public static final String SIDE_FILE_NAME = "chainwork";
+    public static final String HEADER_MAGIC = "HCS1";
+    /** How many blocks off the best chain are remembered. */
+    public static final int MAX_SIDE_BLOCKS = 1000;
+
+    // File format of the side file:
+    //   4 header bytes = "HCS1"
+    //   4 bytes height of the first header
+    //   4 bytes number of headers
+    //   32 bytes for the hash of the chain head
+    //
+    // Followed by a record for each header (48 bytes)
+    //   32 bytes hash of the header
+    //   12 bytes of chain work
+    //    4 bytes of height
+    //
+    // The headers file holds the 80 byte headers in the same order. Both files grow in steps of GROWTH_RECORDS, so
+    // the number of headers is taken from the side file and not from the file sizes.
+    private static final int PROLOGUE_BYTES = 1024;
+    private static final int SIDE_RECORD_SIZE = 32 + StoredBlock.CHAIN_WORK_BYTES + 4;
+    private static final int GROWTH_RECORDS = 16384;
+
+    private final NetworkParameters params;
+    protected final ReentrantLock lock = Threading.lock("HeaderChainStore");
+
+    private final RandomAccessFile headersFile;
+    private final RandomAccessFile sideFile;
+    private final FileLock fileLock;
+    @Nullable @GuardedBy("lock") private MappedByteBuffer headers;
+    @Nullable @GuardedBy("lock") private MappedByteBuffer side;
+    // Number of records the files currently have room for.
+    @GuardedBy("lock") private int capacity;
+    @GuardedBy("lock") private int baseHeight;
+    @GuardedBy("lock") private int count;
+    @GuardedBy("lock") private StoredBlock chainHead;
+    // Open addressing hash table from block hash to record number + 1, 0 being an empty slot. Slots of records that
+    // were truncated are not removed, lookups check the hash of the record instead. They go away when the table is
+    // rebuilt.
+    @GuardedBy("lock") private int[] index;
+    @GuardedBy("lock") private int indexUsed;
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, StoredBlock> sideBlocks =
+            new LinkedHashMap<Sha256Hash, StoredBlock>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
+                    return size() > MAX_SIDE_BLOCKS;
+                }
+            };
+
+    /**
+     * Opens the store in the given directory, creating it with the genesis block if it doesn't exist yet. This
+     * operation will block on disk.
+     *
+     * @throws BlockStoreException if something goes wrong
+     */
+    public HeaderChainStore(NetworkParameters params, File directory) throws BlockStoreException {
+        this.params = checkNotNull(params);
+        RandomAccessFile headersFile = null, sideFile = null;
+        try {
+            if (!directory.exists() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create directory " + directory);
+            File side = new File(directory, SIDE_FILE_NAME);
+            boolean exists = side.exists();
+            sideFile = new RandomAccessFile(side, "rw");
+            headersFile = new RandomAccessFile(new File(directory, HEADERS_FILE_NAME), "rw");
+            FileLock fileLock;
+            try {
+                fileLock = sideFile.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                fileLock = null;    // Already opened by this process.
+            }
+            if (fileLock == null)
+                throw new ChainFileLockedException("Store file is already locked by another process");
+            this.fileLock = fileLock;
+            this.sideFile = sideFile;
+            this.headersFile = headersFile;
+
+            lock.lock();
+            try {
+                if (exists) {
+                    open();
+                } else {
+                    log.info("Creating new header chain store in " + directory);
+                    initNewStore();
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (Exception e) {
+            try {
+                if (sideFile != null) sideFile.close();
+                if (headersFile != null) headersFile.close();
+            } catch (IOException e2) {
+                throw new BlockStoreException(e2);
+            }
+            throw e instanceof BlockStoreException ? (BlockStoreException) e : new BlockStoreException(e);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void initNewStore() throws IOException, BlockStoreException {
+        map(GROWTH_RECORDS);
+        byte[] magic = HEADER_MAGIC.getBytes(Charsets.US_ASCII);
+        for (int i = 0; i < magic.length; i++)
+            side.put(i, magic[i]);
+        Block genesis = params.getGenesisBlock().cloneAsHeader();
+        StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+        reset(0);
+        append(storedGenesis);
+        writeChainHead(storedGenesis);
+    }
+
+    @GuardedBy("lock")
+    private void open() throws IOException, BlockStoreException {
+        int records = (int) ((sideFile.length() - PROLOGUE_BYTES) / SIDE_RECORD_SIZE);
+        if (records <= 0 || headersFile.length() < (long) records * Block.HEADER_SIZE)
+            throw new BlockStoreException("Store files are too short");
+        map(records);
+        byte[] magic = new byte[4];
+        for (int i = 0; i < magic.length; i++)
+            magic[i] = side.get(i);
+        if (!new String(magic, Charsets.US_ASCII).equals(HEADER_MAGIC))
+            throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+        baseHeight = side.getInt(4);
+        count = side.getInt(8);
+        if (count <= 0 || count > capacity)
+            throw new BlockStoreException("Corrupted block store: invalid number of headers " + count);
+        rebuildIndex(indexSizeFor(count * 2));
+        byte[] headHash = new byte[32];
+        for (int i = 0; i < headHash.length; i++)
+            headHash[i] = side.get(12 + i);
+        StoredBlock head = get(Sha256Hash.wrap(headHash));
+        if (head == null)
+            throw new BlockStoreException("Corrupted block store: could not find chain head: " + Sha256Hash.wrap(headHash));
+        chainHead = head;
+        log.info("Opened header chain store with {} headers from height {}", count, baseHeight);
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Sha256Hash hash = block.getHeader().getHash();
+            if (indexOf(hash) >= 0)
+                return;
+            // Blocks that extend the stored chain are written to the files right away, anything else is kept on
+            // the side until it becomes part of the best chain.
+            if (block.getHeight() == baseHeight + count && hashEquals(count - 1, block.getHeader().getPrevBlockHash()))
+                append(block);
+            else
+                sideBlocks.put(hash, block);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            int record = indexOf(hash);
+            if (record >= 0)
+                return read(record);
+            return sideBlocks.get(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the block of the best chain at the given height, or null if the height is above the chain head or
+     * below the first stored header.
+     */
+    @Nullable
+    public StoredBlock get(int height) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (height < baseHeight || height > chainHead.getHeight())
+                return null;
+            return read(height - baseHeight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a read only view of the serialized headers of the best chain, starting at the given height. The view
+     * is backed by the memory mapped file, so nothing is copied. It must not be used after the store was closed,
+     * after a re-org that replaced these headers or after headers were added, as the files may have been mapped anew
+     * to make room for them.
+     *
+     * @param fromHeight height of the first header, which must be stored
+     * @param maxHeaders the most headers to return, fewer are returned if the chain head comes earlier
+     */
+    public ByteBuffer getHeaders(int fromHeight, int maxHeaders) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            checkArgument(fromHeight >= baseHeight && fromHeight <= chainHead.getHeight(),
+                    "Height %s is not stored", fromHeight);
+            int num = Math.min(maxHeaders, chainHead.getHeight() - fromHeight + 1);
+            ByteBuffer view = headers.duplicate();
+            view.position((fromHeight - baseHeight) * Block.HEADER_SIZE);
+            view.limit(view.position() + num * Block.HEADER_SIZE);
+            return view.slice().asReadOnlyBuffer();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the height of the first stored header, which is 0 unless the store was started from a checkpoint. */
+    public int getBaseHeight() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            return baseHeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            return chainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the chain head. If it isn't the last stored header, the files are truncated back to where the new head
+     * branches off and the blocks leading to it are appended. In a new store, which holds nothing but the block it was
+     * started from, a head that doesn't connect to it, like a checkpoint, replaces it.
+     *
+     * @throws BlockStoreException if the new head doesn't connect to the stored chain of a store that already holds
+     * more than that, for example because the side blocks leading to it were forgotten
+     */
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            int record = indexOf(chainHead.getHeader().getHash());
+            if (record >= 0) {
+                truncate(record + 1);
+            } else {
+                // Collect the blocks from the new head back to where they join the stored chain.
+                LinkedList<StoredBlock> branch = new LinkedList<>();
+                StoredBlock cursor = chainHead;
+                int forkRecord = -1;
+                while (cursor != null) {
+                    branch.addFirst(cursor);
+                    Sha256Hash prevHash = cursor.getHeader().getPrevBlockHash();
+                    forkRecord = indexOf(prevHash);
+                    if (forkRecord >= 0)
+                        break;
+                    cursor = sideBlocks.get(prevHash);
+                }
+                if (forkRecord >= 0) {
+                    truncate(forkRecord + 1);
+                } else if (count == 1) {
+                    log.info("New chain head at height {} doesn't connect to the stored header, starting over",
+                            chainHead.getHeight());
+                    truncate(0);
+                    reset(branch.getFirst().getHeight());
+                } else {
+                    // The stored chain is valid history, don't throw it away for a branch we can't connect to it.
+                    throw new BlockStoreException("New chain head " + chainHead.getHeader().getHash()
+                            + " doesn't connect to the stored headers, missing block "
+                            + branch.getFirst().getHeader().getPrevBlockHash());
+                }
+                for (StoredBlock block : branch) {
+                    sideBlocks.remove(block.getHeader().getHash());
+                    append(block);
+                }
+            }
+            writeChainHead(chainHead);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (headers == null)
+                return;
+            headers.force();
+            side.force();
+            unmap();
+            fileLock.release();
+            headersFile.close();
+            sideFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    @GuardedBy("lock")
+    private void checkOpen() throws BlockStoreException {
+        if (headers == null)
+            throw new BlockStoreException("Store closed");
+    }
+
+    // Maps both files with room for the given number of records, growing them if necessary.
+    @GuardedBy("lock")
+    private void map(int records) throws IOException {
+        // Windows can't change the size of a file while it is mapped.
+        if (headers != null)
+            unmap();
+        long headersSize = (long) records * Block.HEADER_SIZE;
+        long sideSize = PROLOGUE_BYTES + (long) records * SIDE_RECORD_SIZE;
+        if (headersFile.length() < headersSize)
+            headersFile.setLength(headersSize);
+        if (sideFile.length() < sideSize)
+            sideFile.setLength(sideSize);
+        headers = headersFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, headersSize);
+        side = sideFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, sideSize);
+        capacity = records;
+    }
+
+    @GuardedBy("lock")
+    private void unmap() {
+        if (System.getProperty("os.name").toLowerCase().contains("win")) {
+            log.info("Windows mmap hack: Forcing buffer cleaning");
+            WindowsMMapHack.forceRelease(headers);
+            WindowsMMapHack.forceRelease(side);
+        }
+        headers = null;  // Allow them to be GCd and the underlying file mappings to go away.
+        side = null;
+    }
+
+    @GuardedBy("lock")
+    private void append(StoredBlock block) throws BlockStoreException {
+        checkState(block.getHeight() == baseHeight + count, "Block at height %s doesn't follow the stored headers",
+                block.getHeight());
+        try {
+            if (count == capacity)
+                map(capacity + GROWTH_RECORDS);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        ByteBuffer headerView = headers.duplicate();
+        headerView.position(count * Block.HEADER_SIZE);
+        // Using unsafeBitcoinSerialize here can give us direct access to the same bytes we read off the wire,
+        // avoiding serialization round-trips.
+        headerView.put(block.getHeader().unsafeBitcoinSerialize(), 0, Block.HEADER_SIZE);
+        ByteBuffer sideView = side.duplicate();
+        sideView.position(sideOffset(count));
+        sideView.put(block.getHeader().getHash().getBytes());
+        byte[] chainWorkBytes = block.getChainWork().toByteArray();
+        checkState(chainWorkBytes.length <= StoredBlock.CHAIN_WORK_BYTES, "Ran out of space to store chain work!");
+        if (chainWorkBytes.length < StoredBlock.CHAIN_WORK_BYTES)
+            sideView.put(StoredBlock.EMPTY_BYTES, 0, StoredBlock.CHAIN_WORK_BYTES - chainWorkBytes.length);
+        sideView.put(chainWorkBytes);
+        sideView.putInt(block.getHeight());
+        // The count is written last, so that a crash in between leaves the previous state behind.
+        count++;
+        side.putInt(8, count);
+        insertIntoIndex(count - 1);
+    }
+
+    // Cuts off the records from the given one on. The blocks on them are kept on the side in case the chain goes
+    // back to them.
+    @GuardedBy("lock")
+    private void truncate(int newCount) {
+        for (int record = newCount; record < count; record++) {
+            StoredBlock block = read(record);
+            sideBlocks.put(block.getHeader().getHash(), block);
+        }
+        if (newCount < count) {
+            count = newCount;
+            side.putInt(8, count);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void reset(int newBaseHeight) {
+        baseHeight = newBaseHeight;
+        count = 0;
+        side.putInt(4, baseHeight);
+        side.putInt(8, count);
+        rebuildIndex(indexSizeFor(GROWTH_RECORDS));
+    }
+
+    @GuardedBy("lock")
+    private void writeChainHead(StoredBlock chainHead) {
+        this.chainHead = chainHead;
+        byte[] headHash = chainHead.getHeader().getHash().getBytes();
+        for (int i = 0; i < headHash.length; i++)
+            side.put(12 + i, headHash[i]);
+    }
+
+    @GuardedBy("lock")
+    private StoredBlock read(int record) {
+        byte[] header = new byte[Block.HEADER_SIZE + 1];    // Extra byte for the 00 transactions length.
+        ByteBuffer headerView = headers.duplicate();
+        headerView.position(record * Block.HEADER_SIZE);
+        headerView.get(header, 0, Block.HEADER_SIZE);
+        ByteBuffer sideView = side.duplicate();
+        sideView.position(sideOffset(record) + 32);
+        byte[] chainWorkBytes = new byte[StoredBlock.CHAIN_WORK_BYTES];
+        sideView.get(chainWorkBytes);
+        int height = sideView.getInt();
+        try {
+            return new StoredBlock(params.getDefaultSerializer().makeBlock(header), new BigInteger(1, chainWorkBytes),
+                    height);
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private static int sideOffset(int record) {
+        return PROLOGUE_BYTES + record * SIDE_RECORD_SIZE;
+    }
+
+    @GuardedBy("lock")
+    private boolean hashEquals(int record, Sha256Hash hash) {
+        byte[] bytes = hash.getBytes();
+        int offset = sideOffset(record);
+        for (int i = 0; i < bytes.length; i++) {
+            if (side.get(offset + i) != bytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    // Returns the record holding the given hash, or -1.
+    @GuardedBy("lock")
+    private int indexOf(Sha256Hash hash) {
+        int mask = index.length - 1;
+        for (int slot = hash.hashCode() & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+            int record = index[slot] - 1;
+            if (record < count && hashEquals(record, hash))
+                return record;
+        }
+        return -1;
+    }
+
+    @GuardedBy("lock")
+    private void insertIntoIndex(int record) {
+        if ((indexUsed + 1) * 2 > index.length) {
+            rebuildIndex(indexSizeFor(count * 2));
+            return;  // The rebuild included the new record.
+        }
+        int mask = index.length - 1;
+        int slot = readHashCode(record) & mask;
+        while (index[slot] != 0)
+            slot = (slot + 1) & mask;
+        index[slot] = record + 1;
+        indexUsed++;
+    }
+
+    @GuardedBy("lock")
+    private void rebuildIndex(int size) {
+        index = new int[size];
+        indexUsed = 0;
+        for (int record = 0; record < count; record++)
+            insertIntoIndex(record);
+    }
+
+    // Same as Sha256Hash.hashCode(), which uses the last four bytes of the hash.
+    @GuardedBy("lock")
+    private int readHashCode(int record) {
+        return side.getInt(sideOffset(record) + 28);
+    }
+
+    // A power of two with room for twice the given number of records, so the table is at most half full.
+    private static int indexSizeFor(int records) {
+        return Integer.highestOneBit(Math.max(records, 1) * 4 - 1);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>A run of consecutive block headers in the record layout of {@link SPVBlockStore}, so that a fresh store can be
+ * pre-filled with recent chain history in one bulk copy instead of being seeded with a single checkpoint and then
+ * downloading the remaining headers from the network.</p>
+ *
+ * <p>The file format consists of the string "SPV SNAPSHOT 1", followed by an int32 containing the number of headers.
+ * Then each header follows in ascending height, each in the store's 128 byte record format: the 32 byte block hash,
+ * 12 bytes of total work done, 4 bytes for the height and the 80 byte block header. The file ends with the SHA-256
+ * hash of all bytes from the header count up to the end of the last record.</p>
+ *
+ * <p>The headers themselves are not re-verified on load; the data is checked against its trailing hash and, if the
+ * caller supplies one, against a hash it pins. Create snapshots with {@link #write(BlockStore, int, OutputStream)}
+ * from a store that was synced by a trusted node.</p>
+ */
+public class HeaderSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(HeaderSnapshot.class);
+
+    private static final String MAGIC = "SPV SNAPSHOT 1";
+
+    private final byte[] records;
+    private final int numHeaders;
+    private final Sha256Hash dataHash;
+    private final StoredBlock chainHead;
+
+    private HeaderSnapshot(byte[] records, int numHeaders, Sha256Hash dataHash, StoredBlock chainHead) {
+        this.records = records;
+        this.numHeaders = numHeaders;
+        this.dataHash = dataHash;
+        this.chainHead = chainHead;
+    }
+
+    /**
+     * Reads a snapshot from the given stream and checks it against its trailing hash.
+     *
+     * @param expectedHash if not null, the snapshot's data hash (see {@link #getDataHash()}) must equal this
+     * @throws IOException if the stream is not a well formed snapshot or the hashes don't match
+     */
+    public static HeaderSnapshot read(NetworkParameters params, InputStream inputStream,
+                                      @Nullable Sha256Hash expectedHash) throws IOException {
+        DataInputStream dis = new DataInputStream(inputStream);
+        try {
+            byte[] header = new byte[MAGIC.length()];
+            dis.readFully(header);
+            if (!Arrays.equals(header, MAGIC.getBytes("US-ASCII")))
+                throw new IOException("Header bytes did not match expected version");
+            int numHeaders = dis.readInt();
+            if (numHeaders <= 0 || numHeaders > Integer.MAX_VALUE / SPVBlockStore.RECORD_SIZE)
+                throw new IOException("Number of headers out of range: " + numHeaders);
+            byte[] records = new byte[numHeaders * SPVBlockStore.RECORD_SIZE];
+            dis.readFully(records);
+            byte[] trailer = new byte[32];
+            dis.readFully(trailer);
+
+            MessageDigest digest = Sha256Hash.newDigest();
+            digest.update(ByteBuffer.allocate(4).putInt(numHeaders).array());
+            digest.update(records);
+            Sha256Hash dataHash = Sha256Hash.wrap(digest.digest());
+            if (!Arrays.equals(dataHash.getBytes(), trailer))
+                throw new IOException("Header snapshot is corrupt: hash mismatch");
+            if (expectedHash != null && !expectedHash.equals(dataHash))
+                throw new IOException("Header snapshot hash " + dataHash + " does not match expected " + expectedHash);
+
+            ByteBuffer buffer = ByteBuffer.wrap(records);
+            buffer.position((numHeaders - 1) * SPVBlockStore.RECORD_SIZE + 32);
+            StoredBlock chainHead = StoredBlock.deserializeCompact(params, buffer);
+            log.info("Read header snapshot of {} headers up to height {}, hash is {}", numHeaders,
+                    chainHead.getHeight(), dataHash);
+            return new HeaderSnapshot(records, numHeaders, dataHash, chainHead);
+        } catch (ProtocolException e) {
+            throw new IOException(e);
+        } finally {
+            dis.close();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the given number of headers leading up to and including the chain head of the given store.
+     * Fewer headers are written if the store doesn't reach back far enough.
+     */
+    public static void write(BlockStore store, int numHeaders, OutputStream outputStream)
+            throws IOException, BlockStoreException {
+        checkArgument(numHeaders > 0);
+        // Walk back from the head, then emit in ascending order.
+        StoredBlock[] blocks = new StoredBlock[numHeaders];
+        StoredBlock cursor = store.getChainHead();
+        int count = 0;
+        while (cursor != null && count < numHeaders) {
+            blocks[numHeaders - 1 - count++] = cursor;
+            cursor = cursor.getPrev(store);
+        }
+        ByteBuffer records = ByteBuffer.allocate(count * SPVBlockStore.RECORD_SIZE);
+        for (int i = numHeaders - count; i < numHeaders; i++) {
+            records.put(blocks[i].getHeader().getHash().getBytes());
+            blocks[i].serializeCompact(records);
+        }
+        MessageDigest digest = Sha256Hash.newDigest();
+        DataOutputStream dos = new DataOutputStream(outputStream);
+        dos.write(MAGIC.getBytes("US-ASCII"));
+        dos.writeInt(count);
+        digest.update(ByteBuffer.allocate(4).putInt(count).array());
+        dos.write(records.array());
+        digest.update(records.array());
+        dos.write(digest.digest());
+        dos.flush();
+    }
+
+    /** Returns the number of headers in this snapshot. */
+    public int getNumHeaders() {
+        return numHeaders;
+    }
+
+    /** Returns a hash of the snapshot data, suitable to pin a snapshot that is bundled with an application. */
+    public Sha256Hash getDataHash() {
+        return dataHash;
+    }
+
+    /** Returns the last, highest header in this snapshot. */
+    public StoredBlock getChainHead() {
+        return chainHead;
+    }
+
+    /**
+     * Returns the raw records of the last {@code count} headers, in {@link SPVBlockStore}'s record format and
+     * ascending height.
+     */
+    ByteBuffer getRecords(int count) {
+        checkArgument(count > 0 && count <= numHeaders);
+        int offset = (numHeaders - count) * SPVBlockStore.RECORD_SIZE;
+        return ByteBuffer.wrap(records, offset, count * SPVBlockStore.RECORD_SIZE);
+    }
+}
@@ -24,6 +24,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.io.*;
 import java.nio.ByteBuffer;
@@ -31,6 +32,7 @@ import java.nio.ByteBuffer;
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.AddressFormatException;
 import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.StoredUndoableBlock;
@@ -38,16 +40,18 @@ import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionOutputChanges;
 import org.bitcoinj.core.UTXO;
 import org.bitcoinj.core.UTXOProviderException;
+import org.bitcoinj.core.Utils;
 import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.utils.Metrics;
 import org.iq80.leveldb.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static org.fusesource.leveldbjni.JniDBFactory.*;
 
-import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
 
 /**
@@ -58,6 +62,11 @@ import com.google.common.collect.Lists;
  * <p>
  * Includes number of caches to optimise the initial blockchain download.
  * </p>
+ *
+ * <p>
+ * Optionally the changes to the set of unspent outputs can be buffered in memory across many blocks, see
+ * {@link #setWriteBehind(int, long)}.
+ * </p>
  */
 
 public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
@@ -74,19 +83,21 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     protected Sha256Hash verifiedChainHeadHash;
     protected StoredBlock verifiedChainHeadBlock;
     protected int fullStoreDepth;
-    // Indicates if we track and report runtime for each method
-    // this is very useful to focus performance tuning on correct areas.
-    protected boolean instrument = false;
-    // instrumentation stats
-    Stopwatch totalStopwatch;
-    protected long hit;
-    protected long miss;
-    Map<String, Stopwatch> methodStartTime;
-    Map<String, Long> methodCalls;
-    Map<String, Long> methodTotalTime;
-    int exitBlock; // Must be multiple of 1000 and causes code to exit at this
-                   // block!
-    // ONLY used for performance benchmarking.
+
+    // Runtime of the hot methods and cache hit rates, see Metrics. These
+    // are very useful to focus performance tuning on correct areas.
+    private static final Metrics.Counter UTXO_CACHE_HIT = Metrics.counter("leveldb.utxo_cache.hit");
+    private static final Metrics.Counter UTXO_CACHE_MISS = Metrics.counter("leveldb.utxo_cache.miss");
+    private static final Metrics.Counter HAS_UNSPENT_BLOOM_NEGATIVE = Metrics.counter("leveldb.has_unspent.bloom_negative");
+    private static final Metrics.Counter HAS_UNSPENT_TRUE = Metrics.counter("leveldb.has_unspent.true");
+    private static final Metrics.Counter HAS_UNSPENT_FALSE = Metrics.counter("leveldb.has_unspent.false");
+    private static final Metrics.Histogram GET_OUTPUT_TIME = Metrics.histogram("leveldb.get_transaction_output.time");
+    private static final Metrics.Histogram ADD_OUTPUT_TIME = Metrics.histogram("leveldb.add_unspent_output.time");
+    private static final Metrics.Histogram REMOVE_OUTPUT_TIME = Metrics.histogram("leveldb.remove_unspent_output.time");
+    private static final Metrics.Histogram HAS_UNSPENT_TIME = Metrics.histogram("leveldb.has_unspent_outputs.time");
+    private static final Metrics.Histogram GET_HEADER_TIME = Metrics.histogram("leveldb.get.time");
+    private static final Metrics.Histogram COMMIT_TIME = Metrics.histogram("leveldb.commit.time");
+    private static final Metrics.Histogram FLUSH_TIME = Metrics.histogram("leveldb.write_behind_flush.time");
 
     // LRU Cache for getTransactionOutput
     protected Map<ByteBuffer, UTXO> utxoCache;
@@ -98,6 +109,11 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     // Database folder
     protected String filename;
 
+    // Stores created before the compact output records keep using the old
+    // record format, see UTXO#toCompactBytes.
+    private static final String COMPACT_OUTPUTS_VERSION = "2";
+    protected boolean compactOutputs;
+
     // Do we auto commit transactions.
     protected boolean autoCommit = true;
 
@@ -106,6 +122,26 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     // do it ourselves.
     Map<ByteBuffer, byte[]> uncommited;
     Set<ByteBuffer> uncommitedDeletes;
+    // Keys put in the current batch that are known not to be in the db.
+    Set<ByteBuffer> uncommitedFresh;
+
+    // Write-behind buffer. Committed changes to unspent outputs and the
+    // chain head settings collect here across many blocks and then go to
+    // leveldb in one write batch, so the chain heads on disk always match the
+    // outputs on disk. Outputs created and spent between two flushes never
+    // reach the disk at all. A threshold of 0 means write every commit.
+    protected int writeBehindMaxKeys = 0;
+    protected long writeBehindMaxMillis;
+    protected long writeBehindLastFlush;
+    Map<ByteBuffer, byte[]> writeBehindPuts = new ConcurrentHashMap<>();
+    Set<ByteBuffer> writeBehindDeletes = newConcurrentSet();
+    // Buffered keys that are known not to be in the db, so deleting them
+    // just drops them from the buffer.
+    Set<ByteBuffer> writeBehindFresh = new HashSet<>();
+    // Transactions that had no outputs in the db when their first output was
+    // added. Only valid until the next flush.
+    Set<Sha256Hash> writeBehindFreshTxs = newConcurrentSet();
+    long writeBehindCancelled;
 
     // Sizes of leveldb caches.
     protected long leveldbReadCache;
@@ -248,32 +284,38 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    private static <T> Set<T> newConcurrentSet() {
+        return java.util.Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+    }
+
     public LevelDBFullPrunedBlockStore(NetworkParameters params, String filename, int blockCount) {
         this(params, filename, blockCount, LEVELDB_READ_CACHE_DEFAULT, LEVELDB_WRITE_CACHE_DEFAULT,
-                OPENOUT_CACHE_DEFAULT, false, Integer.MAX_VALUE);
+                OPENOUT_CACHE_DEFAULT);
     }
 
     public LevelDBFullPrunedBlockStore(NetworkParameters params, String filename, int blockCount, long leveldbReadCache,
-            int leveldbWriteCache, int openOutCache, boolean instrument, int exitBlock) {
+            int leveldbWriteCache, int openOutCache) {
         this.params = params;
         fullStoreDepth = blockCount;
-        this.instrument = instrument;
-        this.exitBlock = exitBlock;
-        methodStartTime = new HashMap<>();
-        methodCalls = new HashMap<>();
-        methodTotalTime = new HashMap<>();
-
         this.filename = filename;
         this.leveldbReadCache = leveldbReadCache;
         this.leveldbWriteCache = leveldbWriteCache;
         this.openOutCache = openOutCache;
         bloom = new BloomFilter();
-        totalStopwatch = Stopwatch.createStarted();
         openDB();
         bloom.reloadCache(db);
+    }
 
-        // Reset after bloom filter loaded
-        totalStopwatch = Stopwatch.createStarted();
+    /**
+     * @deprecated Use {@link #LevelDBFullPrunedBlockStore(NetworkParameters, String, int, long, int, int)} and
+     * {@link Metrics#startReporting(Metrics.Sink, long, TimeUnit)}. The exitBlock parameter is ignored.
+     */
+    @Deprecated
+    public LevelDBFullPrunedBlockStore(NetworkParameters params, String filename, int blockCount, long leveldbReadCache,
+            int leveldbWriteCache, int openOutCache, boolean instrument, int exitBlock) {
+        this(params, filename, blockCount, leveldbReadCache, leveldbWriteCache, openOutCache);
+        if (instrument)
+            Metrics.startReporting(new Metrics.LoggingSink(), 1, TimeUnit.MINUTES);
     }
 
     private void openDB() {
@@ -303,6 +345,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
     private void initFromDb() throws BlockStoreException {
+        byte[] version = batchGet(getKey(KeyType.VERSION_SETTING));
+        compactOutputs = version != null && Arrays.equals(version, bytes(COMPACT_OUTPUTS_VERSION));
         Sha256Hash hash = Sha256Hash.wrap(batchGet(getKey(KeyType.CHAIN_HEAD_SETTING)));
         this.chainHeadBlock = get(hash);
         this.chainHeadHash = hash;
@@ -335,6 +379,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             put(storedGenesisHeader, storedGenesis);
             setChainHead(storedGenesisHeader);
             setVerifiedChainHead(storedGenesisHeader);
+            batchPut(getKey(KeyType.VERSION_SETTING), bytes(COMPACT_OUTPUTS_VERSION));
+            compactOutputs = true;
             batchPut(getKey(KeyType.CREATED), bytes("done"));
             commitDatabaseBatchWrite();
         } catch (VerificationException e) {
@@ -342,46 +388,6 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
-    void beginMethod(String name) {
-        methodStartTime.put(name, Stopwatch.createStarted());
-    }
-
-    void endMethod(String name) {
-        if (methodCalls.containsKey(name)) {
-            methodCalls.put(name, methodCalls.get(name) + 1);
-            methodTotalTime.put(name,
-                    methodTotalTime.get(name) + methodStartTime.get(name).elapsed(TimeUnit.NANOSECONDS));
-        } else {
-            methodCalls.put(name, 1l);
-            methodTotalTime.put(name, methodStartTime.get(name).elapsed(TimeUnit.NANOSECONDS));
-        }
-    }
-
-    // Debug method to display stats on runtime of each method
-    // and cache hit rates etc..
-    void dumpStats() {
-        long wallTimeNanos = totalStopwatch.elapsed(TimeUnit.NANOSECONDS);
-        long dbtime = 0;
-        for (String name : methodCalls.keySet()) {
-            long calls = methodCalls.get(name);
-            long time = methodTotalTime.get(name);
-            dbtime += time;
-            long average = time / calls;
-            double proportion = (time + 0.0) / (wallTimeNanos + 0.0);
-            log.info(name + " c:" + calls + " r:" + time + " a:" + average + " p:" + String.format("%.2f", proportion));
-        }
-        double dbproportion = (dbtime + 0.0) / (wallTimeNanos + 0.0);
-        double hitrate = (hit + 0.0) / (hit + miss + 0.0);
-        log.info("Cache size:" + utxoCache.size() + " hit:" + hit + " miss:" + miss + " rate:"
-                + String.format("%.2f", hitrate));
-        bloom.printStat();
-        log.info("hasTxOut call:" + hasCall + " True:" + hasTrue + " False:" + hasFalse);
-        log.info("Wall:" + totalStopwatch + " percent:" + String.format("%.2f", dbproportion));
-        String stats = db.getProperty("leveldb.stats");
-        System.out.println(stats);
-
-    }
-
     @Override
     public void put(StoredBlock block) throws BlockStoreException {
         putUpdateStoredBlock(block, false);
@@ -394,18 +400,15 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
-        if (instrument)
-            beginMethod("setChainHead");
         Sha256Hash hash = chainHead.getHeader().getHash();
         this.chainHeadHash = hash;
         this.chainHeadBlock = chainHead;
         batchPut(getKey(KeyType.CHAIN_HEAD_SETTING), hash.getBytes());
-        if (instrument)
-            endMethod("setChainHead");
     }
 
     @Override
     public void close() throws BlockStoreException {
+        flushWriteBehind();
         try {
             db.close();
         } catch (IOException e) {
@@ -423,6 +426,13 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         // Run this on a snapshot of database so internally consistent result
         // This is critical or if one address paid another could get incorrect
         // results
+        // The address index is scanned on disk, so buffered outputs have to
+        // get there first.
+        try {
+            flushWriteBehind();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException("block store execption", e);
+        }
 
         List<UTXO> results = new LinkedList<>();
         for (Address a : addresses) {
@@ -488,21 +498,15 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     protected void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) {
         // We put as one record as then the get is much faster.
-        if (instrument)
-            beginMethod("putUpdateStoredBlock");
         Sha256Hash hash = storedBlock.getHeader().getHash();
         ByteBuffer bb = ByteBuffer.allocate(97);
         storedBlock.serializeCompact(bb);
         bb.put((byte) (wasUndoable ? 1 : 0));
         batchPut(getKey(KeyType.HEADERS_ALL, hash), bb.array());
-        if (instrument)
-            endMethod("putUpdateStoredBlock");
     }
 
     @Override
     public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
-        if (instrument)
-            beginMethod("put");
         int height = storedBlock.getHeight();
         byte[] transactions = null;
         byte[] txOutChanges = null;
@@ -549,8 +553,6 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             undoBuf.put(transactions);
             batchPut(getKey(KeyType.UNDOABLEBLOCKS_ALL, hash), undoBuf.array());
         }
-        if (instrument)
-            endMethod("put");
         putUpdateStoredBlock(storedBlock, true);
     }
 
@@ -614,51 +616,42 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
     public StoredBlock get(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
-
         // Optimize for chain head
         if (chainHeadHash != null && chainHeadHash.equals(hash))
             return chainHeadBlock;
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
 
-        if (instrument)
-            beginMethod("get");// ignore optimised case as not interesting for
-                               // tuning.
-        boolean undoableResult;
-
-        byte[] result = batchGet(getKey(KeyType.HEADERS_ALL, hash));
-        if (result == null) {
-            if (instrument)
-                endMethod("get");
-            return null;
-        }
-        undoableResult = (result[96] == 1 ? true : false);
-        if (wasUndoableOnly && !undoableResult) {
-            if (instrument)
-                endMethod("get");
-            return null;
-        }
-        // TODO Should I chop the last byte off? Seems to work with it left
-        // there...
-        StoredBlock stored = StoredBlock.deserializeCompact(params, ByteBuffer.wrap(result));
-        stored.getHeader().verifyHeader();
+        // ignore optimised case as not interesting for tuning.
+        long start = Metrics.startTimer();
+        try {
+            boolean undoableResult;
 
-        if (instrument)
-            endMethod("get");
-        return stored;
+            byte[] result = batchGet(getKey(KeyType.HEADERS_ALL, hash));
+            if (result == null) {
+                return null;
+            }
+            undoableResult = (result[96] == 1 ? true : false);
+            if (wasUndoableOnly && !undoableResult) {
+                return null;
+            }
+            // TODO Should I chop the last byte off? Seems to work with it left
+            // there...
+            StoredBlock stored = StoredBlock.deserializeCompact(params, ByteBuffer.wrap(result));
+            stored.getHeader().verifyHeader();
+
+            return stored;
+        } finally {
+            GET_HEADER_TIME.stopTimer(start);
+        }
     }
 
     @Override
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
         try {
-            if (instrument)
-                beginMethod("getUndoBlock");
-
             byte[] result = batchGet(getKey(KeyType.UNDOABLEBLOCKS_ALL, hash));
 
             if (result == null) {
-                if (instrument)
-                    endMethod("getUndoBlock");
                 return null;
             }
             ByteBuffer bb = ByteBuffer.wrap(result);
@@ -688,13 +681,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                         new ByteArrayInputStream(txOutChanges));
                 block = new StoredUndoableBlock(hash, outChangesObject);
             }
-            if (instrument)
-                endMethod("getUndoBlock");
             return block;
         } catch (IOException e) {
             // Corrupted database.
-            if (instrument)
-                endMethod("getUndoBlock");
             throw new BlockStoreException(e);
         }
 
@@ -702,9 +691,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
-        if (instrument)
-            beginMethod("getTransactionOutput");
-
+        long start = Metrics.startTimer();
         try {
             UTXO result = null;
             byte[] key = getTxKey(KeyType.OPENOUT_ALL, hash, (int) index);
@@ -716,9 +703,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                 // Check if we have an uncommitted delete.
                 if (utxoUncommittedDeletedCache.contains(ByteBuffer.wrap(key))) {
                     // has been deleted so return null;
-                    hit++;
-                    if (instrument)
-                        endMethod("getTransactionOutput");
+                    UTXO_CACHE_HIT.inc();
                     return result;
                 }
                 // Check if we have an uncommitted entry
@@ -729,99 +714,113 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
             }
             if (result != null) {
-                hit++;
-                if (instrument)
-                    endMethod("getTransactionOutput");
+                UTXO_CACHE_HIT.inc();
                 return result;
             }
-            miss++;
+            UTXO_CACHE_MISS.inc();
             // If we get here have to hit the database.
             byte[] inbytes = batchGet(key);
             if (inbytes == null) {
-                if (instrument)
-                    endMethod("getTransactionOutput");
                 return null;
             }
+            if (compactOutputs)
+                return UTXO.fromCompactBytes(hash, index, inbytes);
             ByteArrayInputStream bis = new ByteArrayInputStream(inbytes);
             UTXO txout = new UTXO(bis);
 
-            if (instrument)
-                endMethod("getTransactionOutput");
             return txout;
+        } catch (ProtocolException e) {
+            log.error("Exception in getTransactionOutput.", e);
         } catch (DBException e) {
             log.error("Exception in getTransactionOutput.", e);
-            if (instrument)
-                endMethod("getTransactionOutput");
         } catch (IOException e) {
             log.error("Exception in getTransactionOutput.", e);
-            if (instrument)
-                endMethod("getTransactionOutput");
+        } finally {
+            GET_OUTPUT_TIME.stopTimer(start);
         }
         throw new BlockStoreException("problem");
     }
 
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
-
-        if (instrument)
-            beginMethod("addUnspentTransactionOutput");
-
-        // Add to bloom filter - is very fast to add.
-        bloom.add(out.getHash());
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        long start = Metrics.startTimer();
         try {
-            out.serializeToStream(bos);
-        } catch (IOException e) {
-            throw new BlockStoreException("problem serialising utxo", e);
-        }
+            // If the bloom filter has never seen this transaction none of its
+            // outputs are in the db, so while they sit in the write-behind buffer
+            // spending them does not need to leave a delete behind.
+            boolean fresh = false;
+            if (writeBehindMaxKeys > 0 && !autoCommit) {
+                fresh = writeBehindFreshTxs.contains(out.getHash()) || !bloom.wasAdded(out.getHash());
+                if (fresh)
+                    writeBehindFreshTxs.add(out.getHash());
+            }
+            // Add to bloom filter - is very fast to add.
+            bloom.add(out.getHash());
+            byte[] record;
+            if (compactOutputs) {
+                record = out.toCompactBytes();
+            } else {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                try {
+                    out.serializeToStream(bos);
+                } catch (IOException e) {
+                    throw new BlockStoreException("problem serialising utxo", e);
+                }
+                record = bos.toByteArray();
+            }
 
-        byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
-        batchPut(key, bos.toByteArray());
+            byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
+            batchPut(key, record);
+            if (fresh)
+                uncommitedFresh.add(ByteBuffer.wrap(key));
 
-        if (autoCommit) {
-            utxoCache.put(ByteBuffer.wrap(key), out);
-        } else {
-            utxoUncommittedCache.put(ByteBuffer.wrap(key), out);
-            // leveldb just stores the last key/value added.
-            // So if we do an add must remove any previous deletes.
-            utxoUncommittedDeletedCache.remove(ByteBuffer.wrap(key));
-        }
+            if (autoCommit) {
+                utxoCache.put(ByteBuffer.wrap(key), out);
+            } else {
+                utxoUncommittedCache.put(ByteBuffer.wrap(key), out);
+                // leveldb just stores the last key/value added.
+                // So if we do an add must remove any previous deletes.
+                utxoUncommittedDeletedCache.remove(ByteBuffer.wrap(key));
+            }
 
-        // Could run this in parallel with above too.
-        // Should update instrumentation to see if worth while.
-        Address a;
-        if (out.getAddress() == null || out.getAddress().equals("")) {
-            if (instrument)
-                endMethod("addUnspentTransactionOutput");
-            return;
-        } else {
-            try {
-                a = Address.fromBase58(params, out.getAddress());
-            } catch (AddressFormatException e) {
-                if (instrument)
-                    endMethod("addUnspentTransactionOutput");
+            // Could run this in parallel with above too.
+            // Should check the metrics to see if worth while.
+            Address a;
+            if (out.getAddress() == null || out.getAddress().equals("")) {
                 return;
+            } else {
+                try {
+                    a = Address.fromBase58(params, out.getAddress());
+                } catch (AddressFormatException e) {
+                    return;
+                }
             }
+            ByteBuffer bb = ByteBuffer.allocate(57);
+            bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
+            bb.put(a.getHash160());
+            bb.put(out.getHash().getBytes());
+            bb.putInt((int) out.getIndex());
+            byte[] value = new byte[0];
+            batchPut(bb.array(), value);
+            if (fresh)
+                uncommitedFresh.add(ByteBuffer.wrap(bb.array()));
+        } finally {
+            ADD_OUTPUT_TIME.stopTimer(start);
         }
-        ByteBuffer bb = ByteBuffer.allocate(57);
-        bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-        bb.put(a.getHash160());
-        bb.put(out.getHash().getBytes());
-        bb.putInt((int) out.getIndex());
-        byte[] value = new byte[0];
-        batchPut(bb.array(), value);
-        if (instrument)
-            endMethod("addUnspentTransactionOutput");
     }
 
     private void batchPut(byte[] key, byte[] value) {
         if (autoCommit) {
-            db.put(key, value);
+            if (isWriteBehindKey(key))
+                mergeIntoWriteBehind(ByteBuffer.wrap(key), value, false);
+            else
+                db.put(key, value);
         } else {
             // Add this so we can get at uncommitted inserts which
             // leveldb does not support
             uncommited.put(ByteBuffer.wrap(key), value);
-            batch.put(key, value);
+            // leveldb just stores the last key/value added.
+            uncommitedDeletes.remove(ByteBuffer.wrap(key));
         }
     }
 
@@ -839,6 +838,12 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             if (value != null)
                 return value;
         }
+        // Then committed changes that are not on disk yet.
+        if (writeBehindDeletes.contains(bbKey))
+            return null;
+        value = writeBehindPuts.get(bbKey);
+        if (value != null)
+            return value;
         try {
             value = db.get(key);
         } catch (DBException e) {
@@ -854,123 +859,226 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     private void batchDelete(byte[] key) {
         if (!autoCommit) {
-            batch.delete(key);
             uncommited.remove(ByteBuffer.wrap(key));
             uncommitedDeletes.add(ByteBuffer.wrap(key));
+        } else if (isWriteBehindKey(key)) {
+            mergeIntoWriteBehind(ByteBuffer.wrap(key), null, false);
         } else {
             db.delete(key);
         }
     }
 
-    @Override
-    public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
-        if (instrument)
-            beginMethod("removeUnspentTransactionOutput");
-
-        byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
+    // Only the unspent outputs and the chain heads that describe them are
+    // buffered. Headers and undo blocks can safely run ahead of the chain
+    // heads on disk.
+    private boolean isWriteBehindKey(byte[] key) {
+        if (writeBehindMaxKeys == 0)
+            return false;
+        byte type = key[0];
+        return type == (byte) KeyType.OPENOUT_ALL.ordinal() || type == (byte) KeyType.ADDRESS_HASHINDEX.ordinal()
+                || type == (byte) KeyType.CHAIN_HEAD_SETTING.ordinal()
+                || type == (byte) KeyType.VERIFIED_CHAIN_HEAD_SETTING.ordinal();
+    }
 
-        if (autoCommit) {
-            utxoCache.remove(ByteBuffer.wrap(key));
+    // Applies a committed put, or a delete if value is null, to the
+    // write-behind buffer. A delete of a key that is known not to be on disk
+    // cancels out the earlier put.
+    private synchronized void mergeIntoWriteBehind(ByteBuffer key, byte[] value, boolean fresh) {
+        if (value != null) {
+            writeBehindDeletes.remove(key);
+            writeBehindPuts.put(key, value);
+            if (fresh)
+                writeBehindFresh.add(key);
         } else {
-            utxoUncommittedDeletedCache.add(ByteBuffer.wrap(key));
-            utxoUncommittedCache.remove(ByteBuffer.wrap(key));
+            writeBehindPuts.remove(key);
+            if (writeBehindFresh.remove(key) || fresh)
+                writeBehindCancelled++;
+            else
+                writeBehindDeletes.add(key);
+        }
+    }
+
+    // Is the key deleted by a change that is not on disk yet? The current
+    // batch takes precedence over the write-behind buffer.
+    private boolean isDeletedInMemory(ByteBuffer key) {
+        if (!autoCommit && uncommited != null) {
+            if (uncommitedDeletes.contains(key))
+                return true;
+            if (uncommited.containsKey(key))
+                return false;
+        }
+        return writeBehindDeletes.contains(key);
+    }
+
+    // Does the key exist as a change that is not on disk yet?
+    private boolean isPutInMemory(ByteBuffer key) {
+        if (!autoCommit && uncommited != null) {
+            if (uncommitedDeletes.contains(key))
+                return false;
+            if (uncommited.containsKey(key))
+                return true;
         }
+        return writeBehindPuts.containsKey(key);
+    }
 
-        batchDelete(key);
-        // could run this and the above in parallel
-        // Need to update instrumentation to check if worth the effort
+    /**
+     * <p>Buffers committed changes to the set of unspent outputs in memory and writes them to the database in large
+     * batches. This speeds up the initial chain download considerably, because most outputs are spent again soon
+     * after they were created: if both happens between two flushes, the output never touches the disk.</p>
+     *
+     * <p>The chain head and verified chain head are written in the same batch as the outputs, so after a crash the
+     * store reopens at the last flushed block with a matching set of outputs, and the blocks after it are downloaded
+     * and verified again. Headers and undo data are still written at every commit.</p>
+     *
+     * <p>The buffer is flushed at the end of a batch write once it holds the given number of changed keys or once
+     * the given time has passed since the last flush, and when the store is closed. Call
+     * {@link #flushWriteBehind()} to flush it explicitly.</p>
+     *
+     * @param maxPendingKeys number of buffered changes that triggers a flush, or 0 to disable buffering
+     * @param maxPendingMillis milliseconds since the last flush that trigger a flush
+     */
+    public synchronized void setWriteBehind(int maxPendingKeys, long maxPendingMillis) throws BlockStoreException {
+        checkArgument(maxPendingKeys >= 0, "maxPendingKeys must not be negative");
+        checkArgument(maxPendingMillis >= 0, "maxPendingMillis must not be negative");
+        if (maxPendingKeys == 0)
+            flushWriteBehind();
+        writeBehindMaxKeys = maxPendingKeys;
+        writeBehindMaxMillis = maxPendingMillis;
+        writeBehindLastFlush = Utils.currentTimeMillis();
+    }
+
+    /** Returns the number of changed keys that are held in the write-behind buffer. */
+    public int getWriteBehindSize() {
+        return writeBehindPuts.size() + writeBehindDeletes.size();
+    }
 
-        // TODO storing as byte[] hash to save space. But think should just
-        // store as String of address. Might be faster. Need to test.
-        ByteBuffer bb = ByteBuffer.allocate(57);
-        Address a;
-        byte[] hashBytes = null;
+    /** Writes all buffered changes to the database in one batch. See {@link #setWriteBehind(int, long)}. */
+    public synchronized void flushWriteBehind() throws BlockStoreException {
+        writeBehindLastFlush = Utils.currentTimeMillis();
+        if (writeBehindPuts.isEmpty() && writeBehindDeletes.isEmpty())
+            return;
+        long start = Metrics.startTimer();
+        int puts = writeBehindPuts.size();
+        int deletes = writeBehindDeletes.size();
+        WriteBatch flushBatch = db.createWriteBatch();
         try {
-            String address = out.getAddress();
-            if (address == null || address.equals("")) {
-                Script sc = out.getScript();
-                a = sc.getToAddress(params);
-                hashBytes = a.getHash160();
-            } else {
-                a = Address.fromBase58(params, out.getAddress());
-                hashBytes = a.getHash160();
+            for (ByteBuffer key : writeBehindDeletes)
+                flushBatch.delete(key.array());
+            for (Map.Entry<ByteBuffer, byte[]> entry : writeBehindPuts.entrySet())
+                flushBatch.put(entry.getKey().array(), entry.getValue());
+            db.write(flushBatch);
+        } finally {
+            try {
+                flushBatch.close();
+            } catch (IOException e) {
+                throw new BlockStoreException("could not close write-behind batch.", e);
             }
-        } catch (AddressFormatException e) {
-            if (instrument)
-                endMethod("removeUnspentTransactionOutput");
-            return;
-        } catch (ScriptException e) {
-            if (instrument)
-                endMethod("removeUnspentTransactionOutput");
-            return;
         }
-        bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-        bb.put(hashBytes);
-        bb.put(out.getHash().getBytes());
-        bb.putInt((int) out.getIndex());
-        batchDelete(bb.array());
-
-        if (instrument)
-            endMethod("removeUnspentTransactionOutput");
+        writeBehindPuts.clear();
+        writeBehindDeletes.clear();
+        writeBehindFresh.clear();
+        writeBehindFreshTxs.clear();
+        FLUSH_TIME.stopTimer(start);
+        // Nothing may have been verified yet, e.g. when flushing right after the store was created.
+        log.info("Flushed write-behind buffer at height {}: {} puts, {} deletes, {} cancelled",
+                verifiedChainHeadBlock != null ? verifiedChainHeadBlock.getHeight() : "unknown", puts, deletes,
+                writeBehindCancelled);
+        writeBehindCancelled = 0;
     }
 
-    // Instrumentation of bloom filter to check theory
-    // matches reality. Without this initial chain sync takes
-    // 50-75% longer.
-    long hasCall;
-    long hasTrue;
-    long hasFalse;
+    @Override
+    public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        long start = Metrics.startTimer();
+        try {
+            byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
+
+            if (autoCommit) {
+                utxoCache.remove(ByteBuffer.wrap(key));
+            } else {
+                utxoUncommittedDeletedCache.add(ByteBuffer.wrap(key));
+                utxoUncommittedCache.remove(ByteBuffer.wrap(key));
+            }
+
+            batchDelete(key);
+            // could run this and the above in parallel
+            // Need to check the metrics to see if worth the effort
+
+            // TODO storing as byte[] hash to save space. But think should just
+            // store as String of address. Might be faster. Need to test.
+            ByteBuffer bb = ByteBuffer.allocate(57);
+            Address a;
+            byte[] hashBytes = null;
+            try {
+                String address = out.getAddress();
+                if (address == null || address.equals("")) {
+                    Script sc = out.getScript();
+                    a = sc.getToAddress(params);
+                    hashBytes = a.getHash160();
+                } else {
+                    a = Address.fromBase58(params, out.getAddress());
+                    hashBytes = a.getHash160();
+                }
+            } catch (AddressFormatException e) {
+                return;
+            } catch (ScriptException e) {
+                return;
+            }
+            bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
+            bb.put(hashBytes);
+            bb.put(out.getHash().getBytes());
+            bb.putInt((int) out.getIndex());
+            batchDelete(bb.array());
+        } finally {
+            REMOVE_OUTPUT_TIME.stopTimer(start);
+        }
+    }
 
+    // The bloom filter counters check theory matches reality. Without
+    // the filter initial chain sync takes 50-75% longer.
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
-        if (instrument)
-            beginMethod("hasUnspentOutputs");
-        hasCall++;
         if (!bloom.wasAdded(hash)) {
-            if (instrument)
-                endMethod("hasUnspentOutputs");
-            hasFalse++;
+            HAS_UNSPENT_BLOOM_NEGATIVE.inc();
             return false;
         }
-        // no index is fine as will find any entry with any index...
-        // TODO should I be checking uncommitted inserts/deletes???
-        byte[] key = getTxKey(KeyType.OPENOUT_ALL, hash);
-        byte[] subResult = new byte[key.length];
-        DBIterator iterator = db.iterator();
-        for (iterator.seek(key); iterator.hasNext();) {
-            byte[] result = iterator.peekNext().getKey();
-            System.arraycopy(result, 0, subResult, 0, subResult.length);
-            if (Arrays.equals(key, subResult)) {
-                hasTrue++;
-                try {
-                    iterator.close();
-                } catch (IOException e) {
-                    log.error("Error closing iterator", e);
+        long start = Metrics.startTimer();
+        boolean found = false;
+        try {
+            // First outputs that are not on disk yet.
+            if ((!autoCommit && uncommited != null && !uncommited.isEmpty()) || !writeBehindPuts.isEmpty()) {
+                for (int i = 0; i < numOutputs && !found; i++)
+                    found = isPutInMemory(ByteBuffer.wrap(getTxKey(KeyType.OPENOUT_ALL, hash, i)));
+                if (found)
+                    return true;
+            }
+            // no index is fine as will find any entry with any index...
+            // but skip entries that are deleted in memory.
+            byte[] key = getTxKey(KeyType.OPENOUT_ALL, hash);
+            byte[] subResult = new byte[key.length];
+            DBIterator iterator = db.iterator();
+            try {
+                for (iterator.seek(key); iterator.hasNext(); iterator.next()) {
+                    byte[] result = iterator.peekNext().getKey();
+                    System.arraycopy(result, 0, subResult, 0, subResult.length);
+                    if (!Arrays.equals(key, subResult))
+                        break;
+                    if (!isDeletedInMemory(ByteBuffer.wrap(result))) {
+                        found = true;
+                        break;
+                    }
                 }
-                if (instrument)
-                    endMethod("hasUnspentOutputs");
-                return true;
-            } else {
-                hasFalse++;
+            } finally {
                 try {
                     iterator.close();
                 } catch (IOException e) {
                     log.error("Error closing iterator", e);
                 }
-                if (instrument)
-                    endMethod("hasUnspentOutputs");
-                return false;
             }
+            return found;
+        } finally {
+            (found ? HAS_UNSPENT_TRUE : HAS_UNSPENT_FALSE).inc();
+            HAS_UNSPENT_TIME.stopTimer(start);
         }
-        try {
-            iterator.close();
-        } catch (IOException e) {
-            log.error("Error closing iterator", e);
-        }
-        hasFalse++;
-        if (instrument)
-            endMethod("hasUnspentOutputs");
-        return false;
     }
 
     @Override
@@ -980,8 +1088,6 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
-        if (instrument)
-            beginMethod("setVerifiedChainHead");
         Sha256Hash hash = chainHead.getHeader().getHash();
         this.verifiedChainHeadHash = hash;
         this.verifiedChainHeadBlock = chainHead;
@@ -989,8 +1095,6 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
         removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
-        if (instrument)
-            endMethod("setVerifiedChainHead");
     }
 
     void removeUndoableBlocksWhereHeightIsLessThan(int height) {
@@ -1025,8 +1129,6 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     }
 
-    WriteBatch batch;
-
     @Override
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         // This is often called twice in row! But they are not nested
@@ -1035,26 +1137,36 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         if (!autoCommit) {
             return;
         }
-        if (instrument)
-            beginMethod("beginDatabaseBatchWrite");
 
-        batch = db.createWriteBatch();
         uncommited = new HashMap<>();
         uncommitedDeletes = new HashSet<>();
+        uncommitedFresh = new HashSet<>();
         utxoUncommittedCache = new HashMap<>();
         utxoUncommittedDeletedCache = new HashSet<>();
         autoCommit = false;
-        if (instrument)
-            endMethod("beginDatabaseBatchWrite");
     }
 
     @Override
-    public void commitDatabaseBatchWrite() throws BlockStoreException {
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        long start = Metrics.startTimer();
+        // Each key is either in uncommited or in uncommitedDeletes, so the
+        // order of the writes does not matter.
+        WriteBatch batch = db.createWriteBatch();
+        for (Map.Entry<ByteBuffer, byte[]> entry : uncommited.entrySet()) {
+            if (isWriteBehindKey(entry.getKey().array()))
+                mergeIntoWriteBehind(entry.getKey(), entry.getValue(), uncommitedFresh.contains(entry.getKey()));
+            else
+                batch.put(entry.getKey().array(), entry.getValue());
+        }
+        for (ByteBuffer key : uncommitedDeletes) {
+            if (isWriteBehindKey(key.array()))
+                mergeIntoWriteBehind(key, null, uncommitedFresh.contains(key));
+            else
+                batch.delete(key.array());
+        }
         uncommited = null;
         uncommitedDeletes = null;
-        if (instrument)
-            beginMethod("commitDatabaseBatchWrite");
-
+        uncommitedFresh = null;
         db.write(batch);
         // order of these is not important as we only allow entry to be in one
         // or the other.
@@ -1073,40 +1185,26 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
         try {
             batch.close();
-            batch = null;
         } catch (IOException e) {
             log.error("Error in db commit.", e);
             throw new BlockStoreException("could not close batch.");
         }
+        COMMIT_TIME.stopTimer(start);
 
-        if (instrument)
-            endMethod("commitDatabaseBatchWrite");
-
-        if (instrument && verifiedChainHeadBlock.getHeight() % 1000 == 0) {
-            log.info("Height: " + verifiedChainHeadBlock.getHeight());
-            dumpStats();
-            if (verifiedChainHeadBlock.getHeight() == exitBlock) {
-                System.err.println("Exit due to exitBlock set");
-                System.exit(1);
-            }
-        }
+        if (writeBehindMaxKeys > 0 && (getWriteBehindSize() >= writeBehindMaxKeys
+                || Utils.currentTimeMillis() - writeBehindLastFlush >= writeBehindMaxMillis))
+            flushWriteBehind();
     }
 
     @Override
     public void abortDatabaseBatchWrite() throws BlockStoreException {
-        try {
-            uncommited = null;
-            uncommitedDeletes = null;
-            utxoUncommittedCache = null;
-            utxoUncommittedDeletedCache = null;
-            autoCommit = true;
-            if (batch != null) {
-                batch.close();
-                batch = null;
-            }
-        } catch (IOException e) {
-            throw new BlockStoreException("could not close batch in abort.", e);
-        }
+        // Nothing reached the db or the write-behind buffer yet.
+        uncommited = null;
+        uncommitedDeletes = null;
+        uncommitedFresh = null;
+        utxoUncommittedCache = null;
+        utxoUncommittedDeletedCache = null;
+        autoCommit = true;
     }
 
     public void resetStore() {
@@ -1116,7 +1214,12 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             db.close();
             uncommited = null;
             uncommitedDeletes = null;
+            uncommitedFresh = null;
             autoCommit = true;
+            writeBehindPuts.clear();
+            writeBehindDeletes.clear();
+            writeBehindFresh.clear();
+            writeBehindFreshTxs.clear();
             bloom = new BloomFilter();
             utxoCache = new LRUCache(openOutCache, 0.75f);
         } catch (IOException e) {
@@ -17,6 +17,7 @@
 package org.bitcoinj.store;
 
 import org.bitcoinj.core.*;
+import org.bitcoinj.script.ScriptException;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
@@ -137,6 +138,15 @@ class TransactionalHashMap<KeyType, ValueType> {
         }
         return valueTypes;
     }
+
+    public List<KeyType> keys() {
+        List<KeyType> keyTypes = new ArrayList<>();
+        for (KeyType keyType : map.keySet()) {
+            if (get(keyType) != null)
+                keyTypes.add(keyType);
+        }
+        return keyTypes;
+    }
     
     public void put(KeyType key, ValueType value) {
         if (Boolean.TRUE.equals(inTransaction.get())) {
@@ -241,7 +251,8 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     private TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag> blockMap;
     private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
     //TODO: Use something more suited to remove-heavy use?
-    private TransactionalHashMap<StoredTransactionOutPoint, UTXO> transactionOutputMap;
+    // Outputs are kept as their compact records, see UTXO#toCompactBytes.
+    private TransactionalHashMap<StoredTransactionOutPoint, byte[]> transactionOutputMap;
     private StoredBlock chainHead;
     private StoredBlock verifiedChainHead;
     private int fullStoreDepth;
@@ -352,13 +363,14 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     @Nullable
     public synchronized UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
-        return transactionOutputMap.get(new StoredTransactionOutPoint(hash, index));
+        byte[] record = transactionOutputMap.get(new StoredTransactionOutPoint(hash, index));
+        return record != null ? UTXO.fromCompactBytes(hash, index, record) : null;
     }
 
     @Override
     public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
-        transactionOutputMap.put(new StoredTransactionOutPoint(out), out);
+        transactionOutputMap.put(new StoredTransactionOutPoint(out), out.toCompactBytes());
     }
 
     @Override
@@ -416,13 +428,19 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         // This is *NOT* optimal: We go through all the outputs and select the ones we are looking for.
         // If someone uses this store for production then they have a lot more to worry about than an inefficient impl :)
         List<UTXO> foundOutputs = new ArrayList<>();
-        List<UTXO> outputsList = transactionOutputMap.values();
-        for (UTXO output : outputsList) {
-            for (Address address : addresses) {
-                if (output.getAddress().equals(address.toString())) {
-                    foundOutputs.add(output);
-                }
+        Set<Address> wanted = new HashSet<>(addresses);
+        for (StoredTransactionOutPoint outPoint : transactionOutputMap.keys()) {
+            UTXO output = UTXO.fromCompactBytes(outPoint.getHash(), outPoint.getIndex(),
+                    transactionOutputMap.get(outPoint));
+            Address address;
+            try {
+                address = output.getScript().getToAddress(params, true);
+            } catch (ScriptException e) {
+                continue;
             }
+            if (wanted.contains(address))
+                foundOutputs.add(new UTXO(output.getHash(), output.getIndex(), output.getValue(), output.getHeight(),
+                        output.isCoinbase(), output.getScript(), address.toString()));
         }
         return foundOutputs;
     }
@@ -18,6 +18,8 @@ package org.bitcoinj.store;
 
 import org.bitcoinj.core.NetworkParameters;
 
+import javax.sql.DataSource;
+
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -98,6 +100,21 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         super(params, DATABASE_CONNECTION_URL_PREFIX + hostname + "/" + dbName, fullStoreDepth, username, password, null);
     }
 
+    /**
+     * Creates a new MySQLFullPrunedBlockStore that takes its connections from the given data source, usually a
+     * connection pool. Adding {@code rewriteBatchedStatements=true} to the pool's JDBC url lets the driver send the
+     * batched UTXO writes as multi-row statements.
+     *
+     * @param params A copy of the NetworkParameters used
+     * @param dataSource The data source to take connections from
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @throws BlockStoreException if the database fails to open for any reason
+     */
+    public MySQLFullPrunedBlockStore(NetworkParameters params, DataSource dataSource, int fullStoreDepth)
+            throws BlockStoreException {
+        super(params, dataSource, fullStoreDepth, null);
+    }
+
     @Override
     protected String getDuplicateKeyErrorCode() {
         return MYSQL_DUPLICATE_KEY_ERROR_CODE;
@@ -23,6 +23,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import javax.sql.DataSource;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.sql.PreparedStatement;
@@ -126,6 +127,21 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         super(params, DATABASE_CONNECTION_URL_PREFIX + hostname + "/" + dbName, fullStoreDepth, username, password, schemaName);
     }
 
+    /**
+     * Creates a new PostgresFullPrunedBlockStore that takes its connections from the given data source, usually a
+     * connection pool.
+     *
+     * @param params A copy of the NetworkParameters used.
+     * @param dataSource The data source to take connections from.
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe).
+     * @param schemaName The name of the schema to put the tables in.  May be null if no schema is being used.
+     * @throws BlockStoreException If the database fails to open for any reason.
+     */
+    public PostgresFullPrunedBlockStore(NetworkParameters params, DataSource dataSource, int fullStoreDepth,
+                                        @Nullable String schemaName) throws BlockStoreException {
+        super(params, dataSource, fullStoreDepth, schemaName);
+    }
+
     @Override
     protected String getDuplicateKeyErrorCode() {
         return POSTGRES_DUPLICATE_KEY_ERROR_CODE;
@@ -192,6 +192,35 @@ public class SPVBlockStore implements BlockStore {
         } finally { lock.unlock(); }
     }
 
+    /**
+     * Replaces the contents of the ring buffer with the headers of the given snapshot, copied in one bulk write, and
+     * sets the chain head to the snapshot's last header. If the snapshot holds more headers than this store's capacity,
+     * only the most recent ones are kept. This is intended for freshly created stores, as a faster alternative to
+     * {@link CheckpointManager#checkpoint(NetworkParameters, InputStream, BlockStore, long)}.
+     */
+    public void loadHeaderSnapshot(HeaderSnapshot snapshot) throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            int count = Math.min(snapshot.getNumHeaders(), capacity);
+            buffer.position(FILE_PROLOGUE_BYTES);
+            buffer.put(snapshot.getRecords(count));
+            int cursor = buffer.position();
+            // Wipe whatever was in the rest of the ring, so it can't be found by get().
+            byte[] zeros = new byte[RECORD_SIZE];
+            while (buffer.position() < getFileSize(capacity))
+                buffer.put(zeros);
+            setRingCursor(buffer, cursor);
+            blockCache.clear();
+            notFoundCache.clear();
+            setChainHead(snapshot.getChainHead());
+            log.info("Loaded {} headers from snapshot, chain head is now at height {}", count,
+                    snapshot.getChainHead().getHeight());
+        } finally { lock.unlock(); }
+    }
+
     @Override
     @Nullable
     public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
@@ -208,9 +237,14 @@ public class SPVBlockStore implements BlockStore {
 
             // Starting from the current tip of the ring work backwards until we have either found the block or
             // wrapped around.
+            final int fileSize = getFileSize(capacity);
             int cursor = getRingCursor(buffer);
+            if (cursor == fileSize) {
+                // The last record was written to the end of the file, which is the same ring position as the start.
+                // Without this the loop below would never get back to its starting point.
+                cursor = FILE_PROLOGUE_BYTES;
+            }
             final int startingPoint = cursor;
-            final int fileSize = getFileSize(capacity);
             final byte[] targetHashBytes = hash.getBytes();
             byte[] scratch = new byte[32];
             do {
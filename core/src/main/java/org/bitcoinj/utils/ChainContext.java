@@ -0,0 +1,144 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Moving window over the timestamps and difficulty targets of the most recent blocks of the best chain, so that
+ * checks which look back in the chain, like the median time past and difficulty transitions, don't have to walk
+ * through the block store. The window holds up to a fixed number of contiguous blocks ending at the chain head it
+ * was last moved to. This class is NOT thread safe.
+ *
+ * @see org.bitcoinj.core.NetworkParameters#checkDifficultyTransitions(StoredBlock, org.bitcoinj.core.Block, BlockStore, ChainContext)
+ */
+public class ChainContext {
+    private final Sha256Hash[] hashes;
+    private final long[] timestamps;
+    private final long[] difficultyTargets;
+
+    /** Height of the most recent block in the window. */
+    private int headHeight;
+
+    /** Number of blocks in the window, ending at the head. */
+    private int size = 0;
+
+    /**
+     * @param capacity the number of blocks to keep.
+     */
+    public ChainContext(final int capacity) {
+        checkArgument(capacity > 0, "capacity must be positive");
+        hashes = new Sha256Hash[capacity];
+        timestamps = new long[capacity];
+        difficultyTargets = new long[capacity];
+    }
+
+    /**
+     * Moves the window to the given chain head. Extending the chain and going back to a block in the window are
+     * cheap. On a re-org the new blocks are read from the store back to where they branch off the window; if they
+     * don't join it, for example because the store doesn't have their ancestors anymore, the window starts over at the
+     * new chain head. Nothing is lost that way: checks fall back to the block store for blocks the window doesn't hold.
+     */
+    public void setChainHead(final StoredBlock chainHead, final BlockStore store) throws BlockStoreException {
+        if (contains(chainHead)) {
+            size -= headHeight - chainHead.getHeight();
+            headHeight = chainHead.getHeight();
+            return;
+        }
+        final List<StoredBlock> branch = new ArrayList<>();
+        StoredBlock cursor = chainHead;
+        while (true) {
+            branch.add(cursor);
+            final int prevHeight = cursor.getHeight() - 1;
+            if (contains(prevHeight, cursor.getHeader().getPrevBlockHash())) {
+                size -= headHeight - prevHeight;
+                headHeight = prevHeight;
+                break;
+            }
+            if (size == 0 || prevHeight < getLowestHeight() || branch.size() == hashes.length
+                    || (cursor = cursor.getPrev(store)) == null) {
+                size = 0;
+                break;
+            }
+        }
+        for (int i = branch.size() - 1; i >= 0; i--)
+            add(branch.get(i));
+    }
+
+    /**
+     * Returns the number of blocks in the window that end with the given block, or 0 if it isn't in the window.
+     */
+    public int getDepth(final StoredBlock block) {
+        if (!contains(block))
+            return 0;
+        return block.getHeight() - getLowestHeight() + 1;
+    }
+
+    /**
+     * Returns the height of the oldest block in the window.
+     */
+    public int getLowestHeight() {
+        return headHeight - size + 1;
+    }
+
+    /**
+     * Returns the timestamp of the block at the given height, which must be in the window.
+     */
+    public long getTimeSeconds(final int height) {
+        return timestamps[slot(height)];
+    }
+
+    /**
+     * Returns the difficulty target, in compact form, of the block at the given height, which must be in the window.
+     */
+    public long getDifficultyTarget(final int height) {
+        return difficultyTargets[slot(height)];
+    }
+
+    private void add(final StoredBlock block) {
+        final int height = block.getHeight();
+        checkArgument(size == 0 || height == headHeight + 1, "Block at height %s doesn't follow the window", height);
+        final int slot = height % hashes.length;
+        hashes[slot] = block.getHeader().getHash();
+        timestamps[slot] = block.getHeader().getTimeSeconds();
+        difficultyTargets[slot] = block.getHeader().getDifficultyTarget();
+        headHeight = height;
+        size = Math.min(size + 1, hashes.length);
+    }
+
+    private boolean contains(final StoredBlock block) {
+        return contains(block.getHeight(), block.getHeader().getHash());
+    }
+
+    private boolean contains(final int height, final Sha256Hash hash) {
+        return size > 0 && height <= headHeight && height >= getLowestHeight() && hashes[height % hashes.length].equals(hash);
+    }
+
+    private int slot(final int height) {
+        checkArgument(size > 0 && height <= headHeight && height >= getLowestHeight(),
+                "Height %s is not in the window", height);
+        return height % hashes.length;
+    }
+}
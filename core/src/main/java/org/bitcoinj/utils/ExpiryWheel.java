@@ -0,0 +1,174 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.bitcoinj.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A hashed timing wheel that expires items at a given time of {@link Utils#currentTimeMillis()}, so it follows
+ * the mock clock in tests. Scheduling and cancelling are O(1) regardless of how many items are pending, and a single
+ * daemon thread advances the wheel once per tick. All items that became due during a tick are handed to the
+ * {@link Listener} together, so callers can act on them in one batch.</p>
+ *
+ * <p>Items expire at most one tick late, never early. Each item can be pending at most once; scheduling it again
+ * replaces its previous deadline. Items are compared with {@link Object#equals(Object)}.</p>
+ */
+public class ExpiryWheel<T> {
+    private static final Logger log = LoggerFactory.getLogger(ExpiryWheel.class);
+
+    /** Receives the items that expired during one tick of the wheel. */
+    public interface Listener<T> {
+        /** Called on the wheel's thread with all items that became due during the last tick, never with an empty list. */
+        void onExpired(List<T> items);
+    }
+
+    private static class Entry<T> {
+        final T item;
+        final long deadlineTick;
+
+        Entry(T item, long deadlineTick) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final List<Set<Entry<T>>> buckets;
+    private final Map<T, Entry<T>> entries = new HashMap<>();
+    private final Listener<T> listener;
+    private final ScheduledExecutorService executor;
+    // The next tick to be processed. Guarded by this.
+    private long nextTick;
+
+    /**
+     * Creates and starts a wheel.
+     *
+     * @param name the name of the wheel's thread
+     * @param tickMillis the resolution of the wheel, in milliseconds
+     * @param ticksPerWheel the number of buckets; deadlines further away than one revolution stay in their bucket
+     *                      for several revolutions
+     * @param listener receives the expired items
+     */
+    public ExpiryWheel(String name, long tickMillis, int ticksPerWheel, Listener<T> listener) {
+        checkArgument(tickMillis > 0, "tickMillis must be positive");
+        checkArgument(ticksPerWheel > 0, "ticksPerWheel must be positive");
+        this.tickMillis = tickMillis;
+        this.listener = checkNotNull(listener);
+        this.buckets = new ArrayList<>(ticksPerWheel);
+        for (int i = 0; i < ticksPerWheel; i++)
+            buckets.add(new HashSet<Entry<T>>());
+        this.startMillis = Utils.currentTimeMillis();
+        this.executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(name));
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                advance();
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules the given item to expire at the given time, replacing any previous deadline of the same item.
+     * Deadlines in the past expire on the next tick.
+     *
+     * @param item the item to schedule
+     * @param deadlineMillis the time, as returned by {@link Utils#currentTimeMillis()}
+     */
+    public synchronized void schedule(T item, long deadlineMillis) {
+        checkNotNull(item);
+        removeEntry(item);
+        // Round up, so that an item never expires before its deadline.
+        long deadlineTick = Math.max((deadlineMillis - startMillis + tickMillis - 1) / tickMillis, nextTick);
+        Entry<T> entry = new Entry<>(item, deadlineTick);
+        entries.put(item, entry);
+        bucketFor(deadlineTick).add(entry);
+    }
+
+    /**
+     * Removes the given item from the wheel.
+     *
+     * @return true if the item was pending
+     */
+    public synchronized boolean cancel(T item) {
+        return removeEntry(item);
+    }
+
+    /** Returns true if the given item is waiting to expire. */
+    public synchronized boolean isPending(T item) {
+        return entries.containsKey(item);
+    }
+
+    /** Returns the number of items waiting to expire. */
+    public synchronized int getPendingCount() {
+        return entries.size();
+    }
+
+    /** Stops the wheel's thread. Pending items will not expire anymore. */
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    private boolean removeEntry(T item) {
+        Entry<T> entry = entries.remove(item);
+        if (entry == null)
+            return false;
+        bucketFor(entry.deadlineTick).remove(entry);
+        return true;
+    }
+
+    private Set<Entry<T>> bucketFor(long tick) {
+        return buckets.get((int) (tick % buckets.size()));
+    }
+
+    private void advance() {
+        List<T> expired = new ArrayList<>();
+        synchronized (this) {
+            // Catch up if ticks were delayed, e.g. by a long running listener or a suspended process.
+            long currentTick = (Utils.currentTimeMillis() - startMillis) / tickMillis;
+            for (; nextTick <= currentTick; nextTick++) {
+                Iterator<Entry<T>> it = bucketFor(nextTick).iterator();
+                while (it.hasNext()) {
+                    Entry<T> entry = it.next();
+                    if (entry.deadlineTick <= nextTick) {
+                        it.remove();
+                        entries.remove(entry.item);
+                        expired.add(entry.item);
+                    }
+                }
+            }
+        }
+        if (expired.isEmpty())
+            return;
+        try {
+            listener.onExpired(expired);
+        } catch (Exception e) {
+            // Don't let a failing listener kill the wheel.
+            log.error("Expiry listener threw", e);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A process wide registry of named counters, gauges and histograms that bitcoinj updates on its hot paths, for
+ * example the time it takes to connect a block, UTXO cache hits of the full block stores, script verification time,
+ * messages received from peers, lock hold times and the depth of the user thread queue.</p>
+ *
+ * <p>Metrics are disabled by default, in which case recording costs a single volatile read. Enable them with
+ * {@link #setEnabled(boolean)}, ideally before any other bitcoinj objects are created: locks made by
+ * {@link Threading#lock(String)} only record their hold times if metrics were enabled when they were created. Such
+ * locks still take part in lock cycle detection. Use {@link #startReporting(Sink, long, TimeUnit)} to
+ * periodically hand all values to a {@link Sink}, or {@link #report(Sink)} to do so once.</p>
+ *
+ * <p>Timers are histograms of nanoseconds: get a start time from {@link #startTimer()} and pass it to
+ * {@link Histogram#stopTimer(long)}.</p>
+ */
+public class Metrics {
+    private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+
+    private static volatile boolean enabled = false;
+
+    private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    // Guarded by Metrics.class.
+    private static ScheduledExecutorService reporter;
+
+    /** A monotonically increasing count of events. */
+    public static class Counter {
+        private final AtomicLong count = new AtomicLong();
+
+        /** Counts one event, if metrics are enabled. */
+        public void inc() {
+            if (enabled)
+                count.incrementAndGet();
+        }
+
+        /** Counts the given number of events, if metrics are enabled. */
+        public void add(long n) {
+            if (enabled)
+                count.addAndGet(n);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+    }
+
+    /** A value that is sampled when metrics are reported, e.g. the size of a queue. */
+    public interface Gauge {
+        long getValue();
+    }
+
+    /**
+     * A distribution of non-negative values, kept in power of two buckets. Percentiles are therefore approximate:
+     * they are reported as the upper bound of the bucket they fall into, capped at the maximum.
+     */
+    public static class Histogram {
+        // Bucket 0 holds zero, bucket i holds values in [2^(i-1), 2^i).
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        /** Records a value, if metrics are enabled. Negative values are recorded as zero. */
+        public void record(long value) {
+            if (!enabled)
+                return;
+            if (value < 0)
+                value = 0;
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value));
+        }
+
+        /** Records the nanoseconds since the given value of {@link #startTimer()}. */
+        public void stopTimer(long startNanos) {
+            if (startNanos != 0)
+                record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSum() {
+            return sum.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public long getMean() {
+            long count = getCount();
+            return count == 0 ? 0 : getSum() / count;
+        }
+
+        /** Returns the approximate value below which the given fraction of recorded values fall. */
+        public long getPercentile(double fraction) {
+            checkArgument(fraction >= 0 && fraction <= 1, "fraction must be between 0 and 1");
+            long count = getCount();
+            if (count == 0)
+                return 0;
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0)
+                    return Math.min(i == 0 ? 0 : i == 63 ? Long.MAX_VALUE : (1L << i) - 1, getMax());
+            }
+            return getMax();
+        }
+
+        private void reset() {
+            for (int i = 0; i < buckets.length(); i++)
+                buckets.set(i, 0);
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+    }
+
+    /** Receives the values of all metrics, e.g. to log them or to export them to a monitoring system. */
+    public interface Sink {
+        /** Called with all metrics, sorted by name. Histograms are live and may change while they are read. */
+        void report(SortedMap<String, Long> counters, SortedMap<String, Long> gauges,
+                    SortedMap<String, Histogram> histograms);
+    }
+
+    /** A sink that writes all metrics to the log, including the rate of each counter since the last report. */
+    public static class LoggingSink implements Sink {
+        private final Map<String, Long> lastCounts = new HashMap<>();
+        private long lastReportMillis = System.currentTimeMillis();
+
+        @Override
+        public synchronized void report(SortedMap<String, Long> counters, SortedMap<String, Long> gauges,
+                                        SortedMap<String, Histogram> histograms) {
+            long now = System.currentTimeMillis();
+            double seconds = Math.max(now - lastReportMillis, 1) / 1000.0;
+            lastReportMillis = now;
+            for (Map.Entry<String, Long> entry : counters.entrySet()) {
+                Long last = lastCounts.put(entry.getKey(), entry.getValue());
+                double rate = (entry.getValue() - (last != null ? last : 0)) / seconds;
+                log.info("{}: count={} rate={}/s", entry.getKey(), entry.getValue(), String.format("%.1f", rate));
+            }
+            for (Map.Entry<String, Long> entry : gauges.entrySet())
+                log.info("{}: value={}", entry.getKey(), entry.getValue());
+            for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+                Histogram h = entry.getValue();
+                if (h.getCount() == 0)
+                    continue;
+                log.info("{}: count={} mean={} p50={} p99={} max={}", entry.getKey(), h.getCount(), h.getMean(),
+                        h.getPercentile(0.5), h.getPercentile(0.99), h.getMax());
+            }
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /** Turns recording of all metrics on or off. */
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Returns the counter with the given name, creating it if needed. */
+    public static Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter newCounter = new Counter();
+            counter = counters.putIfAbsent(name, newCounter);
+            if (counter == null)
+                counter = newCounter;
+        }
+        return counter;
+    }
+
+    /** Returns the histogram with the given name, creating it if needed. */
+    public static Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram newHistogram = new Histogram();
+            histogram = histograms.putIfAbsent(name, newHistogram);
+            if (histogram == null)
+                histogram = newHistogram;
+        }
+        return histogram;
+    }
+
+    /** Registers a gauge under the given name, replacing any gauge that was registered under that name before. */
+    public static void registerGauge(String name, Gauge gauge) {
+        gauges.put(name, checkNotNull(gauge));
+    }
+
+    public static void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * Returns the current time for a timer, to be passed to {@link Histogram#stopTimer(long)} later. Returns 0 if
+     * metrics are disabled, so that nothing will be recorded.
+     */
+    public static long startTimer() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /** Hands the current values of all metrics to the given sink, on the calling thread. */
+    public static void report(Sink sink) {
+        SortedMap<String, Long> counterValues = new TreeMap<>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet())
+            counterValues.put(entry.getKey(), entry.getValue().getCount());
+        SortedMap<String, Long> gaugeValues = new TreeMap<>();
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            try {
+                gaugeValues.put(entry.getKey(), entry.getValue().getValue());
+            } catch (RuntimeException e) {
+                log.warn("Gauge " + entry.getKey() + " threw", e);
+            }
+        }
+        sink.report(counterValues, gaugeValues, new TreeMap<>(histograms));
+    }
+
+    /**
+     * Enables metrics and reports them to the given sink at a fixed rate, on a daemon thread. Replaces any previous
+     * periodic reporting.
+     */
+    public static synchronized void startReporting(final Sink sink, long period, TimeUnit unit) {
+        checkNotNull(sink);
+        checkArgument(period > 0, "period must be positive");
+        stopReporting();
+        setEnabled(true);
+        reporter = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("Metrics reporter"));
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    report(sink);
+                } catch (Exception e) {
+                    log.error("Metrics sink threw", e);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /** Stops periodic reporting. Metrics stay enabled. */
+    public static synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    /** Sets all counters and histograms back to zero, e.g. between benchmark runs. */
+    public static void reset() {
+        for (Counter counter : counters.values())
+            counter.count.set(0);
+        for (Histogram histogram : histograms.values())
+            histogram.reset();
+    }
+}
@@ -26,7 +26,10 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Date;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -94,6 +97,12 @@ public class Threading {
             super("bitcoinj user thread");
             setDaemon(true);
             tasks = new LinkedBlockingQueue<>();
+            Metrics.registerGauge("userthread.queue_depth", new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return tasks.size();
+                }
+            });
             start();
         }
 
@@ -150,11 +159,197 @@ public class Threading {
     private static CycleDetectingLockFactory.Policy policy;
     public static CycleDetectingLockFactory factory;
 
+    /**
+     * Returns a new lock that follows the current cycle detection policy. If {@link Metrics} are enabled, the lock
+     * also records how long it is held into the histogram "lock.&lt;name&gt;.hold.time". It still takes part in
+     * cycle detection and otherwise behaves like the lock returned without metrics.
+     */
     public static ReentrantLock lock(String name) {
         if (Utils.isAndroidRuntime())
             return new ReentrantLock(true);
-        else
-            return factory.newReentrantLock(name);
+        ReentrantLock lock = factory.newReentrantLock(name);
+        return Metrics.isEnabled() ? new HoldTimeLock(name, lock) : lock;
+    }
+
+    /**
+     * A lock that records the time from the outermost acquisition until the matching release. The lock this class
+     * inherits from does the locking, so that fairness, queue and condition state are those of a plain lock. While it
+     * is held, the thread also holds the wrapped cycle detecting lock, which is never contended and only there to
+     * detect cycles.
+     */
+    private static class HoldTimeLock extends ReentrantLock {
+        private final ReentrantLock cycleDetector;
+        private final Metrics.Histogram holdTime;
+        // Only accessed by the thread that holds the lock.
+        private long acquiredAt;
+
+        HoldTimeLock(String name, ReentrantLock cycleDetector) {
+            super(cycleDetector.isFair());
+            this.cycleDetector = cycleDetector;
+            holdTime = Metrics.histogram("lock." + name + ".hold.time");
+        }
+
+        @Override
+        public void lock() {
+            super.lock();
+            acquired();
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            super.lockInterruptibly();
+            acquired();
+        }
+
+        @Override
+        public boolean tryLock() {
+            if (!super.tryLock())
+                return false;
+            acquired();
+            return true;
+        }
+
+        @Override
+        public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+            if (!super.tryLock(timeout, unit))
+                return false;
+            acquired();
+            return true;
+        }
+
+        @Override
+        public void unlock() {
+            if (getHoldCount() == 1)
+                holdTime.stopTimer(acquiredAt);
+            cycleDetector.unlock();
+            super.unlock();
+        }
+
+        @Override
+        public Condition newCondition() {
+            return new HoldTimeCondition(super.newCondition());
+        }
+
+        @Override
+        public boolean hasWaiters(Condition condition) {
+            return super.hasWaiters(unwrap(condition));
+        }
+
+        @Override
+        public int getWaitQueueLength(Condition condition) {
+            return super.getWaitQueueLength(unwrap(condition));
+        }
+
+        @Override
+        protected Collection<Thread> getWaitingThreads(Condition condition) {
+            return super.getWaitingThreads(unwrap(condition));
+        }
+
+        @Override
+        public String toString() {
+            return cycleDetector.toString();
+        }
+
+        // Called with the lock just acquired. Never blocks, as only threads holding the lock take the cycle detector.
+        private void acquired() {
+            try {
+                cycleDetector.lock();
+            } catch (RuntimeException e) {
+                super.unlock();
+                throw e;
+            }
+            if (getHoldCount() == 1)
+                acquiredAt = Metrics.startTimer();
+        }
+
+        private static Condition unwrap(Condition condition) {
+            return condition instanceof HoldTimeCondition ? ((HoldTimeCondition) condition).condition : condition;
+        }
+
+        // Waiting releases the lock, so it also has to release the cycle detector and stop the hold time.
+        private class HoldTimeCondition implements Condition {
+            private final Condition condition;
+
+            HoldTimeCondition(Condition condition) {
+                this.condition = condition;
+            }
+
+            @Override
+            public void await() throws InterruptedException {
+                int holds = release();
+                try {
+                    condition.await();
+                } finally {
+                    reacquire(holds);
+                }
+            }
+
+            @Override
+            public void awaitUninterruptibly() {
+                int holds = release();
+                try {
+                    condition.awaitUninterruptibly();
+                } finally {
+                    reacquire(holds);
+                }
+            }
+
+            @Override
+            public long awaitNanos(long nanosTimeout) throws InterruptedException {
+                int holds = release();
+                try {
+                    return condition.awaitNanos(nanosTimeout);
+                } finally {
+                    reacquire(holds);
+                }
+            }
+
+            @Override
+            public boolean await(long time, TimeUnit unit) throws InterruptedException {
+                int holds = release();
+                try {
+                    return condition.await(time, unit);
+                } finally {
+                    reacquire(holds);
+                }
+            }
+
+            @Override
+            public boolean awaitUntil(Date deadline) throws InterruptedException {
+                int holds = release();
+                try {
+                    return condition.awaitUntil(deadline);
+                } finally {
+                    reacquire(holds);
+                }
+            }
+
+            @Override
+            public void signal() {
+                condition.signal();
+            }
+
+            @Override
+            public void signalAll() {
+                condition.signalAll();
+            }
+
+            private int release() {
+                if (!isHeldByCurrentThread())
+                    throw new IllegalMonitorStateException();
+                holdTime.stopTimer(acquiredAt);
+                int holds = cycleDetector.getHoldCount();
+                for (int i = 0; i < holds; i++)
+                    cycleDetector.unlock();
+                return holds;
+            }
+
+            private void reacquire(int holds) {
+                for (int i = 0; i < holds; i++)
+                    cycleDetector.lock();
+                acquiredAt = Metrics.startTimer();
+            }
+        }
     }
 
     public static void warnOnLockCycles() {
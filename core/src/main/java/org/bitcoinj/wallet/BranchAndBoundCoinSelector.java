@@ -0,0 +1,188 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link CoinSelector} that searches for a set of outputs whose value matches the target closely enough that no
+ * change output is needed, using the branch and bound search of Bitcoin Core: outputs are considered from the largest
+ * to the smallest, each one either included or left out, and a branch is abandoned as soon as it overshoots the
+ * target by more than the cost of change or can no longer reach it. Among the solutions found the one with the least
+ * excess wins. Avoiding change saves fees now and later, and doesn't create a new output that links to the payment.</p>
+ *
+ * <p>The search visits at most a fixed number of nodes, so it runs in bounded time even for wallets with a very large
+ * number of outputs. If it doesn't find a solution within that budget, the selection is left to a fallback selector,
+ * by default a {@link DefaultCoinSelector}, which is also used to gather everything for balance calculations.</p>
+ *
+ * <p>Candidates from {@link Wallet#calculateAllSpendCandidates()} are already in value order, in which case they are
+ * not sorted again.</p>
+ */
+public class BranchAndBoundCoinSelector implements CoinSelector {
+    /** The default number of search steps before giving up. */
+    public static final int DEFAULT_MAX_TRIES = 100000;
+
+    private final Coin costOfChange;
+    private final int maxTries;
+    private final CoinSelector fallback;
+
+    /**
+     * Creates a selector that accepts up to {@link Transaction#MIN_NONDUST_OUTPUT} of excess, which the wallet would
+     * otherwise turn into a dust change output and therefore adds to the fee.
+     */
+    public BranchAndBoundCoinSelector() {
+        this(Transaction.MIN_NONDUST_OUTPUT, DEFAULT_MAX_TRIES, new DefaultCoinSelector());
+    }
+
+    /**
+     * @param costOfChange the most excess value that is acceptable instead of creating a change output
+     * @param maxTries the maximum number of search steps
+     * @param fallback used if no changeless selection is found
+     */
+    public BranchAndBoundCoinSelector(Coin costOfChange, int maxTries, CoinSelector fallback) {
+        checkArgument(costOfChange.signum() >= 0, "costOfChange must not be negative");
+        checkArgument(maxTries > 0, "maxTries must be positive");
+        this.costOfChange = costOfChange;
+        this.maxTries = maxTries;
+        this.fallback = checkNotNull(fallback);
+    }
+
+    @Override
+    public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+        // Gathering everything, e.g. for the balance, doesn't need a search.
+        if (target.equals(NetworkParameters.MAX_MONEY) || target.signum() <= 0)
+            return fallback.select(target, candidates);
+        List<TransactionOutput> selected = search(target.value, eligible(candidates));
+        if (selected == null)
+            return fallback.select(target, candidates);
+        long total = 0;
+        for (TransactionOutput output : selected)
+            total += output.getValue().value;
+        return new CoinSelection(Coin.valueOf(total), selected);
+    }
+
+    /** Sub-classes can override this to customize which transactions are usable. */
+    protected boolean shouldSelect(Transaction tx) {
+        return tx == null || DefaultCoinSelector.isSelectable(tx);
+    }
+
+    // Returns the usable candidates, largest first.
+    private List<TransactionOutput> eligible(List<TransactionOutput> candidates) {
+        ArrayList<TransactionOutput> outputs = new ArrayList<>(candidates.size());
+        boolean sorted = true;
+        long previous = Long.MAX_VALUE;
+        for (TransactionOutput output : candidates) {
+            if (!shouldSelect(output.getParentTransaction()))
+                continue;
+            long value = output.getValue().value;
+            if (value <= 0)
+                continue;
+            sorted &= value <= previous;
+            previous = value;
+            outputs.add(output);
+        }
+        if (!sorted) {
+            Collections.sort(outputs, new Comparator<TransactionOutput>() {
+                @Override
+                public int compare(TransactionOutput a, TransactionOutput b) {
+                    return Long.compare(b.getValue().value, a.getValue().value);
+                }
+            });
+        }
+        return outputs;
+    }
+
+    // Returns the best changeless selection from the given outputs, which must be sorted largest first, or null.
+    private List<TransactionOutput> search(long target, List<TransactionOutput> outputs) {
+        int n = outputs.size();
+        long[] values = new long[n];
+        long available = 0;
+        for (int i = 0; i < n; i++) {
+            values[i] = outputs.get(i).getValue().value;
+            available += values[i];
+        }
+        if (available < target)
+            return null;
+        long upperBound = target + costOfChange.value;
+
+        // The current branch: included indexes in ascending order. Outputs before index that aren't included were
+        // left out, outputs from index on are undecided and their sum is available.
+        int[] selection = new int[n];
+        int selectionSize = 0;
+        long value = 0;
+        int index = 0;
+        int[] best = null;
+        long bestExcess = Long.MAX_VALUE;
+
+        for (int tries = 0; tries < maxTries; tries++) {
+            boolean backtrack;
+            if (value + available < target || value > upperBound) {
+                backtrack = true;
+            } else if (value >= target) {
+                long excess = value - target;
+                if (excess < bestExcess) {
+                    bestExcess = excess;
+                    best = new int[selectionSize];
+                    System.arraycopy(selection, 0, best, 0, selectionSize);
+                    if (excess == 0)
+                        break;
+                }
+                backtrack = true;
+            } else {
+                backtrack = false;
+            }
+
+            if (backtrack) {
+                if (selectionSize == 0)
+                    break;  // Searched everything.
+                // Undo the decisions after the last included output, then leave that one out instead.
+                int last = selection[--selectionSize];
+                while (index > last + 1)
+                    available += values[--index];
+                value -= values[last];
+            } else {
+                available -= values[index];
+                // Including an output that is equal to the previous, left out one would repeat a branch already
+                // searched.
+                boolean repeats = index > 0 && values[index] == values[index - 1]
+                        && (selectionSize == 0 || selection[selectionSize - 1] != index - 1);
+                if (!repeats) {
+                    selection[selectionSize++] = index;
+                    value += values[index];
+                }
+                index++;
+            }
+        }
+        if (best == null)
+            return null;
+        List<TransactionOutput> result = new ArrayList<>(best.length);
+        for (int i : best)
+            result.add(outputs.get(i));
+        return result;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>An unlocked session of an encrypted wallet, see {@link Wallet#unlockSession(KeyParameter, long, TimeUnit)}.
+ * It holds the AES key and the private keys that were decrypted with it, so that signing many transactions doesn't
+ * decrypt, and for HD keys re-derive, the same keys again and again.</p>
+ *
+ * <p>The private keys are kept outside of the Java heap, in a fixed size buffer with room for a bounded number of keys.
+ * When the buffer is full the least recently used key is evicted. Evicted keys are overwritten with zeros, as is the
+ * whole buffer and the AES key when the session ends, either explicitly with {@link #close()} or when its lifetime
+ * is over. Keys handed out by the session are ordinary key objects and are subject to garbage collection like any
+ * other decrypted key.</p>
+ */
+public class DecryptedKeyCache {
+    /** The default number of decrypted keys a session holds. */
+    public static final int DEFAULT_MAX_KEYS = 1000;
+
+    private static final int KEY_LENGTH = 32;
+
+    // Ends sessions when their time is up even if nobody uses them anymore. Sessions closed early cancel their task,
+    // which is then dropped from the queue rather than kept around until its delay is over.
+    private static final ScheduledThreadPoolExecutor EXPIRY = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DecryptedKeyCache expiry");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    static {
+        EXPIRY.setRemoveOnCancelPolicy(true);
+    }
+
+    private final ByteBuffer slots;
+    private final long expiryTimeMillis;
+    // Maps the encoded public key to the slot holding its private key, in access order.
+    private final LinkedHashMap<ByteBuffer, Integer> index;
+    private final int[] freeSlots;
+    private int numFreeSlots;
+    @Nullable private KeyParameter aesKey;
+    private final ScheduledFuture<?> expiryTask;
+
+    /**
+     * Starts a session. The AES key is copied, so the caller may wipe its own copy.
+     *
+     * @param aesKey the key the wallet is encrypted with, which must have been checked by the caller
+     * @param maxKeys how many decrypted keys to hold at most
+     * @param lifetime how long the session lasts
+     */
+    public DecryptedKeyCache(KeyParameter aesKey, int maxKeys, long lifetime, TimeUnit unit) {
+        checkArgument(maxKeys > 0, "maxKeys must be positive");
+        checkArgument(lifetime > 0, "lifetime must be positive");
+        this.aesKey = new KeyParameter(aesKey.getKey());
+        this.slots = ByteBuffer.allocateDirect(maxKeys * KEY_LENGTH);
+        this.index = new LinkedHashMap<>(16, 0.75f, true);
+        this.freeSlots = new int[maxKeys];
+        for (int i = 0; i < maxKeys; i++)
+            freeSlots[i] = maxKeys - 1 - i;
+        this.numFreeSlots = maxKeys;
+        long lifetimeMillis = unit.toMillis(lifetime);
+        this.expiryTimeMillis = Utils.currentTimeMillis() + lifetimeMillis;
+        this.expiryTask = EXPIRY.schedule(new Runnable() {
+            @Override
+            public void run() {
+                isOpen();
+            }
+        }, lifetimeMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Returns true if the session hasn't been closed and its lifetime isn't over yet. */
+    public synchronized boolean isOpen() {
+        if (aesKey != null && Utils.currentTimeMillis() >= expiryTimeMillis)
+            close();
+        return aesKey != null;
+    }
+
+    /** Returns the AES key of the session, or null if the session has ended. */
+    @Nullable
+    private synchronized KeyParameter getAesKey() {
+        return isOpen() ? aesKey : null;
+    }
+
+    /** Returns true if the session is open and was unlocked with the given AES key. */
+    public synchronized boolean usesKey(KeyParameter aesKey) {
+        return isOpen() && Arrays.equals(this.aesKey.getKey(), aesKey.getKey());
+    }
+
+    /** Returns the number of decrypted keys held. */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /** Returns true if the decrypted form of the given key is held. Doesn't count as a use of the key. */
+    public synchronized boolean contains(ECKey key) {
+        return index.containsKey(ByteBuffer.wrap(key.getPubKey()));
+    }
+
+    /**
+     * Returns the decrypted form of the given encrypted key, from the cache if possible, or null if the session has
+     * ended.
+     *
+     * @throws org.bitcoinj.crypto.KeyCrypterException if the key can't be decrypted with the session key
+     */
+    @Nullable
+    public ECKey decrypt(ECKey key) {
+        ByteBuffer pubKey = ByteBuffer.wrap(key.getPubKey());
+        byte[] privKeyBytes = lookup(pubKey);
+        if (privKeyBytes != null) {
+            try {
+                return rebuild(key, new BigInteger(1, privKeyBytes));
+            } finally {
+                Arrays.fill(privKeyBytes, (byte) 0);
+            }
+        }
+        KeyParameter aesKey = getAesKey();
+        if (aesKey == null)
+            return null;
+        ECKey decrypted = key.decrypt(aesKey);
+        privKeyBytes = decrypted.getPrivKeyBytes();
+        store(pubKey, privKeyBytes);
+        Arrays.fill(privKeyBytes, (byte) 0);
+        return decrypted;
+    }
+
+    /** Ends the session, overwriting all keys it holds. Does nothing if it has already ended. */
+    public synchronized void close() {
+        if (aesKey == null)
+            return;
+        Arrays.fill(aesKey.getKey(), (byte) 0);
+        aesKey = null;
+        for (int slot : index.values())
+            wipe(slot);
+        index.clear();
+        numFreeSlots = 0;
+        // Null if the session already expired while the constructor was still scheduling the task.
+        if (expiryTask != null)
+            expiryTask.cancel(false);
+    }
+
+    @Nullable
+    private synchronized byte[] lookup(ByteBuffer pubKey) {
+        if (!isOpen())
+            return null;
+        Integer slot = index.get(pubKey);
+        if (slot == null)
+            return null;
+        byte[] privKeyBytes = new byte[KEY_LENGTH];
+        ByteBuffer view = slots.duplicate();
+        view.position(slot * KEY_LENGTH);
+        view.get(privKeyBytes);
+        return privKeyBytes;
+    }
+
+    private synchronized void store(ByteBuffer pubKey, byte[] privKeyBytes) {
+        if (!isOpen() || index.containsKey(pubKey))
+            return;
+        if (numFreeSlots == 0) {
+            Iterator<Map.Entry<ByteBuffer, Integer>> eldest = index.entrySet().iterator();
+            int slot = eldest.next().getValue();
+            eldest.remove();
+            wipe(slot);
+            freeSlots[numFreeSlots++] = slot;
+        }
+        int slot = freeSlots[--numFreeSlots];
+        ByteBuffer view = slots.duplicate();
+        view.position(slot * KEY_LENGTH);
+        view.put(privKeyBytes, privKeyBytes.length - KEY_LENGTH, KEY_LENGTH);
+        index.put(pubKey, slot);
+    }
+
+    private void wipe(int slot) {
+        for (int i = slot * KEY_LENGTH; i < (slot + 1) * KEY_LENGTH; i++)
+            slots.put(i, (byte) 0);
+    }
+
+    // Makes the decrypted key from the encrypted one and the private key, without repeating the EC multiplication for
+    // the public key.
+    private static ECKey rebuild(ECKey key, BigInteger privKey) {
+        if (key instanceof DeterministicKey) {
+            DeterministicKey encrypted = (DeterministicKey) key;
+            DeterministicKey decrypted = new DeterministicKey(encrypted.getPath(), encrypted.getChainCode(),
+                    encrypted.getPubKeyPoint(), privKey, encrypted.getParent());
+            if (encrypted.getParent() == null)
+                decrypted.setCreationTimeSeconds(encrypted.getCreationTimeSeconds());
+            return decrypted;
+        }
+        ECKey decrypted = ECKey.fromPrivateAndPrecalculatedPublic(privKey, key.getPubKeyPoint());
+        decrypted.setCreationTimeSeconds(key.getCreationTimeSeconds());
+        return decrypted;
+    }
+}
@@ -29,15 +29,26 @@ import static com.google.common.base.Preconditions.checkNotNull;
 /**
  * A DecryptingKeyBag filters a pre-existing key bag, decrypting keys as they are requested using the provided
  * AES key. If the keys are encrypted and no AES key provided, {@link org.bitcoinj.core.ECKey.KeyIsEncryptedException}
- * will be thrown.
+ * will be thrown. If an unlocked session is given, keys are decrypted through it, so they are only decrypted once
+ * while the session lasts.
  */
 public class DecryptingKeyBag implements KeyBag {
     protected final KeyBag target;
     protected final KeyParameter aesKey;
+    @Nullable protected final DecryptedKeyCache session;
 
     public DecryptingKeyBag(KeyBag target, @Nullable KeyParameter aesKey) {
+        this(target, aesKey, null);
+    }
+
+    /**
+     * @param session an unlocked session for the same AES key, if aesKey is given, which takes precedence while it
+     *                is open
+     */
+    public DecryptingKeyBag(KeyBag target, @Nullable KeyParameter aesKey, @Nullable DecryptedKeyCache session) {
         this.target = checkNotNull(target);
         this.aesKey = aesKey;
+        this.session = session;
     }
 
     @Nullable
@@ -45,6 +56,11 @@ public class DecryptingKeyBag implements KeyBag {
         if (key == null)
             return null;
         else if (key.isEncrypted()) {
+            if (session != null) {
+                ECKey decrypted = session.decrypt(key);
+                if (decrypted != null)
+                    return decrypted;
+            }
             if (aesKey == null)
                 throw new ECKey.KeyIsEncryptedException();
             return key.decrypt(aesKey);
@@ -60,26 +60,55 @@ public class DefaultCoinSelector implements CoinSelector {
     }
 
     @VisibleForTesting static void sortOutputs(ArrayList<TransactionOutput> outputs) {
-        Collections.sort(outputs, new Comparator<TransactionOutput>() {
-            @Override
-            public int compare(TransactionOutput a, TransactionOutput b) {
-                int depth1 = a.getParentTransactionDepthInBlocks();
-                int depth2 = b.getParentTransactionDepthInBlocks();
-                Coin aValue = a.getValue();
-                Coin bValue = b.getValue();
-                BigInteger aCoinDepth = BigInteger.valueOf(aValue.value).multiply(BigInteger.valueOf(depth1));
-                BigInteger bCoinDepth = BigInteger.valueOf(bValue.value).multiply(BigInteger.valueOf(depth2));
-                int c1 = bCoinDepth.compareTo(aCoinDepth);
-                if (c1 != 0) return c1;
-                // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
-                int c2 = bValue.compareTo(aValue);
-                if (c2 != 0) return c2;
-                // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
-                BigInteger aHash = a.getParentTransactionHash().toBigInteger();
-                BigInteger bHash = b.getParentTransactionHash().toBigInteger();
-                return aHash.compareTo(bHash);
+        // Read each depth and value once up front: the depth is behind the confidence lock and a comparison based sort
+        // would otherwise look it up O(n log n) times.
+        SortKey[] keys = new SortKey[outputs.size()];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = new SortKey(outputs.get(i));
+        Arrays.sort(keys, SORT_KEY_COMPARATOR);
+        for (int i = 0; i < keys.length; i++)
+            outputs.set(i, keys[i].output);
+    }
+
+    private static class SortKey {
+        final TransactionOutput output;
+        final long value;
+        final int depth;
+
+        SortKey(TransactionOutput output) {
+            this.output = output;
+            this.value = output.getValue().value;
+            this.depth = output.getParentTransactionDepthInBlocks();
+        }
+    }
+
+    private static final Comparator<SortKey> SORT_KEY_COMPARATOR = new Comparator<SortKey>() {
+        @Override
+        public int compare(SortKey a, SortKey b) {
+            int c1 = compareProducts(b.value, b.depth, a.value, a.depth);
+            if (c1 != 0) return c1;
+            // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
+            int c2 = Long.compare(b.value, a.value);
+            if (c2 != 0) return c2;
+            // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering. This is the
+            // order of the hashes read as unsigned big endian numbers.
+            byte[] aHash = a.output.getParentTransactionHash().getBytes();
+            byte[] bHash = b.output.getParentTransactionHash().getBytes();
+            for (int i = 0; i < aHash.length; i++) {
+                int c3 = (aHash[i] & 0xff) - (bHash[i] & 0xff);
+                if (c3 != 0) return c3;
             }
-        });
+            return 0;
+        }
+    };
+
+    /** Compares a * b with c * d for non-negative arguments, without overflowing. */
+    @VisibleForTesting static int compareProducts(long a, long b, long c, long d) {
+        if ((a == 0 || b <= Long.MAX_VALUE / a) && (c == 0 || d <= Long.MAX_VALUE / c))
+            return Long.compare(a * b, c * d);
+        // Only huge values buried very deep in the chain get here.
+        return BigInteger.valueOf(a).multiply(BigInteger.valueOf(b))
+                .compareTo(BigInteger.valueOf(c).multiply(BigInteger.valueOf(d)));
     }
 
     /** Sub-classes can override this to just customize whether transactions are usable, but keep age sorting. */
@@ -1202,6 +1202,67 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         }
     }
 
+    /**
+     * Like {@link #maybeLookAhead()}, but refills the lookahead zone once half of the lookahead threshold has been used
+     * up, rather than all of it. During chain download this gets a new Bloom filter to the remote peer while the one it
+     * is using still covers the full lookahead size, so the blocks filtered with it don't have to be thrown away, see
+     * {@link #isLookaheadCoveredBy(BloomFilter)}.
+     */
+    public void maybeLookAheadEarly() {
+        lock.lock();
+        try {
+            int lookaheadSize = getLookaheadSize();
+            int lookaheadThreshold = getLookaheadThreshold();
+            int early = lookaheadThreshold / 2;
+            // Fill the zone up as far beyond the lookahead size as a regular refill would, so that the new filter
+            // lasts as long.
+            List<DeterministicKey> keys = maybeLookAhead(externalParentKey, issuedExternalKeys, lookaheadSize + early,
+                    lookaheadThreshold);
+            keys.addAll(maybeLookAhead(internalParentKey, issuedInternalKeys, lookaheadSize + early,
+                    lookaheadThreshold));
+            if (keys.isEmpty())
+                return;
+            keyLookaheadEpoch++;
+            basicKeyChain.importKeys(keys);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if the given filter matches the next {@link #getLookaheadSize()} keys after the issued ones on both
+     * the external and the internal path. If it does, a filtered block that was filtered with it can't be missing
+     * transactions to keys within the lookahead size, even if the lookahead zone has been extended since.
+     */
+    public boolean isLookaheadCoveredBy(BloomFilter filter) {
+        lock.lock();
+        try {
+            int lookaheadSize = getLookaheadSize();
+            return isLookaheadCoveredBy(filter, externalParentKey, issuedExternalKeys + lookaheadSize - 1)
+                    && isLookaheadCoveredBy(filter, internalParentKey, issuedInternalKeys + lookaheadSize - 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Keys are added to filters in order, so it's enough to look for the last one.
+    private boolean isLookaheadCoveredBy(BloomFilter filter, DeterministicKey parent, int lastIndex) {
+        if (lastIndex < 0)
+            return true;
+        DeterministicKey key;
+        try {
+            key = hierarchy.get(HDUtils.append(parent.getPath(), new ChildNumber(lastIndex)), false, false);
+        } catch (IllegalArgumentException e) {
+            return false;  // Not even generated yet.
+        }
+        return isInFilter(filter, key);
+    }
+
+    /** Returns true if the given filter matches what {@link #getFilter(int, double, long)} inserts for the key. */
+    protected boolean isInFilter(BloomFilter filter, DeterministicKey key) {
+        return filter.contains(key.getPubKey()) && filter.contains(key.getPubKeyHash());
+    }
+
     private List<DeterministicKey> maybeLookAhead(DeterministicKey parent, int issued) {
         checkState(lock.isHeldByCurrentThread());
         return maybeLookAhead(parent, issued, getLookaheadSize(), getLookaheadThreshold());
@@ -71,6 +71,7 @@ public class KeyChainGroup implements KeyBag {
     private final EnumMap<KeyChain.KeyPurpose, DeterministicKey> currentKeys;
     private final EnumMap<KeyChain.KeyPurpose, Address> currentAddresses;
     @Nullable private KeyCrypter keyCrypter;
+    @Nullable private DecryptedKeyCache session;
     private int lookaheadSize = -1;
     private int lookaheadThreshold = -1;
 
@@ -338,6 +339,37 @@ public class KeyChainGroup implements KeyBag {
         return getActiveKeyChain().checkAESKey(aesKey);
     }
 
+    /**
+     * Starts an unlocked session, in which keys decrypted for signing are kept in a {@link DecryptedKeyCache} so they
+     * are decrypted only once. Any previous session is ended.
+     *
+     * @throws IllegalStateException if the group isn't encrypted.
+     * @throws org.bitcoinj.crypto.KeyCrypterException if the AES key is wrong.
+     */
+    public DecryptedKeyCache unlockSession(KeyParameter aesKey, int maxKeys, long lifetime, TimeUnit unit) {
+        if (!checkAESKey(aesKey))
+            throw new KeyCrypterException("Provided AES key is wrong");
+        lockSession();
+        session = new DecryptedKeyCache(aesKey, maxKeys, lifetime, unit);
+        return session;
+    }
+
+    /** Ends the unlocked session, if any, wiping the keys it holds. */
+    public void lockSession() {
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+    }
+
+    /** Returns the unlocked session, or null if there is none or it has expired. */
+    @Nullable
+    DecryptedKeyCache getUnlockedSession() {
+        if (session != null && !session.isOpen())
+            session = null;
+        return session;
+    }
+
     /** Imports the given unencrypted keys into the basic chain, encrypting them along the way with the given key. */
     public int importKeysAndEncrypt(final List<ECKey> keys, KeyParameter aesKey) {
         // TODO: Firstly check if the aes key can decrypt any of the existing keys successfully.
@@ -505,6 +537,7 @@ public class KeyChainGroup implements KeyBag {
     public void encrypt(KeyCrypter keyCrypter, KeyParameter aesKey) {
         checkNotNull(keyCrypter);
         checkNotNull(aesKey);
+        lockSession();
         // This code must be exception safe.
         BasicKeyChain newBasic = basic.toEncrypted(keyCrypter, aesKey);
         List<DeterministicKeyChain> newChains = new ArrayList<>(chains.size());
@@ -530,6 +563,7 @@ public class KeyChainGroup implements KeyBag {
     public void decrypt(KeyParameter aesKey) {
         // This code must be exception safe.
         checkNotNull(aesKey);
+        lockSession();
         BasicKeyChain newBasic = basic.toDecrypted(aesKey);
         List<DeterministicKeyChain> newChains = new ArrayList<>(chains.size());
         for (DeterministicKeyChain chain : chains)
@@ -818,6 +852,24 @@ public class KeyChainGroup implements KeyBag {
     public List<DeterministicKeyChain> getDeterministicKeyChains() {
         return new ArrayList<>(chains);
     }
+    /** Refills the lookahead zones of all chains early, see {@link DeterministicKeyChain#maybeLookAheadEarly()}. */
+    public void maybeLookAheadEarly() {
+        for (DeterministicKeyChain chain : chains)
+            chain.maybeLookAheadEarly();
+        maybeLookaheadScripts();
+    }
+
+    /**
+     * Returns true if the given filter covers the lookahead zones of all chains, see
+     * {@link DeterministicKeyChain#isLookaheadCoveredBy(BloomFilter)}.
+     */
+    public boolean isLookaheadCoveredBy(BloomFilter filter) {
+        for (DeterministicKeyChain chain : chains)
+            if (!chain.isLookaheadCoveredBy(filter))
+                return false;
+        return true;
+    }
+
     /**
      * Returns a counter that increases (by an arbitrary amount) each time new keys have been calculated due to
      * lookahead and thus the Bloom filter that was previously calculated has become stale.
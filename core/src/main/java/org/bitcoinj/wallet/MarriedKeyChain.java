@@ -294,6 +294,13 @@ public class MarriedKeyChain extends DeterministicKeyChain {
         return filter;
     }
 
+    @Override
+    protected boolean isInFilter(BloomFilter filter, DeterministicKey key) {
+        Script redeemScript = getRedeemData(key).redeemScript;
+        return filter.contains(ScriptBuilder.createP2SHOutputScript(redeemScript).getPubKeyHash())
+                && filter.contains(redeemScript.getProgram());
+    }
+
     @Override
     public int numBloomFilterEntries() {
         maybeLookAhead();
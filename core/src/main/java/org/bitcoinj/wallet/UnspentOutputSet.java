@@ -0,0 +1,119 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.TransactionOutput;
+
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>The set of outputs a {@link Wallet} could spend, kept in value order as it changes so that coin selection over
+ * a large wallet doesn't have to sort all of its outputs on every send.</p>
+ *
+ * <p>Iteration returns the largest outputs first. Outputs of equal value are returned oldest first, where age is the
+ * order in which the outputs were added: unlike the depth of the parent transaction, this does not change while an
+ * output is in the set, so the order can be maintained incrementally. Adding and removing an output is O(log n).</p>
+ *
+ * <p>Like the rest of the wallet state this class is not thread safe; the wallet guards it with its lock.</p>
+ */
+public class UnspentOutputSet extends AbstractSet<TransactionOutput> {
+    private static final class Key implements Comparable<Key> {
+        final long value;
+        final long sequence;
+
+        Key(long value, long sequence) {
+            this.value = value;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            if (value != other.value)
+                return value > other.value ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final HashMap<TransactionOutput, Key> keys = new HashMap<>();
+    private final TreeMap<Key, TransactionOutput> ordered = new TreeMap<>();
+    private long nextSequence;
+
+    @Override
+    public boolean add(TransactionOutput output) {
+        if (keys.containsKey(output))
+            return false;
+        Key key = new Key(output.getValue().value, nextSequence++);
+        keys.put(output, key);
+        ordered.put(key, output);
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object output) {
+        Key key = keys.remove(output);
+        if (key == null)
+            return false;
+        ordered.remove(key);
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object output) {
+        return keys.containsKey(output);
+    }
+
+    @Override
+    public int size() {
+        return keys.size();
+    }
+
+    @Override
+    public void clear() {
+        keys.clear();
+        ordered.clear();
+    }
+
+    /** Iterates from the largest to the smallest output, see the class documentation. */
+    @Override
+    public Iterator<TransactionOutput> iterator() {
+        final Iterator<Map.Entry<Key, TransactionOutput>> it = ordered.entrySet().iterator();
+        return new Iterator<TransactionOutput>() {
+            private TransactionOutput last;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public TransactionOutput next() {
+                last = it.next().getValue();
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                it.remove();
+                keys.remove(last);
+            }
+        };
+    }
+}
@@ -159,8 +159,15 @@ public class Wallet extends BaseTaggableObject
     protected final Map<Sha256Hash, Transaction> transactions;
 
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
-    // Used to speed up various calculations.
-    protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
+    // Used to speed up various calculations. Kept in value order, so spend candidates come out pre-sorted. This used
+    // to be declared as a HashSet; subclasses should only rely on it being a Set.
+    protected final Set<TransactionOutput> myUnspents = new UnspentOutputSet();
+
+    // Bumped under the lock whenever the pools or myUnspents are about to change. Read paths compare it with the
+    // version of the last published PoolSnapshot so that they can run without taking the wallet lock as long as the
+    // wallet isn't being changed. A stale snapshot is never returned, readers wait for the change to finish instead.
+    private volatile int poolsVersion;
+    @Nullable private volatile PoolSnapshot poolSnapshot;
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -230,7 +237,7 @@ public class Wallet extends BaseTaggableObject
     // that was created after it. Useful when you believe some keys have been compromised.
     private volatile long vKeyRotationTimestamp;
 
-    protected CoinSelector coinSelector = new DefaultCoinSelector();
+    protected volatile CoinSelector coinSelector = new DefaultCoinSelector();
 
     // The wallet version. This is an int that can be used to track breaking changes in the wallet format.
     // You can also use it to detect wallets that come from the future (ie they contain features you
@@ -1239,6 +1246,71 @@ public class Wallet extends BaseTaggableObject
         saveNow();
     }
 
+    /**
+     * <p>Unlocks the wallet for the given time. Until the session ends, transactions can be completed and signed
+     * without an AES key in the {@link SendRequest}, and each private key is only decrypted once: it is then kept in a
+     * {@link DecryptedKeyCache} of up to {@link DecryptedKeyCache#DEFAULT_MAX_KEYS} keys. This is meant for wallets that
+     * sign continuously, where decrypting and re-deriving keys for every input adds up.</p>
+     *
+     * <p>The session ends when its time is up, when {@link #lockSession()} is called or when the wallet is encrypted
+     * or decrypted.</p>
+     *
+     * @throws IllegalStateException if the wallet is not encrypted.
+     * @throws KeyCrypterException if the password is wrong.
+     */
+    public void unlockSession(CharSequence password, long duration, TimeUnit unit) {
+        keyChainGroupLock.lock();
+        try {
+            final KeyCrypter crypter = keyChainGroup.getKeyCrypter();
+            checkState(crypter != null, "Not encrypted");
+            unlockSession(crypter.deriveKey(password), duration, unit);
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
+    /**
+     * Unlocks the wallet for the given time, see {@link #unlockSession(CharSequence, long, TimeUnit)}.
+     *
+     * @param aesKey AES key to use (normally created using KeyCrypter#deriveKey and cached as it is time consuming to create from a password)
+     */
+    public void unlockSession(KeyParameter aesKey, long duration, TimeUnit unit) {
+        keyChainGroupLock.lock();
+        try {
+            keyChainGroup.unlockSession(aesKey, DecryptedKeyCache.DEFAULT_MAX_KEYS, duration, unit);
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
+    /** Ends the unlocked session, if any, wiping the keys that were decrypted during it. */
+    public void lockSession() {
+        keyChainGroupLock.lock();
+        try {
+            keyChainGroup.lockSession();
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
+    /** Returns true if the wallet is in an unlocked session, see {@link #unlockSession(CharSequence, long, TimeUnit)}. */
+    public boolean isSessionUnlocked() {
+        return getUnlockedSession() != null;
+    }
+
+    // Returns the keys decrypted during the current unlocked session, or null if there is none. Not public as the
+    // session holds the AES key: outside callers can only ask isSessionUnlocked().
+    @Nullable
+    @VisibleForTesting
+    DecryptedKeyCache getUnlockedSession() {
+        keyChainGroupLock.lock();
+        try {
+            return keyChainGroup.getUnlockedSession();
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     /**
      *  Check whether the password can decrypt the first key in the wallet.
      *  This can be used to check the validity of an entered password.
@@ -1974,6 +2046,7 @@ public class Wallet extends BaseTaggableObject
         markKeysAsUsed(tx);
 
         onWalletChangedSuppressions++;
+        poolsChanged();
 
         // If this transaction is already in the wallet we may need to move it into a different pool. At the very
         // least we need to ensure we're manipulating the canonical object rather than a duplicate.
@@ -2217,6 +2290,7 @@ public class Wallet extends BaseTaggableObject
      */
     private void processTxFromBestChain(Transaction tx, boolean forceAddToPool) throws VerificationException {
         checkState(lock.isHeldByCurrentThread());
+        poolsChanged();
         checkState(!pending.containsKey(tx.getHash()));
 
         // This TX may spend our existing outputs even though it was not pending. This can happen in unit
@@ -2305,6 +2379,7 @@ public class Wallet extends BaseTaggableObject
      */
     private void updateForSpends(Transaction tx, boolean fromChain) throws VerificationException {
         checkState(lock.isHeldByCurrentThread());
+        poolsChanged();
         if (fromChain)
             checkState(!pending.containsKey(tx.getHash()));
         for (TransactionInput input : tx.getInputs()) {
@@ -2388,6 +2463,7 @@ public class Wallet extends BaseTaggableObject
 
     // Updates the wallet when a double spend occurs. overridingTx can be null for the case of coinbases
     private void killTxns(Set<Transaction> txnsToKill, @Nullable Transaction overridingTx) {
+        poolsChanged();
         LinkedList<Transaction> work = new LinkedList<>(txnsToKill);
         while (!work.isEmpty()) {
             final Transaction tx = work.poll();
@@ -2448,6 +2524,7 @@ public class Wallet extends BaseTaggableObject
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        poolsChanged();
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
@@ -2814,6 +2891,8 @@ public class Wallet extends BaseTaggableObject
         checkState(lock.isHeldByCurrentThread());
         checkState(onWalletChangedSuppressions >= 0);
         if (onWalletChangedSuppressions > 0) return;
+        // The change is complete, so publish it for readers that don't take the lock.
+        publishPoolSnapshot();
         for (final ListenerRegistration<WalletChangeEventListener> registration : changeListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -2883,35 +2962,27 @@ public class Wallet extends BaseTaggableObject
      * @param includeDead     If true, transactions that were overridden by a double spend are included.
      */
     public Set<Transaction> getTransactions(boolean includeDead) {
-        lock.lock();
-        try {
-            Set<Transaction> all = new HashSet<>();
-            all.addAll(unspent.values());
-            all.addAll(spent.values());
-            all.addAll(pending.values());
-            if (includeDead)
-                all.addAll(dead.values());
-            return all;
-        } finally {
-            lock.unlock();
-        }
+        PoolSnapshot pools = readPools();
+        Set<Transaction> all = new HashSet<>();
+        all.addAll(pools.unspent.values());
+        all.addAll(pools.spent.values());
+        all.addAll(pools.pending.values());
+        if (includeDead)
+            all.addAll(pools.dead.values());
+        return all;
     }
 
     /**
      * Returns a set of all WalletTransactions in the wallet.
      */
     public Iterable<WalletTransaction> getWalletTransactions() {
-        lock.lock();
-        try {
-            Set<WalletTransaction> all = new HashSet<>();
-            addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
-            addWalletTransactionsToSet(all, Pool.SPENT, spent.values());
-            addWalletTransactionsToSet(all, Pool.DEAD, dead.values());
-            addWalletTransactionsToSet(all, Pool.PENDING, pending.values());
-            return all;
-        } finally {
-            lock.unlock();
-        }
+        PoolSnapshot pools = readPools();
+        Set<WalletTransaction> all = new HashSet<>();
+        addWalletTransactionsToSet(all, Pool.UNSPENT, pools.unspent.values());
+        addWalletTransactionsToSet(all, Pool.SPENT, pools.spent.values());
+        addWalletTransactionsToSet(all, Pool.DEAD, pools.dead.values());
+        addWalletTransactionsToSet(all, Pool.PENDING, pools.pending.values());
+        return all;
     }
 
     private static void addWalletTransactionsToSet(Set<WalletTransaction> txns,
@@ -2940,6 +3011,7 @@ public class Wallet extends BaseTaggableObject
      */
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
+        poolsChanged();
         transactions.put(tx.getHash(), tx);
         switch (pool) {
         case UNSPENT:
@@ -3011,12 +3083,7 @@ public class Wallet extends BaseTaggableObject
      */
     @Nullable
     public Transaction getTransaction(Sha256Hash hash) {
-        lock.lock();
-        try {
-            return transactions.get(hash);
-        } finally {
-            lock.unlock();
-        }
+        return readPools().transactions.get(hash);
     }
 
     /** {@inheritDoc} */
@@ -3080,6 +3147,7 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void clearTransactions() {
+        poolsChanged();
         unspent.clear();
         spent.clear();
         pending.clear();
@@ -3131,6 +3199,7 @@ public class Wallet extends BaseTaggableObject
                 if (isTransactionRisky(tx, null) && !acceptRiskyTransactions) {
                     log.debug("Found risky transaction {} in wallet during cleanup.", tx.getHashAsString());
                     if (!tx.isAnyOutputSpent()) {
+                        poolsChanged();
                         // Sync myUnspents with the change.
                         for (TransactionInput input : tx.getInputs()) {
                             TransactionOutput output = input.getConnectedOutput();
@@ -3189,49 +3258,89 @@ public class Wallet extends BaseTaggableObject
 
     @VisibleForTesting
     public int getPoolSize(WalletTransaction.Pool pool) {
-        lock.lock();
-        try {
-            switch (pool) {
-                case UNSPENT:
-                    return unspent.size();
-                case SPENT:
-                    return spent.size();
-                case PENDING:
-                    return pending.size();
-                case DEAD:
-                    return dead.size();
-            }
-            throw new RuntimeException("Unreachable");
-        } finally {
-            lock.unlock();
-        }
+        return readPools().get(pool).size();
     }
 
     @VisibleForTesting
     public boolean poolContainsTxHash(final WalletTransaction.Pool pool, final Sha256Hash txHash) {
-        lock.lock();
-        try {
+        return readPools().get(pool).containsKey(txHash);
+    }
+
+    /** Returns a copy of the internal unspent outputs list */
+    public List<TransactionOutput> getUnspents() {
+        return new ArrayList<>(readPools().myUnspents);
+    }
+
+    /**
+     * The transaction pools and unspent outputs as of some {@link #poolsVersion}. Published snapshots are immutable
+     * copies; the transactions themselves are the live, shared objects.
+     */
+    private static class PoolSnapshot {
+        final int version;
+        final Map<Sha256Hash, Transaction> unspent, spent, pending, dead, transactions;
+        final Collection<TransactionOutput> myUnspents;
+
+        PoolSnapshot(int version, Map<Sha256Hash, Transaction> unspent, Map<Sha256Hash, Transaction> spent,
+                     Map<Sha256Hash, Transaction> pending, Map<Sha256Hash, Transaction> dead,
+                     Map<Sha256Hash, Transaction> transactions, Collection<TransactionOutput> myUnspents) {
+            this.version = version;
+            this.unspent = unspent;
+            this.spent = spent;
+            this.pending = pending;
+            this.dead = dead;
+            this.transactions = transactions;
+            this.myUnspents = myUnspents;
+        }
+
+        Map<Sha256Hash, Transaction> get(Pool pool) {
             switch (pool) {
                 case UNSPENT:
-                    return unspent.containsKey(txHash);
+                    return unspent;
                 case SPENT:
-                    return spent.containsKey(txHash);
+                    return spent;
                 case PENDING:
-                    return pending.containsKey(txHash);
+                    return pending;
                 case DEAD:
-                    return dead.containsKey(txHash);
+                    return dead;
             }
             throw new RuntimeException("Unreachable");
-        } finally {
-            lock.unlock();
         }
     }
 
-    /** Returns a copy of the internal unspent outputs list */
-    public List<TransactionOutput> getUnspents() {
+    /** Invalidates the published pool snapshot. Must be called before the pools or myUnspents are modified. */
+    private void poolsChanged() {
+        checkState(lock.isHeldByCurrentThread());
+        poolsVersion++;
+    }
+
+    private PoolSnapshot publishPoolSnapshot() {
+        checkState(lock.isHeldByCurrentThread());
+        PoolSnapshot snapshot = poolSnapshot;
+        if (snapshot == null || snapshot.version != poolsVersion) {
+            snapshot = new PoolSnapshot(poolsVersion, ImmutableMap.copyOf(unspent), ImmutableMap.copyOf(spent),
+                    ImmutableMap.copyOf(pending), ImmutableMap.copyOf(dead), ImmutableMap.copyOf(transactions),
+                    ImmutableList.copyOf(myUnspents));
+            poolSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns the pools for a read-only operation. A thread holding the wallet lock reads the live pools. Others get
+     * the published snapshot, without taking the lock, if it is current. Snapshots are published when a change of the
+     * wallet is complete, see {@link #maybeQueueOnWalletChanged()}, so that holding the lock without changing
+     * anything doesn't block readers. While a change is in progress, e.g. because a block is being processed, the
+     * snapshot is out of date and readers wait for the lock, so they always see their own and all completed writes.
+     */
+    private PoolSnapshot readPools() {
+        if (lock.isHeldByCurrentThread())
+            return new PoolSnapshot(poolsVersion, unspent, spent, pending, dead, transactions, myUnspents);
+        PoolSnapshot snapshot = poolSnapshot;
+        if (snapshot != null && snapshot.version == poolsVersion)
+            return snapshot;
         lock.lock();
         try {
-            return new ArrayList<>(myUnspents);
+            return publishPoolSnapshot();
         } finally {
             lock.unlock();
         }
@@ -3365,12 +3474,7 @@ public class Wallet extends BaseTaggableObject
      * Returns an immutable view of the transactions currently waiting for network confirmations.
      */
     public Collection<Transaction> getPendingTransactions() {
-        lock.lock();
-        try {
-            return Collections.unmodifiableCollection(pending.values());
-        } finally {
-            lock.unlock();
-        }
+        return Collections.unmodifiableCollection(readPools().pending.values());
     }
 
     /**
@@ -3578,22 +3682,17 @@ public class Wallet extends BaseTaggableObject
      * Returns the balance of this wallet as calculated by the provided balanceType.
      */
     public Coin getBalance(BalanceType balanceType) {
-        lock.lock();
-        try {
-            if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
-                List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
-                CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
-                return selection.valueGathered;
-            } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
-                List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
-                Coin value = Coin.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
-            } else {
-                throw new AssertionError("Unknown balance type");  // Unreachable.
-            }
-        } finally {
-            lock.unlock();
+        if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
+            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
+            CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
+            return selection.valueGathered;
+        } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
+            List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
+            Coin value = Coin.ZERO;
+            for (TransactionOutput out : all) value = value.add(out.getValue());
+            return value;
+        } else {
+            throw new AssertionError("Unknown balance type");  // Unreachable.
         }
     }
 
@@ -3603,15 +3702,10 @@ public class Wallet extends BaseTaggableObject
      * possible and returns the total.
      */
     public Coin getBalance(CoinSelector selector) {
-        lock.lock();
-        try {
-            checkNotNull(selector);
-            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, false);
-            CoinSelection selection = selector.select(params.getMaxMoney(), candidates);
-            return selection.valueGathered;
-        } finally {
-            lock.unlock();
-        }
+        checkNotNull(selector);
+        List<TransactionOutput> candidates = calculateAllSpendCandidates(true, false);
+        CoinSelection selection = selector.select(params.getMaxMoney(), candidates);
+        return selection.valueGathered;
     }
 
     private static class BalanceFutureRequest {
@@ -4130,7 +4224,10 @@ public class Wallet extends BaseTaggableObject
             checkState(inputs.size() > 0);
             checkState(outputs.size() > 0);
 
-            KeyBag maybeDecryptingKeyBag = new DecryptingKeyBag(this, req.aesKey);
+            DecryptedKeyCache session = getUnlockedSession();
+            if (session != null && req.aesKey != null && !session.usesKey(req.aesKey))
+                session = null;
+            KeyBag maybeDecryptingKeyBag = new DecryptingKeyBag(this, req.aesKey, session);
 
             int numInputs = tx.getInputs().size();
             for (int i = 0; i < numInputs; i++) {
@@ -4206,25 +4303,24 @@ public class Wallet extends BaseTaggableObject
      * @param excludeUnsignable Whether to ignore outputs that we are tracking but don't have the keys to sign for.
      */
     public List<TransactionOutput> calculateAllSpendCandidates(boolean excludeImmatureCoinbases, boolean excludeUnsignable) {
-        lock.lock();
-        try {
-            List<TransactionOutput> candidates;
-            if (vUTXOProvider == null) {
-                candidates = new ArrayList<>(myUnspents.size());
-                for (TransactionOutput output : myUnspents) {
-                    if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
-                    Transaction transaction = checkNotNull(output.getParentTransaction());
-                    if (excludeImmatureCoinbases && !transaction.isMature())
-                        continue;
-                    candidates.add(output);
-                }
-            } else {
-                candidates = calculateAllSpendCandidatesFromUTXOProvider(excludeImmatureCoinbases);
+        if (vUTXOProvider != null) {
+            lock.lock();
+            try {
+                return calculateAllSpendCandidatesFromUTXOProvider(excludeImmatureCoinbases);
+            } finally {
+                lock.unlock();
             }
-            return candidates;
-        } finally {
-            lock.unlock();
         }
+        Collection<TransactionOutput> outputs = readPools().myUnspents;
+        List<TransactionOutput> candidates = new ArrayList<>(outputs.size());
+        for (TransactionOutput output : outputs) {
+            if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
+            Transaction transaction = checkNotNull(output.getParentTransaction());
+            if (excludeImmatureCoinbases && !transaction.isMature())
+                continue;
+            candidates.add(output);
+        }
+        return candidates;
     }
 
     /**
@@ -4498,6 +4594,7 @@ public class Wallet extends BaseTaggableObject
             insideReorg = true;
             checkState(onWalletChangedSuppressions == 0);
             onWalletChangedSuppressions++;
+            poolsChanged();
 
             // Map block hash to transactions that appear in it. We ensure that the map values are sorted according
             // to their relative position within those blocks.
@@ -4766,6 +4863,28 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Returns all keys whose hashes can appear in outputs paying to this wallet, including the lookahead zone, or null
+     * if the wallet is married and therefore receives to P2SH addresses that can't be derived from single keys. Used
+     * by {@link WalletGroup} to route transactions.
+     */
+    @Nullable
+    /* package */ List<ECKey> getKeysForRouting() {
+        keyChainGroupLock.lock();
+        try {
+            List<ECKey> keys = new ArrayList<>(keyChainGroup.getImportedKeys());
+            for (DeterministicKeyChain chain : keyChainGroup.getDeterministicKeyChains()) {
+                if (chain.isMarried())
+                    return null;
+                chain.maybeLookAhead();
+                keys.addAll(chain.getLeafKeys());
+            }
+            return keys;
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     // Returns true if the output is one that won't be selected by a data element matching in the scriptSig.
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
         Script script = out.getScriptPubKey();
@@ -4796,6 +4915,26 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Used by {@link Peer} to decide whether the given block, which was filtered with the given Bloom filter, may be
+     * missing transactions and therefore must be discarded. This is the case if after marking the keys used by its
+     * transactions, the filter no longer covers the lookahead zone. Unlike {@link #checkForFilterExhaustion(FilteredBlock)}
+     * it doesn't matter whether new keys had to be generated, as long as the filter already had enough of them. The
+     * lookahead zone is refilled early, so that a new filter is usually in place before that happens.
+     */
+    public boolean checkForFilterExhaustion(FilteredBlock block, BloomFilter filter) {
+        keyChainGroupLock.lock();
+        try {
+            for (Transaction tx : block.getAssociatedTransactions().values()) {
+                markKeysAsUsed(tx);
+            }
+            keyChainGroup.maybeLookAheadEarly();
+            return !keyChainGroup.isLookaheadCoveredBy(filter);
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     //endregion
 
     /******************************************************************************************************************/
@@ -4944,7 +5083,7 @@ public class Wallet extends BaseTaggableObject
             }
             CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
             // selector is allowed to modify candidates list.
-            CoinSelection selection = selector.select(valueNeeded, new LinkedList<>(candidates));
+            CoinSelection selection = selector.select(valueNeeded, new ArrayList<>(candidates));
             result.bestCoinSelection = selection;
             // Can we afford this?
             if (selection.valueGathered.compareTo(valueNeeded) < 0) {
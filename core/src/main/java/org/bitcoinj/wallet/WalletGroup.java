@@ -0,0 +1,493 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerFilterProvider;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.core.listeners.OnTransactionBroadcastListener;
+import org.bitcoinj.core.listeners.ReorganizeListener;
+import org.bitcoinj.core.listeners.TransactionReceivedInBlockListener;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+import org.bitcoinj.wallet.listeners.ScriptsChangeEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.SetMultimap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Hosts many wallets in one process, for example the wallets of the customers of a custodial service. Instead of
+ * registering every wallet with the {@link AbstractBlockChain} and {@link PeerGroup}, which makes both of them offer
+ * every transaction to every wallet, the group is registered once. It keeps an index from pubkey hashes, watched
+ * scripts and transaction hashes to the wallets that own them, and only hands a transaction to the wallets it may be
+ * relevant to. The wallets themselves still decide about relevance, so the index only needs to be a superset.</p>
+ *
+ * <p>The group also acts as a single {@link PeerFilterProvider} for all of its wallets, so that peers are given one
+ * Bloom filter for the whole group.</p>
+ *
+ * <p>Married wallets receive to P2SH addresses that can't be derived from single keys, so they are not indexed by
+ * key and are offered every transaction, like before. Pending transactions are received from
+ * {@link PeerGroup#addOnTransactionBroadcastListener(java.util.concurrent.Executor, OnTransactionBroadcastListener)}
+ * and are handed to the wallets without downloading their dependencies.</p>
+ *
+ * <p>Wallets in a group must not also be added to the chain or peer group individually.</p>
+ */
+public class WalletGroup implements TransactionReceivedInBlockListener, NewBestBlockListener, ReorganizeListener,
+        PeerFilterProvider, OnTransactionBroadcastListener {
+    private static final Logger log = LoggerFactory.getLogger(WalletGroup.class);
+
+    // Guards the index. It is taken with wallet locks held from within wallet event listeners, so it must never be
+    // held whilst calling into a wallet.
+    protected final ReentrantLock lock = Threading.lock("walletgroup");
+    // Held for the duration of a Bloom filter calculation, during which it locks the wallets.
+    private final ReentrantLock filterLock = Threading.lock("walletgroup-filter");
+
+    private final NetworkParameters params;
+    private final CopyOnWriteArrayList<Wallet> wallets = new CopyOnWriteArrayList<>();
+    @GuardedBy("lock") private final Map<Wallet, Registration> registrations = new HashMap<>();
+
+    // Hash160 of every key of the indexed wallets, including the lookahead zone.
+    @GuardedBy("lock") private final SetMultimap<ByteBuffer, Wallet> pubKeyHashes = HashMultimap.create();
+    // Program bytes of every watched script.
+    @GuardedBy("lock") private final SetMultimap<ByteBuffer, Wallet> watchedScripts = HashMultimap.create();
+    // Hashes of the wallet transactions and of the transactions they spend from. A transaction whose inputs spend
+    // from one of these can send from the wallet or double spend one of its transactions.
+    @GuardedBy("lock") private final SetMultimap<Sha256Hash, Wallet> txHashes = HashMultimap.create();
+    // Wallets that can't be indexed by key, see getKeysForRouting().
+    @GuardedBy("lock") private final Set<Wallet> unindexed = new LinkedHashSet<>();
+
+    @Nullable private volatile PeerGroup vPeerGroup;
+
+    public WalletGroup(NetworkParameters params) {
+        this.params = checkNotNull(params);
+    }
+
+    // Keeps the index up to date with the keys, scripts and transactions of one wallet.
+    private class Registration implements KeyChainEventListener, ScriptsChangeEventListener,
+            WalletCoinsReceivedEventListener, WalletCoinsSentEventListener {
+        private final Wallet wallet;
+
+        private Registration(Wallet wallet) {
+            this.wallet = wallet;
+        }
+
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            lock.lock();
+            try {
+                if (!unindexed.contains(wallet))
+                    indexKeys(wallet, keys);
+            } finally {
+                lock.unlock();
+            }
+            recalculateFilter();
+        }
+
+        @Override
+        public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
+            lock.lock();
+            try {
+                for (Script script : scripts) {
+                    ByteBuffer program = ByteBuffer.wrap(script.getProgram());
+                    if (isAddingScripts)
+                        watchedScripts.put(program, wallet);
+                    else
+                        watchedScripts.remove(program, wallet);
+                }
+            } finally {
+                lock.unlock();
+            }
+            recalculateFilter();
+        }
+
+        @Override
+        public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            indexTransaction(wallet, tx);
+            // Same reasoning as in PeerGroup: outputs to raw pubkeys and P2SH need their outpoints in the filter.
+            for (TransactionOutput output : tx.getOutputs()) {
+                Script script = output.getScriptPubKey();
+                if ((script.isSentToRawPubKey() || script.isPayToScriptHash()) && output.isMine(wallet)) {
+                    recalculateFilter();
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            indexTransaction(wallet, tx);
+        }
+    }
+
+    /**
+     * Adds a wallet to the group and indexes its keys, watched scripts and transactions. If the group is connected
+     * to a peer group, the Bloom filter is recalculated.
+     */
+    public void addWallet(Wallet wallet) {
+        checkNotNull(wallet);
+        Registration registration = new Registration(wallet);
+        lock.lock();
+        try {
+            checkState(!registrations.containsKey(wallet), "Wallet is already in this group");
+            registrations.put(wallet, registration);
+        } finally {
+            lock.unlock();
+        }
+        // Register the listeners before reading the wallet, so that no key or transaction can slip through. Anything
+        // that is reported twice is simply indexed twice.
+        wallet.addKeyChainEventListener(Threading.SAME_THREAD, registration);
+        wallet.addScriptChangeEventListener(Threading.SAME_THREAD, registration);
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, registration);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, registration);
+        List<ECKey> keys = wallet.getKeysForRouting();
+        List<Script> scripts = wallet.getWatchedScripts();
+        lock.lock();
+        try {
+            if (keys != null)
+                indexKeys(wallet, keys);
+            else
+                unindexed.add(wallet);
+            for (Script script : scripts)
+                watchedScripts.put(ByteBuffer.wrap(script.getProgram()), wallet);
+        } finally {
+            lock.unlock();
+        }
+        for (Transaction tx : wallet.getTransactions(true))
+            indexTransaction(wallet, tx);
+        wallets.add(wallet);
+        PeerGroup peerGroup = vPeerGroup;
+        if (peerGroup != null)
+            wallet.setTransactionBroadcaster(peerGroup);
+        recalculateFilter();
+    }
+
+    /** Removes a wallet from the group and from the index. */
+    public void removeWallet(Wallet wallet) {
+        Registration registration;
+        lock.lock();
+        try {
+            registration = registrations.remove(checkNotNull(wallet));
+            if (registration == null)
+                return;
+            wallets.remove(wallet);
+            unindexed.remove(wallet);
+            removeFromIndex(pubKeyHashes, wallet);
+            removeFromIndex(watchedScripts, wallet);
+            removeFromIndex(txHashes, wallet);
+        } finally {
+            lock.unlock();
+        }
+        wallet.removeKeyChainEventListener(registration);
+        wallet.removeScriptChangeEventListener(registration);
+        wallet.removeCoinsReceivedEventListener(registration);
+        wallet.removeCoinsSentEventListener(registration);
+        if (vPeerGroup != null)
+            wallet.setTransactionBroadcaster(null);
+        recalculateFilter();
+    }
+
+    /** Returns the wallets of this group, in the order they were added. */
+    public List<Wallet> getWallets() {
+        return ImmutableList.copyOf(wallets);
+    }
+
+    /**
+     * Registers the group with the given chain, so that it receives blocks on behalf of all of its wallets. Unlike
+     * {@link AbstractBlockChain#addWallet(Wallet)} this does not reconcile wallet and chain heights.
+     */
+    public void addTo(AbstractBlockChain chain) {
+        chain.addNewBestBlockListener(Threading.SAME_THREAD, this);
+        chain.addReorganizeListener(Threading.SAME_THREAD, this);
+        chain.addTransactionReceivedListener(Threading.SAME_THREAD, this);
+    }
+
+    public void removeFrom(AbstractBlockChain chain) {
+        chain.removeNewBestBlockListener(this);
+        chain.removeReorganizeListener(this);
+        chain.removeTransactionReceivedListener(this);
+    }
+
+    /**
+     * Registers the group with the given peer group: it provides one Bloom filter for all wallets, receives pending
+     * transactions on their behalf and becomes their transaction broadcaster.
+     */
+    public void addTo(PeerGroup peerGroup) {
+        checkState(vPeerGroup == null, "Already connected to a peer group");
+        vPeerGroup = peerGroup;
+        for (Wallet wallet : wallets)
+            wallet.setTransactionBroadcaster(peerGroup);
+        peerGroup.addOnTransactionBroadcastListener(Threading.SAME_THREAD, this);
+        peerGroup.addPeerFilterProvider(this);
+    }
+
+    public void removeFrom(PeerGroup peerGroup) {
+        checkState(vPeerGroup == peerGroup, "Not connected to this peer group");
+        peerGroup.removePeerFilterProvider(this);
+        peerGroup.removeOnTransactionBroadcastListener(this);
+        for (Wallet wallet : wallets)
+            wallet.setTransactionBroadcaster(null);
+        vPeerGroup = null;
+    }
+
+    /**
+     * Returns the wallets the given transaction may be relevant to: those that can be paid by one of its outputs,
+     * hold or spend from one of the transactions its inputs spend from, or already know the transaction itself.
+     */
+    public Set<Wallet> findCandidateWallets(Transaction tx) {
+        lock.lock();
+        try {
+            Set<Wallet> candidates = new LinkedHashSet<>(unindexed);
+            candidates.addAll(txHashes.get(tx.getHash()));
+            if (!tx.isCoinBase()) {
+                for (TransactionInput input : tx.getInputs())
+                    candidates.addAll(txHashes.get(input.getOutpoint().getHash()));
+            }
+            for (TransactionOutput output : tx.getOutputs()) {
+                try {
+                    Script script = output.getScriptPubKey();
+                    candidates.addAll(watchedScripts.get(ByteBuffer.wrap(script.getProgram())));
+                    byte[] pubKeyHash = null;
+                    if (script.isSentToAddress())
+                        pubKeyHash = script.getPubKeyHash();
+                    else if (script.isSentToRawPubKey())
+                        pubKeyHash = Utils.sha256hash160(script.getPubKey());
+                    if (pubKeyHash != null)
+                        candidates.addAll(pubKeyHashes.get(ByteBuffer.wrap(pubKeyHash)));
+                } catch (ScriptException e) {
+                    // Nobody can be paid by an output we can't parse.
+                }
+            }
+            return candidates;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void receiveFromBlock(Transaction tx, StoredBlock block, BlockChain.NewBlockType blockType,
+                                 int relativityOffset) throws VerificationException {
+        boolean first = true;
+        for (Wallet wallet : findCandidateWallets(tx)) {
+            // Give every wallet its own copy, see AbstractBlockChain.informListenerForNewTransactions.
+            Transaction copy = first ? tx : copyOf(tx);
+            first = false;
+            wallet.receiveFromBlock(copy, block, blockType, relativityOffset);
+            if (wallet.getTransaction(copy.getHash()) != null)
+                indexTransaction(wallet, copy);
+        }
+    }
+
+    @Override
+    public boolean notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block, BlockChain.NewBlockType blockType,
+                                              int relativityOffset) throws VerificationException {
+        List<Wallet> candidates;
+        lock.lock();
+        try {
+            candidates = new ArrayList<>(unindexed);
+            candidates.addAll(txHashes.get(txHash));
+        } finally {
+            lock.unlock();
+        }
+        boolean known = false;
+        for (Wallet wallet : candidates)
+            known |= wallet.notifyTransactionIsInBlock(txHash, block, blockType, relativityOffset);
+        return known;
+    }
+
+    @Override
+    public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+        // Every wallet tracks confirmation depth and its last seen block, so this can't be routed.
+        for (Wallet wallet : wallets)
+            wallet.notifyNewBestBlock(block);
+    }
+
+    @Override
+    public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks)
+            throws VerificationException {
+        for (Wallet wallet : wallets)
+            wallet.reorganize(splitPoint, oldBlocks, newBlocks);
+    }
+
+    @Override
+    public void onTransaction(Peer peer, Transaction tx) {
+        boolean first = true;
+        for (Wallet wallet : findCandidateWallets(tx)) {
+            try {
+                if (!wallet.isPendingTransactionRelevant(tx))
+                    continue;
+                Transaction copy = first ? tx : copyOf(tx);
+                first = false;
+                wallet.receivePending(copy, null);
+                indexTransaction(wallet, copy);
+            } catch (VerificationException e) {
+                log.error("Wallet failed to verify tx", e);
+            }
+        }
+    }
+
+    @Override
+    public long getEarliestKeyCreationTime() {
+        long earliest = Long.MAX_VALUE;
+        for (Wallet wallet : wallets)
+            earliest = Math.min(earliest, wallet.getEarliestKeyCreationTime());
+        return earliest;
+    }
+
+    // The wallets taking part in the current filter calculation, so that a wallet added in the middle of it is
+    // neither asked for elements nor unlocked without having been locked.
+    @GuardedBy("filterLock") @Nullable private ImmutableList<Wallet> filterWallets;
+    @GuardedBy("filterLock") private int filterCalculations;
+
+    @Override
+    public void beginBloomFilterCalculation() {
+        filterLock.lock();
+        if (filterCalculations++ > 0)
+            return;
+        filterWallets = ImmutableList.copyOf(wallets);
+        for (Wallet wallet : filterWallets)
+            wallet.beginBloomFilterCalculation();
+    }
+
+    @Override
+    public int getBloomFilterElementCount() {
+        beginBloomFilterCalculation();
+        try {
+            int size = 0;
+            for (Wallet wallet : filterWallets)
+                size += wallet.getBloomFilterElementCount();
+            return size;
+        } finally {
+            endBloomFilterCalculation();
+        }
+    }
+
+    @Override
+    public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
+        beginBloomFilterCalculation();
+        try {
+            BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
+            for (Wallet wallet : filterWallets)
+                filter.merge(wallet.getBloomFilter(size, falsePositiveRate, nTweak));
+            return filter;
+        } finally {
+            endBloomFilterCalculation();
+        }
+    }
+
+    @Override
+    public boolean isRequiringUpdateAllBloomFilter() {
+        for (Wallet wallet : wallets)
+            if (wallet.isRequiringUpdateAllBloomFilter())
+                return true;
+        return false;
+    }
+
+    @Override
+    public void endBloomFilterCalculation() {
+        checkState(filterLock.isHeldByCurrentThread());
+        try {
+            if (--filterCalculations > 0)
+                return;
+            ImmutableList<Wallet> calculated = checkNotNull(filterWallets);
+            filterWallets = null;
+            for (Wallet wallet : calculated.reverse())
+                wallet.endBloomFilterCalculation();
+        } finally {
+            filterLock.unlock();
+        }
+    }
+
+    private void indexKeys(Wallet wallet, List<ECKey> keys) {
+        checkState(lock.isHeldByCurrentThread());
+        for (ECKey key : keys)
+            pubKeyHashes.put(ByteBuffer.wrap(key.getPubKeyHash()), wallet);
+    }
+
+    private void indexTransaction(Wallet wallet, Transaction tx) {
+        lock.lock();
+        try {
+            if (!registrations.containsKey(wallet))
+                return;
+            txHashes.put(tx.getHash(), wallet);
+            if (!tx.isCoinBase()) {
+                for (TransactionInput input : tx.getInputs())
+                    txHashes.put(input.getOutpoint().getHash(), wallet);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static <K> void removeFromIndex(SetMultimap<K, Wallet> index, Wallet wallet) {
+        for (Iterator<Map.Entry<K, Wallet>> it = index.entries().iterator(); it.hasNext(); )
+            if (it.next().getValue() == wallet)
+                it.remove();
+    }
+
+    private Transaction copyOf(Transaction tx) {
+        try {
+            return params.getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+        } catch (ProtocolException e) {
+            // Failed to duplicate tx, should never happen.
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void recalculateFilter() {
+        PeerGroup peerGroup = vPeerGroup;
+        if (peerGroup != null)
+            peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+    }
+}
@@ -25,11 +25,15 @@ import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptException;
 import org.bitcoinj.signers.LocalTransactionSigner;
 import org.bitcoinj.signers.TransactionSigner;
+import org.bitcoinj.store.WindowsMMapHack;
 import org.bitcoinj.utils.ExchangeRate;
 import org.bitcoinj.utils.Fiat;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.CodedOutputStream;
@@ -40,13 +44,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -479,6 +491,205 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
                              Protos.Wallet walletProto, boolean forceReset) throws UnreadableWalletException {
+        Wallet wallet = readKeysAndScripts(params, walletProto);
+
+        if (forceReset) {
+            // Should mirror Wallet.reset()
+            wallet.setLastBlockSeenHash(null);
+            wallet.setLastBlockSeenHeight(-1);
+            wallet.setLastBlockSeenTimeSecs(0);
+        } else {
+            // Read all transactions and insert into the txMap.
+            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+                readTransaction(txProto, wallet.getParams(), txMap);
+            }
+
+            // Update transaction outputs to point to inputs that spend them
+            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+                WalletTransaction wtx = connectTransactionOutputs(params, txProto, txMap);
+                wallet.addWalletTransaction(wtx);
+            }
+
+            readLastSeenBlock(wallet, walletProto);
+        }
+
+        loadExtensions(wallet, extensions != null ? extensions : new WalletExtension[0], walletProto);
+        readTagsAndSigners(wallet, walletProto);
+
+        // Make sure the object can be re-used to read another wallet without corruption.
+        txMap.clear();
+
+        return wallet;
+    }
+
+    /**
+     * <p>Loads a wallet from a file in two steps, for wallets with so many transactions that reading all of them before
+     * the wallet can be used takes too long. The file is memory mapped and scanned once, without building the whole
+     * wallet message. The keys, watched scripts and the other small fields are read straight away, so the wallet
+     * returned by {@link IncrementalLoad#getWallet()} can already hand out and look up keys. Transactions, then
+     * extensions, then tags and transaction signers are read on the given executor, in the same order as
+     * {@link #readWallet(InputStream, WalletExtension...)} does. Transactions are parsed one at a time from the mapped
+     * file, so the transaction data is never on the heap twice. The file is unmapped once loading has finished.</p>
+     *
+     * <p>The wallet lock is held while the transactions are loaded, so any method that looks at transactions or
+     * balances waits until {@link IncrementalLoad#getTransactionsLoaded()} has completed. Don't connect the wallet to
+     * a block chain or peer group before then. If the transactions or a mandatory extension can't be read, the future
+     * fails with an {@link UnreadableWalletException} and the wallet should be thrown away.</p>
+     *
+     * @throws UnreadableWalletException if the file can't be read or its keys are unreadable.
+     */
+    public IncrementalLoad readWalletIncrementally(File file, Executor executor,
+                                                   @Nullable WalletExtension... extensions)
+            throws UnreadableWalletException {
+        final MappedByteBuffer buffer;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                if (channel.size() > WALLET_SIZE_LIMIT)
+                    throw new UnreadableWalletException("Wallet file is too large: " + channel.size());
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not open wallet file " + file, e);
+        }
+
+        boolean loading = false;
+        try {
+            IncrementalLoad load = readWalletIncrementally(file, buffer, executor, extensions);
+            loading = true;
+            return load;
+        } finally {
+            // Once loading started, the loader releases the mapping when it is done.
+            if (!loading)
+                releaseMapping(buffer);
+        }
+    }
+
+    private IncrementalLoad readWalletIncrementally(File file, final MappedByteBuffer buffer, Executor executor,
+                                                    @Nullable WalletExtension[] extensions)
+            throws UnreadableWalletException {
+        // Split the top level message into the transactions, of which only the position is kept, and everything
+        // else, which is copied and parsed as a wallet message without transactions.
+        final Protos.Wallet walletProto;
+        final int[] offsets, lengths;
+        final int count;
+        try {
+            CodedInputStream input = CodedInputStream.newInstance(new ByteBufferInputStream(buffer.duplicate()));
+            input.setSizeLimit(WALLET_SIZE_LIMIT);
+            ByteArrayOutputStream rest = new ByteArrayOutputStream();
+            CodedOutputStream restOutput = CodedOutputStream.newInstance(rest);
+            int[] txOffsets = new int[64], txLengths = new int[64];
+            int txCount = 0;
+            int tag;
+            while ((tag = input.readTag()) != 0) {
+                if (WireFormat.getTagFieldNumber(tag) == Protos.Wallet.TRANSACTION_FIELD_NUMBER
+                        && (tag & 7) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                    int length = input.readRawVarint32();
+                    if (txCount == txOffsets.length) {
+                        txOffsets = Arrays.copyOf(txOffsets, txCount * 2);
+                        txLengths = Arrays.copyOf(txLengths, txCount * 2);
+                    }
+                    txOffsets[txCount] = input.getTotalBytesRead();
+                    txLengths[txCount++] = length;
+                    input.skipRawBytes(length);
+                } else {
+                    input.skipField(tag, restOutput);
+                }
+            }
+            restOutput.flush();
+            walletProto = Protos.Wallet.parseFrom(rest.toByteArray());
+            offsets = txOffsets;
+            lengths = txLengths;
+            count = txCount;
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not parse wallet file " + file, e);
+        }
+
+        final NetworkParameters params = NetworkParameters.fromID(walletProto.getNetworkIdentifier());
+        if (params == null)
+            throw new UnreadableWalletException("Unknown network parameters ID " + walletProto.getNetworkIdentifier());
+        final Wallet wallet = readKeysAndScripts(params, walletProto);
+        readLastSeenBlock(wallet, walletProto);
+
+        final WalletExtension[] extensionsList = extensions != null ? extensions : new WalletExtension[0];
+        final SettableFuture<Wallet> loaded = SettableFuture.create();
+        final CountDownLatch locked = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                wallet.lock.lock();
+                try {
+                    locked.countDown();
+                    Map<ByteString, Transaction> txMap = new HashMap<>();
+                    for (int i = 0; i < count; i++)
+                        readTransaction(parseTransaction(buffer, offsets[i], lengths[i]), params, txMap);
+                    for (int i = 0; i < count; i++) {
+                        Protos.Transaction txProto = parseTransaction(buffer, offsets[i], lengths[i]);
+                        wallet.addWalletTransaction(connectTransactionOutputs(params, txProto, txMap));
+                    }
+                    // Same order as readWallet(), so extensions see the same wallet state.
+                    loadExtensions(wallet, extensionsList, walletProto);
+                    readTagsAndSigners(wallet, walletProto);
+                    loaded.set(wallet);
+                } catch (Throwable t) {
+                    loaded.setException(t);
+                } finally {
+                    locked.countDown();
+                    wallet.lock.unlock();
+                    releaseMapping(buffer);
+                }
+            }
+        });
+        // Only hand out the wallet once the loader holds its lock, so nobody sees it without its transactions.
+        Uninterruptibles.awaitUninterruptibly(locked);
+        return new IncrementalLoad(wallet, loaded);
+    }
+
+    /** The result of {@link #readWalletIncrementally(File, Executor, WalletExtension...)}. */
+    public static class IncrementalLoad {
+        private final Wallet wallet;
+        private final ListenableFuture<Wallet> transactionsLoaded;
+
+        private IncrementalLoad(Wallet wallet, ListenableFuture<Wallet> transactionsLoaded) {
+            this.wallet = wallet;
+            this.transactionsLoaded = transactionsLoaded;
+        }
+
+        /** Returns the wallet, which is usable for key operations straight away. */
+        public Wallet getWallet() {
+            return wallet;
+        }
+
+        /** Returns a future that completes with the wallet when its transactions and extensions have been read. */
+        public ListenableFuture<Wallet> getTransactionsLoaded() {
+            return transactionsLoaded;
+        }
+    }
+
+    // Windows doesn't allow a file to be replaced while it is mapped, which would break saving the wallet. Parsing
+    // copies everything it keeps, so nothing refers to the mapping afterwards.
+    private static void releaseMapping(MappedByteBuffer buffer) {
+        if (System.getProperty("os.name").toLowerCase().contains("win"))
+            WindowsMMapHack.forceRelease(buffer);
+    }
+
+    private static Protos.Transaction parseTransaction(ByteBuffer buffer, int offset, int length)
+            throws UnreadableWalletException {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(offset + length).position(offset);
+        try {
+            return Protos.Transaction.parseFrom(new ByteBufferInputStream(slice));
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not parse transaction at offset " + offset, e);
+        }
+    }
+
+    /** Reads the parts of a wallet message that are needed to create the wallet: keys and watched scripts. */
+    private Wallet readKeysAndScripts(NetworkParameters params, Protos.Wallet walletProto)
+            throws UnreadableWalletException {
         if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
             throw new UnreadableWalletException.FutureVersion();
         if (!walletProto.getNetworkIdentifier().equals(params.getId()))
@@ -512,45 +723,30 @@ public class WalletProtobufSerializer {
         if (walletProto.hasDescription()) {
             wallet.setDescription(walletProto.getDescription());
         }
+        return wallet;
+    }
 
-        if (forceReset) {
-            // Should mirror Wallet.reset()
+    private static void readLastSeenBlock(Wallet wallet, Protos.Wallet walletProto) {
+        // Update the lastBlockSeenHash.
+        if (!walletProto.hasLastSeenBlockHash()) {
             wallet.setLastBlockSeenHash(null);
+        } else {
+            wallet.setLastBlockSeenHash(byteStringToHash(walletProto.getLastSeenBlockHash()));
+        }
+        if (!walletProto.hasLastSeenBlockHeight()) {
             wallet.setLastBlockSeenHeight(-1);
-            wallet.setLastBlockSeenTimeSecs(0);
         } else {
-            // Read all transactions and insert into the txMap.
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                readTransaction(txProto, wallet.getParams());
-            }
-
-            // Update transaction outputs to point to inputs that spend them
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                WalletTransaction wtx = connectTransactionOutputs(params, txProto);
-                wallet.addWalletTransaction(wtx);
-            }
-
-            // Update the lastBlockSeenHash.
-            if (!walletProto.hasLastSeenBlockHash()) {
-                wallet.setLastBlockSeenHash(null);
-            } else {
-                wallet.setLastBlockSeenHash(byteStringToHash(walletProto.getLastSeenBlockHash()));
-            }
-            if (!walletProto.hasLastSeenBlockHeight()) {
-                wallet.setLastBlockSeenHeight(-1);
-            } else {
-                wallet.setLastBlockSeenHeight(walletProto.getLastSeenBlockHeight());
-            }
-            // Will default to zero if not present.
-            wallet.setLastBlockSeenTimeSecs(walletProto.getLastSeenBlockTimeSecs());
-
-            if (walletProto.hasKeyRotationTime()) {
-                wallet.setKeyRotationTime(new Date(walletProto.getKeyRotationTime() * 1000));
-            }
+            wallet.setLastBlockSeenHeight(walletProto.getLastSeenBlockHeight());
         }
+        // Will default to zero if not present.
+        wallet.setLastBlockSeenTimeSecs(walletProto.getLastSeenBlockTimeSecs());
 
-        loadExtensions(wallet, extensions != null ? extensions : new WalletExtension[0], walletProto);
+        if (walletProto.hasKeyRotationTime()) {
+            wallet.setKeyRotationTime(new Date(walletProto.getKeyRotationTime() * 1000));
+        }
+    }
 
+    private static void readTagsAndSigners(Wallet wallet, Protos.Wallet walletProto) throws UnreadableWalletException {
         for (Protos.Tag tag : walletProto.getTagsList()) {
             wallet.setTag(tag.getTag(), tag.getData());
         }
@@ -570,11 +766,6 @@ public class WalletProtobufSerializer {
         if (walletProto.hasVersion()) {
             wallet.setVersion(walletProto.getVersion());
         }
-
-        // Make sure the object can be re-used to read another wallet without corruption.
-        txMap.clear();
-
-        return wallet;
     }
 
     private void loadExtensions(Wallet wallet, WalletExtension[] extensionsList, Protos.Wallet walletProto) throws UnreadableWalletException {
@@ -626,7 +817,8 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+    private void readTransaction(Protos.Transaction txProto, NetworkParameters params,
+                                 Map<ByteString, Transaction> txMap) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
 
         tx.setVersion(txProto.getVersion());
@@ -702,7 +894,9 @@ public class WalletProtobufSerializer {
     }
 
     private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
-                                                        final org.bitcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
+                                                        final org.bitcoinj.wallet.Protos.Transaction txProto,
+                                                        final Map<ByteString, Transaction> txMap)
+            throws UnreadableWalletException {
         Transaction tx = txMap.get(txProto.getHash());
         final WalletTransaction.Pool pool;
         switch (txProto.getPool()) {
@@ -740,7 +934,7 @@ public class WalletProtobufSerializer {
         if (txProto.hasConfidence()) {
             Protos.TransactionConfidence confidenceProto = txProto.getConfidence();
             TransactionConfidence confidence = tx.getConfidence();
-            readConfidence(params, tx, confidenceProto, confidence);
+            readConfidence(params, tx, confidenceProto, confidence, txMap);
         }
 
         return new WalletTransaction(pool, tx);
@@ -748,7 +942,8 @@ public class WalletProtobufSerializer {
 
     private void readConfidence(final NetworkParameters params, final Transaction tx,
                                 final Protos.TransactionConfidence confidenceProto,
-                                final TransactionConfidence confidence) throws UnreadableWalletException {
+                                final TransactionConfidence confidence,
+                                final Map<ByteString, Transaction> txMap) throws UnreadableWalletException {
         // We are lenient here because tx confidence is not an essential part of the wallet.
         // If the tx has an unknown type of confidence, ignore.
         if (!confidenceProto.hasType()) {
@@ -840,4 +1035,41 @@ public class WalletProtobufSerializer {
             return false;
         }
     }
+
+    /** Reads the remaining bytes of a buffer, such as a memory mapped file, without copying them all up front. */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
 }
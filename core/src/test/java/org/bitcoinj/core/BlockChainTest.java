@@ -17,6 +17,7 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.core.listeners.NewBestBlockListener;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.TestNet2Params;
 import org.bitcoinj.params.UnitTestParams;
@@ -24,6 +25,7 @@ import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.MemoryBlockStore;
 import org.bitcoinj.testing.FakeTxBuilder;
 import org.bitcoinj.utils.BriefLogFormatter;
+import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.Wallet.BalanceType;
 
@@ -268,6 +270,46 @@ public class BlockChainTest {
         }
     }
 
+    @Test
+    public void parallelListeners() throws Exception {
+        Wallet wallet2 = new Wallet(PARAMS);
+        chain.addWallet(wallet2);
+        chain.setParallelListenerExecutor(Threading.THREAD_POOL);
+        Transaction tx1 = createFakeTx(PARAMS, COIN, wallet.currentReceiveAddress());
+        Transaction tx2 = createFakeTx(PARAMS, CENT, wallet2.currentReceiveAddress());
+        FakeTxBuilder.BlockPair b1 = createFakeBlock(blockStore, 1, tx1, tx2);
+        assertTrue(chain.add(b1.block));
+        assertEquals(COIN, wallet.getBalance());
+        assertEquals(CENT, wallet2.getBalance());
+        assertEquals(b1.block.getHash(), wallet2.getLastBlockSeenHash());
+
+        // A spend from one wallet to the other is given to each wallet as its own copy.
+        Transaction spend = wallet.createSend(wallet2.currentReceiveAddress(), CENT);
+        Block b2 = createFakeBlock(blockStore, 2, spend).block;
+        assertTrue(chain.add(b2));
+        assertEquals(CENT.add(CENT), wallet2.getBalance());
+        assertEquals(COIN.subtract(CENT).subtract(spend.getFee()), wallet.getBalance());
+        assertNotSame(wallet.getTransaction(spend.getHash()), wallet2.getTransaction(spend.getHash()));
+        assertEquals(b2.getHash(), wallet.getLastBlockSeenHash());
+        assertEquals(b2.getHash(), wallet2.getLastBlockSeenHash());
+
+        // Failures are reported to the caller once all listeners are done with the block.
+        chain.addNewBestBlockListener(Threading.SAME_THREAD, new NewBestBlockListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+                throw new VerificationException("test");
+            }
+        });
+        Block b3 = createFakeBlock(blockStore, 3).block;
+        try {
+            chain.add(b3);
+            fail();
+        } catch (VerificationException e) {
+            assertEquals(b3.getHash(), wallet.getLastBlockSeenHash());
+            assertEquals(b3.getHash(), wallet2.getLastBlockSeenHash());
+        }
+    }
+
     @Test
     public void duplicates() throws Exception {
         // Adding a block twice should not have any effect, in particular it should not send the block to the wallet.
@@ -201,6 +201,22 @@ public class BlockTest {
         block.verify(32768, EnumSet.of(Block.VerifyFlag.HEIGHT_IN_COINBASE));
     }
 
+    @Test
+    public void transactionIdsFromPayload() throws Exception {
+        byte[] bytes = ByteStreams.toByteArray(getClass().getResourceAsStream("block169482.dat"));
+        MessageSerializer serializer = MainNetParams.get().getDefaultSerializer();
+        Block serial = serializer.makeBlock(bytes);
+        Block parallel = new BitcoinSerializer(MainNetParams.get(), false, 2).makeBlock(bytes);
+        assertEquals(serial.getTransactions().size(), parallel.getTransactions().size());
+        for (int i = 0; i < serial.getTransactions().size(); i++) {
+            Transaction tx = serial.getTransactions().get(i);
+            Sha256Hash reserialized = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(tx.bitcoinSerialize()));
+            assertEquals(reserialized, tx.getHash());
+            assertEquals(reserialized, parallel.getTransactions().get(i).getHash());
+        }
+        parallel.verify(169482, EnumSet.noneOf(Block.VerifyFlag.class));
+    }
+
     @Test
     public void testReceiveCoinbaseTransaction() throws Exception {
         // Block 169482 (hash 0000000000000756935f1ee9d5987857b604046f846d3df56d024cdb5f368665)
@@ -0,0 +1,63 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.H2FullPrunedBlockStore;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.After;
+
+import java.io.File;
+
+/**
+ * An H2 implementation of the FullPrunedBlockStoreTest that takes its connections from a connection pool
+ */
+public class H2PooledFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    private JdbcConnectionPool pool;
+
+    @After
+    public void tearDown() throws Exception {
+        if (pool != null)
+            pool.dispose();
+        deleteFiles();
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        if (pool != null)
+            pool.dispose();
+        deleteFiles();
+        pool = JdbcConnectionPool.create("jdbc:h2:pooltest;create=true;LOCK_TIMEOUT=60000;DB_CLOSE_ON_EXIT=FALSE", "sa", "sa");
+        return new H2FullPrunedBlockStore(params, pool, blockCount);
+    }
+
+    private void deleteFiles() {
+        maybeDelete("pooltest.h2.db");
+        maybeDelete("pooltest.trace.db");
+        maybeDelete("pooltest.lock.db");
+    }
+
+    private void maybeDelete(String s) {
+        new File(s).delete();
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        ((H2FullPrunedBlockStore)store).resetStore();
+    }
+}
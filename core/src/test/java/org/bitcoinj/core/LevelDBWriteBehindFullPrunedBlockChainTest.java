@@ -0,0 +1,106 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.LevelDBFullPrunedBlockStore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the LevelDB tests with a small write-behind buffer, so that blocks are both served from the buffer and
+ * flushed to disk.
+ */
+public class LevelDBWriteBehindFullPrunedBlockChainTest extends LevelDBFullPrunedBlockChainTest {
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        LevelDBFullPrunedBlockStore store = (LevelDBFullPrunedBlockStore) super.createStore(params, blockCount);
+        store.setWriteBehind(8, 60 * 1000);
+        return store;
+    }
+
+    @Test
+    public void writeBehindCancelsCreateAndSpend() throws Exception {
+        LevelDBFullPrunedBlockStore store = (LevelDBFullPrunedBlockStore) createStore(PARAMS, 10);
+        store.setWriteBehind(1000, Long.MAX_VALUE);
+        try {
+            UTXO created = newUTXO();
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(created);
+            store.commitDatabaseBatchWrite();
+            // The output and its address index entry.
+            assertEquals(2, store.getWriteBehindSize());
+            assertTrue(store.hasUnspentOutputs(created.getHash(), 1));
+            assertNotNull(store.getTransactionOutput(created.getHash(), 0));
+
+            // Spending it before a flush leaves nothing to write.
+            store.beginDatabaseBatchWrite();
+            store.removeUnspentTransactionOutput(created);
+            store.commitDatabaseBatchWrite();
+            assertEquals(0, store.getWriteBehindSize());
+            assertFalse(store.hasUnspentOutputs(created.getHash(), 1));
+            assertNull(store.getTransactionOutput(created.getHash(), 0));
+
+            // Once an output is on disk, spending it must be buffered as a delete.
+            UTXO flushed = newUTXO();
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(flushed);
+            store.commitDatabaseBatchWrite();
+            store.flushWriteBehind();
+            assertEquals(0, store.getWriteBehindSize());
+            assertTrue(store.hasUnspentOutputs(flushed.getHash(), 1));
+            store.beginDatabaseBatchWrite();
+            store.removeUnspentTransactionOutput(flushed);
+            store.commitDatabaseBatchWrite();
+            assertEquals(2, store.getWriteBehindSize());
+            assertFalse(store.hasUnspentOutputs(flushed.getHash(), 1));
+            assertNull(store.getTransactionOutput(flushed.getHash(), 0));
+            store.flushWriteBehind();
+            assertFalse(store.hasUnspentOutputs(flushed.getHash(), 1));
+            assertNull(store.getTransactionOutput(flushed.getHash(), 0));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void abortDoesNotReachBuffer() throws Exception {
+        LevelDBFullPrunedBlockStore store = (LevelDBFullPrunedBlockStore) createStore(PARAMS, 10);
+        store.setWriteBehind(1000, Long.MAX_VALUE);
+        try {
+            UTXO created = newUTXO();
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(created);
+            store.abortDatabaseBatchWrite();
+            assertEquals(0, store.getWriteBehindSize());
+            assertNull(store.getTransactionOutput(created.getHash(), 0));
+        } finally {
+            store.close();
+        }
+    }
+
+    private UTXO newUTXO() {
+        Address address = new ECKey().toAddress(PARAMS);
+        Script script = ScriptBuilder.createOutputScript(address);
+        Sha256Hash hash = Sha256Hash.of(new ECKey().getPubKey());
+        return new UTXO(hash, 0, Coin.COIN, 1, false, script, address.toString());
+    }
+}
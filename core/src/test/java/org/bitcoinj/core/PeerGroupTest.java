@@ -252,6 +252,8 @@ public class PeerGroupTest extends TestWithPeerGroup {
 
         assertEquals(BloomFilter.class, waitForOutbound(p1).getClass());
         assertEquals(MemoryPoolMessage.class, waitForOutbound(p1).getClass());
+        // Learns when the peer uses the new filter.
+        assertEquals(Ping.class, waitForOutbound(p1).getClass());
 
         Coin value = COIN;
         Transaction t1 = FakeTxBuilder.createFakeTx(PARAMS, value, address2);
@@ -659,6 +661,7 @@ public class PeerGroupTest extends TestWithPeerGroup {
         BloomFilter bf, f2 = null;
         while ((bf = (BloomFilter) outbound(p1)) != null) {
             assertEquals(MemoryPoolMessage.class, outbound(p1).getClass());
+            assertEquals(Ping.class, outbound(p1).getClass());
             f2 = bf;
         }
         assertNotNull(key);
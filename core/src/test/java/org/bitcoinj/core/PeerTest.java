@@ -46,6 +46,7 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -207,6 +208,59 @@ public class PeerTest extends TestWithNetworkConnections {
         closePeer(peer);
     }
 
+    @Test
+    public void pipelinedFilteredBlockDownload() throws Exception {
+        connect();
+        peer.setDownloadParameters(0, true);
+        peer.setMaxFilteredBlocksInFlight(1000);
+        Block b1 = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).block;
+        blockChain.add(b1);
+        Block b2 = makeSolvedTestBlock(b1);
+
+        peer.startBlockChainDownload();
+        assertTrue(outbound(writeTarget) instanceof GetBlocksMessage);
+        // The peer answers with a full batch, and we ask for the next batch right away instead of waiting for the
+        // head block to be announced.
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        inv.addBlock(b2);
+        Sha256Hash last = null;
+        for (int i = 1; i < 500; i++) {
+            last = Sha256Hash.of(("block " + i).getBytes());
+            inv.addItem(new InventoryItem(InventoryItem.Type.Block, last));
+        }
+        inbound(writeTarget, inv);
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(500, getdata.getItems().size());
+        assertEquals(InventoryItem.Type.FilteredBlock, getdata.getItems().get(0).type);
+        assertTrue(outbound(writeTarget) instanceof Ping);
+        GetBlocksMessage getblocks = (GetBlocksMessage) outbound(writeTarget);
+        assertEquals(last, getblocks.getLocator().get(0));
+        assertEquals(Sha256Hash.ZERO_HASH, getblocks.getStopHash());
+        assertTrue(outbound(writeTarget) instanceof Ping);
+
+        // The next batch fills the window, so the pipeline waits.
+        inv = new InventoryMessage(PARAMS);
+        for (int i = 500; i < 1000; i++)
+            inv.addItem(new InventoryItem(InventoryItem.Type.Block, Sha256Hash.of(("block " + i).getBytes())));
+        inbound(writeTarget, inv);
+        assertEquals(500, ((GetDataMessage) outbound(writeTarget)).getItems().size());
+        assertTrue(outbound(writeTarget) instanceof Ping);
+        assertNull(outbound(writeTarget));
+
+        // A filtered block without matching transactions goes into the chain without waiting for the next message.
+        final SettableFuture<Block> downloaded = SettableFuture.create();
+        peer.addBlocksDownloadedEventListener(Threading.SAME_THREAD, new BlocksDownloadedEventListener() {
+            @Override
+            public void onBlocksDownloaded(Peer peer, Block block, @Nullable FilteredBlock filteredBlock, int blocksLeft) {
+                downloaded.set(block);
+            }
+        });
+        inbound(writeTarget, new BloomFilter(1, 0.0001, 0).applyAndUpdate(b2));
+        assertEquals(b2.getHash(), downloaded.get().getHash());
+        assertEquals(b2.getHash(), blockChain.getChainHead().getHeader().getHash());
+        closePeer(peer);
+    }
+
     // Check that an inventory tickle is processed correctly when downloading missing blocks is active.
     @Test
     public void invTickle() throws Exception {
@@ -624,17 +678,16 @@ public class PeerTest extends TestWithNetworkConnections {
         notFound.addItem(new InventoryItem(InventoryItem.Type.Transaction, t8hash));
         inbound(writeTarget, notFound);
         assertFalse(futures.isDone());
-        // It will recursively ask for the dependencies of t2: t5 and t4, but not t3 because it already found t4.
+        // It will ask for the dependencies of t2 and t3 together: t5 and t4.
         getdata = (GetDataMessage) outbound(writeTarget);
-        assertEquals(getdata.getItems().get(0).hash, t2.getInput(0).getOutpoint().getHash());
+        assertEquals(2, getdata.getItems().size());
+        assertEquals(t5hash, getdata.getItems().get(0).hash);
+        assertEquals(t4.getHash(), getdata.getItems().get(1).hash);
         // t5 isn't found and t4 is.
         notFound = new NotFoundMessage(PARAMS);
         notFound.addItem(new InventoryItem(InventoryItem.Type.Transaction, t5hash));
         inbound(writeTarget, notFound);
         assertFalse(futures.isDone());
-        // Request t4 ...
-        getdata = (GetDataMessage) outbound(writeTarget);
-        assertEquals(t4.getHash(), getdata.getItems().get(0).hash);
         inbound(writeTarget, t4);
         // Continue to explore the t4 branch and ask for t6, which is in the chain.
         getdata = (GetDataMessage) outbound(writeTarget);
@@ -703,6 +756,71 @@ public class PeerTest extends TestWithNetworkConnections {
         assertTrue(results.contains(t2));
     }
 
+    @Test
+    public void recursiveDependencyDownload_byteLimited() throws Exception {
+        connect();
+        // Make some fake transactions in the following graph:
+        //   t1 -> t2 -> t3 -> [t4]
+        //      -> t2
+        // The ones in brackets are assumed to be in the chain and are represented only by hashes.
+        Sha256Hash t4hash = Sha256Hash.wrap("2b801dd82f01d17bbde881687bf72bc62e2faa8ab8133d36fcb8c3abe7459da6");
+        Transaction t3 = new Transaction(PARAMS);
+        t3.addInput(new TransactionInput(PARAMS, t3, new byte[]{}, new TransactionOutPoint(PARAMS, 0, t4hash)));
+        t3.addOutput(COIN, new ECKey());
+        t3 = FakeTxBuilder.roundTripTransaction(PARAMS, t3);
+        Transaction t2 = new Transaction(PARAMS);
+        t2.addInput(t3.getOutput(0));
+        t2.addOutput(COIN, new ECKey());
+        t2.addOutput(COIN, new ECKey());
+        t2 = FakeTxBuilder.roundTripTransaction(PARAMS, t2);
+        Transaction t1 = new Transaction(PARAMS);
+        t1.addInput(t2.getOutput(0));
+        t1.addInput(t2.getOutput(1));
+        t1.addOutput(COIN, new ECKey());
+        t1 = FakeTxBuilder.roundTripTransaction(PARAMS, t1);
+        // Only room for t2.
+        peer.setMaxTxDependencyBytes(t2.getMessageSize());
+
+        ListenableFuture<List<Transaction>> futures = peer.downloadDependencies(t1);
+        assertFalse(futures.isDone());
+        // t2 is asked for once, although t1 spends two of its outputs.
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(1, getdata.getItems().size());
+        assertEquals(t2.getHash(), getdata.getItems().get(0).hash);
+        inbound(writeTarget, t2);
+        // The budget is used up, so t3 isn't asked for.
+        assertNull(outbound(writeTarget));
+        pingAndWait(writeTarget);
+        assertTrue(futures.isDone());
+        List<Transaction> results = futures.get();
+        assertEquals(1, results.size());
+        assertTrue(results.contains(t2));
+    }
+
+    @Test
+    public void recursiveDependencyDownload_levelCappedByBytes() throws Exception {
+        connect();
+        // t1 spends two unconfirmed transactions, but the budget is too small for both of them.
+        Transaction t2 = FakeTxBuilder.createFakeTx(PARAMS, COIN, new ECKey());
+        Transaction t3 = FakeTxBuilder.createFakeTx(PARAMS, COIN, new ECKey());
+        Transaction t1 = new Transaction(PARAMS);
+        t1.addInput(t2.getOutput(0));
+        t1.addInput(t3.getOutput(0));
+        t1.addOutput(COIN, new ECKey());
+        t1 = FakeTxBuilder.roundTripTransaction(PARAMS, t1);
+        peer.setMaxTxDependencyBytes(1);
+
+        ListenableFuture<List<Transaction>> futures = peer.downloadDependencies(t1);
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(1, getdata.getItems().size());
+        assertEquals(t2.getHash(), getdata.getItems().get(0).hash);
+        inbound(writeTarget, t2);
+        assertNull(outbound(writeTarget));
+        pingAndWait(writeTarget);
+        assertTrue(futures.isDone());
+        assertEquals(Collections.singletonList(t2), futures.get());
+    }
+
     @Test
     public void timeLockedTransactionNew() throws Exception {
         connectWithVersion(70001, VersionMessage.NODE_NETWORK);
@@ -0,0 +1,55 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RollingBloomFilterTest {
+    @Test
+    public void remembersRecentElements() {
+        RollingBloomFilter filter = new RollingBloomFilter(100, 0.000001);
+        for (int i = 0; i < 50; i++)
+            filter.insert(hash(i));
+        for (int i = 0; i < 50; i++)
+            assertTrue(filter.contains(hash(i)));
+        for (int i = 50; i < 1000; i++)
+            assertFalse(filter.contains(hash(i)));
+    }
+
+    @Test
+    public void forgetsOldElements() {
+        RollingBloomFilter filter = new RollingBloomFilter(100, 0.000001);
+        for (int i = 0; i < 150; i++)
+            filter.insert(hash(i));
+        // The first 50 were forgotten when the third generation started, the last 100 are still remembered.
+        for (int i = 0; i < 50; i++)
+            assertFalse(filter.contains(hash(i)));
+        for (int i = 50; i < 150; i++)
+            assertTrue(filter.contains(hash(i)));
+        filter.clear();
+        for (int i = 0; i < 150; i++)
+            assertFalse(filter.contains(hash(i)));
+    }
+
+    private static byte[] hash(int i) {
+        byte[] bytes = new byte[4];
+        Utils.uint32ToByteArrayBE(i, bytes, 0);
+        return Sha256Hash.hash(bytes);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.bitcoinj.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+public class Sha256HashTest {
+    private static final byte[] INPUT = "hello".getBytes();
+    private static final String HELLO_TWICE = "9595c9df90075148eb06860365df33584b75bff782a510c6cd4883a419833d50";
+
+    @Test
+    public void hashTwice() {
+        assertEquals(HELLO_TWICE, HEX.encode(Sha256Hash.hashTwice(INPUT)));
+        // The digest is reused, so make sure nothing leaks from one call into the next.
+        Sha256Hash.hash(new byte[100], 0, 50);
+        assertEquals(HELLO_TWICE, HEX.encode(Sha256Hash.hashTwice(INPUT)));
+        assertEquals(HELLO_TWICE, HEX.encode(Sha256Hash.hashTwice(INPUT, 0, 2, INPUT, 2, 3)));
+    }
+
+    @Test
+    public void hashTwiceIntoOutput() {
+        byte[] out = new byte[40];
+        Sha256Hash.hashTwice(INPUT, 0, INPUT.length, out, 4);
+        assertEquals(HELLO_TWICE, HEX.encode(Arrays.copyOfRange(out, 4, 36)));
+        assertEquals(0, out[0]);
+        assertEquals(0, out[39]);
+
+        // Input and output may overlap.
+        byte[] buf = new byte[32];
+        System.arraycopy(INPUT, 0, buf, 0, INPUT.length);
+        Sha256Hash.hashTwice(buf, 0, INPUT.length, buf, 0);
+        assertEquals(HELLO_TWICE, HEX.encode(buf));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hashTwiceOutputTooShort() {
+        Sha256Hash.hashTwice(INPUT, 0, INPUT.length, new byte[40], 10);
+    }
+
+    @Test
+    public void hashTwiceByteBuffer() {
+        ByteBuffer heap = ByteBuffer.wrap(new byte[INPUT.length + 2]);
+        heap.put((byte) 1).put(INPUT).flip();
+        heap.get();
+        assertEquals(HELLO_TWICE, HEX.encode(Sha256Hash.hashTwice(heap)));
+        assertFalse(heap.hasRemaining());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(INPUT.length);
+        direct.put(INPUT).flip();
+        byte[] out = new byte[32];
+        Sha256Hash.hashTwice(direct, out, 0);
+        assertEquals(HELLO_TWICE, HEX.encode(out));
+    }
+}
@@ -103,6 +103,87 @@ public class TransactionBroadcastTest extends TestWithPeerGroup {
         assertNull(outbound(channels[1]));
     }
 
+    @Test
+    public void skipsPeersThatHaveTheTransaction() throws Exception {
+        InboundMessageQueuer[] channels = { connectPeer(1), connectPeer(2), connectPeer(3), connectPeer(4) };
+        Transaction tx = new Transaction(PARAMS);
+        tx.getConfidence().setSource(TransactionConfidence.Source.SELF);
+        // The first peer already announced the transaction, so it's sent to two of the others.
+        inbound(channels[0], InventoryMessage.with(tx));
+        pingAndWait(channels[0]);
+        assertTrue(peerGroup.getConnectedPeers().get(0).isInventoryKnown(tx.getHash()));
+        new TransactionBroadcast(peerGroup, tx).broadcast();
+        assertNull(outbound(channels[0]));
+        int numSent = 0;
+        for (int i = 1; i < channels.length; i++) {
+            Message message = outbound(channels[i]);
+            if (message != null) {
+                assertEquals(tx, message);
+                numSent++;
+            }
+        }
+        assertEquals(2, numSent);
+    }
+
+    @Test
+    public void trickledBroadcast() throws Exception {
+        peerGroup.setBroadcastTrickleIntervalMsec(60 * 60 * 1000);  // Only trickle by hand.
+        InboundMessageQueuer channel = connectPeer(1);
+        Transaction tx1 = FakeTxBuilder.createFakeTx(PARAMS, CENT, new ECKey().toAddress(PARAMS));
+        Transaction tx2 = FakeTxBuilder.createFakeTx(PARAMS, COIN, new ECKey().toAddress(PARAMS));
+        ListenableFuture<Transaction> future1 = peerGroup.broadcastTransaction(tx1, 1).future();
+        ListenableFuture<Transaction> future2 = peerGroup.broadcastTransaction(tx2, 1).future();
+        // Nothing is sent until the next trickle, which announces both transactions at once.
+        assertNull(outbound(channel));
+        assertFalse(future1.isDone());
+        peerGroup.getTransactionRelay().trickle(1000);
+        InventoryMessage inv = (InventoryMessage) outbound(channel);
+        assertEquals(2, inv.getItems().size());
+        assertEquals(tx1.getHash(), inv.getItems().get(0).hash);
+        assertEquals(tx2.getHash(), inv.getItems().get(1).hash);
+        assertTrue(future1.isDone());
+        assertTrue(future2.isDone());
+        // The peer downloads them from the relay map.
+        GetDataMessage getdata = new GetDataMessage(PARAMS);
+        getdata.addTransaction(tx1.getHash());
+        getdata.addTransaction(tx2.getHash());
+        inbound(channel, getdata);
+        assertEquals(tx1, outbound(channel));
+        assertEquals(tx2, outbound(channel));
+
+        // With little bandwidth only one transaction is announced per trickle.
+        peerGroup.getTransactionRelay().setMaxBytesPerSecond(1);
+        Transaction tx3 = FakeTxBuilder.createFakeTx(PARAMS, CENT, new ECKey().toAddress(PARAMS));
+        Transaction tx4 = FakeTxBuilder.createFakeTx(PARAMS, COIN, new ECKey().toAddress(PARAMS));
+        peerGroup.broadcastTransaction(tx3, 1);
+        peerGroup.broadcastTransaction(tx4, 1);
+        peerGroup.getTransactionRelay().trickle(1000);
+        inv = (InventoryMessage) outbound(channel);
+        assertEquals(1, inv.getItems().size());
+        assertEquals(tx3.getHash(), inv.getItems().get(0).hash);
+        peerGroup.getTransactionRelay().trickle(1000);
+        inv = (InventoryMessage) outbound(channel);
+        assertEquals(1, inv.getItems().size());
+        assertEquals(tx4.getHash(), inv.getItems().get(0).hash);
+        // Everything was announced.
+        peerGroup.getTransactionRelay().trickle(1000);
+        assertNull(outbound(channel));
+    }
+
+    @Test
+    public void relayMapExpiresWithoutTrickle() throws Exception {
+        TransactionRelay relay = new TransactionRelay();
+        Transaction tx1 = FakeTxBuilder.createFakeTx(PARAMS, CENT, new ECKey().toAddress(PARAMS));
+        Transaction tx2 = FakeTxBuilder.createFakeTx(PARAMS, COIN, new ECKey().toAddress(PARAMS));
+        relay.announce(tx1, Collections.<Peer>emptyList());
+        assertEquals(tx1, relay.getTransaction(tx1.getHash()));
+        Utils.rollMockClock((int) (TransactionRelay.RELAY_EXPIRY_MSEC / 1000));
+        // The expired transaction is dropped although no trickle ran in between.
+        relay.announce(tx2, Collections.<Peer>emptyList());
+        assertNull(relay.getTransaction(tx1.getHash()));
+        assertEquals(tx2, relay.getTransaction(tx2.getHash()));
+    }
+
     @Test
     public void lateProgressCallback() throws Exception {
         // Check that if we register a progress callback on a broadcast after the broadcast has started, it's invoked
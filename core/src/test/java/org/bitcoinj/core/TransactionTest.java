@@ -436,4 +436,31 @@ public class TransactionTest {
             };
         }
     }
+
+    @Test
+    public void sigHashContext() {
+        Transaction tx = new Transaction(PARAMS);
+        for (int i = 0; i < 3; i++)
+            tx.addInput(new TransactionInput(PARAMS, tx, new byte[] { 1, 2, 3 },
+                    new TransactionOutPoint(PARAMS, i, Sha256Hash.of(new byte[] { (byte) i }))));
+        tx.getInput(1).setSequenceNumber(5);
+        tx.addOutput(Coin.COIN, ADDRESS);
+        tx.addOutput(Coin.CENT, new ECKey());
+        tx.setLockTime(123);
+        byte[] script = ScriptBuilder.createOutputScript(ADDRESS).getProgram();
+        byte[] withSeparator = new ScriptBuilder().op(ScriptOpCodes.OP_CODESEPARATOR).op(ScriptOpCodes.OP_TRUE)
+                .build().getProgram();
+        SigHashContext context = new SigHashContext(tx);
+        for (int i = 0; i < 3; i++) {
+            for (Transaction.SigHash type : new Transaction.SigHash[] { Transaction.SigHash.ALL,
+                    Transaction.SigHash.NONE, Transaction.SigHash.SINGLE }) {
+                for (boolean anyoneCanPay : new boolean[] { false, true }) {
+                    assertEquals(tx.hashForSignature(i, script, type, anyoneCanPay),
+                            context.hashForSignature(i, script, type, anyoneCanPay));
+                }
+            }
+            assertEquals(tx.hashForSignature(i, withSeparator, Transaction.SigHash.ALL, false),
+                    context.hashForSignature(i, withSeparator, Transaction.SigHash.ALL, false));
+        }
+    }
 }
@@ -99,4 +99,19 @@ public class TxConfidenceTableTest {
         assertEquals(3, tx2.getConfidence().numBroadcastPeers());
         assertEquals(3, table.numBroadcastPeers(tx1.getHash()));
     }
+
+    @Test
+    public void seenIfTracked() throws Exception {
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        assertFalse(table.wasRecentlySeen(hash.getBytes()));
+        // Nothing is created for a transaction nobody tracks.
+        assertNull(table.seenIfTracked(hash, address1));
+        assertNull(table.get(hash));
+        assertFalse(table.wasRecentlySeen(hash.getBytes()));
+
+        TransactionConfidence confidence = table.seen(hash, address1);
+        assertTrue(table.wasRecentlySeen(hash.getBytes()));
+        assertEquals(confidence, table.seenIfTracked(hash, address2));
+        assertEquals(2, confidence.numBroadcastPeers());
+    }
 }
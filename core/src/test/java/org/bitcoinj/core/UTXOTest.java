@@ -17,14 +17,18 @@
 
 package org.bitcoinj.core;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.Arrays;
 
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptOpCodes;
 import org.junit.Test;
 
 public class UTXOTest {
@@ -43,4 +47,54 @@ public class UTXOTest {
         assertEquals(utxo.isCoinbase(), utxoCopy.isCoinbase());
         assertEquals(utxo.getScript(), utxoCopy.getScript());
     }
+
+    @Test
+    public void compactAmounts() {
+        long[] amounts = { 0, 1, 9, 10, 546, 100000, 12345678, Coin.COIN.value, 21000000L * Coin.COIN.value,
+                Long.MAX_VALUE / 10 };
+        for (long amount : amounts)
+            assertEquals(amount, UTXO.decompressAmount(UTXO.compressAmount(amount)));
+        // Round amounts compress to small numbers.
+        assertEquals(9, UTXO.compressAmount(Coin.COIN.value));
+        assertEquals(49, UTXO.compressAmount(5 * Coin.COIN.value));
+    }
+
+    @Test
+    public void compactRecord() throws Exception {
+        ECKey key = new ECKey();
+        ECKey uncompressed = key.decompress();
+        Script[] scripts = {
+                ScriptBuilder.createOutputScript(key.toAddress(UnitTestParams.get())),
+                ScriptBuilder.createP2SHOutputScript(new byte[20]),
+                ScriptBuilder.createOutputScript(key),
+                ScriptBuilder.createOutputScript(uncompressed),
+                ScriptBuilder.createMultiSigOutputScript(1, Arrays.asList(key, new ECKey())),
+                new Script(new byte[] { (byte) ScriptOpCodes.OP_RETURN }),
+                new Script(new byte[0]),
+        };
+        // Three bytes each for the height and value, then the compressed script.
+        int[] sizes = { 27, 27, 39, 39, -1, -1, -1 };
+        for (int i = 0; i < scripts.length; i++) {
+            UTXO utxo = new UTXO(Sha256Hash.of(new byte[] { (byte) i }), i, Coin.valueOf(123456 + i), 500000 + i,
+                    i % 2 == 0, scripts[i]);
+            byte[] record = utxo.toCompactBytes();
+            if (sizes[i] > 0)
+                assertEquals(sizes[i], record.length);
+            UTXO copy = UTXO.fromCompactBytes(utxo.getHash(), utxo.getIndex(), record);
+            assertEquals(utxo, copy);
+            assertEquals(utxo.getValue(), copy.getValue());
+            assertEquals(utxo.getHeight(), copy.getHeight());
+            assertEquals(utxo.isCoinbase(), copy.isCoinbase());
+            assertArrayEquals(scripts[i].getProgram(), copy.getScriptBytes());
+            assertEquals(scripts[i], copy.getScript());
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void compactRecordTruncated() {
+        UTXO utxo = new UTXO(Sha256Hash.of(new byte[] { 1 }), 0, Coin.COIN, 10, false,
+                ScriptBuilder.createOutputScript(new ECKey()));
+        byte[] record = utxo.toCompactBytes();
+        UTXO.fromCompactBytes(utxo.getHash(), 0, Arrays.copyOf(record, record.length - 1));
+    }
 }
@@ -436,6 +436,41 @@ public class ScriptTest {
         assertTrue("script is locktime-verify", script.isSentToCLTVPaymentChannel());
     }
 
+    @Test
+    public void classification() throws Exception {
+        ECKey key = new ECKey();
+        Script p2pkh = ScriptBuilder.createOutputScript(key.toAddress(PARAMS));
+        assertTrue(p2pkh.isSentToAddress());
+        assertFalse(p2pkh.isPayToScriptHash() || p2pkh.isSentToRawPubKey() || p2pkh.isSentToMultiSig());
+        assertArrayEquals(key.getPubKeyHash(), new Script(p2pkh.getProgram()).getPubKeyHash());
+        Script p2pk = new Script(ScriptBuilder.createOutputScript(key).getProgram());
+        assertTrue(p2pk.isSentToRawPubKey());
+        assertArrayEquals(key.getPubKey(), p2pk.getPubKey());
+        Script multisig = new Script(ScriptBuilder.createMultiSigOutputScript(1, ImmutableList.of(key)).getProgram());
+        assertTrue(multisig.isSentToMultiSig());
+        assertFalse(multisig.isSentToAddress());
+        assertTrue(new Script(new byte[] { (byte) ScriptOpCodes.OP_RETURN, 1, 0 }).isOpReturn());
+
+        // The same template with a longer push encoding still matches, except for P2SH which is defined by its bytes.
+        byte[] hash = key.getPubKeyHash();
+        Script unusual = new ScriptBuilder().op(ScriptOpCodes.OP_DUP).op(ScriptOpCodes.OP_HASH160)
+                .addChunk(new ScriptChunk(ScriptOpCodes.OP_PUSHDATA1, hash))
+                .op(ScriptOpCodes.OP_EQUALVERIFY).op(ScriptOpCodes.OP_CHECKSIG).build();
+        Script parsed = new Script(unusual.getProgram());
+        assertEquals(26, parsed.getProgram().length);
+        assertTrue(parsed.isSentToAddress());
+        assertArrayEquals(hash, parsed.getPubKeyHash());
+        Script unusualP2SH = new Script(new ScriptBuilder().op(ScriptOpCodes.OP_HASH160)
+                .addChunk(new ScriptChunk(ScriptOpCodes.OP_PUSHDATA1, hash)).op(ScriptOpCodes.OP_EQUAL).build()
+                .getProgram());
+        assertFalse(unusualP2SH.isPayToScriptHash());
+    }
+
+    @Test(expected = ScriptException.class)
+    public void truncatedPushRejectedOnConstruction() {
+        new Script(new byte[] { 20, 1, 2, 3 });
+    }
+
     @Test
     public void getToAddress() throws Exception {
         // pay to pubkey
@@ -0,0 +1,173 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HeaderChainStoreTest {
+    private final NetworkParameters params = UnitTestParams.get();
+    private final Address to = new ECKey().toAddress(params);
+    private File directory;
+    private HeaderChainStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("headerchainstore", null);
+        directory.delete();
+        store = new HeaderChainStore(params, directory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void basics() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.getGenesisBlock(), genesis.getHeader());
+        assertEquals(0, genesis.getHeight());
+
+        List<StoredBlock> chain = extend(genesis, 20);
+        StoredBlock head = chain.get(chain.size() - 1);
+        store.setChainHead(head);
+        store.close();
+
+        // Check everything can be found again, by hash and by height, after reopening the store.
+        store = new HeaderChainStore(params, directory);
+        assertEquals(head, store.getChainHead());
+        assertEquals(genesis, store.get(0));
+        for (StoredBlock block : chain) {
+            assertEquals(block, store.get(block.getHeader().getHash()));
+            assertEquals(block, store.get(block.getHeight()));
+        }
+        assertNull(store.get(21));
+
+        // The serialized headers are served as they are stored.
+        ByteBuffer headers = store.getHeaders(19, 5);
+        assertEquals(2 * Block.HEADER_SIZE, headers.remaining());
+        byte[] header = new byte[Block.HEADER_SIZE];
+        headers.get(header);
+        assertEquals(chain.get(18).getHeader(), params.getDefaultSerializer().makeBlock(header));
+    }
+
+    @Test
+    public void reorg() throws Exception {
+        List<StoredBlock> main = extend(store.getChainHead(), 10);
+        store.setChainHead(main.get(9));
+        // A side chain forking off at height 5, which is kept off the files until it becomes the best chain.
+        List<StoredBlock> side = extend(main.get(4), 7);
+        assertEquals(main.get(9), store.getChainHead());
+        assertEquals(main.get(5), store.get(6));
+        assertEquals(side.get(0), store.get(side.get(0).getHeader().getHash()));
+
+        store.setChainHead(side.get(6));
+        assertEquals(side.get(6), store.getChainHead());
+        assertEquals(main.get(4), store.get(5));
+        assertEquals(side.get(0), store.get(6));
+        assertEquals(side.get(6), store.get(12));
+        // The blocks that were cut off can still be found by hash.
+        assertEquals(main.get(9), store.get(main.get(9).getHeader().getHash()));
+
+        // Going back to a lower block of the stored chain truncates it.
+        store.setChainHead(side.get(2));
+        assertNull(store.get(9));
+        store.close();
+        store = new HeaderChainStore(params, directory);
+        assertEquals(side.get(2), store.getChainHead());
+        assertEquals(side.get(2), store.get(8));
+        assertNull(store.get(side.get(3).getHeader().getHash()));
+    }
+
+    @Test
+    public void unconnectedHeadKeepsStoredChain() throws Exception {
+        List<StoredBlock> main = extend(store.getChainHead(), 10);
+        store.setChainHead(main.get(9));
+        // A side chain whose first block was forgotten, so it can't be connected to the stored chain anymore.
+        StoredBlock forgotten = main.get(4).build(main.get(4).getHeader().createNextBlock(to).cloneAsHeader());
+        List<StoredBlock> side = extend(forgotten, 7);
+        try {
+            store.setChainHead(side.get(6));
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        assertEquals(main.get(9), store.getChainHead());
+        assertEquals(params.getGenesisBlock(), store.get(0).getHeader());
+        assertEquals(main.get(9), store.get(10));
+    }
+
+    @Test
+    public void startFromCheckpoint() throws Exception {
+        // Build a chain in a throwaway store, then start from one of its blocks as if it were a checkpoint.
+        List<StoredBlock> chain = extend(store.getChainHead(), 30);
+        StoredBlock checkpoint = chain.get(19);
+        store.close();
+        tearDown();
+        store = new HeaderChainStore(params, directory);
+
+        store.put(checkpoint);
+        store.setChainHead(checkpoint);
+        assertEquals(20, store.getBaseHeight());
+        assertNull(store.get(19));
+        assertEquals(checkpoint, store.get(20));
+        for (StoredBlock block : chain.subList(20, 30))
+            store.put(block);
+        store.setChainHead(chain.get(29));
+        store.close();
+        store = new HeaderChainStore(params, directory);
+        assertEquals(20, store.getBaseHeight());
+        assertEquals(chain.get(25), store.get(26));
+        assertNull(store.get(params.getGenesisBlock().getHash()));
+    }
+
+    @Test(expected = ChainFileLockedException.class)
+    public void lockedStore() throws Exception {
+        new HeaderChainStore(params, directory);
+    }
+
+    private List<StoredBlock> extend(StoredBlock prev, int num) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<>();
+        for (int i = 0; i < num; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(prev);
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+}
@@ -19,13 +19,17 @@ package org.bitcoinj.store;
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.params.UnitTestParams;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class SPVBlockStoreTest {
 
@@ -58,4 +62,72 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void headerSnapshot() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        SPVBlockStore source = new SPVBlockStore(params, newStoreFile(), 10);
+        Address to = new ECKey().toAddress(params);
+        StoredBlock head = source.getChainHead();
+        for (int i = 0; i < 15; i++) {
+            head = head.build(head.getHeader().createNextBlock(to).cloneAsHeader());
+            source.put(head);
+            source.setChainHead(head);
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        HeaderSnapshot.write(source, 8, bos);
+        source.close();
+
+        HeaderSnapshot snapshot = HeaderSnapshot.read(params, new ByteArrayInputStream(bos.toByteArray()), null);
+        assertEquals(8, snapshot.getNumHeaders());
+        assertEquals(head, snapshot.getChainHead());
+
+        // Pinning the hash works, and a smaller store keeps only the most recent headers.
+        SPVBlockStore target = new SPVBlockStore(params, newStoreFile(), 5);
+        snapshot = HeaderSnapshot.read(params, new ByteArrayInputStream(bos.toByteArray()), snapshot.getDataHash());
+        target.loadHeaderSnapshot(snapshot);
+        assertEquals(head, target.getChainHead());
+        StoredBlock cursor = head;
+        for (int i = 0; i < 4; i++)
+            cursor = cursor.getPrev(target);
+        assertEquals(head.getHeight() - 4, cursor.getHeight());
+        assertNull(cursor.getPrev(target));
+        assertNull(target.get(params.getGenesisBlock().getHash()));
+
+        // Further blocks can be added on top of the snapshot.
+        StoredBlock next = head.build(head.getHeader().createNextBlock(to).cloneAsHeader());
+        target.put(next);
+        assertEquals(head, next.getPrev(target));
+        target.close();
+    }
+
+    @Test
+    public void headerSnapshotCorrupt() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        SPVBlockStore source = new SPVBlockStore(params, newStoreFile());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        HeaderSnapshot.write(source, 10, bos);
+        source.close();
+        byte[] bytes = bos.toByteArray();
+        try {
+            HeaderSnapshot.read(params, new ByteArrayInputStream(bytes), Sha256Hash.ZERO_HASH);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        bytes[bytes.length - 40] ^= 1;
+        try {
+            HeaderSnapshot.read(params, new ByteArrayInputStream(bytes), null);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    private static File newStoreFile() throws IOException {
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        return f;
+    }
 }
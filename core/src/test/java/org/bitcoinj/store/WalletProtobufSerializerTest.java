@@ -28,12 +28,14 @@ import org.bitcoinj.testing.FakeTxBuilder;
 import org.bitcoinj.testing.FooWalletExtension;
 import org.bitcoinj.utils.BriefLogFormatter;
 import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.AllowUnconfirmedCoinSelector;
 import org.bitcoinj.wallet.DeterministicKeyChain;
 import org.bitcoinj.wallet.KeyChain;
 import com.google.protobuf.ByteString;
 
 import org.bitcoinj.wallet.MarriedKeyChain;
 import org.bitcoinj.wallet.Protos;
+import org.bitcoinj.wallet.SendRequest;
 import org.bitcoinj.wallet.UnreadableWalletException;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.WalletExtension;
@@ -46,6 +48,8 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.security.SecureRandom;
@@ -53,6 +57,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
 import static org.bitcoinj.core.Coin.*;
 import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
@@ -310,6 +315,57 @@ public class WalletProtobufSerializerTest {
         return new WalletProtobufSerializer().readWallet(input);
     }
 
+    @Test
+    public void incrementalLoad() throws Exception {
+        Transaction t1 = createFakeTx(PARAMS, COIN, myAddress);
+        myWallet.receivePending(t1, null);
+        SendRequest req = SendRequest.to(new ECKey().toAddress(PARAMS), CENT);
+        req.coinSelector = AllowUnconfirmedCoinSelector.get();
+        myWallet.completeTx(req);
+        Transaction t2 = req.tx;
+        myWallet.commitTx(t2);
+        myWallet.setLastBlockSeenHash(PARAMS.getGenesisBlock().getHash());
+        myWallet.setLastBlockSeenHeight(0);
+        myWallet.setTag("foo", ByteString.copyFromUtf8("bar"));
+        myWallet.addExtension(new FooWalletExtension("com.whatever.required", true));
+        File f = File.createTempFile("bitcoinj-unit-test", null);
+        f.deleteOnExit();
+        FileOutputStream output = new FileOutputStream(f);
+        try {
+            new WalletProtobufSerializer().writeWallet(myWallet, output);
+        } finally {
+            output.close();
+        }
+
+        WalletProtobufSerializer.IncrementalLoad load = new WalletProtobufSerializer().readWalletIncrementally(f,
+                Threading.THREAD_POOL, new FooWalletExtension("com.whatever.required", true));
+        Wallet wallet = load.getWallet();
+        // Keys and the other small fields are available before the transactions.
+        assertArrayEquals(myKey.getPrivKeyBytes(), wallet.findKeyFromPubHash(myKey.getPubKeyHash()).getPrivKeyBytes());
+        assertEquals(WALLET_DESCRIPTION, wallet.getDescription());
+        assertEquals(PARAMS.getGenesisBlock().getHash(), wallet.getLastBlockSeenHash());
+        assertEquals(1, wallet.getWatchedScripts().size());
+
+        assertSame(wallet, load.getTransactionsLoaded().get());
+        assertEquals(2, wallet.getTransactions(true).size());
+        assertEquals(myWallet.getBalance(Wallet.BalanceType.ESTIMATED), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        Transaction t1copy = wallet.getTransaction(t1.getHash());
+        Transaction t2copy = wallet.getTransaction(t2.getHash());
+        assertSame(t2copy, t1copy.getOutput(0).getSpentBy().getParentTransaction());
+        assertTrue(wallet.getExtensions().containsKey("com.whatever.required"));
+        // Tags are read after the extensions, like readWallet does.
+        assertEquals("bar", wallet.getTag("foo").toStringUtf8());
+
+        // A missing mandatory extension is reported through the future.
+        load = new WalletProtobufSerializer().readWalletIncrementally(f, Threading.THREAD_POOL);
+        try {
+            load.getTransactionsLoaded().get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UnreadableWalletException);
+        }
+    }
+
     @Test
     public void testRoundTripNormalWallet() throws Exception {
         Wallet wallet1 = roundTrip(myWallet);
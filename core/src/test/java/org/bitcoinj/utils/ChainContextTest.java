@@ -0,0 +1,141 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ChainContextTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private final Address to = new ECKey().toAddress(PARAMS);
+    private BlockStore store;
+    private ChainContext chainContext;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new MemoryBlockStore(PARAMS);
+        chainContext = new ChainContext(10);
+    }
+
+    /**
+     * Verify that the window follows the chain and forgets blocks once it is full.
+     */
+    @Test
+    public void testExtend() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        chainContext.setChainHead(genesis, store);
+        assertEquals(1, chainContext.getDepth(genesis));
+
+        List<StoredBlock> chain = extend(genesis, 15);
+        for (StoredBlock block : chain)
+            chainContext.setChainHead(block, store);
+        assertEquals(6, chainContext.getLowestHeight());
+        assertEquals(10, chainContext.getDepth(chain.get(14)));
+        assertEquals(5, chainContext.getDepth(chain.get(9)));
+        assertEquals(0, chainContext.getDepth(genesis));
+        for (StoredBlock block : chain.subList(5, 15)) {
+            assertEquals(block.getHeader().getTimeSeconds(), chainContext.getTimeSeconds(block.getHeight()));
+            assertEquals(block.getHeader().getDifficultyTarget(),
+                    chainContext.getDifficultyTarget(block.getHeight()));
+        }
+    }
+
+    /**
+     * Verify that going back to a block in the window and switching to a fork keep the blocks below.
+     */
+    @Test
+    public void testReorg() throws Exception {
+        List<StoredBlock> main = extend(store.getChainHead(), 8);
+        for (StoredBlock block : main)
+            chainContext.setChainHead(block, store);
+
+        chainContext.setChainHead(main.get(4), store);
+        assertEquals(5, chainContext.getDepth(main.get(4)));
+        assertEquals(0, chainContext.getDepth(main.get(5)));
+
+        List<StoredBlock> fork = extend(main.get(2), 4);
+        chainContext.setChainHead(fork.get(3), store);
+        assertEquals(7, chainContext.getDepth(fork.get(3)));
+        assertEquals(3, chainContext.getDepth(main.get(2)));
+        assertEquals(0, chainContext.getDepth(main.get(3)));
+        assertEquals(fork.get(0).getHeader().getTimeSeconds(), chainContext.getTimeSeconds(4));
+    }
+
+    /**
+     * Verify that the window starts over if the new chain head doesn't join it.
+     */
+    @Test
+    public void testStartOver() throws Exception {
+        List<StoredBlock> main = extend(store.getChainHead(), 3);
+        chainContext.setChainHead(main.get(2), store);
+        List<StoredBlock> fork = extend(store.getChainHead(), 15);
+        chainContext.setChainHead(fork.get(14), store);
+        assertEquals(10, chainContext.getDepth(fork.get(14)));
+        assertEquals(0, chainContext.getDepth(main.get(2)));
+    }
+
+    /**
+     * Verify that network parameters overriding only the difficulty check without a chain context are still used.
+     */
+    @Test
+    public void testLegacyDifficultyCheck() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        NetworkParameters params = new UnitTestParams() {
+            @Override
+            public void checkDifficultyTransitions(StoredBlock storedPrev, Block next, BlockStore blockStore)
+                    throws VerificationException, BlockStoreException {
+                calls.incrementAndGet();
+                super.checkDifficultyTransitions(storedPrev, next, blockStore);
+            }
+        };
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock next = extend(genesis, 1).get(0);
+        chainContext.setChainHead(genesis, store);
+        params.checkDifficultyTransitions(genesis, next.getHeader(), store, chainContext);
+        assertEquals(1, calls.get());
+        // Parameters overriding the check with the chain context don't go through the old one.
+        PARAMS.checkDifficultyTransitions(genesis, next.getHeader(), store, chainContext);
+        assertEquals(1, calls.get());
+    }
+
+    private List<StoredBlock> extend(StoredBlock prev, int num) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<>();
+        for (int i = 0; i < num; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(prev);
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+}
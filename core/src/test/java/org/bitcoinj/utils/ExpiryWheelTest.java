@@ -0,0 +1,101 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.bitcoinj.core.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ExpiryWheelTest {
+    private LinkedBlockingQueue<List<String>> batches;
+    private ExpiryWheel<String> wheel;
+
+    @Before
+    public void setUp() {
+        // The wheel only moves on when the mock clock is rolled, so no tick can fall between two calls of a test.
+        Utils.setMockClock();
+        batches = new LinkedBlockingQueue<>();
+        wheel = new ExpiryWheel<>("test wheel", 10, 8, new ExpiryWheel.Listener<String>() {
+            @Override
+            public void onExpired(List<String> items) {
+                batches.add(items);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    public void expiresOverdueItemsInOneBatch() throws Exception {
+        wheel.schedule("a", Utils.currentTimeMillis() + 100);
+        wheel.schedule("b", Utils.currentTimeMillis() + 100);
+        assertEquals(2, wheel.getPendingCount());
+        assertNull(batches.poll(50, TimeUnit.MILLISECONDS));
+        Utils.rollMockClock(1);
+        List<String> batch = batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(2, batch.size());
+        assertTrue(batch.contains("a") && batch.contains("b"));
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    @Test
+    public void neverExpiresEarly() throws Exception {
+        // Several revolutions of the wheel away.
+        long deadline = Utils.currentTimeMillis() + 250;
+        wheel.schedule("a", deadline);
+        Utils.rollMockClockMillis(249);
+        assertNull(batches.poll(50, TimeUnit.MILLISECONDS));
+        assertTrue(wheel.isPending("a"));
+        Utils.rollMockClockMillis(1);
+        List<String> batch = batches.poll(5, TimeUnit.SECONDS);
+        assertEquals("a", batch.get(0));
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        wheel.schedule("a", Utils.currentTimeMillis() + 50);
+        wheel.schedule("b", Utils.currentTimeMillis() + 50);
+        assertTrue(wheel.cancel("a"));
+        assertFalse(wheel.cancel("a"));
+        assertFalse(wheel.isPending("a"));
+        Utils.rollMockClockMillis(50);
+        List<String> batch = batches.poll(5, TimeUnit.SECONDS);
+        assertEquals(1, batch.size());
+        assertEquals("b", batch.get(0));
+    }
+
+    @Test
+    public void rescheduleReplacesDeadline() throws Exception {
+        wheel.schedule("a", Utils.currentTimeMillis() + 60 * 1000);
+        wheel.schedule("a", Utils.currentTimeMillis());
+        assertEquals(1, wheel.getPendingCount());
+        assertEquals("a", batches.poll(5, TimeUnit.SECONDS).get(0));
+        Utils.rollMockClock(120);
+        assertNull(batches.poll(100, TimeUnit.MILLISECONDS));
+    }
+}
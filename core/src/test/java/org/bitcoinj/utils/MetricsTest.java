@@ -0,0 +1,198 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import com.google.common.util.concurrent.CycleDetectingLockFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.SortedMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+    @Before
+    public void setUp() {
+        Metrics.setEnabled(true);
+        Metrics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        Metrics.setEnabled(false);
+        Metrics.removeGauge("test.gauge");
+    }
+
+    @Test
+    public void disabledRecordsNothing() {
+        Metrics.setEnabled(false);
+        Metrics.counter("test.counter").inc();
+        Metrics.histogram("test.histogram").record(5);
+        assertEquals(0, Metrics.startTimer());
+        assertEquals(0, Metrics.counter("test.counter").getCount());
+        assertEquals(0, Metrics.histogram("test.histogram").getCount());
+    }
+
+    @Test
+    public void counter() {
+        Metrics.Counter counter = Metrics.counter("test.counter");
+        assertSame(counter, Metrics.counter("test.counter"));
+        counter.inc();
+        counter.add(2);
+        assertEquals(3, counter.getCount());
+    }
+
+    @Test
+    public void histogram() {
+        Metrics.Histogram histogram = Metrics.histogram("test.histogram");
+        for (int i = 1; i <= 100; i++)
+            histogram.record(i);
+        assertEquals(100, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50, histogram.getMean());
+        // Values 32..63 fall into the same bucket as the median.
+        assertEquals(63, histogram.getPercentile(0.5));
+        assertEquals(100, histogram.getPercentile(0.99));
+        assertEquals(1, histogram.getPercentile(0.0));
+    }
+
+    @Test
+    public void report() {
+        Metrics.counter("test.counter").inc();
+        Metrics.histogram("test.histogram").record(7);
+        Metrics.registerGauge("test.gauge", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return 42;
+            }
+        });
+        final AtomicReference<SortedMap<String, Long>> counters = new AtomicReference<>();
+        final AtomicReference<SortedMap<String, Long>> gauges = new AtomicReference<>();
+        final AtomicReference<SortedMap<String, Metrics.Histogram>> histograms = new AtomicReference<>();
+        Metrics.report(new Metrics.Sink() {
+            @Override
+            public void report(SortedMap<String, Long> c, SortedMap<String, Long> g,
+                               SortedMap<String, Metrics.Histogram> h) {
+                counters.set(c);
+                gauges.set(g);
+                histograms.set(h);
+            }
+        });
+        assertEquals(1L, (long) counters.get().get("test.counter"));
+        assertEquals(42L, (long) gauges.get().get("test.gauge"));
+        assertEquals(7, histograms.get().get("test.histogram").getMax());
+        // The user thread registers its queue depth.
+        assertTrue(gauges.get().containsKey("userthread.queue_depth"));
+    }
+
+    @Test
+    public void lockHoldTime() {
+        ReentrantLock lock = Threading.lock("metricstest");
+        lock.lock();
+        lock.lock();
+        lock.unlock();
+        assertEquals(0, Metrics.histogram("lock.metricstest.hold.time").getCount());
+        lock.unlock();
+        assertEquals(1, Metrics.histogram("lock.metricstest.hold.time").getCount());
+        assertFalse(lock.isLocked());
+    }
+
+    @Test
+    public void lockQueueAndConditions() throws Exception {
+        final ReentrantLock lock = Threading.lock("metricstest.queue");
+        assertFalse(lock.isFair());
+        final Condition ready = lock.newCondition();
+        final CountDownLatch waiting = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    waiting.countDown();
+                    ready.awaitUninterruptibly();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+        waiter.start();
+        assertTrue(waiting.await(5, TimeUnit.SECONDS));
+        // Waiting released the lock.
+        lock.lock();
+        try {
+            assertTrue(lock.hasWaiters(ready));
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertFalse(lock.isLocked());
+
+        lock.lock();
+        Thread blocked = new Thread() {
+            @Override
+            public void run() {
+                lock.lock();
+                lock.unlock();
+            }
+        };
+        blocked.start();
+        try {
+            while (!lock.hasQueuedThreads())
+                Thread.sleep(1);
+            assertEquals(1, lock.getQueueLength());
+            assertTrue(lock.hasQueuedThread(blocked));
+        } finally {
+            lock.unlock();
+        }
+        blocked.join(5000);
+        assertFalse(blocked.isAlive());
+    }
+
+    @Test
+    public void lockStillDetectsCycles() {
+        CycleDetectingLockFactory.Policy policy = Threading.getPolicy();
+        Threading.throwOnLockCycles();
+        try {
+            ReentrantLock a = Threading.lock("metricstest.a");
+            ReentrantLock b = Threading.lock("metricstest.b");
+            a.lock();
+            b.lock();
+            b.unlock();
+            a.unlock();
+            b.lock();
+            try {
+                a.lock();
+                fail();
+            } catch (CycleDetectingLockFactory.PotentialDeadlockException e) {
+                // Expected.
+            } finally {
+                b.unlock();
+            }
+        } finally {
+            Threading.setPolicy(policy);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.testing.*;
+import org.junit.*;
+
+import java.util.*;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class BranchAndBoundCoinSelectorTest extends TestWithWallet {
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private List<TransactionOutput> outputs(long... values) {
+        Transaction t = new Transaction(PARAMS);
+        List<TransactionOutput> outputs = new ArrayList<>();
+        for (long value : values) {
+            TransactionOutput output = new TransactionOutput(PARAMS, t, Coin.valueOf(value), myAddress);
+            t.addOutput(output);
+            outputs.add(output);
+        }
+        t.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        return outputs;
+    }
+
+    private static long[] values(CoinSelection selection) {
+        long[] values = new long[selection.gathered.size()];
+        int i = 0;
+        for (TransactionOutput output : selection.gathered)
+            values[i++] = output.getValue().value;
+        Arrays.sort(values);
+        return values;
+    }
+
+    @Test
+    public void exactMatch() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(ZERO, 1000, new DefaultCoinSelector());
+        CoinSelection selection = selector.select(Coin.valueOf(4000), outputs(1000, 5000, 2500, 3000, 10000));
+        assertEquals(Coin.valueOf(4000), selection.valueGathered);
+        assertArrayEquals(new long[] {1000, 3000}, values(selection));
+    }
+
+    @Test
+    public void leastExcessWithinCostOfChange() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(Coin.valueOf(500), 1000,
+                new DefaultCoinSelector());
+        CoinSelection selection = selector.select(Coin.valueOf(3900), outputs(10000, 3000, 1200, 1000));
+        assertEquals(Coin.valueOf(4000), selection.valueGathered);
+        assertArrayEquals(new long[] {1000, 3000}, values(selection));
+    }
+
+    @Test
+    public void fallsBackWithoutChangelessSolution() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(ZERO, 1000, new DefaultCoinSelector());
+        List<TransactionOutput> candidates = outputs(10000, 3000);
+        CoinSelection selection = selector.select(Coin.valueOf(4000), candidates);
+        assertEquals(new DefaultCoinSelector().select(Coin.valueOf(4000), candidates).valueGathered,
+                selection.valueGathered);
+        assertTrue(selection.valueGathered.value >= 4000);
+    }
+
+    @Test
+    public void boundedSearch() throws Exception {
+        // Many equal-ish outputs with no exact solution: the search must give up and fall back.
+        long[] values = new long[5000];
+        for (int i = 0; i < values.length; i++)
+            values[i] = 1000 + 2 * i;
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(ZERO, 10000, new DefaultCoinSelector());
+        CoinSelection selection = selector.select(Coin.valueOf(1), outputs(values));
+        assertTrue(selection.valueGathered.value >= 1);
+    }
+
+    @Test
+    public void walletCandidatesAreValueOrdered() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, MILLICOIN);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        List<TransactionOutput> candidates = wallet.calculateAllSpendCandidates();
+        assertEquals(4, candidates.size());
+        for (int i = 1; i < candidates.size(); i++)
+            assertTrue(candidates.get(i - 1).getValue().compareTo(candidates.get(i).getValue()) >= 0);
+
+        // Pay exactly with the wallet: no change is needed.
+        wallet.setCoinSelector(new BranchAndBoundCoinSelector());
+        SendRequest req = SendRequest.to(new ECKey().toAddress(PARAMS), COIN.add(CENT));
+        req.feePerKb = ZERO;
+        req.ensureMinRequiredFee = false;
+        wallet.completeTx(req);
+        assertEquals(1, req.tx.getOutputs().size());
+        assertEquals(2, req.tx.getInputs().size());
+    }
+}
@@ -108,6 +108,18 @@ public class DefaultCoinSelectorTest extends TestWithWallet {
         assertEquals(t3.getOutput(0), candidates.get(2));
     }
 
+    @Test
+    public void compareProducts() {
+        assertEquals(0, DefaultCoinSelector.compareProducts(6, 2, 3, 4));
+        assertTrue(DefaultCoinSelector.compareProducts(6, 2, 3, 5) < 0);
+        assertTrue(DefaultCoinSelector.compareProducts(0, 2, 3, 5) < 0);
+        // Products that don't fit into a long.
+        long maxMoney = NetworkParameters.MAX_MONEY.value;
+        assertTrue(DefaultCoinSelector.compareProducts(maxMoney, 1000000, maxMoney, 999999) > 0);
+        assertTrue(DefaultCoinSelector.compareProducts(maxMoney, 1000000, 1, 1) > 0);
+        assertEquals(0, DefaultCoinSelector.compareProducts(maxMoney, 1000000, 1000000, maxMoney));
+    }
+
     @Test
     public void identicalInputs() throws Exception {
         // Add four outputs to a transaction with same value and destination. Select them all.
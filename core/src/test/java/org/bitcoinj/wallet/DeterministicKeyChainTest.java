@@ -422,6 +422,30 @@ public class DeterministicKeyChainTest {
         // The lookahead zone is tested in bloom2 and via KeyChainGroupTest.bloom
     }
 
+    @Test
+    public void lookaheadCoverage() {
+        // Lookahead size 10, threshold 3.
+        BloomFilter filter = chain.getFilter(chain.numBloomFilterEntries(), 0.001, 1);
+        assertTrue(chain.isLookaheadCoveredBy(filter));
+        for (int i = 0; i < 3; i++)
+            chain.getKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        assertTrue(chain.isLookaheadCoveredBy(filter));
+
+        // A regular refill would happen only after the next key, the early one happens now.
+        int epoch = chain.getKeyLookaheadEpoch();
+        chain.maybeLookAheadEarly();
+        assertEquals(epoch + 1, chain.getKeyLookaheadEpoch());
+        chain.maybeLookAheadEarly();
+        assertEquals(epoch + 1, chain.getKeyLookaheadEpoch());
+        BloomFilter newFilter = chain.getFilter(chain.numBloomFilterEntries(), 0.001, 1);
+
+        // The old filter no longer covers the full lookahead size once another key is issued, the new one does.
+        chain.getKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        assertEquals(epoch + 1, chain.getKeyLookaheadEpoch());
+        assertFalse(chain.isLookaheadCoveredBy(filter));
+        assertTrue(chain.isLookaheadCoveredBy(newFilter));
+    }
+
     @Test
     public void bloom2() throws Exception {
         // Verify that if when we watch a key, the filter contains at least 100 keys.
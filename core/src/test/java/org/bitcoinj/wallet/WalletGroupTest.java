@@ -0,0 +1,138 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class WalletGroupTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private BlockStore blockStore;
+    private WalletGroup group;
+    private Wallet wallet1, wallet2;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        blockStore = new MemoryBlockStore(PARAMS);
+        group = new WalletGroup(PARAMS);
+        wallet1 = new Wallet(PARAMS);
+        wallet2 = new Wallet(PARAMS);
+        group.addWallet(wallet1);
+        group.addWallet(wallet2);
+    }
+
+    private void receiveInBlock(Transaction... txns) throws Exception {
+        FakeTxBuilder.BlockPair bp = FakeTxBuilder.createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS, txns);
+        for (Transaction tx : txns)
+            group.receiveFromBlock(tx, bp.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        group.notifyNewBestBlock(bp.storedBlock);
+    }
+
+    @Test
+    public void routesOnlyToOwningWallet() throws Exception {
+        Transaction tx = createFakeTx(PARAMS, COIN, wallet1.currentReceiveAddress());
+        assertEquals(ImmutableSet.of(wallet1), group.findCandidateWallets(tx));
+        receiveInBlock(tx);
+        assertEquals(COIN, wallet1.getBalance());
+        assertEquals(ZERO, wallet2.getBalance());
+        assertNull(wallet2.getTransaction(tx.getHash()));
+
+        Transaction unrelated = createFakeTx(PARAMS, COIN, new ECKey().toAddress(PARAMS));
+        assertTrue(group.findCandidateWallets(unrelated).isEmpty());
+    }
+
+    @Test
+    public void spendRoutesToSenderAndRecipient() throws Exception {
+        receiveInBlock(createFakeTx(PARAMS, COIN, wallet1.currentReceiveAddress()));
+        Transaction spend = wallet1.createSend(wallet2.currentReceiveAddress(), CENT);
+        assertEquals(ImmutableSet.of(wallet1, wallet2), group.findCandidateWallets(spend));
+        receiveInBlock(spend);
+        assertEquals(CENT, wallet2.getBalance());
+        assertEquals(COIN.subtract(CENT).subtract(spend.getFee()), wallet1.getBalance());
+        // Both wallets hold their own copy.
+        assertNotSame(wallet1.getTransaction(spend.getHash()), wallet2.getTransaction(spend.getHash()));
+    }
+
+    @Test
+    public void lookaheadAndNewKeysAreIndexed() throws Exception {
+        // Paying a key that wasn't handed out yet is routed thanks to the lookahead zone.
+        Wallet sameSeed = Wallet.fromSeed(PARAMS, wallet2.getKeyChainSeed());
+        sameSeed.freshReceiveAddress();
+        Transaction tx = createFakeTx(PARAMS, COIN, sameSeed.freshReceiveAddress());
+        assertEquals(ImmutableSet.of(wallet2), group.findCandidateWallets(tx));
+
+        ECKey imported = new ECKey();
+        wallet1.importKey(imported);
+        Transaction toImported = createFakeTx(PARAMS, COIN, imported.toAddress(PARAMS));
+        assertEquals(ImmutableSet.of(wallet1), group.findCandidateWallets(toImported));
+
+        Address watched = new ECKey().toAddress(PARAMS);
+        wallet2.addWatchedAddress(watched);
+        Transaction toWatched = createFakeTx(PARAMS, COIN, watched);
+        assertEquals(ImmutableSet.of(wallet2), group.findCandidateWallets(toWatched));
+    }
+
+    @Test
+    public void sharedBloomFilter() throws Exception {
+        ECKey key1 = wallet1.currentReceiveKey();
+        ECKey key2 = wallet2.currentReceiveKey();
+        group.beginBloomFilterCalculation();
+        try {
+            int elements = group.getBloomFilterElementCount();
+            assertEquals(wallet1.getBloomFilterElementCount() + wallet2.getBloomFilterElementCount(), elements);
+            BloomFilter filter = group.getBloomFilter(elements, 0.001, 0);
+            assertTrue(filter.contains(key1.getPubKeyHash()));
+            assertTrue(filter.contains(key2.getPubKeyHash()));
+            assertTrue(filter.contains(key2.getPubKey()));
+        } finally {
+            group.endBloomFilterCalculation();
+        }
+    }
+
+    @Test
+    public void removeWallet() throws Exception {
+        Transaction tx = createFakeTx(PARAMS, COIN, wallet1.currentReceiveAddress());
+        receiveInBlock(tx);
+        group.removeWallet(wallet1);
+        assertEquals(1, group.getWallets().size());
+        assertTrue(group.findCandidateWallets(createFakeTx(PARAMS, COIN, wallet1.currentReceiveAddress())).isEmpty());
+        assertTrue(group.findCandidateWallets(wallet1.createSend(new ECKey().toAddress(PARAMS), CENT)).isEmpty());
+    }
+}
@@ -39,6 +39,7 @@ import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
 import org.bitcoinj.crypto.*;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.signers.LocalTransactionSigner;
 import org.bitcoinj.signers.StatelessTransactionSigner;
 import org.bitcoinj.signers.TransactionSigner;
 import org.bitcoinj.store.BlockStoreException;
@@ -145,6 +146,46 @@ public class WalletTest extends TestWithWallet {
         wallet.getKeyChainSeed().check();
     }
 
+    @Test
+    public void readsDoNotBlockWhileLocked() throws Exception {
+        Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        assertEquals(COIN, wallet.getBalance());
+        Transaction tx2 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+
+        // Hold the wallet lock on another thread, as block processing would.
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread() {
+            @Override
+            public void run() {
+                wallet.lock.lock();
+                try {
+                    locked.countDown();
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    wallet.lock.unlock();
+                }
+            }
+        };
+        holder.start();
+        assertTrue(locked.await(5, TimeUnit.SECONDS));
+        try {
+            assertEquals(COIN.add(CENT), wallet.getBalance());
+            assertEquals(COIN.add(CENT), wallet.getBalance(BalanceType.ESTIMATED));
+            assertEquals(tx1, wallet.getTransaction(tx1.getHash()));
+            assertEquals(tx2, wallet.getTransaction(tx2.getHash()));
+            assertEquals(2, wallet.getPoolSize(Pool.UNSPENT));
+            assertEquals(2, wallet.getUnspents().size());
+            assertEquals(2, wallet.getTransactions(true).size());
+            assertTrue(wallet.getPendingTransactions().isEmpty());
+        } finally {
+            release.countDown();
+            holder.join();
+        }
+    }
+
     @Test
     public void basicSpending() throws Exception {
         basicSpendingCommon(wallet, myAddress, OTHER_ADDRESS, null);
@@ -156,6 +197,47 @@ public class WalletTest extends TestWithWallet {
         basicSpendingCommon(wallet, myAddress, destination, null);
     }
 
+    @Test
+    public void parallelSigning() throws Exception {
+        LocalTransactionSigner signer = (LocalTransactionSigner) wallet.getTransactionSigners().get(0);
+        signer.setParallelSigningThreshold(2);
+        for (int i = 0; i < 10; i++)
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT, wallet.freshReceiveAddress());
+        ECKey pubKeyOnly = wallet.freshReceiveKey();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT, pubKeyOnly);
+        SendRequest req = SendRequest.emptyWallet(OTHER_ADDRESS);
+        wallet.completeTx(req);
+        assertEquals(11, req.tx.getInputs().size());
+        List<byte[]> scripts = new ArrayList<>();
+        for (int i = 0; i < req.tx.getInputs().size(); i++) {
+            TransactionInput input = req.tx.getInput(i);
+            input.getScriptSig().correctlySpends(req.tx, i, input.getConnectedOutput().getScriptPubKey());
+            scripts.add(input.getScriptBytes());
+        }
+        // Signing again leaves the signed inputs alone.
+        wallet.signTransaction(req);
+        for (int i = 0; i < req.tx.getInputs().size(); i++)
+            assertArrayEquals(scripts.get(i), req.tx.getInput(i).getScriptBytes());
+
+        // Junk in place of a signature is replaced.
+        int index = 0;
+        while (!req.tx.getInput(index).getConnectedOutput().getScriptPubKey().isSentToAddress())
+            index++;
+        TransactionInput input = req.tx.getInput(index);
+        ECKey key = wallet.findKeyFromPubHash(input.getConnectedOutput().getScriptPubKey().getPubKeyHash());
+        input.setScriptSig(new ScriptBuilder().data(new byte[] { 1, 2, 3 }).data(key.getPubKey()).build());
+        wallet.signTransaction(req);
+        input.getScriptSig().correctlySpends(req.tx, index, input.getConnectedOutput().getScriptPubKey());
+
+        // Signatures that no longer match the transaction are replaced too.
+        req.tx.getOutput(0).setValue(req.tx.getOutput(0).getValue().subtract(SATOSHI));
+        wallet.signTransaction(req);
+        for (int i = 0; i < req.tx.getInputs().size(); i++) {
+            TransactionInput in = req.tx.getInput(i);
+            in.getScriptSig().correctlySpends(req.tx, i, in.getConnectedOutput().getScriptPubKey());
+        }
+    }
+
     @Test
     public void basicSpendingWithEncryptedWallet() throws Exception {
         Wallet encryptedWallet = new Wallet(PARAMS);
@@ -1960,6 +2042,80 @@ public class WalletTest extends TestWithWallet {
         }
     }
 
+    @Test
+    public void unlockedSession() throws Exception {
+        Utils.setMockClock();
+        Wallet encryptedWallet = new Wallet(PARAMS);
+        encryptedWallet.encrypt(PASSWORD1);
+        for (int i = 0; i < 3; i++)
+            sendMoneyToWallet(encryptedWallet, AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT,
+                    encryptedWallet.freshReceiveAddress());
+        try {
+            encryptedWallet.unlockSession(WRONG_PASSWORD, 1, TimeUnit.HOURS);
+            fail();
+        } catch (KeyCrypterException e) {
+            assertFalse(encryptedWallet.isSessionUnlocked());
+        }
+
+        encryptedWallet.unlockSession(PASSWORD1, 1, TimeUnit.HOURS);
+        assertTrue(encryptedWallet.isSessionUnlocked());
+        // No AES key needed while the session lasts, and keys are decrypted only once.
+        SendRequest req = SendRequest.to(OTHER_ADDRESS, CENT);
+        encryptedWallet.completeTx(req);
+        for (int i = 0; i < req.tx.getInputs().size(); i++) {
+            TransactionInput input = req.tx.getInput(i);
+            input.getScriptSig().correctlySpends(req.tx, i, input.getConnectedOutput().getScriptPubKey());
+        }
+        DecryptedKeyCache session = encryptedWallet.getUnlockedSession();
+        assertEquals(req.tx.getInputs().size(), session.size());
+        ECKey key = encryptedWallet.findKeyFromPubHash(req.tx.getInput(0).getConnectedOutput().getScriptPubKey().getPubKeyHash());
+        ECKey decrypted = session.decrypt(key);
+        assertArrayEquals(key.getPubKey(), decrypted.getPubKey());
+        assertArrayEquals(key.decrypt(encryptedWallet.getKeyCrypter().deriveKey(PASSWORD1)).getPrivKeyBytes(),
+                decrypted.getPrivKeyBytes());
+        assertEquals(((DeterministicKey) key).getPath(), ((DeterministicKey) decrypted).getPath());
+
+        // The session ends by itself.
+        Utils.rollMockClock(60 * 60);
+        assertFalse(encryptedWallet.isSessionUnlocked());
+        assertEquals(0, session.size());
+        try {
+            encryptedWallet.completeTx(SendRequest.to(OTHER_ADDRESS, CENT));
+            fail();
+        } catch (ECKey.KeyIsEncryptedException e) {
+            // Expected.
+        }
+
+        encryptedWallet.unlockSession(PASSWORD1, 1, TimeUnit.HOURS);
+        encryptedWallet.lockSession();
+        assertFalse(encryptedWallet.isSessionUnlocked());
+    }
+
+    @Test
+    public void decryptedKeyCacheEviction() throws Exception {
+        Wallet encryptedWallet = new Wallet(PARAMS);
+        encryptedWallet.encrypt(PASSWORD1);
+        KeyParameter aesKey = encryptedWallet.getKeyCrypter().deriveKey(PASSWORD1);
+        DecryptedKeyCache cache = new DecryptedKeyCache(aesKey, 2, 1, TimeUnit.HOURS);
+        ECKey key1 = encryptedWallet.freshReceiveKey(), key2 = encryptedWallet.freshReceiveKey(),
+                key3 = encryptedWallet.freshReceiveKey();
+        ECKey decrypted1 = cache.decrypt(key1);
+        cache.decrypt(key2);
+        cache.decrypt(key1);
+        cache.decrypt(key3);
+        // key2 was the least recently used.
+        assertEquals(2, cache.size());
+        assertFalse(cache.contains(key2));
+        assertTrue(cache.contains(key1));
+        assertTrue(cache.contains(key3));
+        assertArrayEquals(decrypted1.getPrivKeyBytes(), cache.decrypt(key1).getPrivKeyBytes());
+        assertTrue(cache.usesKey(aesKey));
+        cache.close();
+        assertFalse(cache.isOpen());
+        assertNull(cache.decrypt(key1));
+        assertEquals(0, cache.size());
+    }
+
     @Test
     public void encryptionDecryptionPasswordBasic() throws Exception {
         Wallet encryptedWallet = new Wallet(PARAMS);
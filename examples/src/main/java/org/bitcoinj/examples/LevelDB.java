@@ -17,27 +17,45 @@
 package org.bitcoinj.examples;
 
 import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
 import org.bitcoinj.core.FullPrunedBlockChain;
 import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.store.LevelDBFullPrunedBlockStore;
+import org.bitcoinj.utils.Metrics;
 
 public class LevelDB {
+    private static final int EXIT_HEIGHT = 390000;
+
     public static void main(String[] args) throws Exception {
         /*
          * This is just a test runner that will download blockchain till block
          * 这只是一个将下载区块链到block的测试运行器
-         * 390000 then exit.
+         * 390000 then exit, logging the metrics every minute.
          * 390000然后退出。
          */
+        Metrics.startReporting(new Metrics.LoggingSink(), 1, TimeUnit.MINUTES);
         FullPrunedBlockStore store = new LevelDBFullPrunedBlockStore(
                 MainNetParams.get(), args[0], 1000, 100 * 1024 * 1024l,
-                10 * 1024 * 1024, 100000, true, 390000);
+                10 * 1024 * 1024, 100000);
 
         FullPrunedBlockChain vChain = new FullPrunedBlockChain(
                 MainNetParams.get(), store);
         vChain.setRunScripts(false);
+        vChain.addNewBestBlockListener(new NewBestBlockListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+                if (block.getHeight() == EXIT_HEIGHT) {
+                    Metrics.report(new Metrics.LoggingSink());
+                    System.exit(0);
+                }
+            }
+        });
 
         PeerGroup vPeerGroup = new PeerGroup(MainNetParams.get(), vChain);
         vPeerGroup.setUseLocalhostPeerWhenPossible(true);